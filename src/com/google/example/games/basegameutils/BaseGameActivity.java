@@ -34,7 +34,9 @@ import com.google.android.gms.plus.PlusClient;
  * AppStateClient objects are also wanted, call the BaseGameActivity(int)
  * constructor and specify the requested clients. For example, to request
  * PlusClient and GamesClient, use BaseGameActivity(CLIENT_GAMES | CLIENT_PLUS).
- * To request all available clients, use BaseGameActivity(CLIENT_ALL).
+ * To request all available clients, use BaseGameActivity(CLIENT_ALL). The
+ * GameHelper is shared by all activities (see GameHelperHolder), so that
+ * rotations and switching between activities keep the same connections.
  * Alternatively, you can also specify the requested clients via
  * 
  * @link{#setRequestedClients , but you must do so before @link{#onCreate} gets
@@ -46,7 +48,7 @@ public abstract class BaseGameActivity extends FragmentActivity implements
         GameHelper.GameHelperListener {
 
     // The game helper object. This class is mainly a wrapper around this
-    // object.
+    // object. Set in onCreate().
     protected GameHelper mHelper;
 
     // We expose these constants here because we don't want users of this class
@@ -68,7 +70,6 @@ public abstract class BaseGameActivity extends FragmentActivity implements
     /** Constructs a BaseGameActivity with default client (GamesClient). */
     protected BaseGameActivity() {
         super();
-        mHelper = new GameHelper(this);
     }
 
     /**
@@ -107,23 +108,23 @@ public abstract class BaseGameActivity extends FragmentActivity implements
     @Override
     protected void onCreate(Bundle b) {
         super.onCreate(b);
-        mHelper = new GameHelper(this);
+        mHelper = GameHelperHolder.getInstance().getHelper(this,
+                mRequestedClients, mAdditionalScopes);
         if (mDebugLog) {
             mHelper.enableDebugLog(mDebugLog, mDebugTag);
         }
-        mHelper.setup(this, mRequestedClients, mAdditionalScopes);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        mHelper.onStart(this);
+        GameHelperHolder.getInstance().acquire(this, this);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        mHelper.onStop();
+        GameHelperHolder.getInstance().release(this, this);
     }
 
     @Override
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+import android.os.Bundle;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesClient;
+
+/**
+ * Connects a set of Play services clients all at once instead of one after
+ * another, so that signing in takes about as long as the slowest client
+ * rather than the sum of them all. Each client is built with its own
+ * callbacks (see callbacksFor()), so every connection, failure and
+ * disconnection is known to belong to a particular client, and a failure
+ * only affects the client it happened to. Clients are identified by the
+ * GameHelper.CLIENT_* flags and their state is kept in bitmasks of them.
+ * Each connection attempt is recorded as a CONNECT_CLIENT span in the
+ * SignInTimeline.
+ *
+ * Not thread-safe: call it, and have the clients call back, on one thread
+ * (the main thread, for real clients).
+ */
+class ConnectionCoordinator {
+    /** Hears about each client; all calls are made on the calling thread. */
+    interface Listener {
+        void onClientConnected(int client, Bundle connectionHint);
+
+        /**
+         * A client failed to connect. It stays in getFailedClients(), with
+         * getFailure() giving the result, until it's connected again.
+         */
+        void onClientFailed(int client, ConnectionResult result);
+
+        /** Every client asked for in the last connect() is connected. */
+        void onAllConnected();
+
+        /** A connected client lost its connection. */
+        void onClientDisconnected(int client);
+    }
+
+    static final int CLIENT_COUNT = 3;
+
+    final Listener mListener;
+    final SignInTimeline mTimeline;
+
+    // indexed by the bit number of the client's flag
+    final GooglePlayServicesClient[] mClients = new GooglePlayServicesClient[CLIENT_COUNT];
+    final ConnectionResult[] mFailures = new ConnectionResult[CLIENT_COUNT];
+
+    // clients in each state (flags)
+    int mConnectedClients = GameHelper.CLIENT_NONE;
+    int mConnectingClients = GameHelper.CLIENT_NONE;
+    int mFailedClients = GameHelper.CLIENT_NONE;
+
+    // clients that must all be connected before onAllConnected()
+    int mWantedClients = GameHelper.CLIENT_NONE;
+
+    // timeline span of each client's current connection attempt
+    final long[] mConnectSpans = new long[CLIENT_COUNT];
+
+    ConnectionCoordinator(Listener listener, SignInTimeline timeline) {
+        mListener = listener;
+        mTimeline = timeline;
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            mConnectSpans[i] = -1;
+        }
+    }
+
+    static int index(int client) {
+        return Integer.numberOfTrailingZeros(client);
+    }
+
+    /**
+     * Returns the callbacks to build the client with the given flag with;
+     * pass the result as both the ConnectionCallbacks and the
+     * OnConnectionFailedListener. Then hand the client to setClient().
+     */
+    Callbacks callbacksFor(int client) {
+        return new Callbacks(client);
+    }
+
+    void setClient(int client, GooglePlayServicesClient c) {
+        mClients[index(client)] = c;
+    }
+
+    GooglePlayServicesClient getClient(int client) {
+        return mClients[index(client)];
+    }
+
+    int getConnectedClients() {
+        return mConnectedClients;
+    }
+
+    int getConnectingClients() {
+        return mConnectingClients;
+    }
+
+    int getFailedClients() {
+        return mFailedClients;
+    }
+
+    /** The last failure of a client in getFailedClients(). */
+    ConnectionResult getFailure(int client) {
+        return mFailures[index(client)];
+    }
+
+    /**
+     * Starts connecting each of clients that isn't connected or connecting
+     * already (including failed ones, which are retried), all at once.
+     * onAllConnected() follows when they all are, right away if they
+     * already are.
+     */
+    void connect(int clients) {
+        mWantedClients |= clients;
+        int start = GameHelper.CLIENT_NONE;
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            int client = 1 << i;
+            GooglePlayServicesClient c = mClients[i];
+            if ((clients & client) == 0 || c == null) {
+                continue;
+            }
+            if (c.isConnected()) {
+                // connected without our hearing about it
+                mConnectedClients |= client;
+            }
+            if ((mConnectedClients & client) == 0
+                    && (mConnectingClients & client) == 0) {
+                start |= client;
+            }
+        }
+
+        // mark them all first, in case a client calls back from connect()
+        mConnectingClients |= start;
+        mFailedClients &= ~start;
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            if ((start & (1 << i)) != 0) {
+                mConnectSpans[i] = mTimeline.begin(
+                        SignInTimeline.CONNECT_CLIENT, 1 << i);
+                mClients[i].connect();
+            }
+        }
+        checkAllConnected();
+    }
+
+    /**
+     * Drops the connections of the given connected clients and connects them
+     * again.
+     */
+    void reconnect(int clients) {
+        clients &= mConnectedClients;
+        mConnectedClients &= ~clients;
+        mConnectingClients |= clients;
+        mWantedClients |= mConnectedClients | clients;
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            if ((clients & (1 << i)) != 0) {
+                mClients[i].disconnect();
+                mConnectSpans[i] = mTimeline.begin(
+                        SignInTimeline.CONNECT_CLIENT, 1 << i);
+                mClients[i].connect();
+            }
+        }
+    }
+
+    /**
+     * Disconnects every client, connected or still connecting, and forgets
+     * their failures. Late callbacks from them are ignored.
+     */
+    void disconnectAll() {
+        int clients = mConnectedClients | mConnectingClients;
+        mConnectedClients = GameHelper.CLIENT_NONE;
+        mConnectingClients = GameHelper.CLIENT_NONE;
+        mFailedClients = GameHelper.CLIENT_NONE;
+        mWantedClients = GameHelper.CLIENT_NONE;
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            mFailures[i] = null;
+            mTimeline.end(mConnectSpans[i], SignInTimeline.CANCELED);
+            GooglePlayServicesClient c = mClients[i];
+            if (c != null && ((clients & (1 << i)) != 0 || c.isConnected())) {
+                c.disconnect();
+            }
+        }
+    }
+
+    void checkAllConnected() {
+        if (mWantedClients != GameHelper.CLIENT_NONE
+                && (mWantedClients & ~mConnectedClients) == 0) {
+            mWantedClients = GameHelper.CLIENT_NONE;
+            mListener.onAllConnected();
+        }
+    }
+
+    void handleConnected(int client, Bundle connectionHint) {
+        if ((mConnectingClients & client) == 0) {
+            // we stopped waiting for it (disconnectAll()), so let it go
+            mClients[index(client)].disconnect();
+            return;
+        }
+        mConnectingClients &= ~client;
+        mConnectedClients |= client;
+        mTimeline.end(mConnectSpans[index(client)], SignInTimeline.SUCCEEDED);
+        mListener.onClientConnected(client, connectionHint);
+        checkAllConnected();
+    }
+
+    void handleFailed(int client, ConnectionResult result) {
+        if ((mConnectingClients & client) == 0) {
+            return;
+        }
+        mConnectingClients &= ~client;
+        mFailedClients |= client;
+        mTimeline.end(mConnectSpans[index(client)], SignInTimeline.FAILED);
+        mFailures[index(client)] = result;
+        mListener.onClientFailed(client, result);
+    }
+
+    void handleDisconnected(int client) {
+        if ((mConnectedClients & client) == 0) {
+            return;
+        }
+        mConnectedClients &= ~client;
+        mListener.onClientDisconnected(client);
+    }
+
+    /** Callbacks that know which client they belong to. */
+    class Callbacks implements GooglePlayServicesClient.ConnectionCallbacks,
+            GooglePlayServicesClient.OnConnectionFailedListener {
+        final int mClient;
+
+        Callbacks(int client) {
+            mClient = client;
+        }
+
+        @Override
+        public void onConnected(Bundle connectionHint) {
+            handleConnected(mClient, connectionHint);
+        }
+
+        @Override
+        public void onDisconnected() {
+            handleDisconnected(mClient);
+        }
+
+        @Override
+        public void onConnectionFailed(ConnectionResult result) {
+            handleFailed(mClient, result);
+        }
+    }
+}
@@ -35,7 +35,6 @@ import android.view.Gravity;
 
 import com.google.android.gms.appstate.AppStateClient;
 import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesClient;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.common.Scopes;
 import com.google.android.gms.games.GamesActivityResultCodes;
@@ -44,9 +43,7 @@ import com.google.android.gms.games.multiplayer.Invitation;
 import com.google.android.gms.plus.PlusClient;
 import com.google.example.squash.R;
 
-public class GameHelper implements
-        GooglePlayServicesClient.ConnectionCallbacks,
-        GooglePlayServicesClient.OnConnectionFailedListener {
+public class GameHelper {
 
     /** Listener for sign-in success or failure events. */
     public interface GameHelperListener {
@@ -92,6 +89,10 @@ public class GameHelper implements
     // Are we expecting the result of a resolution flow?
     boolean mExpectingResolution = false;
 
+    // Did a failure need resolving while we had no Activity to resolve it
+    // with? If so, it's resolved at the next onStart().
+    boolean mResolutionPending = false;
+
     /**
      * The Activity we are bound to. We need to keep a reference to the Activity
      * because some games methods require an Activity (a Context won't do). We
@@ -125,11 +126,39 @@ public class GameHelper implements
     // What clients were requested? (bit flags)
     int mRequestedClients = CLIENT_NONE;
 
-    // What clients are currently connected? (bit flags)
-    int mConnectedClients = CLIENT_NONE;
+    // Where the time goes while signing in; see getSignInTimeline().
+    final SignInTimeline mTimeline = new SignInTimeline();
+
+    // timeline spans of the sign-in attempt and of the resolution in progress
+    long mSignInSpan = -1;
+    long mResolveSpan = -1;
+
+    // Connects the clients in parallel, and knows which are connected.
+    final ConnectionCoordinator mCoordinator = new ConnectionCoordinator(
+            new ConnectionCoordinator.Listener() {
+                @Override
+                public void onClientConnected(int client, Bundle connectionHint) {
+                    GameHelper.this.onClientConnected(client, connectionHint);
+                }
+
+                @Override
+                public void onClientFailed(int client, ConnectionResult result) {
+                    GameHelper.this.onClientFailed(client, result);
+                }
+
+                @Override
+                public void onAllConnected() {
+                    GameHelper.this.onAllConnected();
+                }
+
+                @Override
+                public void onClientDisconnected(int client) {
+                    GameHelper.this.onDisconnected();
+                }
+            }, mTimeline);
 
-    // What client are we currently connecting?
-    int mClientCurrentlyConnecting = CLIENT_NONE;
+    // Which client's failure are we resolving?
+    int mResolvingClient = CLIENT_NONE;
 
     // Whether to automatically try to sign in on onStart().
     boolean mAutoSignIn = true;
@@ -166,6 +195,7 @@ public class GameHelper implements
 
     /**
      * Construct a GameHelper object, initially tied to the given Activity.
+     * To share one between activities, get it from GameHelperHolder instead.
      * After constructing this object, call @link{setup} from the onCreate()
      * method of your Activity.
      */
@@ -256,6 +286,10 @@ public class GameHelper implements
             }
         }
 
+        // The clients may outlive the Activity (see GameHelperHolder), so
+        // they mustn't hold on to it.
+        Context appContext = getContext().getApplicationContext();
+
         mScopes = new String[scopesVector.size()];
         scopesVector.copyInto(mScopes);
 
@@ -264,24 +298,35 @@ public class GameHelper implements
             debugLog("  - " + scope);
         }
 
+        // each client gets its own callbacks, so that we know which one
+        // connected or failed
         if (0 != (clientsToUse & CLIENT_GAMES)) {
             debugLog("setup: creating GamesClient");
-            mGamesClient = new GamesClient.Builder(getContext(), this, this)
+            ConnectionCoordinator.Callbacks cb = mCoordinator
+                    .callbacksFor(CLIENT_GAMES);
+            mGamesClient = new GamesClient.Builder(appContext, cb, cb)
                     .setGravityForPopups(
                             Gravity.TOP | Gravity.CENTER_HORIZONTAL)
                     .setScopes(mScopes).create();
+            mCoordinator.setClient(CLIENT_GAMES, mGamesClient);
         }
 
         if (0 != (clientsToUse & CLIENT_PLUS)) {
             debugLog("setup: creating GamesPlusClient");
-            mPlusClient = new PlusClient.Builder(getContext(), this, this)
+            ConnectionCoordinator.Callbacks cb = mCoordinator
+                    .callbacksFor(CLIENT_PLUS);
+            mPlusClient = new PlusClient.Builder(appContext, cb, cb)
                     .setScopes(mScopes).build();
+            mCoordinator.setClient(CLIENT_PLUS, mPlusClient);
         }
 
         if (0 != (clientsToUse & CLIENT_APPSTATE)) {
             debugLog("setup: creating AppStateClient");
-            mAppStateClient = new AppStateClient.Builder(getContext(), this,
-                    this).setScopes(mScopes).create();
+            ConnectionCoordinator.Callbacks cb = mCoordinator
+                    .callbacksFor(CLIENT_APPSTATE);
+            mAppStateClient = new AppStateClient.Builder(appContext, cb, cb)
+                    .setScopes(mScopes).create();
+            mCoordinator.setClient(CLIENT_APPSTATE, mAppStateClient);
         }
         setState(STATE_DISCONNECTED);
     }
@@ -290,7 +335,9 @@ public class GameHelper implements
         String oldStateName = STATE_NAMES[mState];
         String newStateName = STATE_NAMES[newState];
         mState = newState;
-        debugLog("State change " + oldStateName + " -> " + newStateName);
+        if (mDebugLog) {
+            debugLog("State change " + oldStateName + " -> " + newStateName);
+        }
     }
 
     /**
@@ -353,11 +400,23 @@ public class GameHelper implements
         return mSignInFailureReason;
     }
 
+    /**
+     * Returns the timing of the recent phases of signing in: each attempt,
+     * each client's connection, resolutions and the listener callback. It's
+     * recorded whether or not debug logging is on, and cheaply enough to
+     * leave on in release builds.
+     */
+    public SignInTimeline getSignInTimeline() {
+        return mTimeline;
+    }
+
     /** Call this method from your Activity's onStart(). */
     public void onStart(Activity act) {
         mActivity = act;
 
-        debugLog("onStart, state = " + STATE_NAMES[mState]);
+        if (mDebugLog) {
+            debugLog("onStart, state = " + STATE_NAMES[mState]);
+        }
         assertState("onStart", STATE_DISCONNECTED, STATE_CONNECTING,
                 STATE_CONNECTED);
 
@@ -372,12 +431,18 @@ public class GameHelper implements
             }
             break;
         case STATE_CONNECTING:
+            if (mResolutionPending) {
+                debugLog("onStart: resolving the failure that came while we had no Activity.");
+                mResolutionPending = false;
+                resolveConnectionResult();
+                break;
+            }
             // connection process is in progress; no action required
             debugLog("onStart: connection process in progress, no action taken.");
             break;
         case STATE_CONNECTED:
-            // already connected (for some strange reason). No complaints :-)
-            debugLog("onStart: already connected (unusual, but ok).");
+            // still connected, e.g. shared through GameHelperHolder
+            debugLog("onStart: already connected, reusing connections.");
             break;
         default:
             String msg = "onStart: BUG: unexpected state "
@@ -389,7 +454,9 @@ public class GameHelper implements
 
     /** Call this method from your Activity's onStop(). */
     public void onStop() {
-        debugLog("onStop, state = " + STATE_NAMES[mState]);
+        if (mDebugLog) {
+            debugLog("onStop, state = " + STATE_NAMES[mState]);
+        }
         assertState("onStop", STATE_DISCONNECTED, STATE_CONNECTING,
                 STATE_CONNECTED);
         switch (mState) {
@@ -412,6 +479,25 @@ public class GameHelper implements
         mActivity = null;
     }
 
+    /** Sets the listener to be notified of sign-in events. */
+    public void setListener(GameHelperListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Lets go of the Activity and listener without disconnecting, for when
+     * the connections are kept for another Activity (see GameHelperHolder).
+     * Does nothing to whichever of them has since been replaced.
+     */
+    void detach(Activity activity, GameHelperListener listener) {
+        if (mActivity == activity) {
+            mActivity = null;
+        }
+        if (mListener == listener) {
+            mListener = null;
+        }
+    }
+
     /** Convenience method to show an alert dialog. */
     public void showAlert(String title, String message) {
         (new AlertDialog.Builder(getContext())).setTitle(title)
@@ -504,21 +590,13 @@ public class GameHelper implements
         debugLog("killConnections: killing connections.");
 
         mConnectionResult = null;
+        mResolutionPending = false;
         mSignInFailureReason = null;
+        mResolvingClient = CLIENT_NONE;
+        mTimeline.end(mResolveSpan, SignInTimeline.CANCELED);
+        mTimeline.end(mSignInSpan, SignInTimeline.CANCELED);
 
-        if (mGamesClient != null && mGamesClient.isConnected()) {
-            debugLog("Disconnecting GamesClient.");
-            mGamesClient.disconnect();
-        }
-        if (mPlusClient != null && mPlusClient.isConnected()) {
-            debugLog("Disconnecting PlusClient.");
-            mPlusClient.disconnect();
-        }
-        if (mAppStateClient != null && mAppStateClient.isConnected()) {
-            debugLog("Disconnecting AppStateClient.");
-            mAppStateClient.disconnect();
-        }
-        mConnectedClients = CLIENT_NONE;
+        mCoordinator.disconnectAll();
         debugLog("killConnections: all clients disconnected.");
         setState(STATE_DISCONNECTED);
     }
@@ -551,10 +629,12 @@ public class GameHelper implements
      */
     public void onActivityResult(int requestCode, int responseCode,
             Intent intent) {
-        debugLog("onActivityResult: req="
-                + (requestCode == RC_RESOLVE ? "RC_RESOLVE" : String
-                        .valueOf(requestCode)) + ", resp="
-                + activityResponseCodeToString(responseCode));
+        if (mDebugLog) {
+            debugLog("onActivityResult: req="
+                    + (requestCode == RC_RESOLVE ? "RC_RESOLVE" : String
+                            .valueOf(requestCode)) + ", resp="
+                    + activityResponseCodeToString(responseCode));
+        }
         if (requestCode != RC_RESOLVE) {
             debugLog("onActivityResult: request code not meant for us. Ignoring.");
             return;
@@ -562,22 +642,40 @@ public class GameHelper implements
 
         // no longer expecting a resolution
         mExpectingResolution = false;
+        mTimeline.end(mResolveSpan,
+                responseCode == Activity.RESULT_OK ? SignInTimeline.SUCCEEDED
+                        : responseCode == Activity.RESULT_CANCELED
+                                ? SignInTimeline.CANCELED
+                                : SignInTimeline.FAILED);
 
         if (mState != STATE_CONNECTING) {
-            debugLog("onActivityResult: ignoring because state isn't STATE_CONNECTING ("
-                    + "it's " + STATE_NAMES[mState] + ")");
+            if (mDebugLog) {
+                debugLog("onActivityResult: ignoring because state isn't STATE_CONNECTING ("
+                        + "it's " + STATE_NAMES[mState] + ")");
+            }
             return;
         }
 
+        long span = mTimeline.begin(SignInTimeline.ON_ACTIVITY_RESULT,
+                CLIENT_NONE);
+        try {
+            handleResolutionResult(responseCode);
+        } finally {
+            mTimeline.end(span, SignInTimeline.SUCCEEDED);
+        }
+    }
+
+    /** Carries on signing in after the resolution activity returns. */
+    void handleResolutionResult(int responseCode) {
         // We're coming back from an activity that was launched to resolve a
         // connection problem. For example, the sign-in UI.
         if (responseCode == Activity.RESULT_OK) {
             // Ready to try to connect again.
-            debugLog("onAR: Resolution was RESULT_OK, so connecting current client again.");
-            connectCurrentClient();
+            debugLog("onAR: Resolution was RESULT_OK, so connecting failed clients again.");
+            connectPendingClients();
         } else if (responseCode == GamesActivityResultCodes.RESULT_RECONNECT_REQUIRED) {
             debugLog("onAR: Resolution was RECONNECT_REQUIRED, so reconnecting.");
-            connectCurrentClient();
+            connectPendingClients();
         } else if (responseCode == Activity.RESULT_CANCELED) {
             // User cancelled.
             debugLog("onAR: Got a cancellation result, so disconnecting.");
@@ -589,19 +687,25 @@ public class GameHelper implements
         } else {
             // Whatever the problem we were trying to solve, it was not
             // solved. So give up and show an error message.
-            debugLog("onAR: responseCode="
-                    + activityResponseCodeToString(responseCode)
-                    + ", so giving up.");
+            if (mDebugLog) {
+                debugLog("onAR: responseCode="
+                        + activityResponseCodeToString(responseCode)
+                        + ", so giving up.");
+            }
             giveUp(new SignInFailureReason(mConnectionResult.getErrorCode(),
                     responseCode));
         }
     }
 
     void notifyListener(boolean success) {
-        debugLog("Notifying LISTENER of sign-in "
-                + (success ? "SUCCESS"
-                        : mSignInFailureReason != null ? "FAILURE (error)"
-                                : "FAILURE (no error)"));
+        if (mDebugLog) {
+            debugLog("Notifying LISTENER of sign-in "
+                    + (success ? "SUCCESS"
+                            : mSignInFailureReason != null ? "FAILURE (error)"
+                                    : "FAILURE (no error)"));
+        }
+        mTimeline.end(mSignInSpan, success ? SignInTimeline.SUCCEEDED
+                : SignInTimeline.FAILED);
         if (mListener != null) {
             if (success) {
                 mListener.onSignInSucceeded();
@@ -633,7 +737,9 @@ public class GameHelper implements
         // Is Google Play services available?
         int result = GooglePlayServicesUtil
                 .isGooglePlayServicesAvailable(getContext());
-        debugLog("isGooglePlayServicesAvailable returned " + result);
+        if (mDebugLog) {
+            debugLog("isGooglePlayServicesAvailable returned " + result);
+        }
         if (result != ConnectionResult.SUCCESS) {
             // Google Play services is not available.
             debugLog("Google Play services not available. Show error dialog.");
@@ -677,80 +783,27 @@ public class GameHelper implements
     void startConnections() {
         assertState("startConnections", STATE_DISCONNECTED);
         debugLog("Starting connections.");
+        mSignInSpan = mTimeline.begin(SignInTimeline.START_CONNECTIONS,
+                CLIENT_NONE);
         setState(STATE_CONNECTING);
         mInvitationId = null;
-        connectNextClient();
-    }
-
-    void connectNextClient() {
-        // do we already have all the clients we need?
-        debugLog("connectNextClient: requested clients: " + mRequestedClients
-                + ", connected clients: " + mConnectedClients);
-
-        // failsafe, in case we somehow lost track of what clients are connected
-        // or not.
-        if (mGamesClient != null && mGamesClient.isConnected()
-                && (0 == (mConnectedClients & CLIENT_GAMES))) {
-            Log.w(mDebugTag,
-                    "*** WARNING: GamesClient was already connected. Fixing.");
-            mConnectedClients |= CLIENT_GAMES;
-        }
-        if (mPlusClient != null && mPlusClient.isConnected()
-                && (0 == (mConnectedClients & CLIENT_PLUS))) {
-            Log.w(mDebugTag,
-                    "*** WARNING: PlusClient was already connected. Fixing.");
-            mConnectedClients |= CLIENT_PLUS;
-        }
-        if (mAppStateClient != null && mAppStateClient.isConnected()
-                && (0 == (mConnectedClients & CLIENT_APPSTATE))) {
-            Log.w(mDebugTag,
-                    "*** WARNING: AppStateClient was already connected. Fixing");
-            mConnectedClients |= CLIENT_APPSTATE;
-        }
-
-        int pendingClients = mRequestedClients & ~mConnectedClients;
-        debugLog("Pending clients: " + pendingClients);
-
-        if (pendingClients == 0) {
-            debugLog("All clients now connected. Sign-in successful!");
-            succeedSignIn();
-            return;
-        }
-
-        // which client should be the next one to connect?
-        if (mGamesClient != null && (0 != (pendingClients & CLIENT_GAMES))) {
-            debugLog("Connecting GamesClient.");
-            mClientCurrentlyConnecting = CLIENT_GAMES;
-        } else if (mPlusClient != null && (0 != (pendingClients & CLIENT_PLUS))) {
-            debugLog("Connecting PlusClient.");
-            mClientCurrentlyConnecting = CLIENT_PLUS;
-        } else if (mAppStateClient != null
-                && (0 != (pendingClients & CLIENT_APPSTATE))) {
-            debugLog("Connecting AppStateClient.");
-            mClientCurrentlyConnecting = CLIENT_APPSTATE;
-        } else {
-            // hmmm, getting here would be a bug.
-            throw new AssertionError(
-                    "Not all clients connected, yet no one is next. R="
-                            + mRequestedClients + ", C=" + mConnectedClients);
-        }
-
-        connectCurrentClient();
+        connectPendingClients();
     }
 
-    void connectCurrentClient() {
-        assertState("connectCurrentClient", STATE_CONNECTING);
-        switch (mClientCurrentlyConnecting) {
-        case CLIENT_GAMES:
-            mGamesClient.connect();
-            break;
-        case CLIENT_APPSTATE:
-            mAppStateClient.connect();
-            break;
-        case CLIENT_PLUS:
-            mPlusClient.connect();
-            break;
+    /**
+     * Starts connecting every requested client that isn't connected or
+     * connecting yet, all at the same time. Clients that failed are retried.
+     */
+    void connectPendingClients() {
+        assertState("connectPendingClients", STATE_CONNECTING);
+        if (mDebugLog) {
+            debugLog("connectPendingClients: requested clients: "
+                    + mRequestedClients + ", connected clients: "
+                    + mCoordinator.getConnectedClients()
+                    + ", connecting clients: "
+                    + mCoordinator.getConnectingClients());
         }
+        mCoordinator.connect(mRequestedClients);
     }
 
     /**
@@ -761,21 +814,17 @@ public class GameHelper implements
      */
     public void reconnectClients(int whatClients) {
         assertState("reconnectClients", STATE_CONNECTED);
-        boolean actuallyReconnecting = false;
+        int reconnecting = CLIENT_NONE;
 
         if ((whatClients & CLIENT_GAMES) != 0 && mGamesClient != null
                 && mGamesClient.isConnected()) {
             debugLog("Reconnecting GamesClient.");
-            actuallyReconnecting = true;
-            mConnectedClients &= ~CLIENT_GAMES;
-            mGamesClient.reconnect();
+            reconnecting |= CLIENT_GAMES;
         }
         if ((whatClients & CLIENT_APPSTATE) != 0 && mAppStateClient != null
                 && mAppStateClient.isConnected()) {
             debugLog("Reconnecting AppStateClient.");
-            actuallyReconnecting = true;
-            mConnectedClients &= ~CLIENT_APPSTATE;
-            mAppStateClient.reconnect();
+            reconnecting |= CLIENT_APPSTATE;
         }
         if ((whatClients & CLIENT_PLUS) != 0 && mPlusClient != null
                 && mPlusClient.isConnected()) {
@@ -785,8 +834,11 @@ public class GameHelper implements
                             + "PlusClient because this is unnecessary.");
         }
 
-        if (actuallyReconnecting) {
+        if (reconnecting != CLIENT_NONE) {
+            mSignInSpan = mTimeline.begin(SignInTimeline.START_CONNECTIONS,
+                    CLIENT_NONE);
             setState(STATE_CONNECTING);
+            mCoordinator.reconnect(reconnecting);
         } else {
             // No reconnections are to take place, so for consistency we call
             // the listener
@@ -797,18 +849,16 @@ public class GameHelper implements
     }
 
     /** Called when we successfully obtain a connection to a client. */
-    @Override
-    public void onConnected(Bundle connectionHint) {
-        debugLog("onConnected: connected! client=" + mClientCurrentlyConnecting);
-
-        // Mark the current client as connected
-        mConnectedClients |= mClientCurrentlyConnecting;
-        debugLog("Connected clients updated to: " + mConnectedClients);
+    void onClientConnected(int client, Bundle connectionHint) {
+        if (mDebugLog) {
+            debugLog("onClientConnected: connected! client=" + client
+                    + ", connected clients: "
+                    + mCoordinator.getConnectedClients());
+        }
 
         // If this was the games client and it came with an invite, store it for
         // later retrieval.
-        if (mClientCurrentlyConnecting == CLIENT_GAMES
-                && connectionHint != null) {
+        if (client == CLIENT_GAMES && connectionHint != null) {
             debugLog("onConnected: connection hint provided. Checking for invite.");
             Invitation inv = connectionHint
                     .getParcelable(GamesClient.EXTRA_INVITATION);
@@ -816,36 +866,69 @@ public class GameHelper implements
                 // accept invitation
                 debugLog("onConnected: connection hint has a room invite!");
                 mInvitationId = inv.getInvitationId();
-                debugLog("Invitation ID: " + mInvitationId);
+                if (mDebugLog) {
+                    debugLog("Invitation ID: " + mInvitationId);
+                }
             }
         }
 
-        // connect the next client in line, if any.
-        connectNextClient();
+    }
+
+    /** Called when every requested client is connected. */
+    void onAllConnected() {
+        if (mState != STATE_CONNECTING) {
+            if (mDebugLog) {
+                debugLog("onAllConnected: ignoring, state is "
+                        + STATE_NAMES[mState]);
+            }
+            return;
+        }
+        debugLog("All clients now connected. Sign-in successful!");
+        succeedSignIn();
     }
 
     void succeedSignIn() {
         assertState("succeedSignIn", STATE_CONNECTING, STATE_CONNECTED);
         debugLog("All requested clients connected. Sign-in succeeded!");
-        setState(STATE_CONNECTED);
-        mSignInFailureReason = null;
-        mAutoSignIn = true;
-        mUserInitiatedSignIn = false;
-        notifyListener(true);
+        long span = mTimeline.begin(SignInTimeline.SUCCEED_SIGN_IN,
+                CLIENT_NONE);
+        try {
+            setState(STATE_CONNECTED);
+            mSignInFailureReason = null;
+            mAutoSignIn = true;
+            mUserInitiatedSignIn = false;
+            notifyListener(true);
+        } finally {
+            mTimeline.end(span, SignInTimeline.SUCCEEDED);
+        }
     }
 
-    /** Handles a connection failure reported by a client. */
-    @Override
-    public void onConnectionFailed(ConnectionResult result) {
-        // save connection result for later reference
-        debugLog("onConnectionFailed");
+    /**
+     * Handles a connection failure reported by a client. The other clients go
+     * on connecting meanwhile; if we're already resolving another client's
+     * failure, this one waits, and is retried with the rest once that
+     * resolution succeeds.
+     */
+    void onClientFailed(int client, ConnectionResult result) {
+        if (mDebugLog) {
+            debugLog("onClientFailed: client=" + client);
+        }
 
+        if (mExpectingResolution) {
+            debugLog("onClientFailed: already resolving a failure, will retry this client after it.");
+            return;
+        }
+
+        // save connection result for later reference
         mConnectionResult = result;
-        debugLog("Connection failure:");
-        debugLog("   - code: "
-                + errorCodeToString(mConnectionResult.getErrorCode()));
-        debugLog("   - resolvable: " + mConnectionResult.hasResolution());
-        debugLog("   - details: " + mConnectionResult.toString());
+        mResolvingClient = client;
+        if (mDebugLog) {
+            debugLog("Connection failure:");
+            debugLog("   - code: "
+                    + errorCodeToString(mConnectionResult.getErrorCode()));
+            debugLog("   - resolvable: " + mConnectionResult.hasResolution());
+            debugLog("   - details: " + mConnectionResult.toString());
+        }
 
         if (!mUserInitiatedSignIn) {
             // If the user didn't initiate the sign-in, we don't try to resolve
@@ -854,14 +937,16 @@ public class GameHelper implements
             // authentication (or other) popup unless they are actively trying
             // to
             // sign in.
-            debugLog("onConnectionFailed: since user didn't initiate sign-in, failing now.");
-            mConnectionResult = result;
+            debugLog("onClientFailed: since user didn't initiate sign-in, failing now.");
+            // stop the other clients, but keep the result so that
+            // beginUserInitiatedSignIn() can resolve it
+            mCoordinator.disconnectAll();
             setState(STATE_DISCONNECTED);
             notifyListener(false);
             return;
         }
 
-        debugLog("onConnectionFailed: since user initiated sign-in, resolving problem.");
+        debugLog("onClientFailed: since user initiated sign-in, resolving problem.");
 
         // Resolve the connection result. This usually means showing a dialog or
         // starting an Activity that will allow the user to give the appropriate
@@ -882,9 +967,19 @@ public class GameHelper implements
             debugLog("We're already expecting the result of a previous resolution.");
             return;
         }
+        if (mActivity == null) {
+            // e.g. between activities while GameHelperHolder keeps us
+            // connected; there's nothing to show the resolution (or the
+            // error) on until the next onStart()
+            debugLog("resolveConnectionResult: no Activity, waiting for onStart.");
+            mResolutionPending = true;
+            return;
+        }
 
-        debugLog("resolveConnectionResult: trying to resolve result: "
-                + mConnectionResult);
+        if (mDebugLog) {
+            debugLog("resolveConnectionResult: trying to resolve result: "
+                    + mConnectionResult);
+        }
         if (mConnectionResult.hasResolution()) {
             // This problem can be fixed. So let's try to fix it.
             debugLog("Result has resolution. Starting it.");
@@ -892,12 +987,17 @@ public class GameHelper implements
                 // launch appropriate UI flow (which might, for example, be the
                 // sign-in flow)
                 mExpectingResolution = true;
+                mResolveSpan = mTimeline.begin(
+                        SignInTimeline.RESOLVE_CONNECTION_RESULT,
+                        mResolvingClient);
                 mConnectionResult.startResolutionForResult(mActivity,
                         RC_RESOLVE);
             } catch (SendIntentException e) {
                 // Try connecting again
+                mExpectingResolution = false;
+                mTimeline.end(mResolveSpan, SignInTimeline.FAILED);
                 debugLog("SendIntentException, so connecting again.");
-                connectCurrentClient();
+                connectPendingClients();
             }
         } else {
             // It's not a problem what we can solve, so give up and show an
@@ -917,6 +1017,7 @@ public class GameHelper implements
     void giveUp(SignInFailureReason reason) {
         assertState("giveUp", STATE_CONNECTING);
         mAutoSignIn = false;
+        mTimeline.end(mSignInSpan, SignInTimeline.FAILED);
         killConnections();
         assertState("giveUp@2", STATE_DISCONNECTED);
         mSignInFailureReason = reason;
@@ -924,9 +1025,8 @@ public class GameHelper implements
         notifyListener(false);
     }
 
-    /** Called when we are disconnected from a client. */
-    @Override
-    public void onDisconnected() {
+    /** Called when a connected client loses its connection. */
+    void onDisconnected() {
         debugLog("onDisconnected.");
         if (mState == STATE_DISCONNECTED) {
             // This is expected.
@@ -957,7 +1057,9 @@ public class GameHelper implements
             debugLog("*** No context. Can't show failure dialog.");
             return;
         }
-        debugLog("Making error dialog for failure: " + mSignInFailureReason);
+        if (mDebugLog) {
+            debugLog("Making error dialog for failure: " + mSignInFailureReason);
+        }
         Dialog errorDialog = null;
         int errorCode = mSignInFailureReason.getServiceErrorCode();
         int actResp = mSignInFailureReason.getActivityResultCode();
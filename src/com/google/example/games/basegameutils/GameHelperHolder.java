@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.example.games.basegameutils.GameHelper.GameHelperListener;
+
+/**
+ * Keeps one GameHelper, and its connections, for the whole application
+ * rather than one per Activity. Activities acquire() it when they start and
+ * release() it when they stop. When the last one lets go, the connections are
+ * kept for a grace period before they're dropped, so a rotation, or a quick
+ * trip to another app and back, picks up the live connections instead of
+ * signing in all over again.
+ *
+ * Use it from the main thread only.
+ */
+public class GameHelperHolder {
+    public static final long DEFAULT_GRACE_MILLIS = 10 * 1000;
+
+    private static GameHelperHolder sInstance;
+
+    final Handler mHandler;
+    final long mGraceMillis;
+
+    GameHelper mHelper;
+
+    // how many started activities are using the helper
+    int mRefCount = 0;
+
+    boolean mDisconnectPending = false;
+
+    final Runnable mDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            mDisconnectPending = false;
+            if (mRefCount == 0 && mHelper != null) {
+                mHelper.debugLog("GameHelperHolder: grace period over, disconnecting.");
+                mHelper.onStop();
+            }
+        }
+    };
+
+    GameHelperHolder(Handler handler, long graceMillis) {
+        mHandler = handler;
+        mGraceMillis = graceMillis;
+    }
+
+    public static synchronized GameHelperHolder getInstance() {
+        if (sInstance == null) {
+            sInstance = new GameHelperHolder(new Handler(
+                    Looper.getMainLooper()), DEFAULT_GRACE_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the shared GameHelper, creating and setting it up the first
+     * time with the given clients and scopes; later calls get the same helper
+     * whatever they ask for. Call from onCreate().
+     */
+    public GameHelper getHelper(Activity activity, int clientsToUse,
+            String... additionalScopes) {
+        if (mHelper == null) {
+            mHelper = new GameHelper(activity);
+            mHelper.setup(null, clientsToUse, additionalScopes);
+        }
+        return mHelper;
+    }
+
+    /**
+     * Call from onStart(). The activity becomes the helper's Activity and
+     * listener, and the helper connects unless it's connected (or
+     * connecting) already; if it's still signed in from before, the listener
+     * hears so right away.
+     */
+    public void acquire(Activity activity, GameHelperListener listener) {
+        if (mHelper == null) {
+            throw new IllegalStateException(
+                    "GameHelperHolder: call getHelper() before acquire().");
+        }
+        mRefCount++;
+        if (mDisconnectPending) {
+            mHelper.debugLog("GameHelperHolder: reusing connections.");
+            mHandler.removeCallbacks(mDisconnect);
+            mDisconnectPending = false;
+        }
+        boolean signedIn = mHelper.isSignedIn();
+        mHelper.setListener(listener);
+        mHelper.onStart(activity);
+        if (signedIn && listener != null) {
+            listener.onSignInSucceeded();
+        }
+    }
+
+    /**
+     * Call from onStop(), with what was passed to acquire(). Once nothing
+     * holds the helper for the grace period, it disconnects; but not while a
+     * resolution is showing, since the activity that started it comes back
+     * to get its result.
+     */
+    public void release(Activity activity, GameHelperListener listener) {
+        if (mRefCount == 0) {
+            throw new IllegalStateException(
+                    "GameHelperHolder: release() without acquire().");
+        }
+        mRefCount--;
+        mHelper.detach(activity, listener);
+        if (mRefCount == 0 && mHelper.mExpectingResolution) {
+            mHelper.debugLog("GameHelperHolder: resolution in progress, keeping connections.");
+        } else if (mRefCount == 0) {
+            mDisconnectPending = true;
+            mHandler.postDelayed(mDisconnect, mGraceMillis);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+/**
+ * Timing of the phases of signing in, for finding out where the seconds go.
+ * GameHelper records a span for each phase (and for each client it
+ * connects) into a fixed ring of primitive arrays, so recording costs a few
+ * array stores and never allocates or builds strings, debug build or not.
+ * Only the last CAPACITY spans are kept. Spans are identified by a sequence
+ * number that keeps counting up as the ring wraps.
+ *
+ * Thread-safe: GameHelper writes on the main thread, anyone may read.
+ */
+public class SignInTimeline {
+    public static final int CAPACITY = 64;
+
+    // phases
+    public static final int START_CONNECTIONS = 0; // a whole sign-in attempt
+    public static final int CONNECT_CLIENT = 1;
+    public static final int RESOLVE_CONNECTION_RESULT = 2; // until the result comes back
+    public static final int ON_ACTIVITY_RESULT = 3;
+    public static final int SUCCEED_SIGN_IN = 4; // includes the listener
+
+    public static final String[] PHASE_NAMES = { "startConnections",
+            "connectClient", "resolveConnectionResult", "onActivityResult",
+            "succeedSignIn" };
+
+    // outcomes
+    public static final int OPEN = 0;
+    public static final int SUCCEEDED = 1;
+    public static final int FAILED = 2;
+    public static final int CANCELED = 3; // given up on, by us or the user
+
+    public static final String[] OUTCOME_NAMES = { "open", "ok", "failed",
+            "canceled" };
+
+    final long[] mStartNanos = new long[CAPACITY];
+    final long[] mEndNanos = new long[CAPACITY];
+    final byte[] mPhases = new byte[CAPACITY];
+    final byte[] mClients = new byte[CAPACITY];
+    final byte[] mOutcomes = new byte[CAPACITY];
+
+    // sequence number of the next span
+    long mNext = 0;
+
+    // spans before this were cleared; sequence numbers are never reused, so
+    // a stale one held by GameHelper can't end a newer span
+    long mFirst = 0;
+
+    /**
+     * Starts a span.
+     *
+     * @param client
+     *            The GameHelper.CLIENT_* flag it's about, or CLIENT_NONE.
+     * @return its sequence number, for end()
+     */
+    synchronized long begin(int phase, int client) {
+        int i = (int) (mNext % CAPACITY);
+        mStartNanos[i] = System.nanoTime();
+        mEndNanos[i] = 0;
+        mPhases[i] = (byte) phase;
+        mClients[i] = (byte) client;
+        mOutcomes[i] = OPEN;
+        return mNext++;
+    }
+
+    /** Ends a span, unless it has already ended or dropped out of the ring. */
+    synchronized void end(long span, int outcome) {
+        if (span < first() || span >= mNext) {
+            return;
+        }
+        int i = (int) (span % CAPACITY);
+        if (mOutcomes[i] == OPEN) {
+            mEndNanos[i] = System.nanoTime();
+            mOutcomes[i] = (byte) outcome;
+        }
+    }
+
+    /** Sequence number of the oldest span kept. */
+    public synchronized long first() {
+        return Math.max(mFirst, mNext - CAPACITY);
+    }
+
+    /** Sequence number after the newest span. */
+    public synchronized long end() {
+        return mNext;
+    }
+
+    public synchronized int getPhase(long span) {
+        return mPhases[slot(span)];
+    }
+
+    public synchronized int getClient(long span) {
+        return mClients[slot(span)];
+    }
+
+    public synchronized int getOutcome(long span) {
+        return mOutcomes[slot(span)];
+    }
+
+    /** When the span started, on the System.nanoTime() clock. */
+    public synchronized long getStartNanos(long span) {
+        return mStartNanos[slot(span)];
+    }
+
+    /** How long the span took, or -1 if it's still open. */
+    public synchronized long getDurationMillis(long span) {
+        int i = slot(span);
+        if (mOutcomes[i] == OPEN) {
+            return -1;
+        }
+        return (mEndNanos[i] - mStartNanos[i]) / 1000000;
+    }
+
+    /**
+     * How long the last sign-in attempt that finished took, or -1 if none
+     * is in the timeline.
+     */
+    public synchronized long getLastSignInMillis() {
+        for (long s = mNext - 1; s >= first(); s--) {
+            int i = slot(s);
+            if (mPhases[i] == START_CONNECTIONS && mOutcomes[i] != OPEN) {
+                return (mEndNanos[i] - mStartNanos[i]) / 1000000;
+            }
+        }
+        return -1;
+    }
+
+    int slot(long span) {
+        if (span < first() || span >= mNext) {
+            throw new IndexOutOfBoundsException("No span " + span
+                    + " in timeline.");
+        }
+        return (int) (span % CAPACITY);
+    }
+
+    /** Drops every span; sequence numbers carry on from where they were. */
+    public synchronized void clear() {
+        mFirst = mNext;
+    }
+
+    /**
+     * One line per span, oldest first: start offset from the oldest span,
+     * phase, client, duration and outcome.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        long first = first();
+        long origin = first < mNext ? mStartNanos[slot(first)] : 0;
+        for (long s = first; s < mNext; s++) {
+            int i = slot(s);
+            sb.append('+').append((mStartNanos[i] - origin) / 1000000)
+                    .append("ms ").append(PHASE_NAMES[mPhases[i]]);
+            if (mClients[i] != GameHelper.CLIENT_NONE) {
+                sb.append(" client=").append(mClients[i]);
+            }
+            if (mOutcomes[i] == OPEN) {
+                sb.append(" (open)");
+            } else {
+                sb.append(' ').append(getDurationMillis(s)).append("ms ")
+                        .append(OUTCOME_NAMES[mOutcomes[i]]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
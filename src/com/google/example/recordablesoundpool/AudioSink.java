@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The last stage of exporting a Recording: takes the mixed 16-bit
+ * little-endian stereo PCM as it is written and encodes it to a file. Input is
+ * cut into blocks of getBlockFrames() frames, each handed to encodeBlock() as
+ * soon as it is complete, so encoding overlaps with the mixing threads and
+ * only one block is ever buffered. close() encodes the final partial block,
+ * lets the format patch its header and closes the file.
+ *
+ * Sinks are created through a Factory, so callers can pick the export format
+ * (see RawPcmSink, ImaAdpcmSink and FlacSink).
+ */
+public abstract class AudioSink extends OutputStream {
+    public interface Factory {
+        AudioSink create(FileOutputStream out, int sampleRate)
+                throws IOException;
+
+        /** File name extension for this format, without the dot. */
+        String getExtension();
+    }
+
+    protected final FileOutputStream mOut;
+    protected final int mSampleRate;
+
+    // the block being filled, as interleaved samples
+    protected final short[] mBlock;
+    protected int mBlockSamples = 0;
+
+    // an odd trailing byte from the last write()
+    private int mPendingByte = -1;
+
+    protected long mTotalFrames = 0;
+    private boolean mClosed = false;
+
+    private final byte[] mOneByte = new byte[1];
+
+    /**
+     * Creates fileName and a sink in format writing to it. The file is
+     * closed again if the sink can't be created.
+     */
+    public static AudioSink create(Factory format, String fileName,
+            int sampleRate) throws IOException {
+        FileOutputStream out = new FileOutputStream(fileName);
+        try {
+            AudioSink sink = format.create(out, sampleRate);
+            out = null;
+            return sink;
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    protected AudioSink(FileOutputStream out, int sampleRate, int blockFrames) {
+        mOut = out;
+        mSampleRate = sampleRate;
+        mBlock = new short[blockFrames * PcmSound.CHANNELS];
+    }
+
+    public int getBlockFrames() {
+        return mBlock.length / PcmSound.CHANNELS;
+    }
+
+    public long getTotalFrames() {
+        return mTotalFrames;
+    }
+
+    /**
+     * Encodes the first frames frames of samples (interleaved stereo). Every
+     * block has getBlockFrames() frames except possibly the last.
+     */
+    protected abstract void encodeBlock(short[] samples, int frames)
+            throws IOException;
+
+    /**
+     * Called once after the last block, with the file positioned at its end.
+     * Formats whose header holds the length seek back and fill it in here.
+     */
+    protected void finish() throws IOException {
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mOneByte[0] = (byte) b;
+        write(mOneByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (mPendingByte >= 0 && offset < end) {
+            addSample((short) (mPendingByte | buf[offset++] << 8));
+            mPendingByte = -1;
+        }
+        for (; offset + 1 < end; offset += 2) {
+            addSample((short) (buf[offset] & 0xff | buf[offset + 1] << 8));
+        }
+        if (offset < end) {
+            mPendingByte = buf[offset] & 0xff;
+        }
+    }
+
+    private void addSample(short s) throws IOException {
+        mBlock[mBlockSamples++] = s;
+        if (mBlockSamples == mBlock.length) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        int frames = mBlockSamples / PcmSound.CHANNELS;
+        if (frames > 0) {
+            encodeBlock(mBlock, frames);
+            mTotalFrames += frames;
+        }
+        mBlockSamples = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            flushBlock();
+            finish();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Overwrites bytes at position in the file (for filling in a header once
+     * the length is known), leaving the file positioned at its end.
+     */
+    protected void patch(long position, byte[] bytes) throws IOException {
+        FileChannel channel = mOut.getChannel();
+        long end = channel.position();
+        channel.write(ByteBuffer.wrap(bytes), position);
+        channel.position(end);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chronological list of sound events in a Recording, indexed from 0. Only
+ * the newest events are kept on the heap, in primitive arrays; once there are
+ * more than the memory limit, the oldest half is appended to a spill file of
+ * fixed-size records, so heap use stays flat no matter how long the recording
+ * runs. Events can be read back by index from either place. Not thread-safe:
+ * it belongs to the thread that mixes the recording.
+ *
+ * Record layout (little-endian, RECORD_BYTES each): timestamp (long, millis),
+ * asset id (short), volume (unsigned short, 1 = 65535), pan (short, 1 =
+ * 32767), rate (unsigned short, 1 = RATE_ONE).
+ */
+class EventLog implements Closeable {
+    static final int RECORD_BYTES = 16;
+    static final int DEFAULT_MEMORY_EVENTS = 4096;
+
+    // spilled records are read back this many at a time
+    static final int READ_BLOCK_EVENTS = 256;
+
+    static final int VOLUME_ONE = 0xffff;
+    static final int PAN_ONE = Short.MAX_VALUE;
+    static final int RATE_ONE = 1 << 14;
+
+    final int mMemoryEvents;
+
+    // where to put the spill file (null: the system temp directory)
+    File mSpillDir;
+    File mSpillFile;
+    RandomAccessFile mSpill;
+
+    // events [0, mSpilled) are on disk, [mSpilled, mSpilled + mCount) here
+    int mSpilled = 0;
+    int mCount = 0;
+    final long[] mTimestamps;
+    final short[] mAssets;
+    final short[] mVolumes;
+    final short[] mPans;
+    final short[] mRates;
+
+    // asset names are stored once, events refer to them by id
+    final List<String> mAssetNames = new ArrayList<String>();
+    final Map<String, Integer> mAssetIds = new HashMap<String, Integer>();
+
+    // the block of spilled records we read last
+    final ByteBuffer mBlock = ByteBuffer.allocate(
+            READ_BLOCK_EVENTS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    int mBlockStart = -1;
+    int mBlockCount = 0;
+
+    EventLog(File spillDir) {
+        this(spillDir, DEFAULT_MEMORY_EVENTS);
+    }
+
+    EventLog(File spillDir, int memoryEvents) {
+        mSpillDir = spillDir;
+        mMemoryEvents = memoryEvents;
+        mTimestamps = new long[memoryEvents];
+        mAssets = new short[memoryEvents];
+        mVolumes = new short[memoryEvents];
+        mPans = new short[memoryEvents];
+        mRates = new short[memoryEvents];
+    }
+
+    int size() {
+        return mSpilled + mCount;
+    }
+
+    /**
+     * Adds an event in chronological order. Events may only be placed at or
+     * after index floor (and after anything already spilled); an event older
+     * than that is moved up to the time of the event before it.
+     *
+     * @return the index the event was stored at
+     */
+    int add(long timestamp, String assetName, float volume, float pan,
+            float rate, int floor) throws IOException {
+        if (mCount == mMemoryEvents) {
+            spill(mMemoryEvents / 2);
+        }
+        int lowest = Math.max(floor, mSpilled) - mSpilled;
+        int i = mCount;
+        while (i > lowest && mTimestamps[i - 1] > timestamp) {
+            --i;
+        }
+        if (i > 0 ? mTimestamps[i - 1] > timestamp
+                : (mSpilled > 0 && timestamp(mSpilled - 1) > timestamp)) {
+            timestamp = i > 0 ? mTimestamps[i - 1] : timestamp(mSpilled - 1);
+        }
+        int n = mCount - i;
+        System.arraycopy(mTimestamps, i, mTimestamps, i + 1, n);
+        System.arraycopy(mAssets, i, mAssets, i + 1, n);
+        System.arraycopy(mVolumes, i, mVolumes, i + 1, n);
+        System.arraycopy(mPans, i, mPans, i + 1, n);
+        System.arraycopy(mRates, i, mRates, i + 1, n);
+        mTimestamps[i] = timestamp;
+        mAssets[i] = (short) assetId(assetName);
+        mVolumes[i] = (short) Math.round(clamp(volume, 0, 1) * VOLUME_ONE);
+        mPans[i] = (short) Math.round(clamp(pan, -1, 1) * PAN_ONE);
+        mRates[i] = (short) Math.round(clamp(rate, 0, 3.99f) * RATE_ONE);
+        ++mCount;
+        return mSpilled + i;
+    }
+
+    int assetId(String assetName) {
+        Integer id = mAssetIds.get(assetName);
+        if (id == null) {
+            id = mAssetNames.size();
+            mAssetNames.add(assetName);
+            mAssetIds.put(assetName, id);
+        }
+        return id;
+    }
+
+    static float clamp(float v, float min, float max) {
+        return v < min ? min : v > max ? max : v;
+    }
+
+    /** Moves the oldest n in-memory events to the spill file. */
+    void spill(int n) throws IOException {
+        if (mSpill == null) {
+            mSpillFile = File.createTempFile("events", ".log", mSpillDir);
+            mSpill = new RandomAccessFile(mSpillFile, "rw");
+        }
+        ByteBuffer out = ByteBuffer.allocate(n * RECORD_BYTES).order(
+                ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < n; i++) {
+            out.putLong(mTimestamps[i]).putShort(mAssets[i])
+                    .putShort(mVolumes[i]).putShort(mPans[i])
+                    .putShort(mRates[i]);
+        }
+        mSpill.seek((long) mSpilled * RECORD_BYTES);
+        mSpill.write(out.array());
+
+        int keep = mCount - n;
+        System.arraycopy(mTimestamps, n, mTimestamps, 0, keep);
+        System.arraycopy(mAssets, n, mAssets, 0, keep);
+        System.arraycopy(mVolumes, n, mVolumes, 0, keep);
+        System.arraycopy(mPans, n, mPans, 0, keep);
+        System.arraycopy(mRates, n, mRates, 0, keep);
+        mSpilled += n;
+        mCount = keep;
+    }
+
+    long timestamp(int index) {
+        if (index >= mSpilled) {
+            return mTimestamps[index - mSpilled];
+        }
+        return mBlock.getLong(spilledRecord(index));
+    }
+
+    String assetName(int index) {
+        int id = index >= mSpilled ? mAssets[index - mSpilled] : mBlock
+                .getShort(spilledRecord(index) + 8);
+        return mAssetNames.get(id);
+    }
+
+    float volume(int index) {
+        int v = index >= mSpilled ? mVolumes[index - mSpilled] : mBlock
+                .getShort(spilledRecord(index) + 10);
+        return (v & 0xffff) / (float) VOLUME_ONE;
+    }
+
+    float pan(int index) {
+        int p = index >= mSpilled ? mPans[index - mSpilled] : mBlock
+                .getShort(spilledRecord(index) + 12);
+        return p / (float) PAN_ONE;
+    }
+
+    float rate(int index) {
+        int r = index >= mSpilled ? mRates[index - mSpilled] : mBlock
+                .getShort(spilledRecord(index) + 14);
+        return (r & 0xffff) / (float) RATE_ONE;
+    }
+
+    /** Returns the first index whose timestamp is at or after millis. */
+    int indexAtOrAfter(long millis) {
+        int lo = 0, hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamp(mid) < millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Makes sure the spilled record at index is in mBlock.
+     *
+     * @return its offset in mBlock
+     */
+    int spilledRecord(int index) {
+        if (index < mBlockStart || index >= mBlockStart + mBlockCount) {
+            int start = index - index % READ_BLOCK_EVENTS;
+            int count = Math.min(READ_BLOCK_EVENTS, mSpilled - start);
+            try {
+                mSpill.seek((long) start * RECORD_BYTES);
+                mSpill.readFully(mBlock.array(), 0, count * RECORD_BYTES);
+            } catch (IOException ex) {
+                mBlockStart = -1;
+                throw new RuntimeException("Failed to read event log.", ex);
+            }
+            mBlockStart = start;
+            mBlockCount = count;
+        }
+        return (index - mBlockStart) * RECORD_BYTES;
+    }
+
+    /** Empties the log, keeping its buffers and spill file for reuse. */
+    void clear() {
+        mSpilled = 0;
+        mCount = 0;
+        mBlockStart = -1;
+        mBlockCount = 0;
+    }
+
+    @Override
+    public void close() {
+        clear();
+        if (mSpill != null) {
+            try {
+                mSpill.close();
+            } catch (IOException ex) {
+                // nothing left to lose
+            }
+            mSpillFile.delete();
+            mSpill = null;
+            mSpillFile = null;
+        }
+    }
+}
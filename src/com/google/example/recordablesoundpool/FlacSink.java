@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Encodes the mix losslessly as FLAC, which Android (3.1 and up) and desktop
+ * players read natively. Each block of BLOCK_FRAMES frames picks the cheapest
+ * stereo decorrelation (left/right, left/side, right/side or mid/side), then
+ * codes each channel with the best of FLAC's fixed polynomial predictors and
+ * partitioned Rice codes for the residual. Silence, which game recordings have
+ * plenty of, costs a few bytes per block.
+ */
+public class FlacSink extends AudioSink {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public AudioSink create(FileOutputStream out, int sampleRate)
+                throws IOException {
+            return new FlacSink(out, sampleRate);
+        }
+
+        @Override
+        public String getExtension() {
+            return "flac";
+        }
+    };
+
+    static final int BLOCK_FRAMES = 4096;
+    static final int BITS_PER_SAMPLE = 16;
+    static final int MAX_FIXED_ORDER = 4;
+    static final int MAX_PARTITION_ORDER = 6;
+    static final int MAX_RICE_PARAMETER = 14;
+
+    // channel assignments in the frame header
+    static final int INDEPENDENT = 1;
+    static final int LEFT_SIDE = 8;
+    static final int RIGHT_SIDE = 9;
+    static final int MID_SIDE = 10;
+
+    // offsets into the file of STREAMINFO fields we fill in at the end
+    static final int FRAME_SIZES_OFFSET = 12;
+    static final int TOTAL_SAMPLES_OFFSET = 18;
+    static final int MD5_OFFSET = 26;
+
+    final int[] mLeft = new int[BLOCK_FRAMES];
+    final int[] mRight = new int[BLOCK_FRAMES];
+    final int[] mMid = new int[BLOCK_FRAMES];
+    final int[] mSide = new int[BLOCK_FRAMES];
+    final int[] mResidual = new int[BLOCK_FRAMES];
+
+    // Rice parameter sums per partition, finest partition order first
+    final long[] mPartitionSums = new long[2 << MAX_PARTITION_ORDER];
+
+    final BitWriter mBits = new BitWriter(BLOCK_FRAMES * 5);
+
+    // the decoder checks the decoded audio against this
+    final MessageDigest mMd5;
+    final byte[] mMd5Bytes = new byte[BLOCK_FRAMES * PcmMixer.BYTES_PER_FRAME];
+
+    // estimated size of the residual coded by bestPartitionOrder()
+    long mResidualBits;
+
+    int mFrameNumber = 0;
+    int mMinFrameBytes = Integer.MAX_VALUE;
+    int mMaxFrameBytes = 0;
+
+    FlacSink(FileOutputStream out, int sampleRate) throws IOException {
+        super(out, sampleRate, BLOCK_FRAMES);
+        try {
+            mMd5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("MD5 not available: " + ex.getMessage());
+        }
+        writeStreamInfo();
+    }
+
+    void writeStreamInfo() throws IOException {
+        BitWriter b = mBits;
+        b.reset();
+        b.write('f', 8);
+        b.write('L', 8);
+        b.write('a', 8);
+        b.write('C', 8);
+        // metadata block header: last block, type 0 (STREAMINFO), 34 bytes
+        b.write(1, 1);
+        b.write(0, 7);
+        b.write(34, 24);
+        b.write(BLOCK_FRAMES, 16);
+        b.write(BLOCK_FRAMES, 16);
+        // frame sizes, total samples and MD5 are patched in by finish()
+        b.write(0, 24);
+        b.write(0, 24);
+        b.write(mSampleRate, 20);
+        b.write(PcmSound.CHANNELS - 1, 3);
+        b.write(BITS_PER_SAMPLE - 1, 5);
+        b.write(0, 4);
+        b.write(0, 32);
+        for (int i = 0; i < 4; i++) {
+            b.write(0, 32);
+        }
+        mOut.write(b.mBuf, 0, b.length());
+    }
+
+    @Override
+    protected void encodeBlock(short[] samples, int frames) throws IOException {
+        for (int i = 0; i < frames; i++) {
+            int l = samples[i * 2];
+            int r = samples[i * 2 + 1];
+            mLeft[i] = l;
+            mRight[i] = r;
+            mMid[i] = (l + r) >> 1;
+            mSide[i] = l - r;
+            mMd5Bytes[i * 4] = (byte) l;
+            mMd5Bytes[i * 4 + 1] = (byte) (l >> 8);
+            mMd5Bytes[i * 4 + 2] = (byte) r;
+            mMd5Bytes[i * 4 + 3] = (byte) (r >> 8);
+        }
+        mMd5.update(mMd5Bytes, 0, frames * PcmMixer.BYTES_PER_FRAME);
+
+        // pick the stereo mode whose channels predict best
+        long left = estimateBits(mLeft, frames);
+        long right = estimateBits(mRight, frames);
+        long mid = estimateBits(mMid, frames);
+        long side = estimateBits(mSide, frames);
+        int assignment = INDEPENDENT;
+        long best = left + right;
+        if (left + side < best) {
+            assignment = LEFT_SIDE;
+            best = left + side;
+        }
+        if (right + side < best) {
+            assignment = RIGHT_SIDE;
+            best = right + side;
+        }
+        if (mid + side < best) {
+            assignment = MID_SIDE;
+        }
+
+        BitWriter b = mBits;
+        b.reset();
+        writeFrameHeader(b, frames, assignment);
+        switch (assignment) {
+        case LEFT_SIDE:
+            writeSubframe(b, mLeft, frames, BITS_PER_SAMPLE);
+            writeSubframe(b, mSide, frames, BITS_PER_SAMPLE + 1);
+            break;
+        case RIGHT_SIDE:
+            writeSubframe(b, mSide, frames, BITS_PER_SAMPLE + 1);
+            writeSubframe(b, mRight, frames, BITS_PER_SAMPLE);
+            break;
+        case MID_SIDE:
+            writeSubframe(b, mMid, frames, BITS_PER_SAMPLE);
+            writeSubframe(b, mSide, frames, BITS_PER_SAMPLE + 1);
+            break;
+        default:
+            writeSubframe(b, mLeft, frames, BITS_PER_SAMPLE);
+            writeSubframe(b, mRight, frames, BITS_PER_SAMPLE);
+            break;
+        }
+        b.alignToByte();
+        b.write(crc16(b.mBuf, b.length()), 16);
+
+        mOut.write(b.mBuf, 0, b.length());
+        mMinFrameBytes = Math.min(mMinFrameBytes, b.length());
+        mMaxFrameBytes = Math.max(mMaxFrameBytes, b.length());
+        ++mFrameNumber;
+    }
+
+    void writeFrameHeader(BitWriter b, int frames, int assignment) {
+        int blockSizeCode;
+        if (frames == BLOCK_FRAMES) {
+            blockSizeCode = 12; // 256 * 2^(12 - 8)
+        } else if (frames <= 256) {
+            blockSizeCode = 6; // 8 bits at the end of the header
+        } else {
+            blockSizeCode = 7; // 16 bits at the end of the header
+        }
+        // sync code, fixed block size
+        b.write(0xfff8, 16);
+        b.write(blockSizeCode, 4);
+        b.write(sampleRateCode(mSampleRate), 4);
+        b.write(assignment, 4);
+        b.write(4, 3); // 16 bits per sample
+        b.write(0, 1);
+        writeUtf8(b, mFrameNumber);
+        if (blockSizeCode == 6) {
+            b.write(frames - 1, 8);
+        } else if (blockSizeCode == 7) {
+            b.write(frames - 1, 16);
+        }
+        b.write(crc8(b.mBuf, b.length()), 8);
+    }
+
+    static int sampleRateCode(int rate) {
+        switch (rate) {
+        case 88200:
+            return 1;
+        case 16000:
+            return 5;
+        case 22050:
+            return 6;
+        case 24000:
+            return 7;
+        case 32000:
+            return 8;
+        case 44100:
+            return 9;
+        case 48000:
+            return 10;
+        case 96000:
+            return 11;
+        default:
+            return 0; // as in STREAMINFO
+        }
+    }
+
+    static void writeUtf8(BitWriter b, int value) {
+        if (value < 0x80) {
+            b.write(value, 8);
+            return;
+        }
+        // leading byte holds what's left after 6 bits per continuation byte
+        int extra = 1;
+        while (value >= 1 << (6 * extra + 6 - extra)) {
+            extra++;
+        }
+        int lead = (0xff00 >> (extra + 1)) & 0xff;
+        b.write(lead | (value >>> (6 * extra)), 8);
+        for (int i = extra - 1; i >= 0; i--) {
+            b.write(0x80 | ((value >>> (6 * i)) & 0x3f), 8);
+        }
+    }
+
+    /** Rough cost of a channel with its best fixed predictor, in bits. */
+    long estimateBits(int[] x, int n) {
+        int order = bestFixedOrder(x, n);
+        computeResidual(x, n, order);
+        bestPartitionOrder(n, order);
+        return mResidualBits + order * BITS_PER_SAMPLE;
+    }
+
+    /** The fixed predictor order with the smallest residual magnitude. */
+    static int bestFixedOrder(int[] x, int n) {
+        int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        long[] sums = new long[MAX_FIXED_ORDER + 1];
+        for (int i = MAX_FIXED_ORDER; i < n; i++) {
+            int e0 = x[i];
+            int e1 = e0 - x[i - 1];
+            int e2 = e1 - (x[i - 1] - x[i - 2]);
+            int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+            int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+            sums[0] += Math.abs(e0);
+            sums[1] += Math.abs(e1);
+            sums[2] += Math.abs(e2);
+            sums[3] += Math.abs(e3);
+            sums[4] += Math.abs(e4);
+        }
+        int best = 0;
+        for (int order = 1; order <= maxOrder; order++) {
+            if (sums[order] < sums[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    /** Fills mResidual[order, n) with the fixed predictor's errors. */
+    void computeResidual(int[] x, int n, int order) {
+        int[] r = mResidual;
+        for (int i = order; i < n; i++) {
+            switch (order) {
+            case 0:
+                r[i] = x[i];
+                break;
+            case 1:
+                r[i] = x[i] - x[i - 1];
+                break;
+            case 2:
+                r[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                break;
+            case 3:
+                r[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                break;
+            default:
+                r[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3]
+                        + x[i - 4];
+                break;
+            }
+        }
+    }
+
+    static int zigzag(int r) {
+        return (r << 1) ^ (r >> 31);
+    }
+
+    static int maxPartitionOrder(int n, int order) {
+        int p = 0;
+        while (p < MAX_PARTITION_ORDER && (n & (1 << (p + 1)) - 1) == 0
+                && (n >> (p + 1)) > order) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Sums the zigzagged residuals of every partition at every order into
+     * mPartitionSums and returns the cheapest partition order. Its estimated
+     * cost is left in mResidualBits.
+     */
+    int bestPartitionOrder(int n, int order) {
+        int maxOrder = maxPartitionOrder(n, order);
+        // finest level, at [1 << maxOrder, 2 << maxOrder)
+        int parts = 1 << maxOrder;
+        int size = n >> maxOrder;
+        for (int p = 0; p < parts; p++) {
+            long sum = 0;
+            for (int i = Math.max(p * size, order); i < (p + 1) * size; i++) {
+                sum += zigzag(mResidual[i]) & 0xffffffffL;
+            }
+            mPartitionSums[parts + p] = sum;
+        }
+        // coarser levels are sums of pairs, like a heap
+        for (int i = parts - 1; i >= 1; i--) {
+            mPartitionSums[i] = mPartitionSums[2 * i] + mPartitionSums[2 * i + 1];
+        }
+
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int p = 0; p <= maxOrder; p++) {
+            long bits = partitionedBits(n, order, p);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = p;
+            }
+        }
+        mResidualBits = bestBits;
+        return best;
+    }
+
+    long partitionedBits(int n, int order, int partitionOrder) {
+        int parts = 1 << partitionOrder;
+        long bits = 6;
+        for (int p = 0; p < parts; p++) {
+            int count = (n >> partitionOrder) - (p == 0 ? order : 0);
+            long sum = mPartitionSums[parts + p];
+            int k = riceParameter(sum, count);
+            bits += 4 + (long) count * (k + 1) + (sum >> k);
+        }
+        return bits;
+    }
+
+    /** The Rice parameter that roughly minimizes the coded size. */
+    static int riceParameter(long sum, int count) {
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    void writeSubframe(BitWriter b, int[] x, int n, int bps) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            b.write(0, 8);
+            b.write(x[0], bps);
+            return;
+        }
+
+        int order = bestFixedOrder(x, n);
+        computeResidual(x, n, order);
+        int partitionOrder = bestPartitionOrder(n, order);
+        if (mResidualBits + order * bps >= (long) n * bps) {
+            // noise: store it as is
+            b.write(1 << 1, 8);
+            for (int i = 0; i < n; i++) {
+                b.write(x[i], bps);
+            }
+            return;
+        }
+
+        b.write((8 | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            b.write(x[i], bps);
+        }
+        // Rice coding with 4-bit parameters
+        b.write(0, 2);
+        b.write(partitionOrder, 4);
+        int parts = 1 << partitionOrder;
+        int size = n >> partitionOrder;
+        for (int p = 0; p < parts; p++) {
+            int start = Math.max(p * size, order);
+            int end = (p + 1) * size;
+            int k = riceParameter(mPartitionSums[parts + p], end - start);
+            b.write(k, 4);
+            for (int i = start; i < end; i++) {
+                b.writeRice(zigzag(mResidual[i]), k);
+            }
+        }
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        BitWriter b = mBits;
+        b.reset();
+        b.write(mFrameNumber == 0 ? 0 : mMinFrameBytes, 24);
+        b.write(mMaxFrameBytes, 24);
+        patch(FRAME_SIZES_OFFSET, b.toByteArray());
+
+        b.reset();
+        b.write(mSampleRate, 20);
+        b.write(PcmSound.CHANNELS - 1, 3);
+        b.write(BITS_PER_SAMPLE - 1, 5);
+        b.write((int) (mTotalFrames >>> 32) & 0xf, 4);
+        b.write((int) mTotalFrames, 32);
+        patch(TOTAL_SAMPLES_OFFSET, b.toByteArray());
+
+        patch(MD5_OFFSET, mMd5.digest());
+    }
+
+    static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            crc &= 0xff;
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+            }
+            crc &= 0xffff;
+        }
+        return crc;
+    }
+
+    /** Big-endian bit packer for building one frame at a time. */
+    static class BitWriter {
+        byte[] mBuf;
+        int mBytes = 0;
+
+        // pending bits, right aligned
+        long mAcc = 0;
+        int mAccBits = 0;
+
+        BitWriter(int capacity) {
+            mBuf = new byte[capacity];
+        }
+
+        void reset() {
+            mBytes = 0;
+            mAcc = 0;
+            mAccBits = 0;
+        }
+
+        /** Writes the low n (at most 32) bits of value. */
+        void write(int value, int n) {
+            mAcc = (mAcc << n) | (value & ((1L << n) - 1));
+            mAccBits += n;
+            while (mAccBits >= 8) {
+                mAccBits -= 8;
+                if (mBytes == mBuf.length) {
+                    byte[] bigger = new byte[mBuf.length * 2];
+                    System.arraycopy(mBuf, 0, bigger, 0, mBytes);
+                    mBuf = bigger;
+                }
+                mBuf[mBytes++] = (byte) (mAcc >> mAccBits);
+            }
+        }
+
+        /** Writes u (unsigned) as a unary quotient and k remainder bits. */
+        void writeRice(int u, int k) {
+            long q = (u & 0xffffffffL) >>> k;
+            for (; q >= 32; q -= 32) {
+                write(0, 32);
+            }
+            write(1, (int) q + 1);
+            if (k > 0) {
+                write(u, k);
+            }
+        }
+
+        void alignToByte() {
+            if (mAccBits > 0) {
+                write(0, 8 - mAccBits);
+            }
+        }
+
+        /** Bytes completed so far. */
+        int length() {
+            return mBytes;
+        }
+
+        byte[] toByteArray() {
+            alignToByte();
+            byte[] b = new byte[mBytes];
+            System.arraycopy(mBuf, 0, b, 0, mBytes);
+            return b;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+/**
+ * Fixed-point (Q15) gains for a (volume, pan) pair. Volume and pan are
+ * quantized to table steps once per voice, so the mixer only does an integer
+ * multiply and shift per sample. The live path converts the same table entries
+ * back to floats for SoundPool, so what you hear is what gets recorded.
+ */
+final class GainTable {
+    static final int SHIFT = 15;
+    static final int UNITY = 1 << SHIFT;
+
+    static final int VOLUME_STEPS = 256;
+    static final int PAN_STEPS = 256;
+
+    // linear amplitude, like SoundPool's volume arguments
+    static final int[] VOLUME = new int[VOLUME_STEPS + 1];
+
+    // balance law: the centered channel keeps unity gain and the far channel
+    // fades out linearly, so centered sounds are as loud as before panning
+    static final int[] PAN_LEFT = new int[PAN_STEPS + 1];
+    static final int[] PAN_RIGHT = new int[PAN_STEPS + 1];
+
+    static {
+        for (int i = 0; i <= VOLUME_STEPS; i++) {
+            VOLUME[i] = (int) ((long) UNITY * i / VOLUME_STEPS);
+        }
+        int center = PAN_STEPS / 2;
+        for (int i = 0; i <= PAN_STEPS; i++) {
+            PAN_LEFT[i] = i <= center ? UNITY
+                    : (int) ((long) UNITY * (PAN_STEPS - i) / center);
+            PAN_RIGHT[i] = i >= center ? UNITY
+                    : (int) ((long) UNITY * i / center);
+        }
+    }
+
+    private GainTable() {
+    }
+
+    /** Maps a volume in [0, 1] to a table index. */
+    static int volumeIndex(float volume) {
+        int i = Math.round(volume * VOLUME_STEPS);
+        return i < 0 ? 0 : i > VOLUME_STEPS ? VOLUME_STEPS : i;
+    }
+
+    /** Maps a pan in [-1 (left), 1 (right)] to a table index. */
+    static int panIndex(float pan) {
+        int i = Math.round((pan + 1) * 0.5f * PAN_STEPS);
+        return i < 0 ? 0 : i > PAN_STEPS ? PAN_STEPS : i;
+    }
+
+    static int leftGain(float volume, float pan) {
+        return (VOLUME[volumeIndex(volume)] * PAN_LEFT[panIndex(pan)]) >> SHIFT;
+    }
+
+    static int rightGain(float volume, float pan) {
+        return (VOLUME[volumeIndex(volume)] * PAN_RIGHT[panIndex(pan)]) >> SHIFT;
+    }
+
+    static float leftVolume(float volume, float pan) {
+        return leftGain(volume, pan) / (float) UNITY;
+    }
+
+    static float rightVolume(float volume, float pan) {
+        return rightGain(volume, pan) / (float) UNITY;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes the mix as IMA ADPCM in a WAV file (format tag 0x11, as written by
+ * Windows and read by most players): 4 bits per sample, a quarter of the size
+ * of 16-bit PCM. Each block starts with the exact first sample of each
+ * channel, so errors never carry across blocks.
+ */
+public class ImaAdpcmSink extends AudioSink {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public AudioSink create(FileOutputStream out, int sampleRate)
+                throws IOException {
+            return new ImaAdpcmSink(out, sampleRate);
+        }
+
+        @Override
+        public String getExtension() {
+            return "wav";
+        }
+    };
+
+    static final int FORMAT_IMA_ADPCM = 0x11;
+
+    // bytes per block, for all channels; the usual size for 44.1kHz stereo
+    static final int BLOCK_ALIGN = 2048;
+
+    // one header sample plus two per byte of the rest of the block
+    static final int FRAMES_PER_BLOCK = (BLOCK_ALIGN - 4 * PcmSound.CHANNELS)
+            * 2 / PcmSound.CHANNELS + 1;
+
+    static final int HEADER_BYTES = 60;
+
+    static final int[] STEP_SIZES = { 7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19,
+            21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80, 88, 97,
+            107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337,
+            371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166,
+            1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493,
+            10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385,
+            24623, 27086, 29794, 32767 };
+
+    static final int[] INDEX_ADJUST = { -1, -1, -1, -1, 2, 4, 6, 8 };
+
+    // per channel coder state; the step index carries over between blocks
+    final int[] mPredictor = new int[PcmSound.CHANNELS];
+    final int[] mStepIndex = new int[PcmSound.CHANNELS];
+
+    final byte[] mOutBlock = new byte[BLOCK_ALIGN];
+
+    ImaAdpcmSink(FileOutputStream out, int sampleRate) throws IOException {
+        super(out, sampleRate, FRAMES_PER_BLOCK);
+        writeHeader();
+    }
+
+    void writeHeader() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES).order(
+                ByteOrder.LITTLE_ENDIAN);
+        h.put(ascii("RIFF")).putInt(0).put(ascii("WAVE"));
+        h.put(ascii("fmt ")).putInt(20);
+        h.putShort((short) FORMAT_IMA_ADPCM).putShort(
+                (short) PcmSound.CHANNELS);
+        h.putInt(mSampleRate).putInt(
+                (int) ((long) mSampleRate * BLOCK_ALIGN / FRAMES_PER_BLOCK));
+        h.putShort((short) BLOCK_ALIGN).putShort((short) 4);
+        h.putShort((short) 2).putShort((short) FRAMES_PER_BLOCK);
+        h.put(ascii("fact")).putInt(4).putInt(0);
+        h.put(ascii("data")).putInt(0);
+        mOut.write(h.array());
+    }
+
+    static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    @Override
+    protected void encodeBlock(short[] samples, int frames) throws IOException {
+        int channels = PcmSound.CHANNELS;
+        if (frames < FRAMES_PER_BLOCK) {
+            // blocks are fixed size: pad the last one by holding the final
+            // sample (the fact chunk says where the sound really ends)
+            for (int i = frames * channels; i < FRAMES_PER_BLOCK * channels; i++) {
+                samples[i] = samples[i - channels];
+            }
+        }
+
+        byte[] out = mOutBlock;
+        for (int ch = 0; ch < channels; ch++) {
+            int first = samples[ch];
+            mPredictor[ch] = first;
+            out[ch * 4] = (byte) first;
+            out[ch * 4 + 1] = (byte) (first >> 8);
+            out[ch * 4 + 2] = (byte) mStepIndex[ch];
+            out[ch * 4 + 3] = 0;
+        }
+
+        // after the headers: groups of 8 samples (4 bytes) per channel, low
+        // nibble first
+        int o = 4 * channels;
+        for (int frame = 1; frame < FRAMES_PER_BLOCK; frame += 8) {
+            for (int ch = 0; ch < channels; ch++) {
+                for (int k = 0; k < 8; k += 2) {
+                    int lo = encode(ch, samples[(frame + k) * channels + ch]);
+                    int hi = encode(ch, samples[(frame + k + 1) * channels + ch]);
+                    out[o++] = (byte) (lo | hi << 4);
+                }
+            }
+        }
+        mOut.write(out);
+    }
+
+    /** Encodes one sample, updating the channel's state; returns the nibble. */
+    int encode(int ch, int sample) {
+        int step = STEP_SIZES[mStepIndex[ch]];
+        int diff = sample - mPredictor[ch];
+        int nibble = 0;
+        if (diff < 0) {
+            nibble = 8;
+            diff = -diff;
+        }
+        // the decoder's reconstruction of diff, tracked exactly
+        int delta = step >> 3;
+        if (diff >= step) {
+            nibble |= 4;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 2;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 1;
+            delta += step;
+        }
+
+        int predictor = mPredictor[ch] + ((nibble & 8) != 0 ? -delta : delta);
+        mPredictor[ch] = Math.max(Short.MIN_VALUE,
+                Math.min(Short.MAX_VALUE, predictor));
+        int index = mStepIndex[ch] + INDEX_ADJUST[nibble & 7];
+        mStepIndex[ch] = Math.max(0, Math.min(STEP_SIZES.length - 1, index));
+        return nibble;
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        long end = mOut.getChannel().position();
+        patch(4, le32(end - 8));
+        patch(HEADER_BYTES - 12, le32(mTotalFrames));
+        patch(HEADER_BYTES - 4, le32(end - HEADER_BYTES));
+    }
+
+    static byte[] le32(long v) {
+        return new byte[] { (byte) v, (byte) (v >> 8), (byte) (v >> 16),
+                (byte) (v >> 24) };
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Mixes a snapshot of recorded events by splitting the timeline into segments
+ * that are mixed concurrently and written out in order. Each segment gets its
+ * own PcmMixer, seeded with the voices still ringing from events before it, and
+ * because voice positions are exact fixed-point arithmetic the result is
+ * identical to mixing the whole timeline sequentially.
+ *
+ * Build it on one thread with add() (events in chronological order), then call
+ * mixTo(). The sounds must already be at the mix rate.
+ */
+class ParallelMixdown {
+    // length of one segment, in seconds of output
+    static final int SEGMENT_SECONDS = 2;
+
+    // frames mixed per PcmMixer.mix() call inside a segment
+    static final int CHUNK_FRAMES = 4096;
+
+    private static ExecutorService sExecutor;
+
+    final int mSampleRate;
+    final int mSegmentFrames;
+
+    // the events, in chronological order
+    final List<PcmSound> mSounds = new ArrayList<PcmSound>();
+    long[] mStartFrames = new long[16];
+    float[] mVolumes = new float[16];
+    float[] mPans = new float[16];
+    float[] mRates = new float[16];
+    int mCount = 0;
+
+    // the longest any voice rings, in output frames
+    long mMaxVoiceFrames = 0;
+
+    ParallelMixdown(int sampleRate) {
+        mSampleRate = sampleRate;
+        mSegmentFrames = SEGMENT_SECONDS * sampleRate;
+    }
+
+    /** The shared pool that mixes segments, one thread per core. */
+    static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            sExecutor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                        int mCount = 0;
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Mixdown-" + (++mCount));
+                            t.setDaemon(true);
+                            t.setPriority(Thread.NORM_PRIORITY - 1);
+                            return t;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+
+    void add(long startFrame, PcmSound sound, float volume, float pan,
+            float rate) {
+        if (mCount > 0 && startFrame < mStartFrames[mCount - 1]) {
+            throw new IllegalArgumentException(
+                    "add() must be called in chronological order.");
+        }
+        if (mCount == mStartFrames.length) {
+            int capacity = mCount * 2;
+            mStartFrames = copyOf(mStartFrames, capacity);
+            mVolumes = copyOf(mVolumes, capacity);
+            mPans = copyOf(mPans, capacity);
+            mRates = copyOf(mRates, capacity);
+        }
+        mSounds.add(sound);
+        mStartFrames[mCount] = startFrame;
+        mVolumes[mCount] = volume;
+        mPans[mCount] = pan;
+        mRates[mCount] = rate;
+        ++mCount;
+        mMaxVoiceFrames = Math.max(mMaxVoiceFrames, voiceFrames(sound, rate));
+    }
+
+    static long voiceFrames(PcmSound sound, float rate) {
+        return (long) Math.ceil(sound.mFrames / (double) rate) + 1;
+    }
+
+    /**
+     * Mixes output frames [fromFrame, toFrame) and writes them to out as 16-bit
+     * little-endian stereo. Keeps at most two segments per mixing thread in
+     * flight, so memory use doesn't grow with the length of the recording.
+     */
+    void mixTo(OutputStream out, long fromFrame, long toFrame)
+            throws IOException {
+        ExecutorService executor = getExecutor();
+        int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+        LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+        long next = fromFrame;
+        try {
+            while (next < toFrame || !inFlight.isEmpty()) {
+                while (next < toFrame && inFlight.size() < maxInFlight) {
+                    final long start = next;
+                    final long end = Math.min(toFrame, start + mSegmentFrames);
+                    inFlight.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return mixSegment(start, end);
+                        }
+                    }));
+                    next = end;
+                }
+                byte[] segment = inFlight.removeFirst().get();
+                out.write(segment);
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Mixdown interrupted.");
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Mixdown failed.", ex.getCause());
+        } finally {
+            for (Future<byte[]> f : inFlight) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /** Mixes output frames [start, end) into a new buffer. */
+    byte[] mixSegment(long start, long end) {
+        PcmMixer mixer = new PcmMixer(mSampleRate);
+        int next = seed(mixer, start);
+
+        int frames = (int) (end - start);
+        byte[] buf = new byte[frames * PcmMixer.BYTES_PER_FRAME];
+        for (int done = 0; done < frames;) {
+            int n = Math.min(CHUNK_FRAMES, frames - done);
+            long chunkStart = start + done;
+            long chunkEnd = chunkStart + n;
+            while (next < mCount && mStartFrames[next] < chunkEnd) {
+                mixer.play(mSounds.get(next), mVolumes[next], mPans[next],
+                        mRates[next], (int) (mStartFrames[next] - chunkStart));
+                ++next;
+            }
+            mixer.mix(buf, done * PcmMixer.BYTES_PER_FRAME, n);
+            done += n;
+        }
+        return buf;
+    }
+
+    /**
+     * Starts, part way through, every voice that is still ringing at frame.
+     *
+     * @return the index of the first event at or after frame
+     */
+    int seed(PcmMixer mixer, long frame) {
+        int first = firstEventAtOrAfter(frame);
+        for (int i = first - 1; i >= 0
+                && mStartFrames[i] + mMaxVoiceFrames > frame; i--) {
+            if (mStartFrames[i] + voiceFrames(mSounds.get(i), mRates[i]) > frame) {
+                // a negative delay starts the voice that far into the sound
+                mixer.play(mSounds.get(i), mVolumes[i], mPans[i], mRates[i],
+                        (int) (mStartFrames[i] - frame));
+            }
+        }
+        return first;
+    }
+
+    int firstEventAtOrAfter(long frame) {
+        int lo = 0, hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mStartFrames[mid] < frame) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    static long[] copyOf(long[] a, int length) {
+        long[] b = new long[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    static float[] copyOf(float[] a, int length) {
+        float[] b = new float[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mixes PcmSounds into 16-bit little-endian stereo output. Each voice has its
+ * own left/right gain (from GainTable) and playback rate; all per-sample math
+ * is fixed-point. Sounds should already be at the mix rate (see
+ * Resampler.resample), so voices at rate 1 are a plain scaled add; other
+ * rates go through the polyphase Resampler. Not thread-safe: a mixer belongs
+ * to one mixing thread.
+ */
+class PcmMixer {
+    static final int BYTES_PER_FRAME = 4;
+
+    // voice positions are 16.16 fixed-point source frames
+    static final int FRAC_BITS = 16;
+    static final int FRAC_ONE = 1 << FRAC_BITS;
+    static final int FRAC_MASK = FRAC_ONE - 1;
+
+    static class Voice {
+        PcmSound sound;
+
+        // output frames to wait before this voice starts sounding
+        int delay;
+
+        // position in the source, 16.16 fixed-point frames
+        long position;
+
+        // source frames per output frame, 16.16 fixed-point
+        int step;
+
+        // filter for voices whose step isn't FRAC_ONE, null otherwise
+        Resampler resampler;
+
+        int gainLeft;
+        int gainRight;
+    }
+
+    final int mSampleRate;
+
+    final List<Voice> mVoices = new ArrayList<Voice>();
+
+    // 32-bit accumulator for one block of interleaved output
+    int[] mAccum = new int[0];
+
+    PcmMixer(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Starts a voice delayFrames output frames into the next mix() call. A
+     * negative delay starts the voice as if it had been playing for that many
+     * output frames already.
+     *
+     * @param rate
+     *            Playback rate, 1.0 = normal.
+     */
+    void play(PcmSound sound, float volume, float pan, float rate,
+            int delayFrames) {
+        Voice v = new Voice();
+        v.sound = sound;
+        double step = (double) rate * sound.mSampleRate / mSampleRate;
+        v.step = (int) Math.round(step * FRAC_ONE);
+        if (delayFrames >= 0) {
+            v.delay = delayFrames;
+            v.position = 0;
+        } else {
+            // same position mixing from the start would have reached
+            v.delay = 0;
+            v.position = (long) -delayFrames * v.step;
+        }
+        v.resampler = v.step == FRAC_ONE ? null : Resampler.forStep(step);
+        v.gainLeft = GainTable.leftGain(volume, pan);
+        v.gainRight = GainTable.rightGain(volume, pan);
+        mVoices.add(v);
+    }
+
+    /** Silences every voice. */
+    void stopAll() {
+        mVoices.clear();
+    }
+
+    boolean isIdle() {
+        return mVoices.isEmpty();
+    }
+
+    /**
+     * Mixes the next frames output frames into buf.
+     *
+     * @return the number of bytes written (frames * BYTES_PER_FRAME)
+     */
+    int mix(byte[] buf, int offset, int frames) {
+        int samples = frames * PcmSound.CHANNELS;
+        if (mAccum.length < samples) {
+            mAccum = new int[samples];
+        }
+        int[] acc = mAccum;
+        for (int i = 0; i < samples; i++) {
+            acc[i] = 0;
+        }
+
+        for (int i = mVoices.size() - 1; i >= 0; i--) {
+            Voice v = mVoices.get(i);
+            if (!mixVoice(v, acc, frames)) {
+                mVoices.remove(i);
+            }
+        }
+
+        for (int i = 0, o = offset; i < samples; i++, o += 2) {
+            int s = acc[i];
+            if (s > Short.MAX_VALUE) {
+                s = Short.MAX_VALUE;
+            } else if (s < Short.MIN_VALUE) {
+                s = Short.MIN_VALUE;
+            }
+            buf[o] = (byte) s;
+            buf[o + 1] = (byte) (s >> 8);
+        }
+        return frames * BYTES_PER_FRAME;
+    }
+
+    /**
+     * Adds frames output frames of the voice into acc.
+     *
+     * @return false if the voice has finished
+     */
+    static boolean mixVoice(Voice v, int[] acc, int frames) {
+        if (v.delay >= frames) {
+            v.delay -= frames;
+            return true;
+        }
+        int out = v.delay;
+        v.delay = 0;
+
+        ShortBuffer src = v.sound.mSamples;
+        int srcFrames = v.sound.mFrames;
+        int gl = v.gainLeft, gr = v.gainRight;
+
+        if (v.step == FRAC_ONE) {
+            // common case: straight copy with gain
+            int pos = (int) (v.position >> FRAC_BITS);
+            int n = Math.min(frames - out, srcFrames - pos);
+            for (int k = 0; k < n; k++) {
+                int s = (pos + k) * 2;
+                int d = (out + k) * 2;
+                acc[d] += (src.get(s) * gl) >> GainTable.SHIFT;
+                acc[d + 1] += (src.get(s + 1) * gr) >> GainTable.SHIFT;
+            }
+            v.position += (long) n << FRAC_BITS;
+        } else {
+            // band-limited interpolation for pitched voices
+            Resampler r = v.resampler;
+            long position = v.position;
+            long end = (long) srcFrames << FRAC_BITS;
+            for (; out < frames && position < end; out++) {
+                int l = Resampler.clamp(r.interpolate(src, srcFrames, 0,
+                        position));
+                int rt = Resampler.clamp(r.interpolate(src, srcFrames, 1,
+                        position));
+                acc[out * 2] += (l * gl) >> GainTable.SHIFT;
+                acc[out * 2 + 1] += (rt * gr) >> GainTable.SHIFT;
+                position += v.step;
+            }
+            v.position = position;
+        }
+        return (v.position >> FRAC_BITS) < srcFrames;
+    }
+}
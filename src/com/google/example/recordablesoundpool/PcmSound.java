@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.content.res.AssetManager;
+
+/**
+ * A decoded sound: interleaved 16-bit stereo frames at a given sample rate.
+ * The samples live in a ShortBuffer so they can come either from the heap or
+ * from a memory-mapped file.
+ */
+class PcmSound {
+    static final int CHANNELS = 2;
+
+    final String mName;
+    final int mSampleRate;
+    final int mFrames;
+
+    // interleaved L/R samples, indexed absolutely (position is never used)
+    final ShortBuffer mSamples;
+
+    PcmSound(String name, int sampleRate, ShortBuffer samples) {
+        mName = name;
+        mSampleRate = sampleRate;
+        mSamples = samples;
+        mFrames = samples.capacity() / CHANNELS;
+    }
+
+    /** Decodes a 16-bit PCM WAV asset (mono or stereo). */
+    static PcmSound fromWavAsset(AssetManager mgr, String assetName)
+            throws IOException {
+        InputStream in = mgr.open(assetName);
+        try {
+            return fromWav(assetName, readFully(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    static PcmSound fromWav(String name, byte[] wav) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        if (wav.length < 12 || bb.getInt(0) != 0x46464952 /* RIFF */
+                || bb.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException(name + " is not a WAV file.");
+        }
+
+        int channels = 0, sampleRate = 0, bits = 0;
+        int pos = 12;
+        while (pos + 8 <= wav.length) {
+            int chunkId = bb.getInt(pos);
+            int chunkSize = bb.getInt(pos + 4);
+            int body = pos + 8;
+            if (chunkId == 0x20746d66 /* "fmt " */) {
+                int format = bb.getShort(body) & 0xffff;
+                channels = bb.getShort(body + 2);
+                sampleRate = bb.getInt(body + 4);
+                bits = bb.getShort(body + 14);
+                if (format != 1 || bits != 16
+                        || (channels != 1 && channels != 2)) {
+                    throw new IOException(name + ": only 16-bit PCM mono or "
+                            + "stereo WAV files are supported.");
+                }
+            } else if (chunkId == 0x61746164 /* "data" */) {
+                if (channels == 0) {
+                    throw new IOException(name + ": data chunk before fmt.");
+                }
+                int length = Math.min(chunkSize, wav.length - body);
+                int inSamples = length / 2;
+                int frames = inSamples / channels;
+                short[] samples = new short[frames * CHANNELS];
+                for (int i = 0; i < frames; i++) {
+                    short left = bb.getShort(body + i * channels * 2);
+                    short right = channels == 2 ? bb.getShort(body + i * 4 + 2)
+                            : left;
+                    samples[i * CHANNELS] = left;
+                    samples[i * CHANNELS + 1] = right;
+                }
+                return new PcmSound(name, sampleRate, ShortBuffer.wrap(samples));
+            }
+            // chunks are padded to an even size
+            pos = body + chunkSize + (chunkSize & 1);
+        }
+        throw new IOException(name + ": no data chunk.");
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the mix as headerless 16-bit little-endian stereo PCM, the format
+ * Recording has always exported.
+ */
+public class RawPcmSink extends AudioSink {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public AudioSink create(FileOutputStream out, int sampleRate) {
+            return new RawPcmSink(out, sampleRate);
+        }
+
+        @Override
+        public String getExtension() {
+            return "raw";
+        }
+    };
+
+    static final int BLOCK_FRAMES = 8192;
+
+    final byte[] mBytes = new byte[BLOCK_FRAMES * PcmMixer.BYTES_PER_FRAME];
+
+    RawPcmSink(FileOutputStream out, int sampleRate) {
+        super(out, sampleRate, BLOCK_FRAMES);
+    }
+
+    @Override
+    protected void encodeBlock(short[] samples, int frames) throws IOException {
+        int n = frames * PcmSound.CHANNELS;
+        for (int i = 0, o = 0; i < n; i++, o += 2) {
+            mBytes[o] = (byte) samples[i];
+            mBytes[o + 1] = (byte) (samples[i] >> 8);
+        }
+        mOut.write(mBytes, 0, n * 2);
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.google.example.recordablesoundpool;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.media.AudioManager;
 import android.media.SoundPool;
 import android.util.Log;
@@ -36,40 +40,67 @@ import android.util.Log;
  * startRecording(). 5. Play sounds with play(). 6. Call stopRecording(). 7. Get
  * the recording with getRecording()
  * 
- * Consume the recording and call its dispose() method when done with it. To
- * reuse, just call startRecording() and continue from there.
+ * Consume the recording and call its dispose() method when done with it, or
+ * hand it back with recycle() so the next startRecording() can reuse its mixer
+ * context and decoded sounds. To reuse, just call startRecording() and
+ * continue from there.
+ * 
+ * Independently of that, the last ROLLING_EVENTS sounds played are always
+ * kept, so captureLast() can turn the last few seconds into a Recording at any
+ * time (instant replay) without a recording having been started.
+ * 
+ * Threading: load() and prepare() must be called from a single thread (usually
+ * the UI thread) before the pool becomes ready. Once ready, play() may be
+ * called from any thread (game, render, audio) and never blocks: readiness is
+ * published through atomics and the current Recording is swapped atomically by
+ * startRecording()/getRecording(), so a concurrent play() either lands in the
+ * old recording or in the new one, never in a half-initialized one.
  */
 
 public class RecordableSoundPool implements SoundPool.OnLoadCompleteListener {
-    // maps sound ID to asset file
-    @SuppressLint("UseSparseArrays")
-    protected Map<Integer, String> mAssetForSoundId = new HashMap<Integer, String>();
+    // maps sound ID to asset file (read lock-free from any thread)
+    protected Map<Integer, String> mAssetForSoundId = new ConcurrentHashMap<Integer, String>();
+
+    // recording object; null when we're not recording. The Recording knows
+    // its own start time, so play() only needs this single reference.
+    final AtomicReference<Recording> mRecording = new AtomicReference<Recording>();
+
+    // sounds pre-decoded at build time, shared by all our recordings (may be
+    // null, in which case recordings decode the WAV assets themselves)
+    volatile SoundBundle mSoundBundle = null;
 
-    // are we recording?
-    protected boolean mIsRecording = false;
+    // where long recordings spill their event logs (null: system temp dir)
+    volatile File mSpillDir = null;
 
-    // if recording, time when when recording started
-    protected long mStartTime;
+    // a finished Recording handed back through recycle(), waiting to be reset
+    // and reused by the next startRecording()
+    final AtomicReference<Recording> mSpareRecording = new AtomicReference<Recording>();
 
-    // recording object
-    Recording mRecording = null;
+    // every sound played recently, for captureLast()
+    public static final int ROLLING_EVENTS = 1024;
+    final SoundEventRing mRollingEvents = new SoundEventRing(ROLLING_EVENTS);
 
     // the underlying SoundPool object we use to play sounds
     protected static final int MAX_STREAMS = 4;
     protected SoundPool mSoundPool = new SoundPool(MAX_STREAMS,
             AudioManager.STREAM_MUSIC, 0);
 
-    // the listener we call when we're ready to start playing sounds
-    OnReadyListener mReadyListener = null;
+    // the listener we call when we're ready to start playing sounds. Whoever
+    // takes it out of here (prepare() or onLoadComplete()) calls it, so it is
+    // called exactly once.
+    final AtomicReference<OnReadyListener> mReadyListener = new AtomicReference<OnReadyListener>();
+
+    // has prepare() been called?
+    protected final AtomicBoolean mPrepared = new AtomicBoolean(false);
 
     // how many sounds did we start loading
-    protected int mSoundsRequested = 0;
+    protected final AtomicInteger mSoundsRequested = new AtomicInteger(0);
 
     // how many sounds we finished loading
-    protected int mSoundsLoaded = 0;
+    protected final AtomicInteger mSoundsLoaded = new AtomicInteger(0);
 
     // are we ready to play? (finished loading)
-    protected boolean mReady = false;
+    protected final AtomicBoolean mReady = new AtomicBoolean(false);
 
     // debugging?
     protected boolean mDebug = true;
@@ -79,6 +110,12 @@ public class RecordableSoundPool implements SoundPool.OnLoadCompleteListener {
     protected final static float DEFAULT_VOLUME = 1.0f;
     protected final static int DEFAULT_PRIORITY = 0;
     protected final static float DEFAULT_RATE = 1.0f;
+    protected final static float CENTER_PAN = 0.0f;
+
+    // SoundPool's supported playback rate range; we clamp to it so that the
+    // recording sounds like what was played live
+    protected final static float MIN_RATE = 0.5f;
+    protected final static float MAX_RATE = 2.0f;
 
     public interface OnReadyListener {
         public void onRecordableSoundPoolReady(RecordableSoundPool pool);
@@ -98,7 +135,7 @@ public class RecordableSoundPool implements SoundPool.OnLoadCompleteListener {
     }
 
     public int load(Context ctx, String assetName, int priority) {
-        if (mReady) {
+        if (mPrepared.get()) {
             throw new IllegalStateException(
                     "Can't load a sound after RecordableSoundPool "
                             + "is ready to play. Load all sounds before calling prepare().");
@@ -110,83 +147,250 @@ public class RecordableSoundPool implements SoundPool.OnLoadCompleteListener {
             int soundId = mSoundPool.load(afd, priority);
             log("Sound ID for asset " + assetName + " is " + soundId);
             mAssetForSoundId.put(soundId, assetName);
-            ++mSoundsRequested;
-            log("Total # of sounds requested so far: " + mSoundsRequested);
+            int requested = mSoundsRequested.incrementAndGet();
+            log("Total # of sounds requested so far: " + requested);
             return soundId;
         } catch (IOException ex) {
             throw new RuntimeException("Failed to load asset: " + assetName);
         }
     }
 
+    /**
+     * Uses the pre-decoded sound bundle built into the given asset (see the
+     * bakeSoundBundle task in build.gradle) when mixing recordings, instead
+     * of decoding the WAV assets. If the bundle can't be opened, recordings
+     * fall back to decoding the WAVs.
+     */
+    public void useSoundBundle(Context ctx, String bundleAssetName) {
+        try {
+            SoundBundle bundle = SoundBundle.open(ctx.getAssets(),
+                    bundleAssetName);
+            log("Sound bundle " + bundleAssetName + " has "
+                    + bundle.mSounds.size() + " sounds at "
+                    + bundle.mSampleRate + "Hz");
+            mSoundBundle = bundle;
+        } catch (IOException ex) {
+            warn("Can't open sound bundle " + bundleAssetName + ": "
+                    + ex.getMessage() + ". Will decode WAV assets instead.");
+        }
+    }
+
+    /**
+     * Sets the directory long recordings spill their older sound events to,
+     * so a recording's memory use doesn't grow with its length. Typically the
+     * app's cache directory. Applies to recordings started afterwards.
+     */
+    public void setSpillDirectory(File dir) {
+        mSpillDir = dir;
+    }
+
     public void prepare(OnReadyListener readyListener) {
-        if (mReady) {
+        if (!mPrepared.compareAndSet(false, true)) {
             throw new IllegalStateException("Can't call prepare() twice.");
         }
-        if (mSoundsLoaded >= mSoundsRequested) {
-            readyListener.onRecordableSoundPoolReady(this);
-        } else {
-            mReadyListener = readyListener;
+        mReadyListener.set(readyListener);
+        if (mSoundsLoaded.get() >= mSoundsRequested.get()) {
+            // everything finished loading before we got here (or there was
+            // nothing to load)
+            mReady.set(true);
+            notifyReady();
         }
     }
 
     public void startRecording() {
-        if (!mReady) {
+        if (!mReady.get()) {
             throw new IllegalStateException(
                     "Can't call startRecording(). Not ready.");
         }
-        mIsRecording = true;
-        mStartTime = System.currentTimeMillis();
-        if (mRecording != null)
-            mRecording.dispose();
-        mRecording = new Recording(mDebug);
+        Recording recording = obtainRecording();
+        recording.start(System.currentTimeMillis());
+
+        Recording previous = mRecording.getAndSet(recording);
+        if (previous != null)
+            recycle(previous);
+        log("Recording started, " + recording.getStartTime());
+    }
+
+    /** Returns the spare recording, reset, or a new one. */
+    Recording obtainRecording() {
+        Recording recording = mSpareRecording.getAndSet(null);
+        if (recording != null) {
+            log("Reusing recycled recording.");
+            recording.reset();
+        } else {
+            recording = new Recording(mDebug);
+        }
         if (mDebug)
-            mRecording.enableDebugLogging(true);
-        log("Recording started, " + mStartTime);
+            recording.enableDebugLogging(true);
+        recording.setSoundBundle(mSoundBundle);
+        recording.setSpillDirectory(mSpillDir);
+        return recording;
+    }
+
+    /**
+     * Returns a stopped Recording of the sounds played in the last millis
+     * milliseconds, whether or not a recording was running. Only copies the
+     * events out of the rolling buffer, so it's cheap enough for the UI
+     * thread; mix it (e.g. writeToFile()) on another thread, then recycle()
+     * it. Sounds older than the last ROLLING_EVENTS are lost.
+     */
+    public Recording captureLast(long millis) {
+        if (!mReady.get()) {
+            throw new IllegalStateException(
+                    "Can't call captureLast(). Not ready.");
+        }
+        long now = System.currentTimeMillis();
+        long since = now - millis;
+        Recording recording = obtainRecording();
+        recording.start(since);
+
+        SoundEventRing.Event event = new SoundEventRing.Event();
+        long end = mRollingEvents.end();
+        for (long i = mRollingEvents.oldest(); i < end; i++) {
+            if (mRollingEvents.read(i, event) && event.time >= since
+                    && event.time <= now) {
+                recording.addEvent(event.time - since, event.assetName,
+                        event.volume, event.pan, event.rate);
+            }
+        }
+        recording.stop(now);
+        log("Captured the last " + millis + "ms.");
+        return recording;
     }
 
     public void play(int soundId) {
-        if (!mReady) {
+        play(soundId, DEFAULT_VOLUME, CENTER_PAN, DEFAULT_RATE);
+    }
+
+    /**
+     * Plays a sound with the given gain, stereo position and rate. The same
+     * parameters are captured in the recording and applied when it is mixed.
+     * 
+     * @param volume
+     *            Gain, from 0 to 1.
+     * @param pan
+     *            Stereo position, from -1 (left) through 0 (center) to 1
+     *            (right).
+     * @param rate
+     *            Playback rate, from 0.5 to 2 (1 = normal).
+     */
+    public void play(int soundId, float volume, float pan, float rate) {
+        if (!mReady.get()) {
             warn("WARNING: Can't play sound " + soundId
                     + " because RecordableSoundPool ");
             warn("  is not ready. Please call prepare() and WAIT FOR THE CALLBACK");
             warn("   before attempting to play any sounds.");
             return;
         }
-        if (!mAssetForSoundId.containsKey(soundId)) {
+        String assetName = mAssetForSoundId.get(soundId);
+        if (assetName == null) {
             throw new IllegalArgumentException("Invalid sound ID " + soundId);
         }
-        if (mIsRecording) {
-            long timestamp = System.currentTimeMillis() - mStartTime;
-            log("Sound " + soundId + " played at " + timestamp / 1000.0f + "s");
-            mRecording.addEvent(timestamp, mAssetForSoundId.get(soundId));
+        rate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+        long now = System.currentTimeMillis();
+        mRollingEvents.add(now, assetName, volume, pan, rate);
+        Recording recording = mRecording.get();
+        if (recording != null) {
+            long timestamp = now - recording.getStartTime();
+            if (mDebug) {
+                log("Sound " + soundId + " played at " + timestamp / 1000.0f
+                        + "s");
+            }
+            recording.addEvent(timestamp, assetName, volume, pan, rate);
+        }
+        mSoundPool.play(soundId, GainTable.leftVolume(volume, pan),
+                GainTable.rightVolume(volume, pan), DEFAULT_PRIORITY, 0, rate);
+    }
+
+    /**
+     * Plays a sound like play(), but leaves it out of the recording and of
+     * captureLast(): for sounds that aren't part of the game, like those of a
+     * replay being played back.
+     */
+    public void playUnrecorded(int soundId, float volume, float pan,
+            float rate) {
+        if (!mReady.get()) {
+            return;
+        }
+        rate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+        mSoundPool.play(soundId, GainTable.leftVolume(volume, pan),
+                GainTable.rightVolume(volume, pan), DEFAULT_PRIORITY, 0, rate);
+    }
+
+    /**
+     * Starts mixing the current recording into fileName in the background
+     * while it's being recorded (see Recording.startStreaming). Finish with
+     * Recording.finishStreaming() on the object getRecording() returns.
+     */
+    public void streamRecordingTo(AssetManager mgr, String fileName)
+            throws IOException {
+        streamRecordingTo(mgr, fileName, RawPcmSink.FACTORY);
+    }
+
+    /**
+     * Like streamRecordingTo(AssetManager, String), encoding the file in the
+     * given format (e.g. FlacSink.FACTORY or ImaAdpcmSink.FACTORY).
+     */
+    public void streamRecordingTo(AssetManager mgr, String fileName,
+            AudioSink.Factory format) throws IOException {
+        Recording recording = mRecording.get();
+        if (recording == null) {
+            throw new IllegalStateException(
+                    "Can't stream: not recording. Call startRecording() first.");
         }
-        mSoundPool.play(soundId, DEFAULT_VOLUME, DEFAULT_VOLUME,
-                DEFAULT_PRIORITY, 0, DEFAULT_RATE);
+        recording.startStreaming(mgr, fileName,
+                Recording.DEFAULT_STREAM_LAG_MILLIS, format);
     }
 
     public void stopRecording() {
-        if (!mReady) {
+        if (!mReady.get()) {
             throw new IllegalStateException(
                     "Can't call stopRecording(). Not ready.");
         }
 
+        Recording recording = mRecording.get();
+        if (recording != null) {
+            recording.stop(System.currentTimeMillis());
+        }
         log("Recording stopped.");
-        mIsRecording = false;
-        mRecording.setDuration(System.currentTimeMillis() - mStartTime);
     }
 
     public Recording getRecording() {
-        if (!mReady) {
+        if (!mReady.get()) {
             throw new IllegalStateException(
                     "Can't call getRecording(). Not ready.");
         }
 
-        Recording result = mRecording;
-        mRecording = null;
-        mIsRecording = false;
+        Recording result = mRecording.getAndSet(null);
+        if (result != null) {
+            // no-op if stopRecording() was already called
+            result.stop(System.currentTimeMillis());
+        }
         return result;
     }
 
+    /**
+     * Hands a Recording obtained from getRecording() back to this pool once it
+     * has been consumed. The pool keeps one spare and disposes of any other.
+     * The caller must not use the recording afterwards.
+     */
+    public void recycle(Recording recording) {
+        if (recording == null) {
+            return;
+        }
+        if (!mSpareRecording.compareAndSet(null, recording)) {
+            recording.dispose();
+        }
+    }
+
+    void notifyReady() {
+        OnReadyListener listener = mReadyListener.getAndSet(null);
+        if (listener != null) {
+            log("All sounds loaded! Invoking callback.");
+            listener.onRecordableSoundPoolReady(this);
+        }
+    }
+
     @Override
     public void onLoadComplete(SoundPool soundPool, int soundId, int status) {
         log("Sound ID " + soundId + " finished loading, status " + status);
@@ -194,15 +398,12 @@ public class RecordableSoundPool implements SoundPool.OnLoadCompleteListener {
             throw new RuntimeException("Sound ID " + soundId
                     + " failed to load: " + status);
         }
-        ++mSoundsLoaded;
-        log("Sounds loaded: " + mSoundsLoaded + "/" + mSoundsRequested);
-        if (mSoundsLoaded >= mSoundsRequested) {
-            log("All sounds loaded! Invoking callback.");
-            mReady = true;
-            if (mReadyListener != null) {
-                mReadyListener.onRecordableSoundPoolReady(this);
-            }
-            mReadyListener = null;
+        int loaded = mSoundsLoaded.incrementAndGet();
+        int requested = mSoundsRequested.get();
+        log("Sounds loaded: " + loaded + "/" + requested);
+        if (loaded >= requested && mPrepared.get()) {
+            mReady.set(true);
+            notifyReady();
         }
     }
 
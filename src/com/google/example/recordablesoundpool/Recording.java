@@ -17,14 +17,22 @@
 package com.google.example.recordablesoundpool;
 
 import java.io.Closeable;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.res.AssetManager;
+import android.os.Process;
 import android.util.Log;
 
 public class Recording implements Closeable {
@@ -35,57 +43,249 @@ public class Recording implements Closeable {
     class RecordedEvent {
         long timestamp; // relative to start of recording
         String assetName;
+        float volume; // 0 to 1
+        float pan; // -1 (left) to 1 (right)
+        float rate; // 1 = normal
 
-        public RecordedEvent(long timestamp, String assetName) {
+        public RecordedEvent(long timestamp, String assetName, float volume,
+                float pan, float rate) {
             this.timestamp = timestamp;
             this.assetName = assetName;
+            this.volume = volume;
+            this.pan = pan;
+            this.rate = rate;
         }
     }
 
-    protected List<RecordedEvent> mRecordedEvents = new ArrayList<RecordedEvent>();
+    // Events appended by addEvent(), which may be called concurrently from any
+    // thread that plays sounds. They are moved into mEventLog (in
+    // chronological order) by whoever holds mLogLock.
+    protected final Queue<RecordedEvent> mPendingEvents = new ConcurrentLinkedQueue<RecordedEvent>();
+    protected final AtomicInteger mPendingCount = new AtomicInteger(0);
+
+    // Once this many events are pending, addEvent() has a background thread
+    // move them into the log, so that they don't pile up on the heap during
+    // long recordings that aren't being streamed. The log may write to disk,
+    // so the threads that play sounds never touch it themselves.
+    protected static final int PENDING_DRAIN_THRESHOLD = 256;
+
+    private static ExecutorService sDrainExecutor;
+
+    // whether a drain has been handed to sDrainExecutor and not started yet
+    protected final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    protected final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            mLogLock.lock();
+            try {
+                drainPendingEvents();
+            } finally {
+                mLogLock.unlock();
+            }
+        }
+    };
+
+    // Events in chronological order, spilling to disk when there are many.
+    // Guards everything the mixing side touches: the log, mNextEvent, mClock,
+    // mMixer and mSoundForAsset.
+    protected final ReentrantLock mLogLock = new ReentrantLock();
+    protected final EventLog mEventLog = new EventLog(null);
 
-    // current "clock" given in samples
+    // Index of the next event in mEventLog to be played by read().
+    protected int mNextEvent = 0;
+
+    // current "clock" given in samples. 64 bits: at 48kHz an int overflows
+    // after about 12 hours, and intermediate products much sooner.
     protected int mSamplesPerSecond;
-    protected int mClock; // in samples
+    protected long mClock; // in samples
+
+    // Whole-recording mixdowns are done this many seconds at a time, so that
+    // only a window's worth of events is ever on the heap.
+    protected static final int MIXDOWN_WINDOW_SECONDS = 60;
 
-    // MixerGlue context, if one was already created
+    // MixerGlue context, if one was already created. We only use it to learn
+    // the device's mix rate; mixing itself is done by mMixer.
     protected long mHContext; // 0 if not yet created
 
-    // Maps asset name to MixerGlue handle
-    Map<String, Long> mHandleForAsset = new HashMap<String, Long>();
+    // Maps asset name to its decoded samples
+    Map<String, PcmSound> mSoundForAsset = new HashMap<String, PcmSound>();
+
+    // Pre-decoded sounds, if the app ships a sound bundle (may be null)
+    protected SoundBundle mBundle;
+
+    // Mixes the recorded events, with per-voice gain, pan and rate
+    protected PcmMixer mMixer;
 
     // Duration of recording, in millis
-    protected long mDuration = 0;
+    protected volatile long mDuration = 0;
+
+    // Wall clock time when the recording started, in millis
+    protected volatile long mStartTime = 0;
+
+    // Set once the recording has been stopped; events after that are dropped.
+    protected volatile boolean mStopped = false;
+
+    // How far behind real time the streaming thread mixes, so that events
+    // still on their way in from other threads aren't missed.
+    public static final long DEFAULT_STREAM_LAG_MILLIS = 300;
+
+    // How often the streaming thread wakes up to mix what's safely past.
+    protected static final long STREAM_POLL_MILLIS = 100;
+
+    // Background thread mixing into mStreamOut while we're still recording, or
+    // null. While it runs, it owns read() and everything read() touches.
+    protected Thread mStreamThread;
+    protected volatile boolean mStreamRunning = false;
+    protected AudioSink mStreamOut;
+    protected volatile IOException mStreamError;
 
     Recording(boolean debugLog) {
         mDebug = debugLog;
+        startMixer();
+        mClock = 0;
+    }
 
+    protected void startMixer() {
         // set up Mixer Glue
         log("Setting up mixer glue.");
         mHContext = MixerGlue.start();
         log("Context handle: " + mHContext);
         mSamplesPerSecond = MixerGlue.getSamplesPerSecond(mHContext);
         log("Samples per second: " + mSamplesPerSecond);
-        mClock = 0;
+        mMixer = new PcmMixer(mSamplesPerSecond);
+    }
+
+    /**
+     * Prepares this recording to capture a new session. The MixerGlue context,
+     * the decoded sounds and the event storage are kept, so recycling a
+     * Recording avoids the native setup and decode costs of a new one.
+     */
+    void reset() {
+        cancelStreaming();
+        mLogLock.lock();
+        try {
+            if (mHContext == 0) {
+                // we were disposed
+                startMixer();
+            } else {
+                // silence voices still ringing from the last session
+                mMixer.stopAll();
+            }
+            mPendingEvents.clear();
+            mPendingCount.set(0);
+            mEventLog.clear();
+            mNextEvent = 0;
+            mClock = 0;
+            mDuration = 0;
+            mStartTime = 0;
+            mStopped = false;
+        } finally {
+            mLogLock.unlock();
+        }
+    }
+
+    /**
+     * Sets where the event log spills to when a recording gets long. Must be
+     * called before recording starts; defaults to the system temp directory.
+     */
+    void setSpillDirectory(File dir) {
+        mEventLog.mSpillDir = dir;
+    }
+
+    void start(long startTime) {
+        mStartTime = startTime;
+    }
+
+    /** When the recording starts, on the System.currentTimeMillis() clock. */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    void stop(long stopTime) {
+        if (mStopped)
+            return;
+        mDuration = stopTime - mStartTime;
+        mStopped = true;
     }
 
     void setDuration(long duration) {
         mDuration = duration;
     }
 
-    void addEvent(long timestamp, String assetName) {
-        if (mRecordedEvents.size() > 0) {
-            long lastEventTimestamp = mRecordedEvents.get(mRecordedEvents
-                    .size() - 1).timestamp;
-            if (timestamp < lastEventTimestamp) {
-                throw new IllegalArgumentException(
-                        "addEvent() must be called with events "
-                                + "in chronological order.");
+    /**
+     * Records that assetName was played at the given time (relative to the
+     * start of the recording). Safe to call from any thread; never blocks or
+     * touches the disk.
+     */
+    void addEvent(long timestamp, String assetName, float volume, float pan,
+            float rate) {
+        if (mStopped) {
+            return;
+        }
+        mPendingEvents.add(new RecordedEvent(timestamp, assetName, volume,
+                pan, rate));
+        if (mPendingCount.incrementAndGet() >= PENDING_DRAIN_THRESHOLD
+                && mDrainScheduled.compareAndSet(false, true)) {
+            getDrainExecutor().execute(mDrainTask);
+        }
+        if (mDebug) {
+            log("Added event timestamp=" + (timestamp * 0.001f) + " asset="
+                    + assetName + " volume=" + volume + " pan=" + pan
+                    + " rate=" + rate);
+        }
+    }
+
+    /** The thread that drains pending events, shared by all recordings. */
+    static synchronized ExecutorService getDrainExecutor() {
+        if (sDrainExecutor == null) {
+            sDrainExecutor = Executors
+                    .newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "RecordingDrain");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return sDrainExecutor;
+    }
+
+    /**
+     * Moves pending events into mEventLog. Events racing in from different
+     * threads may arrive slightly out of order, so the log sorts each one into
+     * place. Never called from addEvent(): only from the mixing side and
+     * the drain thread, which can afford to wait for the disk. An event
+     * that can't be spilled is dropped with a warning. Call with mLogLock
+     * held.
+     */
+    protected void drainPendingEvents() {
+        RecordedEvent event;
+        while ((event = mPendingEvents.poll()) != null) {
+            mPendingCount.decrementAndGet();
+            try {
+                // An event the streamer has already mixed past is played
+                // at the streamed position instead, so it's logged at that
+                // time too, and a mixdown of the tail starts it exactly
+                // where the stream did.
+                long timestamp = Math.max(event.timestamp, mixedMillis());
+                mEventLog.add(timestamp, event.assetName, event.volume,
+                        event.pan, event.rate, mNextEvent);
+            } catch (IOException ex) {
+                warn("Failed to spill event log, dropping event: "
+                        + ex.getMessage());
             }
         }
-        mRecordedEvents.add(new RecordedEvent(timestamp, assetName));
-        log("Added event timestamp=" + (timestamp * 0.001f) + " asset="
-                + assetName);
+    }
+
+    /**
+     * The first whole millisecond at or after mClock, i.e. the earliest
+     * timestamp read() hasn't mixed past yet. Call with mLogLock held.
+     */
+    protected long mixedMillis() {
+        return (mClock * 1000 + mSamplesPerSecond - 1) / mSamplesPerSecond;
     }
 
     public void enableDebugLogging(boolean enable) {
@@ -96,74 +296,293 @@ public class Recording implements Closeable {
         return mDuration * 0.001f;
     }
 
-    public int getTotalSamples() {
-        return (int) (mDuration * mSamplesPerSecond / 1000);
+    public long getTotalSamples() {
+        return mDuration * mSamplesPerSecond / 1000;
     }
 
+    long eventFrame(int index) {
+        return mEventLog.timestamp(index) * mSamplesPerSecond / 1000;
+    }
+
+    /**
+     * Mixes the next length bytes (rounded down to whole frames) of the
+     * recording into buf, as 16-bit little-endian stereo.
+     *
+     * @return the number of bytes written
+     */
     public int read(AssetManager mgr, byte[] buf, int offset, int length) {
-        int stepSize = MixerGlue.getMinBufSize(mHContext);
-        int bytesWritten = 0;
-
-        while (length - bytesWritten > stepSize) {
-            // is it time to start playing a sound?
-            long timestamp = mClock * 1000 / mSamplesPerSecond;
-            if (mRecordedEvents.size() > 0
-                    && mRecordedEvents.get(0).timestamp <= timestamp) {
-                // time to play next sound
-                String asset = mRecordedEvents.get(0).assetName;
-                log("Starting sound " + asset + " at timestamp "
-                        + (timestamp * 0.001f));
-                long handle;
-                if (mHandleForAsset.containsKey(asset)) {
-                    handle = mHandleForAsset.get(asset);
-                    log("Reusing: handle " + handle + " => asset " + asset);
-                } else {
-                    log("Loading asset into new handle.");
-                    handle = MixerGlue.load(mHContext, mgr, asset);
-                    log("New: handle " + handle + " => asset " + asset);
-                    if (handle == 0) {
-                        throw new RuntimeException(
-                                "MixerGlue failed to load asset " + asset);
-                    }
+        mLogLock.lock();
+        try {
+            drainPendingEvents();
+
+            int frames = length / PcmMixer.BYTES_PER_FRAME;
+            long blockEnd = mClock + frames;
+
+            // start every sound whose event falls inside this block, at the
+            // exact frame it was played
+            while (mNextEvent < mEventLog.size()) {
+                long startFrame = eventFrame(mNextEvent);
+                if (startFrame >= blockEnd) {
+                    break;
                 }
+                String asset = mEventLog.assetName(mNextEvent);
+                if (mDebug) {
+                    log("Starting sound " + asset + " at timestamp "
+                            + (mEventLog.timestamp(mNextEvent) * 0.001f));
+                }
+                mMixer.play(getSound(mgr, asset),
+                        mEventLog.volume(mNextEvent),
+                        mEventLog.pan(mNextEvent), mEventLog.rate(mNextEvent),
+                        (int) Math.max(0, startFrame - mClock));
 
-                MixerGlue.play(mHContext, handle);
-
-                // remove this event from the queue
-                mRecordedEvents.remove(0);
+                // move on to the next event
+                ++mNextEvent;
             }
 
-            // mix stepSize samples
-            bytesWritten += MixerGlue.mix(mHContext, buf,
-                    offset + bytesWritten, stepSize);
+            int bytesWritten = mMixer.mix(buf, offset, frames);
 
             // advance clock
-            mClock += stepSize;
+            mClock = blockEnd;
+
+            return bytesWritten;
+        } finally {
+            mLogLock.unlock();
         }
+    }
+
+    void setSoundBundle(SoundBundle bundle) {
+        mBundle = bundle;
+    }
 
-        return bytesWritten;
+    protected PcmSound getSound(AssetManager mgr, String asset) {
+        PcmSound sound = mSoundForAsset.get(asset);
+        if (sound != null) {
+            return sound;
+        }
+        if (mBundle != null) {
+            sound = mBundle.get(asset);
+        }
+        if (sound == null) {
+            log("Decoding asset " + asset);
+            try {
+                sound = PcmSound.fromWavAsset(mgr, asset);
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to decode asset " + asset,
+                        ex);
+            }
+        }
+        if (sound.mSampleRate != mSamplesPerSecond) {
+            // convert once here so that mixing at rate 1 is a plain add
+            log("Resampling " + asset + " from " + sound.mSampleRate
+                    + "Hz to " + mSamplesPerSecond + "Hz");
+            sound = Resampler.resample(sound, mSamplesPerSecond);
+        }
+        mSoundForAsset.put(asset, sound);
+        return sound;
     }
 
-    public void writeToFile(AssetManager mgr, FileOutputStream fos)
+    /**
+     * Writes the rest of the recording (everything read() hasn't returned yet)
+     * to fos, as 16-bit little-endian stereo PCM (or into an AudioSink to
+     * encode it). Segments of the timeline are mixed in parallel, one thread
+     * per core; the output is the same as calling read() until the end.
+     */
+    public void writeToFile(AssetManager mgr, OutputStream fos)
             throws IOException {
+        mLogLock.lock();
+        try {
+            drainPendingEvents();
+            long totalSamples = getTotalSamples();
+            log("Writing to file, duration " + getDuration() + ", "
+                    + "total samples " + totalSamples);
+            if (mClock >= totalSamples) {
+                return;
+            }
+
+            // events this long before a window can still be ringing in it
+            long lookback = longestVoiceFrames(mgr);
+            long windowFrames = (long) MIXDOWN_WINDOW_SECONDS
+                    * mSamplesPerSecond;
+
+            ParallelMixdown mixdown = null;
+            int first = 0;
+            for (long start = mClock; start < totalSamples; start += windowFrames) {
+                long end = Math.min(totalSamples, start + windowFrames);
+                long fromMillis = Math.max(0, start - lookback) * 1000
+                        / mSamplesPerSecond;
+                first = mEventLog.indexAtOrAfter(fromMillis);
+                mixdown = prepareMixdown(mgr, first, end);
+                mixdown.mixTo(fos, start, end);
+            }
+
+            // leave read() where a sequential mix would have left it
+            mClock = totalSamples;
+            mMixer.stopAll();
+            mNextEvent = first + mixdown.seed(mMixer, mClock);
+        } finally {
+            mLogLock.unlock();
+        }
+    }
+
+    /**
+     * Snapshots the recorded events from index first up to (but not
+     * including) endFrame, with their sounds decoded, for mixing on other
+     * threads.
+     */
+    protected ParallelMixdown prepareMixdown(AssetManager mgr, int first,
+            long endFrame) {
+        ParallelMixdown mixdown = new ParallelMixdown(mSamplesPerSecond);
+        for (int i = first; i < mEventLog.size(); i++) {
+            long frame = eventFrame(i);
+            if (frame >= endFrame) {
+                break;
+            }
+            mixdown.add(frame, getSound(mgr, mEventLog.assetName(i)),
+                    mEventLog.volume(i), mEventLog.pan(i), mEventLog.rate(i));
+        }
+        return mixdown;
+    }
+
+    /** The longest any recorded sound can ring, in output frames. */
+    protected long longestVoiceFrames(AssetManager mgr) {
+        long longest = 0;
+        for (String asset : mEventLog.mAssetNames) {
+            longest = Math.max(longest, ParallelMixdown.voiceFrames(
+                    getSound(mgr, asset), RecordableSoundPool.MIN_RATE));
+        }
+        return longest;
+    }
+
+    /**
+     * Starts mixing this recording into fileName on a low-priority background
+     * thread while it's still being recorded. The thread stays lagMillis
+     * behind real time, so that it only mixes events that are safely in the
+     * past. Call finishStreaming() once the recording has stopped to write the
+     * remaining tail; that way the cost at the end doesn't grow with the
+     * length of the recording. Don't call read() or writeToFile() while
+     * streaming.
+     *
+     * @param format
+     *            Encoder for the file, e.g. FlacSink.FACTORY.
+     */
+    public void startStreaming(final AssetManager mgr, String fileName,
+            final long lagMillis, AudioSink.Factory format) throws IOException {
+        if (mStreamThread != null) {
+            throw new IllegalStateException("Already streaming.");
+        }
+        log("Streaming to file: " + fileName);
+        mStreamOut = AudioSink.create(format, fileName, mSamplesPerSecond);
+        mStreamError = null;
+        mStreamRunning = true;
+        mStreamThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                streamLoop(mgr, lagMillis);
+            }
+        }, "RecordingStream");
+        mStreamThread.start();
+    }
+
+    public boolean isStreaming() {
+        return mStreamThread != null;
+    }
+
+    protected void streamLoop(AssetManager mgr, long lagMillis) {
         byte[] buf = new byte[32768];
-        int totalSamples = getTotalSamples();
-        log("Writing to file, duration " + getDuration() + ", "
-                + "total samples " + totalSamples);
-        int samplesRead = 0, n;
-        while (samplesRead < totalSamples) {
-            n = read(mgr, buf, 0, buf.length);
-            samplesRead += n;
-            fos.write(buf, 0, n);
+        try {
+            while (mStreamRunning) {
+                long safeMillis = System.currentTimeMillis() - mStartTime
+                        - lagMillis;
+                if (mStopped) {
+                    safeMillis = Math.min(safeMillis, mDuration);
+                }
+                long safeFrame = safeMillis * mSamplesPerSecond / 1000;
+                while (mClock < safeFrame && mStreamRunning) {
+                    int frames = (int) Math.min(buf.length
+                            / PcmMixer.BYTES_PER_FRAME, safeFrame - mClock);
+                    int n = read(mgr, buf, 0, frames
+                            * PcmMixer.BYTES_PER_FRAME);
+                    mStreamOut.write(buf, 0, n);
+                }
+                Thread.sleep(STREAM_POLL_MILLIS);
+            }
+        } catch (InterruptedException ex) {
+            // we were asked to stop
+        } catch (IOException ex) {
+            warn("Streaming failed: " + ex.getMessage());
+            mStreamError = ex;
+        }
+    }
+
+    /**
+     * Stops the streaming thread, mixes whatever it hadn't gotten to yet and
+     * closes the file. Call after the recording has been stopped.
+     */
+    public void finishStreaming(AssetManager mgr) throws IOException {
+        if (mStreamThread == null) {
+            throw new IllegalStateException("Not streaming.");
+        }
+        stopStreamThread();
+        try {
+            if (mStreamError != null) {
+                throw mStreamError;
+            }
+            log("Streamed " + mClock + " samples, writing the tail.");
+            writeToFile(mgr, mStreamOut);
+        } finally {
+            mStreamOut.close();
+            mStreamOut = null;
+        }
+    }
+
+    /** Stops streaming and closes the partly written file. */
+    protected void cancelStreaming() {
+        if (mStreamThread == null) {
+            return;
+        }
+        stopStreamThread();
+        try {
+            mStreamOut.close();
+        } catch (IOException ex) {
+            warn("Failed to close stream: " + ex.getMessage());
+        }
+        mStreamOut = null;
+    }
+
+    protected void stopStreamThread() {
+        mStreamRunning = false;
+        mStreamThread.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mStreamThread.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        mStreamThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
     public void writeToFile(AssetManager mgr, String fileName)
             throws IOException {
+        writeToFile(mgr, fileName, RawPcmSink.FACTORY);
+    }
+
+    /** Writes the rest of the recording to fileName in the given format. */
+    public void writeToFile(AssetManager mgr, String fileName,
+            AudioSink.Factory format) throws IOException {
         log("Writing to file: " + fileName);
-        FileOutputStream fos = new FileOutputStream(fileName);
-        writeToFile(mgr, fos);
-        fos.close();
+        AudioSink sink = AudioSink.create(format, fileName, mSamplesPerSecond);
+        try {
+            writeToFile(mgr, sink);
+        } finally {
+            sink.close();
+        }
     }
 
     public int getSamplesPerSecond() {
@@ -176,9 +595,13 @@ public class Recording implements Closeable {
     }
 
     public void dispose() {
+        cancelStreaming();
+        mEventLog.close();
         if (mHContext != 0)
             MixerGlue.end(mHContext);
         mHContext = 0;
+        if (mMixer != null)
+            mMixer.stopAll();
     }
 
     protected void log(String msg) {
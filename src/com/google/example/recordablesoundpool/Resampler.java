@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Band-limited resampling with a precomputed polyphase filter: a windowed-sinc
+ * low-pass, sampled at PHASES fractional offsets of TAPS taps each and stored
+ * as Q15 integers. Recordings use it once per sound at load time to bring
+ * assets to the device mix rate, and the mixer uses it for voices played at a
+ * rate other than 1. Tables are immutable and shared between threads.
+ */
+final class Resampler {
+    static final int TAPS = 16;
+    static final int PHASE_BITS = 8;
+    static final int PHASES = 1 << PHASE_BITS;
+    static final int COEFF_SHIFT = 15;
+
+    // Cutoffs are quantized to this many steps per Nyquist when picking a
+    // shared table, so only a handful of tables ever get built.
+    static final int CUTOFF_STEPS = 8;
+
+    private static final Resampler[] sTables = new Resampler[CUTOFF_STEPS + 1];
+
+    // coefficients for phase p are at [p * TAPS, (p + 1) * TAPS)
+    final int[] mCoeffs = new int[PHASES * TAPS];
+
+    /**
+     * @param cutoff
+     *            Low-pass cutoff as a fraction of the source Nyquist rate (1 =
+     *            keep everything).
+     */
+    Resampler(double cutoff) {
+        // slightly below the target Nyquist, to leave room for the transition
+        // band of a short filter
+        double fc = cutoff * 0.95;
+        int half = TAPS / 2;
+        double[] h = new double[TAPS];
+        for (int p = 0; p < PHASES; p++) {
+            double frac = (double) p / PHASES;
+            double sum = 0;
+            for (int t = 0; t < TAPS; t++) {
+                // distance from the output position to source tap t
+                double x = t - half + 1 - frac;
+                double w = blackman((x + half) / TAPS);
+                h[t] = fc * sinc(fc * x) * w;
+                sum += h[t];
+            }
+            // normalize each phase to unity DC gain
+            for (int t = 0; t < TAPS; t++) {
+                mCoeffs[p * TAPS + t] = (int) Math.round(h[t] / sum
+                        * (1 << COEFF_SHIFT));
+            }
+        }
+    }
+
+    static double sinc(double x) {
+        if (Math.abs(x) < 1e-9) {
+            return 1.0;
+        }
+        return Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    static double blackman(double n) {
+        if (n <= 0 || n >= 1) {
+            return 0;
+        }
+        return 0.42 - 0.5 * Math.cos(2 * Math.PI * n) + 0.08
+                * Math.cos(4 * Math.PI * n);
+    }
+
+    /**
+     * Returns a shared table suitable for reading step source frames per
+     * output frame. Anything faster than 1:1 needs a lower cutoff to avoid
+     * aliasing, so the table's cutoff is rounded down, never above 1 / step.
+     */
+    static Resampler forStep(double step) {
+        double cutoff = step <= 1 ? 1 : 1 / step;
+        int index = (int) Math.floor(cutoff * CUTOFF_STEPS);
+        index = Math.max(1, Math.min(CUTOFF_STEPS, index));
+        synchronized (sTables) {
+            if (sTables[index] == null) {
+                sTables[index] = new Resampler((double) index / CUTOFF_STEPS);
+            }
+            return sTables[index];
+        }
+    }
+
+    /**
+     * Interpolates one channel of src at a 16.16 fixed-point frame position.
+     * Taps that fall outside the sound read as silence. The result is not
+     * clamped.
+     */
+    int interpolate(ShortBuffer src, int frames, int channel, long position) {
+        int frame = (int) (position >> PcmMixer.FRAC_BITS);
+        int phase = (int) (position & PcmMixer.FRAC_MASK) >> (PcmMixer.FRAC_BITS - PHASE_BITS);
+        int first = frame - TAPS / 2 + 1;
+        int c = phase * TAPS;
+        long acc = 0;
+        for (int t = 0; t < TAPS; t++, c++) {
+            int f = first + t;
+            if (f >= 0 && f < frames) {
+                acc += src.get(f * PcmSound.CHANNELS + channel) * mCoeffs[c];
+            }
+        }
+        return (int) (acc >> COEFF_SHIFT);
+    }
+
+    /** Returns the sound converted to targetRate, decoded onto the heap. */
+    static PcmSound resample(PcmSound sound, int targetRate) {
+        if (sound.mSampleRate == targetRate) {
+            return sound;
+        }
+        Resampler r = forStep((double) sound.mSampleRate / targetRate);
+        int inFrames = sound.mFrames;
+        int outFrames = (int) (((long) inFrames * targetRate + sound.mSampleRate - 1) / sound.mSampleRate);
+        short[] out = new short[outFrames * PcmSound.CHANNELS];
+        for (int i = 0; i < outFrames; i++) {
+            // exact position for every frame, so long sounds don't drift
+            long position = ((long) i * sound.mSampleRate << PcmMixer.FRAC_BITS)
+                    / targetRate;
+            for (int ch = 0; ch < PcmSound.CHANNELS; ch++) {
+                out[i * PcmSound.CHANNELS + ch] = clamp(r.interpolate(
+                        sound.mSamples, inFrames, ch, position));
+            }
+        }
+        return new PcmSound(sound.mName, targetRate, ShortBuffer.wrap(out));
+    }
+
+    static short clamp(int s) {
+        if (s > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (s < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) s;
+    }
+}
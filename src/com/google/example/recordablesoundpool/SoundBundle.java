@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Sounds pre-decoded at build time (by the bakeSoundBundle task in
+ * build.gradle) into one file, memory-mapped so the mixer reads samples
+ * straight out of the page cache. Immutable once opened, so one bundle can be
+ * shared by any number of Recordings and threads.
+ *
+ * Layout (little-endian): a header of magic, version, sample rate, channels
+ * and sound count (5 ints); then one entry per sound with its asset name
+ * (NAME_BYTES, zero padded), data offset and frame count; then the samples of
+ * each sound, interleaved stereo 16-bit, starting on an ALIGN-byte boundary.
+ */
+class SoundBundle {
+    static final int MAGIC = 0x42505153; // "SQPB"
+    static final int VERSION = 1;
+    static final int NAME_BYTES = 48;
+    static final int HEADER_BYTES = 20;
+    static final int ENTRY_BYTES = NAME_BYTES + 8;
+
+    final int mSampleRate;
+
+    final Map<String, PcmSound> mSounds = new HashMap<String, PcmSound>();
+
+    SoundBundle(ByteBuffer data) throws IOException {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a sound bundle.");
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new IOException("Unsupported sound bundle version "
+                    + data.getInt(4));
+        }
+        mSampleRate = data.getInt(8);
+        int channels = data.getInt(12);
+        int count = data.getInt(16);
+        if (channels != PcmSound.CHANNELS) {
+            throw new IOException("Sound bundle has " + channels
+                    + " channels, expected " + PcmSound.CHANNELS);
+        }
+
+        byte[] name = new byte[NAME_BYTES];
+        for (int i = 0; i < count; i++) {
+            int entry = HEADER_BYTES + i * ENTRY_BYTES;
+            data.position(entry);
+            data.get(name);
+            int nameLength = 0;
+            while (nameLength < NAME_BYTES && name[nameLength] != 0) {
+                nameLength++;
+            }
+            String assetName = new String(name, 0, nameLength, "UTF-8");
+            int offset = data.getInt(entry + NAME_BYTES);
+            int frames = data.getInt(entry + NAME_BYTES + 4);
+            int bytes = frames * PcmSound.CHANNELS * 2;
+            if (offset < 0 || offset + bytes > data.capacity()) {
+                throw new IOException("Sound bundle entry " + assetName
+                        + " is out of bounds.");
+            }
+
+            // a view on the mapped data, not a copy
+            data.limit(offset + bytes).position(offset);
+            ByteBuffer slice = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+            data.clear();
+            mSounds.put(assetName, new PcmSound(assetName, mSampleRate,
+                    slice.asShortBuffer()));
+        }
+    }
+
+    /** Returns the decoded sound for the given asset, or null if not bundled. */
+    PcmSound get(String assetName) {
+        return mSounds.get(assetName);
+    }
+
+    /**
+     * Opens a bundle stored in the APK's assets. The bundle is memory-mapped
+     * when the asset is stored uncompressed; otherwise it is read into a direct
+     * buffer (still no decoding).
+     */
+    static SoundBundle open(AssetManager mgr, String assetName)
+            throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mgr.openFd(assetName);
+        } catch (IOException ex) {
+            // compressed in the APK, so it can't be mapped
+        }
+
+        if (afd != null) {
+            FileInputStream fis = new FileInputStream(afd.getFileDescriptor());
+            try {
+                return new SoundBundle(fis.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, afd.getStartOffset(),
+                        afd.getLength()));
+            } finally {
+                // the mapping stays valid after the file is closed
+                fis.close();
+                afd.close();
+            }
+        }
+
+        InputStream in = mgr.open(assetName);
+        try {
+            byte[] bytes = PcmSound.readFully(in);
+            ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+            data.put(bytes).clear();
+            return new SoundBundle(data);
+        } finally {
+            in.close();
+        }
+    }
+}
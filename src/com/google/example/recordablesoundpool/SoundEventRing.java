@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.recordablesoundpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The most recent sound events, kept in a fixed number of preallocated slots
+ * that are reused oldest first. Backs RecordableSoundPool's always-on instant
+ * replay: any stretch of recent play can be turned into a Recording without
+ * having started one in advance, and memory use never grows.
+ *
+ * Events are numbered in the order they were added. add() may be called from
+ * any thread and never blocks; readers check each slot's sequence number
+ * before and after copying it out, so an event that was overwritten while
+ * being read is reported as lost instead of returned torn.
+ */
+class SoundEventRing {
+    /** One event copied out of the ring. */
+    static class Event {
+        long time;
+        String assetName;
+        float volume;
+        float pan;
+        float rate;
+    }
+
+    final int mMask;
+
+    // slot columns, at sequence number & mMask
+    final long[] mTimes;
+    final String[] mAssetNames;
+    final float[] mVolumes;
+    final float[] mPans;
+    final float[] mRates;
+
+    // sequence number of the event in each slot, -1 while it's being written
+    final AtomicLongArray mSlotSequence;
+
+    // sequence number the next event will get
+    final AtomicLong mNext = new AtomicLong(0);
+
+    /**
+     * @param capacity
+     *            Number of events kept; must be a power of two.
+     */
+    SoundEventRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mTimes = new long[capacity];
+        mAssetNames = new String[capacity];
+        mVolumes = new float[capacity];
+        mPans = new float[capacity];
+        mRates = new float[capacity];
+        mSlotSequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSlotSequence.set(i, -1);
+        }
+    }
+
+    void add(long time, String assetName, float volume, float pan, float rate) {
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) sequence & mMask;
+        // getAndSet is a full barrier, so readers can't see the new fields
+        // under the old sequence number
+        mSlotSequence.getAndSet(slot, -1);
+        mTimes[slot] = time;
+        mAssetNames[slot] = assetName;
+        mVolumes[slot] = volume;
+        mPans[slot] = pan;
+        mRates[slot] = rate;
+        mSlotSequence.set(slot, sequence);
+    }
+
+    /** Sequence number of the oldest event that may still be in the ring. */
+    long oldest() {
+        return Math.max(0, mNext.get() - (mMask + 1));
+    }
+
+    /** Sequence number the next event will get. */
+    long end() {
+        return mNext.get();
+    }
+
+    /**
+     * Copies event sequence into out.
+     *
+     * @return false if the event has been overwritten (or isn't complete yet)
+     */
+    boolean read(long sequence, Event out) {
+        int slot = (int) sequence & mMask;
+        if (mSlotSequence.get(slot) != sequence) {
+            return false;
+        }
+        out.time = mTimes[slot];
+        out.assetName = mAssetNames[slot];
+        out.volume = mVolumes[slot];
+        out.pan = mPans[slot];
+        out.rate = mRates[slot];
+        // A plain get() could let the loads above move after the check and
+        // see a writer's new fields; getAndAdd is a full barrier, which is
+        // the only load fence available before Java 9.
+        return mSlotSequence.getAndAdd(slot, 0) == sequence;
+    }
+}
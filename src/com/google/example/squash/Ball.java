@@ -28,6 +28,9 @@ public class Ball {
 
     public boolean isActive = true;
 
+    // identifies the ball in replays
+    public int id;
+
     public Ball() {
     }
 
@@ -42,6 +45,10 @@ public class Ball {
         this.y = ball.y;
     }
 
+    public double speed() {
+        return Math.sqrt(velX * velX + velY * velY);
+    }
+
     public boolean move(SquashView sv, long dt) {
         this.x += 1.0 * velX * (dt / 1000.0);
         this.y += 1.0 * velY * (dt / 1000.0);
@@ -52,7 +59,7 @@ public class Ball {
             x = sv.aspectRatio - SquashView.WALL_THICKNESS
                     - SquashView.BALL_RADIUS;
 
-            sv.mRecordableSoundPool.play(sv.mBounceBackSoundId);
+            sv.playSound(sv.mBounceBackSoundId, this);
         }
 
         if (x > SquashView.PADDLE_DISTANCE - SquashView.WALL_THICKNESS
@@ -68,20 +75,20 @@ public class Ball {
         }
 
         if (x < 0) {
-            sv.mRecordableSoundPool.play(sv.mLostBallSoundId);
+            sv.playSound(sv.mLostBallSoundId, this);
             return false;
         }
 
         if (y > 1 - SquashView.WALL_THICKNESS && x > SquashView.WALL_VSTART) {
             velY *= -1;
             y = 1 - SquashView.WALL_THICKNESS - SquashView.BALL_RADIUS;
-            sv.mRecordableSoundPool.play(sv.mBounceSideSoundId);
+            sv.playSound(sv.mBounceSideSoundId, this);
         }
 
         if (y < SquashView.WALL_THICKNESS && x > SquashView.WALL_VSTART) {
             velY *= -1;
             y = SquashView.WALL_THICKNESS + SquashView.BALL_RADIUS;
-            sv.mRecordableSoundPool.play(sv.mBounceSideSoundId);
+            sv.playSound(sv.mBounceSideSoundId, this);
         }
 
         return true;
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What the on-disk stores (scores, achievements, history, replays, cloud
+ * save) share: replacing a file in one step, and the background thread they
+ * do their disk work on.
+ */
+public final class IoUtils {
+    private IoUtils() {
+    }
+
+    /**
+     * Replaces file with data, such that after a crash it holds either the
+     * old contents or all of the new ones: the data goes to file.tmp, is
+     * synced, and then renamed over file.
+     */
+    public static void writeAtomically(File file, byte[] data)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Returns a single-thread executor whose thread is called name, and is a
+     * daemon so it never keeps the process alive.
+     */
+    public static ExecutorService newDaemonExecutor(String name) {
+        return newDaemonExecutor(name, Thread.NORM_PRIORITY);
+    }
+
+    /** As newDaemonExecutor(name), with the thread at the given priority. */
+    public static ExecutorService newDaemonExecutor(final String name,
+            final int priority) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                t.setPriority(priority);
+                return t;
+            }
+        });
+    }
+}
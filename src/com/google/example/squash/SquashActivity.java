@@ -16,22 +16,52 @@
 
 package com.google.example.squash;
 
-import android.app.Activity;
-import android.app.AlertDialog;
-import android.content.DialogInterface;
+import java.io.File;
+
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
+import com.google.example.games.basegameutils.BaseGameActivity;
+import com.google.example.squash.achievements.AchievementEngine;
+import com.google.example.squash.achievements.GamesAchievementSink;
+import com.google.example.squash.cloudsave.CloudSave;
+import com.google.example.squash.cloudsave.SaveState;
+import com.google.example.squash.history.GameHistoryStore;
+import com.google.example.squash.history.ScoreSketch;
+import com.google.example.squash.replay.ReplayLibrary;
 import com.google.example.squash.replay.ReplayView;
+import com.google.example.squash.scores.GamesScoreService;
+import com.google.example.squash.scores.LeaderboardCache;
+import com.google.example.squash.scores.ScoreQueue;
 
-public class SquashActivity extends Activity {
+public class SquashActivity extends BaseGameActivity {
 
     // If this is not 0, that app will show a challenge (for lesson 6!)
     public static int challengeScore = 0;
 
+    // scores wait here until we're signed in
+    ScoreQueue mScoreQueue;
+
+    // unlocks wait here until we're signed in
+    AchievementEngine mAchievements;
+
+    // ranks for the HUD, kept fresh while we're signed in
+    LeaderboardCache mLeaderboard;
+
+    // progress, kept in step with the player's other devices
+    CloudSave mCloudSave;
+
+    // every game played on this device
+    GameHistoryStore mHistory;
+    ReplayLibrary mReplays;
+
+    static final float[] REPLAY_SPEEDS = { 1, 2, 0.5f };
+    int mReplaySpeed = 0;
+
     public SquashActivity() {
+        super(CLIENT_GAMES | CLIENT_APPSTATE);
     }
 
     @Override
@@ -43,6 +73,15 @@ public class SquashActivity extends Activity {
             return true;
         case R.id.menu_achievements:
             return true;
+        case R.id.menu_save_replay:
+            ((SquashView) findViewById(R.id.squashView)).saveInstantReplay();
+            return true;
+        case R.id.menu_best_replay:
+            playBestReplay();
+            return true;
+        case R.id.menu_replay_speed:
+            cycleReplaySpeed();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -51,6 +90,31 @@ public class SquashActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_squash);
+        mScoreQueue = ScoreQueue.getInstance(this);
+        mAchievements = createAchievementEngine();
+        SquashView sv = (SquashView) findViewById(R.id.squashView);
+        sv.mAchievements = mAchievements;
+        mLeaderboard = new LeaderboardCache(new File(getFilesDir(),
+                "leaderboard.cache"));
+        sv.mLeaderboard = mLeaderboard;
+        mCloudSave = new CloudSave(new File(getFilesDir(), "progress.state"),
+                new CloudSave.Listener() {
+                    @Override
+                    public void onCloudStateMerged(SaveState state) {
+                        applyProgress(state);
+                    }
+                });
+        applyProgress(mCloudSave.getState());
+        mHistory = new GameHistoryStore(getFilesDir());
+        sv.mSketchFile = new File(getFilesDir(), "scores.sketch");
+        sv.mScoreSketch = ScoreSketch.load(sv.mSketchFile);
+        mReplays = new ReplayLibrary(new File(getFilesDir(), "replays"));
+        sv.mReplayLibrary = mReplays;
+        int[] best = mReplays.list(0, 0, 0, ReplayLibrary.ORDER_BEST);
+        if (best.length > 0) {
+            // so the menu item opens it straight away
+            mReplays.prefetch(best[0]);
+        }
 
         // Need this to pass to anonymous class below.
         final SquashActivity bind = this;
@@ -60,20 +124,7 @@ public class SquashActivity extends Activity {
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        AlertDialog.Builder builder = new AlertDialog.Builder(
-                                bind);
-
-                        DialogInterface.OnClickListener dialogClickListener = new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialog,
-                                    int which) {
-                                dialog.dismiss();
-                            }
-                        };
-
-                        builder.setMessage("Hey, you need to hook this up!")
-                                .setPositiveButton("OK", dialogClickListener)
-                                .show();
+                        beginUserInitiatedSignIn();
                     }
                 });
 
@@ -81,7 +132,11 @@ public class SquashActivity extends Activity {
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        // This button isn't visible.
+                        signOut();
+                        mScoreQueue.setService(null);
+                        mAchievements.setSink(null);
+                        mCloudSave.setClient(null);
+                        showSignInButton(true);
                     }
                 });
 
@@ -124,10 +179,109 @@ public class SquashActivity extends Activity {
 
     // Called whenever the Squash game starts.
     public void onGameStart(SquashView v) {
+        refreshLeaderboard();
+    }
+
+    // Steps replays through normal, double and half speed.
+    void cycleReplaySpeed() {
+        mReplaySpeed = (mReplaySpeed + 1) % REPLAY_SPEEDS.length;
+        ((ReplayView) findViewById(R.id.replayView))
+                .setPlaybackSpeed(REPLAY_SPEEDS[mReplaySpeed]);
+    }
+
+    // Shows the highest-scoring saved replay, unless a game is running.
+    void playBestReplay() {
+        SquashView sv = (SquashView) findViewById(R.id.squashView);
+        if (sv.mState == SquashView.STATE_RUNNING) {
+            return;
+        }
+        int[] best = mReplays.list(0, 0, 0, ReplayLibrary.ORDER_BEST);
+        if (best.length > 0) {
+            ((ReplayView) findViewById(R.id.replayView)).playFromLibrary(
+                    mReplays, best[0]);
+        }
     }
 
     // Called whenever the Squash game stops.
     public void onGameStop(SquashView v) {
+        // never waits for the network; sent now or after signing in
+        mScoreQueue.submit(getString(R.string.leaderboard_high_score),
+                v.mScore);
+        mLeaderboard.recordPlayerScore(v.mScore);
+        mCloudSave.update(getProgress(v.mScore));
+        mHistory.append(v.getGameRecord());
+    }
+
+    // Our progress as it's saved, with the score of the game just played.
+    SaveState getProgress(long score) {
+        SaveState state = new SaveState();
+        state.setBestScore(score);
+        String deviceId = mCloudSave.getDeviceId();
+        for (int e = 0; e < AchievementEngine.EVENT_COUNT; e++) {
+            state.setCount(deviceId, e, mAchievements.getOwnCount(e));
+        }
+        state.addUnlocked(mAchievements.getUnlocked());
+        return state;
+    }
+
+    // Catches up with progress saved on other devices.
+    void applyProgress(SaveState state) {
+        String deviceId = mCloudSave.getDeviceId();
+        long[] counts = new long[state.getCountLength()];
+        for (int e = 0; e < counts.length; e++) {
+            counts[e] = state.getCount(e) - state.getCount(deviceId, e);
+        }
+        mAchievements.mergeProgress(counts, state.getUnlocked());
+    }
+
+    void refreshLeaderboard() {
+        if (isSignedIn()) {
+            mLeaderboard.refresh(getGamesClient(),
+                    getString(R.string.leaderboard_high_score));
+        }
+    }
+
+    @Override
+    public void onSignInSucceeded() {
+        showSignInButton(false);
+        mScoreQueue.setService(new GamesScoreService(getGamesClient()));
+        mAchievements.setSink(new GamesAchievementSink(getGamesClient()));
+        mCloudSave.setClient(getAppStateClient());
+        refreshLeaderboard();
+    }
+
+    @Override
+    public void onSignInFailed() {
+        showSignInButton(true);
+        mScoreQueue.setService(null);
+        mAchievements.setSink(null);
+        mCloudSave.setClient(null);
+    }
+
+    AchievementEngine createAchievementEngine() {
+        AchievementEngine engine = new AchievementEngine(new File(
+                getFilesDir(), "achievements.state"));
+        engine.addUnlockRule(getString(R.string.achievement_first_split),
+                AchievementEngine.SPLIT, AchievementEngine.IN_GAME, 1);
+        engine.addUnlockRule(getString(R.string.achievement_juggler),
+                AchievementEngine.SPLIT, AchievementEngine.VALUE, 3);
+        engine.addUnlockRule(getString(R.string.achievement_score_10),
+                AchievementEngine.SCORE, AchievementEngine.VALUE, 10);
+        engine.addUnlockRule(getString(R.string.achievement_score_25),
+                AchievementEngine.SCORE, AchievementEngine.VALUE, 25);
+        engine.addIncrementRule(getString(R.string.achievement_paddle_master),
+                AchievementEngine.PADDLE_HIT);
+        engine.addIncrementRule(getString(R.string.achievement_regular),
+                AchievementEngine.GAME_END);
+        engine.load();
+        return engine;
+    }
+
+    void showSignInButton(boolean show) {
+        findViewById(R.id.sign_in_button).setVisibility(
+                show ? View.VISIBLE : View.GONE);
+        findViewById(R.id.sign_out_button).setVisibility(
+                show ? View.GONE : View.VISIBLE);
     }
 
 }
@@ -16,8 +16,14 @@
 
 package com.google.example.squash;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
 import android.graphics.Canvas;
@@ -30,9 +36,18 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 
+import com.google.example.recordablesoundpool.AudioSink;
+import com.google.example.recordablesoundpool.FlacSink;
 import com.google.example.recordablesoundpool.RecordableSoundPool;
 import com.google.example.recordablesoundpool.Recording;
+import com.google.example.squash.achievements.AchievementEngine;
+import com.google.example.squash.history.GameRecord;
+import com.google.example.squash.history.ScoreSketch;
+import com.google.example.squash.replay.GameSession;
+import com.google.example.squash.replay.ReplayLibrary;
+import com.google.example.squash.replay.ReplayVideo;
 import com.google.example.squash.replay.ReplayView;
+import com.google.example.squash.scores.LeaderboardCache;
 
 public class SquashView extends View implements OnTouchListener {
 
@@ -52,6 +67,16 @@ public class SquashView extends View implements OnTouchListener {
     public static final double PADDLE_MAX_SPEED = 0.035 * 30;
     public static final double LAUNCH_SPEED_BOOST = 0.009 * 30;
 
+    // Sounds get louder as balls speed up: QUIET_VOLUME at rest, full volume
+    // at LOUD_SPEED and above.
+    public static final float QUIET_VOLUME = 0.4f;
+    public static final double LOUD_SPEED = SLOW_SPEED * 2;
+
+    // Recordings are saved as FLAC: about a third of the size of raw PCM and
+    // lossless. ImaAdpcmSink is a quarter of the size, but audibly lossy on
+    // our sharp bounce sounds.
+    static final AudioSink.Factory RECORDING_FORMAT = FlacSink.FACTORY;
+
     public int mState = STATE_GAME_OVER;
     public int mScore = 0;
     public int mLaunchScore = 0;
@@ -73,6 +98,39 @@ public class SquashView extends View implements OnTouchListener {
 
     public ReplayView mReplayView;
 
+    // where finished games' replays are kept; SquashActivity sets it
+    public ReplayLibrary mReplayLibrary;
+
+    // hears about gameplay events; SquashActivity sets the real one
+    public AchievementEngine mAchievements = new AchievementEngine(null);
+    int mBallsInPlay = 0;
+
+    // what we know of the leaderboard; SquashActivity sets the real one
+    public LeaderboardCache mLeaderboard = new LeaderboardCache(null);
+
+    // the player's rank when the game started, and the best the score has
+    // reached since (0: not on the board)
+    long mStartRank = 0;
+    long mRank = 0;
+
+    // the distribution of this player's past scores, saved to mSketchFile
+    // after each game; SquashActivity sets the real ones
+    public ScoreSketch mScoreSketch = new ScoreSketch();
+    public File mSketchFile;
+
+    // percent of earlier games the last one beat (-1: none to compare to)
+    int mBeatPercent = -1;
+
+    // Each game's randomness comes from its own seed, which goes into the
+    // game history with the rest of these.
+    long mSeed;
+    Random mRandom = new Random();
+    long mGameStartTime;
+    long mPlayedMillis; // not counting pauses
+    int mMaxBallsInPlay;
+    int mSplits;
+    int mPaddleHits;
+
     public Context mActivity;
     boolean mSoundReady = false;
 
@@ -80,6 +138,15 @@ public class SquashView extends View implements OnTouchListener {
 
     public RecordableSoundPool mRecordableSoundPool;
 
+    // Finished games are exported here, one at a time and in order, so game
+    // over never waits for the disk and the next game can start right away.
+    static final ExecutorService sSessionExecutor = Executors
+            .newSingleThreadExecutor();
+
+    // where the current game's audio is being streamed; each game gets its
+    // own file, renamed to getRecordingFileName() once it's complete
+    String mStreamFileName;
+
     public SquashView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -105,6 +172,9 @@ public class SquashView extends View implements OnTouchListener {
         mLaunchSoundId = mRecordableSoundPool
                 .load(getContext(), "split.wav", 0);
 
+        mRecordableSoundPool.useSoundBundle(getContext(), "sounds.pcm");
+        mRecordableSoundPool.setSpillDirectory(getContext().getCacheDir());
+
         mRecordableSoundPool.prepare(new RecordableSoundPool.OnReadyListener() {
             @Override
             public void onRecordableSoundPoolReady(RecordableSoundPool pool) {
@@ -136,9 +206,17 @@ public class SquashView extends View implements OnTouchListener {
 
         mReplayView = (ReplayView) ((SquashActivity) mActivity)
                 .findViewById(R.id.replayView);
+        mReplayView.setSoundPool(mRecordableSoundPool);
 
+        if (!val && keepAnimating && isCapturing()) {
+            // the clock jumps when we resume
+            mReplayView.pauseSession(mLastFrameTime);
+        }
         if (val && !keepAnimating) {
             mLastFrameTime = System.currentTimeMillis();
+            if (isCapturing()) {
+                mReplayView.resumeSession(this, mLastFrameTime);
+            }
         }
         keepAnimating = val;
         if (val) {
@@ -156,6 +234,16 @@ public class SquashView extends View implements OnTouchListener {
 
     long mLastFrameTime;
 
+    // id for the next ball served or split off
+    int mNextBallId = 0;
+
+    // Whether the game is being captured for replay. Captured events are
+    // timed at mLastFrameTime, the end of the frame being simulated.
+    boolean isCapturing() {
+        return mReplayView != null && mState == STATE_RUNNING
+                && !mReplayView.mIsReplaying;
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -163,6 +251,9 @@ public class SquashView extends View implements OnTouchListener {
         long currentTime = System.currentTimeMillis();
         long dt = currentTime - mLastFrameTime;
         mLastFrameTime = currentTime;
+        if (mState == STATE_RUNNING) {
+            mPlayedMillis += dt;
+        }
 
         int w = this.getWidth();
         int h = this.getHeight();
@@ -222,6 +313,7 @@ public class SquashView extends View implements OnTouchListener {
         paddleY = Math.max(0 + PADDLE_RADIUS + WALL_THICKNESS, paddleY);
         paddleY = Math.min(1.0 - PADDLE_RADIUS - WALL_THICKNESS, paddleY);
 
+        boolean capturing = isCapturing();
         if (balls != null) {
             for (Ball ball : balls) {
                 mRect.top = sp(ball.y - BALL_RADIUS);
@@ -231,8 +323,20 @@ public class SquashView extends View implements OnTouchListener {
 
                 canvas.drawRect(mRect, p);
 
+                double velX = ball.velX;
+                double velY = ball.velY;
                 if (ball.move(this, dt)) {
                     livingBalls.add(ball);
+                    if (capturing
+                            && (ball.velX != velX || ball.velY != velY)) {
+                        mReplayView.recordBounce(ball, mLastFrameTime);
+                    }
+                } else {
+                    mAchievements.onEvent(AchievementEngine.BALL_LOST,
+                            --mBallsInPlay);
+                    if (capturing) {
+                        mReplayView.recordLoss(ball, mLastFrameTime);
+                    }
                 }
 
                 // XXX Render trail here?
@@ -257,6 +361,11 @@ public class SquashView extends View implements OnTouchListener {
             p.setColor(0xAAAAAAAA);
             p.setTextSize(sp(0.07));
             canvas.drawText("Touch to start", sp(0.25), sp(0.5), p);
+            if (mBeatPercent >= 0) {
+                p.setTextSize(sp(0.05));
+                canvas.drawText("You beat " + mBeatPercent
+                        + "% of your games", sp(0.25), sp(0.8), p);
+            }
         }
 
         if (mScore > 0) {
@@ -265,6 +374,14 @@ public class SquashView extends View implements OnTouchListener {
             canvas.drawText("Score: " + mScore, sp(0.25), sp(0.7), p);
         }
 
+        if (mState == STATE_RUNNING && mRank > 0) {
+            p.setColor(0xAAAAAAFF);
+            p.setTextSize(sp(0.06));
+            canvas.drawText(mStartRank > 0 && mStartRank != mRank ? "rank "
+                    + mStartRank + " \u2192 " + mRank : "rank " + mRank,
+                    sp(0.25), sp(0.8), p);
+        }
+
         if (SquashActivity.challengeScore > 0) {
             p.setColor(0xAAAAAAFF);
             p.setTextSize(sp(0.08));
@@ -276,38 +393,66 @@ public class SquashView extends View implements OnTouchListener {
             invalidate();
         }
 
-        if (mReplayView != null && mState == STATE_RUNNING
-                && !mReplayView.mIsReplaying) {
-            mReplayView.recordFrame(this);
+        if (isCapturing()) {
+            mReplayView.recordFrame(this, mLastFrameTime);
         }
     }
 
     public void splitBall(Ball ball) {
         Ball p = new Ball(ball.x, ball.y);
+        p.id = mNextBallId++;
         p.velX = mLaunchSpeed;
-        p.velY = (Math.random() - 0.5) * RANDOM_Y_SPEED;
+        p.velY = (mRandom.nextDouble() - 0.5) * RANDOM_Y_SPEED;
 
         mLaunchSpeed += LAUNCH_SPEED_BOOST;
 
-        mRecordableSoundPool.play(mSplitSoundId);
+        playSound(mSplitSoundId, ball);
 
         livingBalls.add(p);
+        if (isCapturing()) {
+            mReplayView.recordSpawn(p, mLastFrameTime);
+        }
+        ++mSplits;
+        mMaxBallsInPlay = Math.max(mMaxBallsInPlay, ++mBallsInPlay);
+        mAchievements.onEvent(AchievementEngine.SPLIT, mBallsInPlay);
     }
 
     public void serve() {
+        mSeed = new Random().nextLong();
+        mRandom = new Random(mSeed);
+        mGameStartTime = mLastFrameTime;
+        mPlayedMillis = 0;
+        mSplits = 0;
+        mPaddleHits = 0;
+
         Ball p = new Ball(PADDLE_DISTANCE + 0.1, 0.5);
+        p.id = mNextBallId++;
         p.velX = mLaunchSpeed;
-        p.velY = (Math.random() - 0.5) * RANDOM_Y_SPEED;
+        p.velY = (mRandom.nextDouble() - 0.5) * RANDOM_Y_SPEED;
 
         mLaunchSpeed += LAUNCH_SPEED_BOOST;
 
-        mReplayView.reset();
         mReplayView.setReplaying(false);
+        mReplayView.startSession(this, mLastFrameTime);
         mRecordableSoundPool.startRecording();
-        mRecordableSoundPool.play(mLaunchSoundId);
+        mStreamFileName = getRecordingFileName() + "."
+                + System.currentTimeMillis() + ".part";
+        try {
+            // mix the audio as we go, so that game over doesn't have to
+            mRecordableSoundPool.streamRecordingTo(mActivity.getAssets(),
+                    mStreamFileName, RECORDING_FORMAT);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't stream recording, will write it at game over.");
+        }
+        playSound(mLaunchSoundId, 1.0f, 0.0f);
 
         balls.add(p);
-
+        mBallsInPlay = 1;
+        mMaxBallsInPlay = 1;
+        mStartRank = mLeaderboard.getPlayerRank();
+        mRank = mStartRank;
+        mAchievements.onEvent(AchievementEngine.GAME_START);
+        mReplayView.recordSpawn(p, mLastFrameTime);
     }
 
     @Override
@@ -343,37 +488,230 @@ public class SquashView extends View implements OnTouchListener {
     // Important for scoring and achievements
     public void incrementScore(Ball ball) {
         mScore++;
+        mPaddleHits++;
+        mAchievements.onEvent(AchievementEngine.PADDLE_HIT);
+        mAchievements.onEvent(AchievementEngine.SCORE, mScore);
+        long rank = mLeaderboard.rankFor(mScore);
+        if (rank > 0 && (mRank == 0 || rank < mRank)) {
+            mRank = rank;
+        }
+        if (isCapturing()) {
+            mReplayView.recordScore(mScore, mLastFrameTime);
+        }
 
         if (mScore == mLaunchScore) {
             mLaunchScore = mScore + 5;
             splitBall(ball);
         } else {
-            mRecordableSoundPool.play(mBouncePaddleId);
+            playSound(mBouncePaddleId, ball);
         }
     }
 
+    // Plays a sound positioned at the ball: panned by its height on the screen
+    // and louder the faster it goes.
+    public void playSound(int soundId, Ball ball) {
+        float pan = (float) Math.max(-1.0, Math.min(1.0, ball.y * 2 - 1));
+        float volume = (float) Math.min(1.0, QUIET_VOLUME
+                + (1 - QUIET_VOLUME) * ball.speed() / LOUD_SPEED);
+        playSound(soundId, volume, pan);
+    }
+
+    // Plays a sound, and logs it for replay if the game is being captured.
+    void playSound(int soundId, float volume, float pan) {
+        mRecordableSoundPool.play(soundId, volume, pan, 1.0f);
+        if (isCapturing()) {
+            mReplayView.recordSound(soundId, volume, pan, 1.0f,
+                    mLastFrameTime);
+        }
+    }
+
+    /**
+     * Saves the last ReplayView.INSTANT_REPLAY_MILLIS of the game: the frames
+     * become the clip the replay button shows, and the sound is written to
+     * getInstantReplayFileName() in the background. Both come from rolling
+     * buffers that are always capturing, so this returns right away.
+     */
+    public void saveInstantReplay() {
+        if (!mSoundReady || mReplayView == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        final ReplayVideo video = mReplayView.saveInstantReplay(now);
+
+        final Recording r = mRecordableSoundPool
+                .captureLast(ReplayView.INSTANT_REPLAY_MILLIS);
+        final String fileName = getInstantReplayFileName();
+        final String videoFileName = getInstantReplayVideoFileName();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File pcm = null;
+                try {
+                    // mix once, for both the audio file and the video
+                    pcm = File.createTempFile("replay", ".pcm",
+                            mActivity.getCacheDir());
+                    FileOutputStream fos = new FileOutputStream(pcm);
+                    try {
+                        r.writeToFile(mActivity.getAssets(), fos);
+                    } finally {
+                        fos.close();
+                    }
+                    int rate = r.getSamplesPerSecond();
+                    encodeAudio(pcm, rate, fileName);
+                    Log.d(TAG, "Saved instant replay to " + fileName);
+
+                    FileInputStream in = new FileInputStream(pcm);
+                    try {
+                        video.writeTo(new File(videoFileName), in, rate,
+                                r.getStartTime());
+                    } finally {
+                        in.close();
+                    }
+                    Log.d(TAG, "Saved instant replay video to "
+                            + videoFileName);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save instant replay");
+                    e.printStackTrace();
+                } finally {
+                    if (pcm != null) {
+                        pcm.delete();
+                    }
+                    mRecordableSoundPool.recycle(r);
+                }
+            }
+        }, "SaveInstantReplay").start();
+    }
+
+    // Encodes a raw PCM file in RECORDING_FORMAT.
+    static void encodeAudio(File pcm, int sampleRate, String fileName)
+            throws IOException {
+        FileInputStream in = new FileInputStream(pcm);
+        try {
+            AudioSink sink = AudioSink.create(RECORDING_FORMAT, fileName,
+                    sampleRate);
+            try {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    sink.write(buf, 0, n);
+                }
+            } finally {
+                sink.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    String getInstantReplayFileName() {
+        String root = Environment.getExternalStorageDirectory().toString();
+        return root + "/replay." + RECORDING_FORMAT.getExtension();
+    }
+
+    String getInstantReplayVideoFileName() {
+        String root = Environment.getExternalStorageDirectory().toString();
+        return root + "/replay.avi";
+    }
+
+    String getRecordingFileName() {
+        String root = Environment.getExternalStorageDirectory().toString();
+        return root + "/out." + RECORDING_FORMAT.getExtension();
+    }
+
+    /** The game that just ended, for the history. */
+    public GameRecord getGameRecord() {
+        GameRecord game = new GameRecord();
+        game.startTime = mGameStartTime;
+        game.durationMillis = (int) mPlayedMillis;
+        game.score = mScore;
+        game.maxBalls = mMaxBallsInPlay;
+        game.splits = mSplits;
+        game.paddleHits = mPaddleHits;
+        game.seed = mSeed;
+        return game;
+    }
+
     public void endGame() {
         mState = STATE_GAME_OVER;
 
         mRecordableSoundPool.stopRecording();
 
-        Log.d(TAG, "Writing getting recording.");
+        Log.d(TAG, "Handing off finished game.");
 
         Recording r = mRecordableSoundPool.getRecording();
+        final GameSession session = mReplayView.handOffSession(r,
+                mRecordableSoundPool, mScore);
+        final String partFileName = mStreamFileName;
+        final ReplayLibrary library = mReplayLibrary;
+        final long date = System.currentTimeMillis();
+        final int maxBalls = mMaxBallsInPlay;
+        sSessionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (library != null) {
+                    library.add(session, date, maxBalls);
+                }
+                exportSession(session, partFileName);
+            }
+        });
+
+        mAchievements.onEvent(AchievementEngine.GAME_END, mScore);
+        updateScoreSketch();
+        ((SquashActivity) getContext()).onGameStop(this);
+    }
+
+    /** Adds the game to mScoreSketch and saves it in the background. */
+    void updateScoreSketch() {
+        mBeatPercent = mScoreSketch.getCount() == 0 ? -1
+                : (int) (100 * mScoreSketch.fractionBelow(mScore));
+        mScoreSketch.add(mScore);
+        if (mSketchFile != null) {
+            final File file = mSketchFile;
+            final byte[] data = mScoreSketch.toByteArray();
+            sSessionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ScoreSketch.save(file, data);
+                }
+            });
+        }
+    }
+
+    // Runs on sSessionExecutor.
+    void exportSession(GameSession session, String partFileName) {
+        Recording r = session.getRecording();
+        String fileName = getRecordingFileName();
 
         Log.d(TAG, "Writing out record.");
 
-        String root = Environment.getExternalStorageDirectory().toString();
+        boolean saved = false;
         try {
-            r.writeToFile(mActivity.getAssets(), root + "/out.raw"); // root
+            if (r == null) {
+                return;
+            }
+            if (r.isStreaming()) {
+                r.finishStreaming(mActivity.getAssets());
+            } else {
+                r.writeToFile(mActivity.getAssets(), partFileName,
+                        RECORDING_FORMAT);
+            }
+            if (!new File(partFileName).renameTo(new File(fileName))) {
+                Log.e(TAG, "Failed to rename " + partFileName + " to "
+                        + fileName);
+                return;
+            }
 
+            saved = true;
             Log.d(TAG, "Saved.");
-            // +
-            // "/test/sound.raw");
         } catch (IOException e) {
-            Log.e(TAG, "Failed to write sound.raw");
+            Log.e(TAG, "Failed to write " + fileName);
             e.printStackTrace();
+        } finally {
+            if (!saved) {
+                // don't leave a half-written file behind
+                new File(partFileName).delete();
+            }
+            session.release();
         }
-        ((SquashActivity) getContext()).onGameStop(this);
     }
 }
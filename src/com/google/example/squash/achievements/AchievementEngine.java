@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.achievements;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import android.util.Log;
+
+import com.google.example.squash.IoUtils;
+
+/**
+ * Works out achievements from gameplay events as they happen. The game
+ * reports each event once with onEvent(); the engine bumps a counter for
+ * it and checks only the rules on that event, each against the lowest
+ * threshold not yet reached, so an event costs O(1) however many rules
+ * there are, and nothing is scanned per frame.
+ *
+ * An unlock rule fires when a count or value reaches its threshold; see
+ * the scopes. An increment rule adds one step to an incremental
+ * achievement per event. Unlocks and steps are batched and only sent to
+ * the AchievementSink at game end or when a sink is set (on sign-in),
+ * and only when something changed. Lifetime counts, unlocks and unsent
+ * steps are saved to a small file, written off the main thread.
+ *
+ * Not thread-safe: use it from the game's thread.
+ */
+public class AchievementEngine {
+    static final String TAG = "AchievementEngine";
+
+    // events
+    public static final int GAME_START = 0;
+    public static final int PADDLE_HIT = 1;
+    public static final int SPLIT = 2; // value: balls in play after it
+    public static final int BALL_LOST = 3; // value: balls still in play
+    public static final int SCORE = 4; // value: the new score
+    public static final int GAME_END = 5; // value: the final score
+    public static final int EVENT_COUNT = 6;
+
+    // what an unlock rule's threshold is compared with
+    public static final int IN_GAME = 0; // times the event happened this game
+    public static final int LIFETIME = 1; // times it ever happened
+    public static final int VALUE = 2; // the value reported with it
+    static final int SCOPE_COUNT = 3;
+
+    static final int STATE_VERSION = 1;
+
+    /** Unlock rules on one event and scope, by ascending threshold. */
+    static class RuleList {
+        String[] ids = new String[0];
+        long[] thresholds = new long[0];
+
+        // rules before this one have fired
+        int next = 0;
+
+        void add(String id, long threshold) {
+            int n = ids.length;
+            String[] newIds = new String[n + 1];
+            long[] newThresholds = new long[n + 1];
+            int i = 0;
+            for (; i < n && thresholds[i] <= threshold; i++) {
+                newIds[i] = ids[i];
+                newThresholds[i] = thresholds[i];
+            }
+            newIds[i] = id;
+            newThresholds[i] = threshold;
+            for (; i < n; i++) {
+                newIds[i + 1] = ids[i];
+                newThresholds[i + 1] = thresholds[i];
+            }
+            ids = newIds;
+            thresholds = newThresholds;
+        }
+    }
+
+    final RuleList[][] mRules = new RuleList[EVENT_COUNT][SCOPE_COUNT];
+
+    // increment rules: achievement id and unsent steps, and which rules
+    // each event feeds
+    String[] mIncrementIds = new String[0];
+    int[] mPendingSteps = new int[0];
+    final int[][] mIncrementsByEvent = new int[EVENT_COUNT][0];
+
+    final long[] mInGame = new long[EVENT_COUNT];
+    // counted here, counted on other devices (as last merged), and the sum
+    final long[] mOwn = new long[EVENT_COUNT];
+    final long[] mElsewhere = new long[EVENT_COUNT];
+    final long[] mLifetime = new long[EVENT_COUNT];
+
+    final Set<String> mUnlocked = new HashSet<String>();
+    final Set<String> mUnsentUnlocks = new LinkedHashSet<String>();
+
+    AchievementSink mSink;
+
+    // where the state is kept; null to keep it in memory only
+    final File mStateFile;
+    boolean mDirty = false;
+
+    static final ExecutorService sWriter = IoUtils
+            .newDaemonExecutor("AchievementEngine");
+
+    /**
+     * Add the rules, then call load().
+     *
+     * @param stateFile
+     *            Where to keep the state, or null for nowhere.
+     */
+    public AchievementEngine(File stateFile) {
+        mStateFile = stateFile;
+        for (int e = 0; e < EVENT_COUNT; e++) {
+            for (int s = 0; s < SCOPE_COUNT; s++) {
+                mRules[e][s] = new RuleList();
+            }
+        }
+    }
+
+    /**
+     * Unlocks an achievement once the event's count (IN_GAME or LIFETIME) or
+     * value (VALUE) reaches threshold.
+     */
+    public void addUnlockRule(String achievementId, int event, int scope,
+            long threshold) {
+        mRules[event][scope].add(achievementId, threshold);
+    }
+
+    /** Adds a step to an incremental achievement every time event happens. */
+    public void addIncrementRule(String achievementId, int event) {
+        int n = mIncrementIds.length;
+        String[] ids = new String[n + 1];
+        System.arraycopy(mIncrementIds, 0, ids, 0, n);
+        ids[n] = achievementId;
+        int[] steps = new int[n + 1];
+        System.arraycopy(mPendingSteps, 0, steps, 0, n);
+        mIncrementIds = ids;
+        mPendingSteps = steps;
+
+        int[] old = mIncrementsByEvent[event];
+        int[] rules = new int[old.length + 1];
+        System.arraycopy(old, 0, rules, 0, old.length);
+        rules[old.length] = n;
+        mIncrementsByEvent[event] = rules;
+    }
+
+    /** Reports a gameplay event, with its value (see the events). */
+    public void onEvent(int event, long value) {
+        if (event == GAME_START) {
+            Arrays.fill(mInGame, 0);
+        }
+        RuleList[] rules = mRules[event];
+        check(rules[IN_GAME], ++mInGame[event]);
+        ++mOwn[event];
+        check(rules[LIFETIME], ++mLifetime[event]);
+        check(rules[VALUE], value);
+        int[] increments = mIncrementsByEvent[event];
+        for (int i = 0; i < increments.length; i++) {
+            ++mPendingSteps[increments[i]];
+        }
+        mDirty = true;
+
+        if (event == GAME_END) {
+            flush();
+            save();
+        }
+    }
+
+    public void onEvent(int event) {
+        onEvent(event, 0);
+    }
+
+    void check(RuleList rules, long v) {
+        while (rules.next < rules.thresholds.length
+                && v >= rules.thresholds[rules.next]) {
+            unlock(rules.ids[rules.next++]);
+        }
+    }
+
+    void unlock(String achievementId) {
+        if (mUnlocked.add(achievementId)) {
+            mUnsentUnlocks.add(achievementId);
+            mDirty = true;
+        }
+    }
+
+    public boolean isUnlocked(String achievementId) {
+        return mUnlocked.contains(achievementId);
+    }
+
+    public Set<String> getUnlocked() {
+        return Collections.unmodifiableSet(mUnlocked);
+    }
+
+    /** How often the event happened, on this device and others. */
+    public long getLifetimeCount(int event) {
+        return mLifetime[event];
+    }
+
+    /** How often the event happened on this device. */
+    public long getOwnCount(int event) {
+        return mOwn[event];
+    }
+
+    /**
+     * Merges in progress made elsewhere (other devices): raises what's
+     * counted elsewhere to at least counts, the sum over the other devices,
+     * and marks achievements unlocked without sending them again.
+     */
+    public void mergeProgress(long[] counts, Collection<String> unlocked) {
+        for (int e = 0; e < EVENT_COUNT && e < counts.length; e++) {
+            if (counts[e] > mElsewhere[e]) {
+                mLifetime[e] += counts[e] - mElsewhere[e];
+                mElsewhere[e] = counts[e];
+                mDirty = true;
+                check(mRules[e][LIFETIME], mLifetime[e]);
+            }
+        }
+        if (mUnlocked.addAll(unlocked)) {
+            mDirty = true;
+        }
+        flush();
+        save();
+    }
+
+    /**
+     * Sets where to send achievements, and sends anything waiting. Set null
+     * when signing out.
+     */
+    public void setSink(AchievementSink sink) {
+        mSink = sink;
+        flush();
+        save();
+    }
+
+    /** Sends the unsent unlocks and steps, if there's a sink. */
+    void flush() {
+        if (mSink == null) {
+            return;
+        }
+        for (String id : mUnsentUnlocks.toArray(new String[mUnsentUnlocks
+                .size()])) {
+            if (mSink.unlock(id)) {
+                mUnsentUnlocks.remove(id);
+                mDirty = true;
+            }
+        }
+        for (int i = 0; i < mIncrementIds.length; i++) {
+            if (mPendingSteps[i] > 0
+                    && mSink.increment(mIncrementIds[i], mPendingSteps[i])) {
+                mPendingSteps[i] = 0;
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * The state: the counts of each event here and elsewhere, then the
+     * unlocked achievements with whether each was sent, then the unsent steps
+     * of each incremental achievement.
+     */
+    byte[] saveState() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(STATE_VERSION);
+        out.writeInt(EVENT_COUNT);
+        for (int e = 0; e < EVENT_COUNT; e++) {
+            out.writeLong(mOwn[e]);
+            out.writeLong(mElsewhere[e]);
+        }
+        out.writeInt(mUnlocked.size());
+        for (String id : mUnlocked) {
+            out.writeUTF(id);
+            out.writeBoolean(mUnsentUnlocks.contains(id));
+        }
+        out.writeInt(mIncrementIds.length);
+        for (int i = 0; i < mIncrementIds.length; i++) {
+            out.writeUTF(mIncrementIds[i]);
+            out.writeInt(mPendingSteps[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    void loadState(byte[] state) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                state));
+        int version = in.readInt();
+        if (version != STATE_VERSION) {
+            throw new IOException("Unsupported achievement state version.");
+        }
+        int events = in.readInt();
+        for (int e = 0; e < events; e++) {
+            long own = in.readLong();
+            long elsewhere = in.readLong();
+            if (e < EVENT_COUNT) {
+                mOwn[e] = own;
+                mElsewhere[e] = elsewhere;
+                mLifetime[e] = own + elsewhere;
+            }
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            String id = in.readUTF();
+            mUnlocked.add(id);
+            if (in.readBoolean()) {
+                mUnsentUnlocks.add(id);
+            }
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            String id = in.readUTF();
+            int steps = in.readInt();
+            for (int i = 0; i < mIncrementIds.length; i++) {
+                if (mIncrementIds[i].equals(id)) {
+                    mPendingSteps[i] += steps;
+                }
+            }
+        }
+
+        // catch up rules added since the counts were saved
+        for (int e = 0; e < EVENT_COUNT; e++) {
+            check(mRules[e][LIFETIME], mLifetime[e]);
+        }
+    }
+
+    /** Reads the saved state, if any. Call once, after adding the rules. */
+    public void load() {
+        if (mStateFile == null || !mStateFile.exists()) {
+            return;
+        }
+        try {
+            byte[] state = new byte[(int) mStateFile.length()];
+            FileInputStream in = new FileInputStream(mStateFile);
+            try {
+                new DataInputStream(in).readFully(state);
+            } finally {
+                in.close();
+            }
+            loadState(state);
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to load achievement state.", ex);
+        }
+    }
+
+    /** Writes the state in the background, if it changed. */
+    void save() {
+        if (mStateFile == null || !mDirty) {
+            return;
+        }
+        mDirty = false;
+        final byte[] state;
+        try {
+            state = saveState();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to serialize achievements.", ex);
+        }
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(mStateFile, state);
+            }
+        });
+    }
+
+    static void write(File file, byte[] state) {
+        try {
+            IoUtils.writeAtomically(file, state);
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to save achievement state.", ex);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.achievements;
+
+/**
+ * Where the AchievementEngine sends unlocks and increments: the games
+ * service when signed in (see GamesAchievementSink).
+ */
+public interface AchievementSink {
+    /** @return false if it can't be sent now and should be retried later */
+    boolean unlock(String achievementId);
+
+    /** @return false if it can't be sent now and should be retried later */
+    boolean increment(String achievementId, int steps);
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.achievements;
+
+import com.google.android.gms.games.GamesClient;
+
+/**
+ * Sends achievements through a connected GamesClient, which queues them
+ * itself if the network is down.
+ */
+public class GamesAchievementSink implements AchievementSink {
+    final GamesClient mGamesClient;
+
+    public GamesAchievementSink(GamesClient gamesClient) {
+        mGamesClient = gamesClient;
+    }
+
+    @Override
+    public boolean unlock(String achievementId) {
+        if (!mGamesClient.isConnected()) {
+            return false;
+        }
+        mGamesClient.unlockAchievement(achievementId);
+        return true;
+    }
+
+    @Override
+    public boolean increment(String achievementId, int steps) {
+        if (!mGamesClient.isConnected()) {
+            return false;
+        }
+        mGamesClient.incrementAchievement(achievementId, steps);
+        return true;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.cloudsave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.appstate.AppStateClient;
+import com.google.android.gms.appstate.OnStateLoadedListener;
+import com.google.example.squash.IoUtils;
+
+/**
+ * Keeps a SaveState on the device and in the cloud (app state slots, one
+ * per SaveState slot). update() merges in new progress and writes it to a
+ * local file right away, in the background; the cloud gets a slot only
+ * when its bytes differ from what the cloud last told us it has, and at
+ * most every PUSH_INTERVAL_MILLIS, so a burst of games makes one upload.
+ *
+ * When signing in, each slot is loaded and merged in before anything is
+ * pushed to it, and conflicts are resolved with the same merge. Counts are
+ * kept per device (see getDeviceId()), so whichever order devices sync in
+ * they end up with the same state, and games played on each of them count.
+ *
+ * Use it from the main thread; the AppStateClient calls back there too.
+ */
+public class CloudSave {
+    static final String TAG = "CloudSave";
+
+    public static final long PUSH_INTERVAL_MILLIS = 30 * 1000;
+
+    /** Hears about progress that came from the cloud. */
+    public interface Listener {
+        /** The state changed by merging in the cloud's. */
+        void onCloudStateMerged(SaveState state);
+    }
+
+    final File mFile;
+    final Listener mListener;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    SaveState mState = new SaveState();
+
+    // made up on first use, and kept with the local copy
+    String mDeviceId;
+
+    AppStateClient mClient;
+
+    // per slot: what the cloud has, as far as we know, and whether we've
+    // heard from it since signing in (we don't push a slot until we have)
+    final byte[][] mCloud = new byte[SaveState.SLOT_COUNT][];
+    final boolean[] mSynced = new boolean[SaveState.SLOT_COUNT];
+
+    long mLastPush = -PUSH_INTERVAL_MILLIS;
+    boolean mPushScheduled = false;
+
+    static final ExecutorService sWriter = IoUtils
+            .newDaemonExecutor("CloudSave");
+
+    final Runnable mPush = new Runnable() {
+        @Override
+        public void run() {
+            mPushScheduled = false;
+            push();
+        }
+    };
+
+    final OnStateLoadedListener mStateListener = new OnStateLoadedListener() {
+        @Override
+        public void onStateLoaded(int status, int key, byte[] data) {
+            handleLoaded(status, key, data);
+        }
+
+        @Override
+        public void onStateConflict(int key, String resolvedVersion,
+                byte[] localData, byte[] serverData) {
+            handleConflict(key, resolvedVersion, localData, serverData);
+        }
+    };
+
+    /** Reads the local copy, if there is one. */
+    public CloudSave(File file, Listener listener) {
+        mFile = file;
+        mListener = listener;
+        load();
+        if (mDeviceId == null) {
+            mDeviceId = UUID.randomUUID().toString();
+            save();
+        }
+    }
+
+    /** Which of the state's per-device counts are this device's. */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    /** A copy of the current state. */
+    public SaveState getState() {
+        return new SaveState(mState);
+    }
+
+    /** Merges progress in, saves it locally and schedules a push. */
+    public void update(SaveState progress) {
+        SaveState merged = new SaveState(mState);
+        merged.merge(progress);
+        if (!changes(mState, merged)) {
+            return;
+        }
+        mState = merged;
+        save();
+        schedulePush();
+    }
+
+    static boolean changes(SaveState from, SaveState to) {
+        for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+            if (!Arrays.equals(from.encodeSlot(slot), to.encodeSlot(slot))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the client to sync with once signed in, and loads every slot
+     * from it. Set null when signing out.
+     */
+    public void setClient(AppStateClient client) {
+        mClient = client;
+        mHandler.removeCallbacks(mPush);
+        mPushScheduled = false;
+        for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+            mCloud[slot] = null;
+            mSynced[slot] = false;
+            if (client != null) {
+                client.loadState(mStateListener, slot);
+            }
+        }
+    }
+
+    /**
+     * Whatever the call, the data that comes back is what the cloud now has,
+     * so merge it in and push if ours is different.
+     */
+    void handleLoaded(int status, int key, byte[] data) {
+        if (key < 0 || key >= SaveState.SLOT_COUNT) {
+            return;
+        }
+        if (status == AppStateClient.STATUS_STATE_KEY_NOT_FOUND) {
+            data = null;
+        } else if (status != AppStateClient.STATUS_OK
+                && status != AppStateClient.STATUS_NETWORK_ERROR_STALE_DATA) {
+            Log.w(TAG, "Couldn't sync slot " + key + ", status " + status);
+            return;
+        }
+        mergeCloud(key, data);
+        // stale data is worth merging, but isn't what the cloud has
+        if (status != AppStateClient.STATUS_NETWORK_ERROR_STALE_DATA) {
+            mCloud[key] = data;
+            mSynced[key] = true;
+        }
+        schedulePush();
+    }
+
+    void handleConflict(int key, String resolvedVersion, byte[] localData,
+            byte[] serverData) {
+        mergeCloud(key, localData);
+        mergeCloud(key, serverData);
+        if (mClient != null) {
+            mClient.resolveState(mStateListener, key, resolvedVersion,
+                    mState.encodeSlot(key));
+        }
+    }
+
+    void mergeCloud(int key, byte[] data) {
+        SaveState merged = new SaveState(mState);
+        try {
+            merged.mergeSlot(key, data);
+        } catch (IOException ex) {
+            Log.w(TAG, "Ignoring unreadable cloud slot " + key, ex);
+            return;
+        }
+        if (changes(mState, merged)) {
+            mState = merged;
+            save();
+            mListener.onCloudStateMerged(getState());
+        }
+    }
+
+    void schedulePush() {
+        if (mClient == null || mPushScheduled || !needsPush()) {
+            return;
+        }
+        mPushScheduled = true;
+        long wait = mLastPush + PUSH_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mPush, Math.max(0, wait));
+    }
+
+    boolean needsPush() {
+        for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+            if (mSynced[slot]
+                    && !Arrays.equals(mState.encodeSlot(slot), mCloud[slot])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Sends each synced slot that differs from the cloud's. */
+    void push() {
+        if (mClient == null || !mClient.isConnected()) {
+            return;
+        }
+        for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+            byte[] data = mState.encodeSlot(slot);
+            if (mSynced[slot] && !Arrays.equals(data, mCloud[slot])) {
+                mClient.updateStateImmediate(mStateListener, slot, data);
+                mLastPush = SystemClock.uptimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Reads the local copy: the device id (modified UTF-8), then each slot as
+     * an int length and its bytes.
+     */
+    void load() {
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+            try {
+                mDeviceId = in.readUTF();
+                for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    mState.mergeSlot(slot, data);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to load local save state.", ex);
+        }
+    }
+
+    void save() {
+        if (mFile == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(mDeviceId);
+            for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+                byte[] data = mState.encodeSlot(slot);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to encode save state.", ex);
+        }
+        final byte[] state = bytes.toByteArray();
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(mFile, state);
+            }
+        });
+    }
+
+    static void write(File file, byte[] state) {
+        try {
+            IoUtils.writeAtomically(file, state);
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to save local save state.", ex);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.cloudsave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The player's progress as it's saved to the cloud: their best score,
+ * lifetime counts of gameplay events (indexed by AchievementEngine event)
+ * kept per device, and unlocked achievements. It's split into SLOT_COUNT
+ * slots, each encoded on its own, so a change to one doesn't resend the
+ * others.
+ *
+ * A device only ever raises its own counts, and an event's count is the
+ * sum over devices. Merging takes the maximum of each device's counts and
+ * of the best score, and the union of the unlocks, so games played on two
+ * devices between syncs both count. Encodings are canonical (devices and
+ * unlocks are sorted), so equal states always encode to equal bytes and
+ * "did it change" is a byte comparison, and merging gives the same answer
+ * in any order, however often it's repeated, on every device.
+ *
+ * Slot STATS: version, best score, count of devices, then for each its id
+ * (modified UTF-8), count of counts and the counts (longs but for the
+ * ints). Slot UNLOCKS: version, count, then the achievement ids.
+ */
+public class SaveState {
+    public static final int STATS = 0;
+    public static final int UNLOCKS = 1;
+    public static final int SLOT_COUNT = 2;
+
+    static final int VERSION = 1;
+
+    long mBestScore = 0;
+    // by device id
+    final Map<String, long[]> mCounts = new TreeMap<String, long[]>();
+    final Set<String> mUnlocked = new TreeSet<String>();
+
+    public SaveState() {
+    }
+
+    public SaveState(SaveState other) {
+        mBestScore = other.mBestScore;
+        for (Map.Entry<String, long[]> entry : other.mCounts.entrySet()) {
+            mCounts.put(entry.getKey(), entry.getValue().clone());
+        }
+        mUnlocked.addAll(other.mUnlocked);
+    }
+
+    public long getBestScore() {
+        return mBestScore;
+    }
+
+    public void setBestScore(long score) {
+        mBestScore = Math.max(mBestScore, score);
+    }
+
+    /** Lifetime count of an event over all devices, 0 if never counted. */
+    public long getCount(int event) {
+        long count = 0;
+        for (long[] counts : mCounts.values()) {
+            if (event < counts.length) {
+                count += counts[event];
+            }
+        }
+        return count;
+    }
+
+    /** Lifetime count of an event on one device, 0 if never counted. */
+    public long getCount(String deviceId, int event) {
+        long[] counts = mCounts.get(deviceId);
+        return counts != null && event < counts.length ? counts[event] : 0;
+    }
+
+    /** Raises a device's lifetime count to at least count. */
+    public void setCount(String deviceId, int event, long count) {
+        long[] counts = mCounts.get(deviceId);
+        if (counts == null || event >= counts.length) {
+            long[] grown = new long[event + 1];
+            if (counts != null) {
+                System.arraycopy(counts, 0, grown, 0, counts.length);
+            }
+            counts = grown;
+            mCounts.put(deviceId, counts);
+        }
+        counts[event] = Math.max(counts[event], count);
+    }
+
+    /** One more than the highest event any device has a count for. */
+    public int getCountLength() {
+        int length = 0;
+        for (long[] counts : mCounts.values()) {
+            length = Math.max(length, counts.length);
+        }
+        return length;
+    }
+
+    public Set<String> getUnlocked() {
+        return Collections.unmodifiableSet(mUnlocked);
+    }
+
+    public void addUnlocked(Collection<String> achievementIds) {
+        mUnlocked.addAll(achievementIds);
+    }
+
+    /** Merges other into this one. */
+    public void merge(SaveState other) {
+        setBestScore(other.mBestScore);
+        for (Map.Entry<String, long[]> entry : other.mCounts.entrySet()) {
+            long[] counts = entry.getValue();
+            for (int e = 0; e < counts.length; e++) {
+                setCount(entry.getKey(), e, counts[e]);
+            }
+        }
+        mUnlocked.addAll(other.mUnlocked);
+    }
+
+    // trailing zeros don't count, so they don't make a change
+    static int countLength(long[] counts) {
+        int n = counts.length;
+        while (n > 0 && counts[n - 1] == 0) {
+            --n;
+        }
+        return n;
+    }
+
+    public byte[] encodeSlot(int slot) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            if (slot == STATS) {
+                out.writeLong(mBestScore);
+                int devices = 0;
+                for (long[] counts : mCounts.values()) {
+                    if (countLength(counts) > 0) {
+                        ++devices;
+                    }
+                }
+                out.writeShort(devices);
+                for (Map.Entry<String, long[]> entry : mCounts.entrySet()) {
+                    long[] counts = entry.getValue();
+                    int n = countLength(counts);
+                    if (n == 0) {
+                        continue;
+                    }
+                    out.writeUTF(entry.getKey());
+                    out.writeShort(n);
+                    for (int e = 0; e < n; e++) {
+                        out.writeLong(counts[e]);
+                    }
+                }
+            } else {
+                out.writeShort(mUnlocked.size());
+                for (String id : mUnlocked) {
+                    out.writeUTF(id);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to encode save state.", ex);
+        }
+    }
+
+    /**
+     * Merges an encoded slot into this state. Empty or null data (a slot
+     * that was never written) is nothing to merge.
+     */
+    public void mergeSlot(int slot, byte[] data) throws IOException {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                data));
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unsupported save state version.");
+        }
+        if (slot == STATS) {
+            setBestScore(in.readLong());
+            for (int d = in.readUnsignedShort(); d > 0; d--) {
+                String deviceId = in.readUTF();
+                for (int e = 0, n = in.readUnsignedShort(); e < n; e++) {
+                    setCount(deviceId, e, in.readLong());
+                }
+            }
+        } else {
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                mUnlocked.add(in.readUTF());
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+
+import android.util.Log;
+
+import com.google.example.squash.IoUtils;
+
+/**
+ * Every finished game, kept on disk. The log file is an append-only array
+ * of fixed-size records, so game i is at i * RECORD_BYTES; the index file
+ * holds the count of games and a summary (HistoryStats) of each complete
+ * block of BLOCK_GAMES games. Both are memory-mapped, so opening is instant
+ * whatever the size, reading a game is a few loads from the page cache, and
+ * aggregate() over thousands of games reads a handful of block summaries
+ * rather than every record; nothing is loaded into the heap.
+ *
+ * Both files are grown (doubled) ahead of what's used. A game, and the
+ * summary of the block it completes, are written before the count in the
+ * index is raised, so a crash loses at most that game and summaries are
+ * only ever read for blocks the count says are complete. A missing or
+ * damaged index is rebuilt from the log, whose records each start with a
+ * non-zero marker.
+ *
+ * append() writes on the store's own thread; the reads are synchronized
+ * and may be called from any thread.
+ *
+ * Log record (RECORD_BYTES, little-endian): marker (byte), max balls
+ * (unsigned byte), reserved short, score (int), start time (long), duration
+ * in millis, splits, paddle hits (ints), reserved int, seed (long).
+ *
+ * Index: magic, version, count, reserved (ints); then per block: total
+ * score (long), best score, games (ints), total duration, total splits,
+ * total paddle hits (longs), max balls, reserved (ints).
+ */
+public class GameHistoryStore {
+    static final String TAG = "GameHistoryStore";
+
+    static final int RECORD_BYTES = 40;
+    static final byte RECORD_MARKER = 1;
+
+    static final int INDEX_MAGIC = 0x48515153; // "SQQH"
+    static final int INDEX_VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int SUMMARY_BYTES = 48;
+    static final int BLOCK_GAMES = 256;
+
+    static final int INITIAL_GAMES = 1024;
+
+    final File mLogFile;
+    final File mIndexFile;
+
+    RandomAccessFile mLog;
+    RandomAccessFile mIndex;
+    MappedByteBuffer mLogMap;
+    MappedByteBuffer mIndexMap;
+
+    // games the files have room for
+    int mCapacity = 0;
+    int mCount = 0;
+
+    final ExecutorService mWriter = IoUtils
+            .newDaemonExecutor("GameHistoryStore");
+
+    /**
+     * Opens the store in dir (creating it if need be) on the store's thread,
+     * since that can mean growing the files or rebuilding the index; it
+     * reads as empty until then. If it can't be opened, it stays empty and
+     * appends are dropped.
+     */
+    public GameHistoryStore(File dir) {
+        mLogFile = new File(dir, "history.log");
+        mIndexFile = new File(dir, "history.idx");
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to open game history.", ex);
+                    close();
+                }
+            }
+        });
+    }
+
+    synchronized void open() throws IOException {
+        mLog = new RandomAccessFile(mLogFile, "rw");
+        mIndex = new RandomAccessFile(mIndexFile, "rw");
+        int logGames = (int) (mLog.length() / RECORD_BYTES);
+        mapFiles(Math.max(INITIAL_GAMES, logGames));
+
+        if (mIndexMap.getInt(0) == INDEX_MAGIC
+                && mIndexMap.getInt(4) == INDEX_VERSION
+                && mIndexMap.getInt(8) <= logGames) {
+            mCount = mIndexMap.getInt(8);
+        } else {
+            rebuildIndex(logGames);
+        }
+    }
+
+    /** Grows the files to hold games games, and maps them. */
+    void mapFiles(int games) throws IOException {
+        long logBytes = (long) games * RECORD_BYTES;
+        long indexBytes = HEADER_BYTES + (long) blocks(games) * SUMMARY_BYTES;
+        if (mLog.length() < logBytes) {
+            mLog.setLength(logBytes);
+        }
+        if (mIndex.length() < indexBytes) {
+            mIndex.setLength(indexBytes);
+        }
+        mLogMap = map(mLog, logBytes);
+        mIndexMap = map(mIndex, indexBytes);
+        mCapacity = games;
+    }
+
+    static MappedByteBuffer map(RandomAccessFile file, long bytes)
+            throws IOException {
+        MappedByteBuffer map = file.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, bytes);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        return map;
+    }
+
+    static int blocks(int games) {
+        return (games + BLOCK_GAMES - 1) / BLOCK_GAMES;
+    }
+
+    /** Recounts the log and recomputes every block summary. */
+    void rebuildIndex(int logGames) {
+        if (logGames > 0) {
+            Log.w(TAG, "Rebuilding game history index.");
+        }
+        int count = 0;
+        while (count < logGames
+                && mLogMap.get(count * RECORD_BYTES) == RECORD_MARKER) {
+            ++count;
+        }
+        for (int block = 0; block < count / BLOCK_GAMES; block++) {
+            writeSummary(block, summarize(block));
+        }
+        mIndexMap.putInt(0, INDEX_MAGIC);
+        mIndexMap.putInt(4, INDEX_VERSION);
+        mIndexMap.putInt(8, count);
+        mIndexMap.force();
+        mCount = count;
+    }
+
+    /** Adds a finished game, in the background. */
+    public void append(GameRecord game) {
+        // a copy, so the caller can reuse theirs
+        final GameRecord copy = new GameRecord();
+        copy.startTime = game.startTime;
+        copy.durationMillis = game.durationMillis;
+        copy.score = game.score;
+        copy.maxBalls = game.maxBalls;
+        copy.splits = game.splits;
+        copy.paddleHits = game.paddleHits;
+        copy.seed = game.seed;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    appendNow(copy);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to record game.", ex);
+                }
+            }
+        });
+    }
+
+    synchronized void appendNow(GameRecord game) throws IOException {
+        if (mLogMap == null) {
+            return;
+        }
+        if (mCount == mCapacity) {
+            mapFiles(mCapacity * 2);
+        }
+        int at = mCount * RECORD_BYTES;
+        mLogMap.put(at, RECORD_MARKER);
+        mLogMap.put(at + 1, (byte) Math.min(255, game.maxBalls));
+        mLogMap.putShort(at + 2, (short) 0);
+        mLogMap.putInt(at + 4, game.score);
+        mLogMap.putLong(at + 8, game.startTime);
+        mLogMap.putInt(at + 16, game.durationMillis);
+        mLogMap.putInt(at + 20, game.splits);
+        mLogMap.putInt(at + 24, game.paddleHits);
+        mLogMap.putInt(at + 28, 0);
+        mLogMap.putLong(at + 32, game.seed);
+        mLogMap.force();
+
+        if ((mCount + 1) % BLOCK_GAMES == 0) {
+            int block = mCount / BLOCK_GAMES;
+            writeSummary(block, summarize(block));
+        }
+        mIndexMap.putInt(8, mCount + 1);
+        mIndexMap.force();
+        ++mCount;
+    }
+
+    /** Adds up a block's games from the log. */
+    HistoryStats summarize(int block) {
+        HistoryStats s = new HistoryStats();
+        GameRecord game = new GameRecord();
+        for (int i = block * BLOCK_GAMES; i < (block + 1) * BLOCK_GAMES; i++) {
+            readRecord(i, game);
+            s.add(game);
+        }
+        return s;
+    }
+
+    /** The number of games recorded. */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /** Reads game index (0 is the first ever) into out. */
+    public synchronized void read(int index, GameRecord out) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("No game " + index);
+        }
+        readRecord(index, out);
+    }
+
+    void readRecord(int index, GameRecord out) {
+        int at = index * RECORD_BYTES;
+        out.maxBalls = mLogMap.get(at + 1) & 0xff;
+        out.score = mLogMap.getInt(at + 4);
+        out.startTime = mLogMap.getLong(at + 8);
+        out.durationMillis = mLogMap.getInt(at + 16);
+        out.splits = mLogMap.getInt(at + 20);
+        out.paddleHits = mLogMap.getInt(at + 24);
+        out.seed = mLogMap.getLong(at + 32);
+    }
+
+    HistoryStats readSummary(int block) {
+        int at = HEADER_BYTES + block * SUMMARY_BYTES;
+        HistoryStats s = new HistoryStats();
+        s.totalScore = mIndexMap.getLong(at);
+        s.bestScore = mIndexMap.getInt(at + 8);
+        s.games = mIndexMap.getInt(at + 12);
+        s.totalDurationMillis = mIndexMap.getLong(at + 16);
+        s.totalSplits = mIndexMap.getLong(at + 24);
+        s.totalPaddleHits = mIndexMap.getLong(at + 32);
+        s.maxBalls = mIndexMap.getInt(at + 40);
+        return s;
+    }
+
+    void writeSummary(int block, HistoryStats s) {
+        int at = HEADER_BYTES + block * SUMMARY_BYTES;
+        mIndexMap.putLong(at, s.totalScore);
+        mIndexMap.putInt(at + 8, s.bestScore);
+        mIndexMap.putInt(at + 12, s.games);
+        mIndexMap.putLong(at + 16, s.totalDurationMillis);
+        mIndexMap.putLong(at + 24, s.totalSplits);
+        mIndexMap.putLong(at + 32, s.totalPaddleHits);
+        mIndexMap.putInt(at + 40, s.maxBalls);
+        mIndexMap.putInt(at + 44, 0);
+    }
+
+    /** Totals over every game. */
+    public HistoryStats aggregate() {
+        return aggregate(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Totals over games [from, to): complete blocks from their summaries, and
+     * only the games at the ragged ends one by one.
+     */
+    public synchronized HistoryStats aggregate(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(mCount, to);
+        HistoryStats total = new HistoryStats();
+        GameRecord game = new GameRecord();
+        int i = from;
+        while (i < to) {
+            if (i % BLOCK_GAMES == 0 && i + BLOCK_GAMES <= to) {
+                total.add(readSummary(i / BLOCK_GAMES));
+                i += BLOCK_GAMES;
+            } else {
+                readRecord(i++, game);
+                total.add(game);
+            }
+        }
+        return total;
+    }
+
+    public synchronized void close() {
+        mLogMap = null;
+        mIndexMap = null;
+        mCount = 0;
+        mCapacity = 0;
+        closeQuietly(mLog);
+        closeQuietly(mIndex);
+        mLog = null;
+        mIndex = null;
+    }
+
+    static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                // nothing left to lose
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.history;
+
+/** One finished game, as kept in the GameHistoryStore. */
+public class GameRecord {
+    // when it started, System.currentTimeMillis()
+    public long startTime;
+    public int durationMillis;
+
+    public int score;
+
+    // most balls in play at once (stored up to 255)
+    public int maxBalls;
+    public int splits;
+    public int paddleHits;
+
+    // the seed the game's Random started from
+    public long seed;
+}
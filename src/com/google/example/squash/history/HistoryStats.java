@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.history;
+
+/** Totals over a run of games in the GameHistoryStore. */
+public class HistoryStats {
+    public int games;
+    public long totalScore;
+    public int bestScore;
+    public long totalDurationMillis;
+    public long totalSplits;
+    public long totalPaddleHits;
+    public int maxBalls;
+
+    public double getAverageScore() {
+        return games == 0 ? 0 : (double) totalScore / games;
+    }
+
+    void add(GameRecord game) {
+        ++games;
+        totalScore += game.score;
+        bestScore = Math.max(bestScore, game.score);
+        totalDurationMillis += game.durationMillis;
+        totalSplits += game.splits;
+        totalPaddleHits += game.paddleHits;
+        maxBalls = Math.max(maxBalls, game.maxBalls);
+    }
+
+    void add(HistoryStats other) {
+        games += other.games;
+        totalScore += other.totalScore;
+        bestScore = Math.max(bestScore, other.bestScore);
+        totalDurationMillis += other.totalDurationMillis;
+        totalSplits += other.totalSplits;
+        totalPaddleHits += other.totalPaddleHits;
+        maxBalls = Math.max(maxBalls, other.maxBalls);
+    }
+}
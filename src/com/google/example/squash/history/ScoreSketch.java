@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.util.Log;
+
+import com.google.example.squash.IoUtils;
+
+/**
+ * A KLL quantile sketch of game scores: what fraction of games scored less
+ * than some score, and what score is the median (or any quantile), to
+ * within about 1.7 / K of the true rank, in a few kilobytes however many
+ * games have been played. Sketches merge, e.g. with one from another
+ * device.
+ *
+ * Scores go into level 0. When the sketch is over its capacity, the lowest
+ * full level is sorted and every other item of it, starting at a random
+ * one of the first two, moves up a level, where each item stands for
+ * twice as many games; the capacities shrink by a factor of 2/3 per level
+ * below the top. Queries run against a sorted table of (score, cumulative
+ * weight) that is rebuilt after a change, so each is a binary search over
+ * at most a few hundred entries.
+ *
+ * Not thread-safe.
+ */
+public class ScoreSketch {
+    static final String TAG = "ScoreSketch";
+
+    public static final int K = 200;
+    static final double CAPACITY_DECAY = 2.0 / 3.0;
+    static final int MIN_CAPACITY = 8;
+    static final int VERSION = 1;
+
+    // level h holds items that each stand for 2^h games
+    int[][] mLevels = new int[][] { new int[K] };
+    int[] mSizes = new int[1];
+
+    // games added
+    long mCount = 0;
+
+    final Random mRandom;
+
+    // sorted values and the weight of everything at or below each, or null
+    // if out of date
+    int[] mSortedValues;
+    long[] mCumulative;
+
+    public ScoreSketch() {
+        this(new Random());
+    }
+
+    /** Uses random to pick which half of a level moves up; for tests. */
+    ScoreSketch(Random random) {
+        mRandom = random;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public void add(int score) {
+        append(0, score);
+        ++mCount;
+        mSortedValues = null;
+        compress();
+    }
+
+    /** Adds everything other has seen. */
+    public void merge(ScoreSketch other) {
+        while (mLevels.length < other.mLevels.length) {
+            addLevel();
+        }
+        for (int h = 0; h < other.mLevels.length; h++) {
+            for (int i = 0; i < other.mSizes[h]; i++) {
+                append(h, other.mLevels[h][i]);
+            }
+        }
+        mCount += other.mCount;
+        mSortedValues = null;
+        compress();
+    }
+
+    void append(int level, int value) {
+        int[] items = mLevels[level];
+        if (mSizes[level] == items.length) {
+            int[] grown = new int[items.length * 2];
+            System.arraycopy(items, 0, grown, 0, items.length);
+            mLevels[level] = items = grown;
+        }
+        items[mSizes[level]++] = value;
+    }
+
+    void addLevel() {
+        int n = mLevels.length;
+        int[][] levels = new int[n + 1][];
+        System.arraycopy(mLevels, 0, levels, 0, n);
+        levels[n] = new int[MIN_CAPACITY];
+        int[] sizes = new int[n + 1];
+        System.arraycopy(mSizes, 0, sizes, 0, n);
+        mLevels = levels;
+        mSizes = sizes;
+    }
+
+    /** How many items level h may hold before it's compacted. */
+    int capacity(int level) {
+        int depth = mLevels.length - 1 - level;
+        return Math.max(MIN_CAPACITY,
+                (int) Math.ceil(K * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    int size() {
+        int n = 0;
+        for (int h = 0; h < mLevels.length; h++) {
+            n += mSizes[h];
+        }
+        return n;
+    }
+
+    int totalCapacity() {
+        int n = 0;
+        for (int h = 0; h < mLevels.length; h++) {
+            n += capacity(h);
+        }
+        return n;
+    }
+
+    void compress() {
+        while (size() > totalCapacity()) {
+            for (int h = 0; h < mLevels.length; h++) {
+                if (mSizes[h] >= capacity(h)) {
+                    compact(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Moves half of level h, every other item in sorted order, up a level. */
+    void compact(int h) {
+        if (h + 1 == mLevels.length) {
+            addLevel();
+        }
+        int[] items = mLevels[h];
+        int n = mSizes[h];
+        Arrays.sort(items, 0, n);
+        // an odd item out stays behind
+        int keep = n % 2;
+        if (keep == 1) {
+            int last = items[n - 1];
+            n--;
+            for (int i = mRandom.nextBoolean() ? 1 : 0; i < n; i += 2) {
+                append(h + 1, items[i]);
+            }
+            items[0] = last;
+        } else {
+            for (int i = mRandom.nextBoolean() ? 1 : 0; i < n; i += 2) {
+                append(h + 1, items[i]);
+            }
+        }
+        mSizes[h] = keep;
+    }
+
+    void buildTable() {
+        // each item packed as value << 8 | level, so one sort orders them by
+        // value
+        int n = size();
+        long[] packed = new long[n];
+        int i = 0;
+        for (int h = 0; h < mLevels.length; h++) {
+            for (int j = 0; j < mSizes[h]; j++) {
+                packed[i++] = (long) mLevels[h][j] << 8 | h;
+            }
+        }
+        Arrays.sort(packed);
+        mSortedValues = new int[n];
+        mCumulative = new long[n];
+        long total = 0;
+        for (i = 0; i < n; i++) {
+            mSortedValues[i] = (int) (packed[i] >> 8);
+            total += 1L << (packed[i] & 0xff);
+            mCumulative[i] = total;
+        }
+    }
+
+    /**
+     * The fraction of games that scored less than score, from 0 to 1; 0 if
+     * there are none.
+     */
+    public double fractionBelow(int score) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (mSortedValues == null) {
+            buildTable();
+        }
+        // last entry below score
+        int lo = 0, hi = mSortedValues.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mSortedValues[mid] < score) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        long below = lo == 0 ? 0 : mCumulative[lo - 1];
+        return (double) below / mCumulative[mCumulative.length - 1];
+    }
+
+    /**
+     * The score at quantile q (0.5 for the median): the lowest score that
+     * at least q of the games are at or below. 0 if there are no games.
+     */
+    public int quantile(double q) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (mSortedValues == null) {
+            buildTable();
+        }
+        long total = mCumulative[mCumulative.length - 1];
+        long target = (long) Math.ceil(q * total);
+        int lo = 0, hi = mCumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mCumulative[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return mSortedValues[lo];
+    }
+
+    public int median() {
+        return quantile(0.5);
+    }
+
+    /**
+     * Version, game count (long), number of levels, then each level's size
+     * and items (ints).
+     */
+    public byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeLong(mCount);
+            out.writeInt(mLevels.length);
+            for (int h = 0; h < mLevels.length; h++) {
+                out.writeInt(mSizes[h]);
+                for (int i = 0; i < mSizes[h]; i++) {
+                    out.writeInt(mLevels[h][i]);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to encode sketch.", ex);
+        }
+    }
+
+    public static ScoreSketch fromByteArray(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unsupported sketch version.");
+        }
+        ScoreSketch sketch = new ScoreSketch();
+        sketch.mCount = in.readLong();
+        int levels = in.readInt();
+        while (sketch.mLevels.length < levels) {
+            sketch.addLevel();
+        }
+        for (int h = 0; h < levels; h++) {
+            for (int n = in.readInt(); n > 0; n--) {
+                sketch.append(h, in.readInt());
+            }
+        }
+        return sketch;
+    }
+
+    /** Reads a sketch saved with save(), or returns an empty one. */
+    public static ScoreSketch load(File file) {
+        if (file.exists()) {
+            try {
+                byte[] data = new byte[(int) file.length()];
+                DataInputStream in = new DataInputStream(new FileInputStream(
+                        file));
+                try {
+                    in.readFully(data);
+                } finally {
+                    in.close();
+                }
+                return fromByteArray(data);
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to load score sketch.", ex);
+            }
+        }
+        return new ScoreSketch();
+    }
+
+    /** Writes data from toByteArray() to file, replacing it atomically. */
+    public static void save(File file, byte[] data) {
+        try {
+            IoUtils.writeAtomically(file, data);
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to save score sketch.", ex);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an AVI file with one MJPEG video stream and one 16-bit stereo PCM
+ * audio stream. Chunks are written as they come, in the order given (so
+ * interleave them, one frame and its audio at a time), and the headers are
+ * filled in and the index appended by close().
+ */
+class AviWriter implements Closeable {
+    static final int AVIF_HASINDEX = 0x10;
+    static final int AVIF_ISINTERLEAVED = 0x100;
+    static final int AVIIF_KEYFRAME = 0x10;
+
+    static final int AUDIO_BLOCK_ALIGN = 4;
+
+    // offsets of the fields close() fills in
+    static final int RIFF_SIZE = 4;
+    static final int AVIH_TOTAL_FRAMES = 48;
+    static final int AVIH_SUGGESTED_BUFFER = 60;
+    static final int VIDEO_LENGTH = 140;
+    static final int VIDEO_SUGGESTED_BUFFER = 144;
+    static final int AUDIO_LENGTH = 264;
+    static final int AUDIO_SUGGESTED_BUFFER = 268;
+    static final int MOVI_SIZE = 316;
+    static final int MOVI_START = 320;
+
+    final FileOutputStream mFile;
+    final OutputStream mOut;
+    final ByteBuffer mScratch = ByteBuffer.allocate(8).order(
+            ByteOrder.LITTLE_ENDIAN);
+
+    // bytes written so far
+    long mPosition = 0;
+
+    int mFrames = 0;
+    long mAudioFrames = 0;
+    int mLargestChunk = 0;
+
+    // idx1 entries: chunk id, flags, offset from MOVI_START, size
+    int[] mIndex = new int[4 * 256];
+    int mIndexCount = 0;
+
+    AviWriter(File file, int width, int height, int fps, int sampleRate)
+            throws IOException {
+        mFile = new FileOutputStream(file);
+        mOut = new BufferedOutputStream(mFile, 64 * 1024);
+
+        writeFourCc("RIFF");
+        writeInt(0);
+        writeFourCc("AVI ");
+
+        writeFourCc("LIST");
+        writeInt(4 + 64 + (12 + 64 + 48) + (12 + 64 + 24));
+        writeFourCc("hdrl");
+
+        writeFourCc("avih");
+        writeInt(56);
+        writeInt(1000000 / fps);
+        writeInt(width * height * 3 * fps + sampleRate * AUDIO_BLOCK_ALIGN);
+        writeInt(0);
+        writeInt(AVIF_HASINDEX | AVIF_ISINTERLEAVED);
+        writeInt(0); // total frames
+        writeInt(0);
+        writeInt(2);
+        writeInt(0); // suggested buffer size
+        writeInt(width);
+        writeInt(height);
+        for (int i = 0; i < 4; i++) {
+            writeInt(0);
+        }
+
+        writeFourCc("LIST");
+        writeInt(4 + 64 + 48);
+        writeFourCc("strl");
+        writeStreamHeader("vids", "MJPG", 1, fps, 0, width, height);
+        writeFourCc("strf");
+        writeInt(40);
+        writeInt(40);
+        writeInt(width);
+        writeInt(height);
+        writeShort(1);
+        writeShort(24);
+        writeFourCc("MJPG");
+        writeInt(width * height * 3);
+        for (int i = 0; i < 4; i++) {
+            writeInt(0);
+        }
+
+        writeFourCc("LIST");
+        writeInt(4 + 64 + 24);
+        writeFourCc("strl");
+        writeStreamHeader("auds", "\0\0\0\0", AUDIO_BLOCK_ALIGN, sampleRate
+                * AUDIO_BLOCK_ALIGN, AUDIO_BLOCK_ALIGN, 0, 0);
+        writeFourCc("strf");
+        writeInt(16);
+        writeShort(1);
+        writeShort(2);
+        writeInt(sampleRate);
+        writeInt(sampleRate * AUDIO_BLOCK_ALIGN);
+        writeShort(AUDIO_BLOCK_ALIGN);
+        writeShort(16);
+
+        writeFourCc("LIST");
+        writeInt(0);
+        writeFourCc("movi");
+        if (mPosition != MOVI_START + 4) {
+            throw new IllegalStateException("AVI header is " + mPosition
+                    + " bytes.");
+        }
+    }
+
+    void writeStreamHeader(String type, String handler, int scale, int rate,
+            int sampleSize, int width, int height) throws IOException {
+        writeFourCc("strh");
+        writeInt(56);
+        writeFourCc(type);
+        writeFourCc(handler);
+        writeInt(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(scale);
+        writeInt(rate);
+        writeInt(0);
+        writeInt(0); // length
+        writeInt(0); // suggested buffer size
+        writeInt(-1);
+        writeInt(sampleSize);
+        writeShort(0);
+        writeShort(0);
+        writeShort(width);
+        writeShort(height);
+    }
+
+    /** Appends one JPEG image as the next video frame. */
+    void writeVideoFrame(byte[] jpeg, int length) throws IOException {
+        writeChunk("00dc", jpeg, 0, length);
+        mFrames++;
+    }
+
+    /** Appends 16-bit little-endian stereo samples to the audio stream. */
+    void writeAudio(byte[] pcm, int offset, int length) throws IOException {
+        writeChunk("01wb", pcm, offset, length);
+        mAudioFrames += length / AUDIO_BLOCK_ALIGN;
+    }
+
+    void writeChunk(String id, byte[] data, int offset, int length)
+            throws IOException {
+        if (mIndexCount * 4 == mIndex.length) {
+            mIndex = ReplayLog.copyOf(mIndex, mIndex.length * 2);
+        }
+        int i = mIndexCount++ * 4;
+        mIndex[i] = fourCc(id);
+        mIndex[i + 1] = AVIIF_KEYFRAME;
+        mIndex[i + 2] = (int) (mPosition - MOVI_START);
+        mIndex[i + 3] = length;
+        mLargestChunk = Math.max(mLargestChunk, length);
+
+        writeFourCc(id);
+        writeInt(length);
+        mOut.write(data, offset, length);
+        mPosition += length;
+        if ((length & 1) != 0) {
+            mOut.write(0);
+            mPosition++;
+        }
+    }
+
+    /** Writes the index, fills in the headers and closes the file. */
+    @Override
+    public void close() throws IOException {
+        try {
+            long moviEnd = mPosition;
+            writeFourCc("idx1");
+            writeInt(mIndexCount * 16);
+            for (int i = 0; i < mIndexCount * 4; i++) {
+                writeInt(mIndex[i]);
+            }
+            mOut.flush();
+
+            FileChannel channel = mFile.getChannel();
+            patch(channel, RIFF_SIZE, (int) (mPosition - 8));
+            patch(channel, AVIH_TOTAL_FRAMES, mFrames);
+            patch(channel, AVIH_SUGGESTED_BUFFER, mLargestChunk + 8);
+            patch(channel, VIDEO_LENGTH, mFrames);
+            patch(channel, VIDEO_SUGGESTED_BUFFER, mLargestChunk + 8);
+            patch(channel, AUDIO_LENGTH, (int) mAudioFrames);
+            patch(channel, AUDIO_SUGGESTED_BUFFER, mLargestChunk + 8);
+            patch(channel, MOVI_SIZE, (int) (moviEnd - MOVI_START));
+        } finally {
+            mOut.close();
+        }
+    }
+
+    void patch(FileChannel channel, long position, int value)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(value).flip();
+        channel.write(b, position);
+    }
+
+    static int fourCc(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16
+                | id.charAt(3) << 24;
+    }
+
+    void writeFourCc(String id) throws IOException {
+        writeInt(fourCc(id));
+    }
+
+    void writeInt(int v) throws IOException {
+        mScratch.clear();
+        mOut.write(mScratch.putInt(v).array(), 0, 4);
+        mPosition += 4;
+    }
+
+    void writeShort(int v) throws IOException {
+        mScratch.clear();
+        mOut.write(mScratch.putShort((short) v).array(), 0, 2);
+        mPosition += 2;
+    }
+}
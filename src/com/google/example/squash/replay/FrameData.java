@@ -16,48 +16,41 @@
 
 package com.google.example.squash.replay;
 
-import java.util.ArrayList;
-
 import android.graphics.Canvas;
 
-import com.google.example.squash.Ball;
 import com.google.example.squash.SquashView;
 
+/**
+ * One decoded frame of a replay, ready to draw. ReplayDecoder fills the same
+ * FrameData in again for every frame, so drawing a replay never allocates
+ * once the ball arrays have grown to the most balls in play.
+ */
 public class FrameData {
-    static final int MAX_BALL = 5;
-
-    ArrayList<Ball> balls = new ArrayList<Ball>(5);
     double paddleY;
     long timestamp;
     int score;
 
-    public FrameData() {
-        for (int i = 0; i < 5; i++) {
-            balls.add(new Ball());
-        }
-    }
-
-    void copyData(SquashView sv, long timestamp) {
-        paddleY = sv.paddleY;
-
-        this.timestamp = timestamp;
-
-        int count = sv.balls.size();
+    // the first ballCount entries are this frame's balls
+    float[] ballX;
+    float[] ballY;
+    int ballCount;
 
-        for (int i = 0; i < count; i++) {
-            balls.get(i).copy(sv.balls.get(i));
-        }
-
-        if (count < MAX_BALL) {
-            balls.get(count).isActive = false;
-        }
-
-        score = sv.mScore;
+    FrameData(int initialBalls) {
+        ballX = new float[initialBalls];
+        ballY = new float[initialBalls];
     }
 
-    void playback(SquashView sv) {
-        sv.paddleY = paddleY;
-        sv.balls = balls;
+    /** Makes room for balls balls (their positions are then undefined). */
+    void setBallCount(int balls) {
+        if (balls > ballX.length) {
+            int length = Math.max(1, ballX.length);
+            while (length < balls) {
+                length *= 2;
+            }
+            ballX = new float[length];
+            ballY = new float[length];
+        }
+        ballCount = balls;
     }
 
     void renderImage(ReplayView rv, Canvas canvas) {
@@ -104,19 +97,16 @@ public class FrameData {
 
         canvas.drawRect(rv.mRect, rv.p);
 
-        if (balls != null) {
-            for (Ball ball : balls) {
-                if (ball.isActive == false)
-                    break;
+        for (int i = 0; i < ballCount; i++) {
+            double x = ballX[i];
+            double y = ballY[i];
 
-                rv.mRect.top = rv.sp(ball.y - SquashView.BALL_RADIUS);
-                rv.mRect.bottom = rv.sp(ball.y + SquashView.BALL_RADIUS);
-                rv.mRect.left = rv.sp(ball.x - SquashView.BALL_RADIUS);
-                rv.mRect.right = rv.sp(ball.x + SquashView.BALL_RADIUS);
+            rv.mRect.top = rv.sp(y - SquashView.BALL_RADIUS);
+            rv.mRect.bottom = rv.sp(y + SquashView.BALL_RADIUS);
+            rv.mRect.left = rv.sp(x - SquashView.BALL_RADIUS);
+            rv.mRect.right = rv.sp(x + SquashView.BALL_RADIUS);
 
-                canvas.drawRect(rv.mRect, rv.p);
-
-            }
+            canvas.drawRect(rv.mRect, rv.p);
         }
 
         rv.mRect.top = rv.sp(paddleY - SquashView.PADDLE_RADIUS);
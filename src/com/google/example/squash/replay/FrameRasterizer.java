@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import com.google.example.squash.SquashView;
+
+/**
+ * Draws FrameData into a plain pixel buffer, the same picture ReplayView
+ * draws on a Canvas, so that frames can be rendered on any thread (or a
+ * desktop JVM) without a View. The score is drawn with a built-in 5x7
+ * bitmap font. Not thread-safe; use one rasterizer per thread.
+ */
+class FrameRasterizer {
+    static final int BACKGROUND = 0x000000;
+    static final int FOREGROUND = 0xffffff;
+
+    // the score colour of ReplayView (0xAAFFAAAA) blended over the background
+    static final int SCORE = 0xaa7171;
+
+    // glyph rows, top to bottom, for the characters in FONT_CHARS
+    static final String FONT_CHARS = "0123456789Score: ";
+    static final String[] FONT = {
+            "01110 10001 10011 10101 11001 10001 01110",
+            "00100 01100 00100 00100 00100 00100 01110",
+            "01110 10001 00001 00010 00100 01000 11111",
+            "11111 00010 00100 00010 00001 10001 01110",
+            "00010 00110 01010 10010 11111 00010 00010",
+            "11111 10000 11110 00001 00001 10001 01110",
+            "00110 01000 10000 11110 10001 10001 01110",
+            "11111 00001 00010 00100 01000 01000 01000",
+            "01110 10001 10001 01110 10001 10001 01110",
+            "01110 10001 10001 01111 00001 00010 01100",
+            "01111 10000 10000 01110 00001 00001 11110",
+            "00000 00000 01110 10000 10000 10001 01110",
+            "00000 00000 01110 10001 10001 10001 01110",
+            "00000 00000 10110 11001 10000 10000 10000",
+            "00000 00000 01110 10001 11111 10000 01110",
+            "00000 01100 01100 00000 01100 01100 00000",
+            "00000 00000 00000 00000 00000 00000 00000" };
+
+    final int mWidth;
+    final int mHeight;
+    final double mAspectRatio;
+
+    // 0xRRGGBB, row by row
+    final int[] mPixels;
+
+    FrameRasterizer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mAspectRatio = 1.0 * width / height;
+        mPixels = new int[width * height];
+    }
+
+    // Convert back from screenspace
+    int sp(double screenSpaceCoordinate) {
+        return (int) Math.round(screenSpaceCoordinate * mHeight);
+    }
+
+    void render(FrameData frame) {
+        fillRect(0, 0, mWidth, mHeight, BACKGROUND);
+
+        // the side, top and bottom rails
+        fillRect(sp(mAspectRatio - SquashView.WALL_THICKNESS), 0,
+                sp(mAspectRatio), sp(1), FOREGROUND);
+        fillRect(sp(0.5), 0, sp(mAspectRatio), sp(SquashView.WALL_THICKNESS),
+                FOREGROUND);
+        fillRect(sp(0.5), sp(1 - SquashView.WALL_THICKNESS), sp(mAspectRatio),
+                sp(1), FOREGROUND);
+
+        for (int i = 0; i < frame.ballCount; i++) {
+            double x = frame.ballX[i];
+            double y = frame.ballY[i];
+            fillRect(sp(x - SquashView.BALL_RADIUS),
+                    sp(y - SquashView.BALL_RADIUS),
+                    sp(x + SquashView.BALL_RADIUS),
+                    sp(y + SquashView.BALL_RADIUS), FOREGROUND);
+        }
+
+        fillRect(sp(SquashView.PADDLE_DISTANCE - SquashView.BALL_RADIUS),
+                sp(frame.paddleY - SquashView.PADDLE_RADIUS),
+                sp(SquashView.PADDLE_DISTANCE + SquashView.BALL_RADIUS),
+                sp(frame.paddleY + SquashView.PADDLE_RADIUS), FOREGROUND);
+
+        if (frame.score > 0) {
+            drawText("Score: " + frame.score, sp(0.25), sp(0.7), sp(0.08),
+                    SCORE);
+        }
+    }
+
+    /** Fills [left, right) x [top, bottom), clipped to the frame. */
+    void fillRect(int left, int top, int right, int bottom, int color) {
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(mWidth, right);
+        bottom = Math.min(mHeight, bottom);
+        for (int y = top; y < bottom; y++) {
+            int row = y * mWidth;
+            for (int x = left; x < right; x++) {
+                mPixels[row + x] = color;
+            }
+        }
+    }
+
+    /**
+     * Draws text with its baseline at y, capitals about as tall as they are
+     * in a Canvas font of the given text size.
+     */
+    void drawText(String text, int x, int y, int textSize, int color) {
+        int scale = Math.max(1, textSize / 10);
+        int top = y - 7 * scale;
+        for (int i = 0; i < text.length(); i++) {
+            int glyph = FONT_CHARS.indexOf(text.charAt(i));
+            if (glyph >= 0) {
+                String rows = FONT[glyph];
+                for (int row = 0; row < 7; row++) {
+                    for (int col = 0; col < 5; col++) {
+                        if (rows.charAt(row * 6 + col) == '1') {
+                            int px = x + col * scale;
+                            int py = top + row * scale;
+                            fillRect(px, py, px + scale, py + scale, color);
+                        }
+                    }
+                }
+            }
+            x += 6 * scale;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import com.google.example.recordablesoundpool.RecordableSoundPool;
+import com.google.example.recordablesoundpool.Recording;
+
+/**
+ * One finished game, handed off at game over: a copy of its replay and its
+ * stopped audio Recording. The game never touches either again, so whoever
+ * holds the session can export or save it on another thread while the next
+ * game is already being captured. Call release() when done so the buffers
+ * can be reused for a later session.
+ */
+public class GameSession {
+    final ReplayView mOwner;
+    final ReplayLog mReplay = new ReplayLog();
+
+    Recording mRecording;
+    RecordableSoundPool mPool;
+    int mScore;
+    boolean mReleased;
+
+    GameSession(ReplayView owner) {
+        mOwner = owner;
+    }
+
+    public Recording getRecording() {
+        return mRecording;
+    }
+
+    public int getScore() {
+        return mScore;
+    }
+
+    /** When the game started (SquashView's simulation clock). */
+    public long getStartTime() {
+        return mReplay.startTime();
+    }
+
+    /** Time of the last thing that happened in the game. */
+    public long getEndTime() {
+        return mReplay.endTime();
+    }
+
+    /**
+     * Gives the recording back to its pool and the replay buffer back to the
+     * ReplayView. The session must not be used afterwards. Safe to call from
+     * any thread.
+     */
+    public void release() {
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+        }
+        if (mRecording != null && mPool != null) {
+            mPool.recycle(mRecording);
+        }
+        mRecording = null;
+        mPool = null;
+        mOwner.recycleSession(this);
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A baseline JPEG encoder for RGB frames: YCbCr at full chroma resolution,
+ * quality-scaled standard quantization tables and the standard Huffman
+ * tables, with the tables written into every image as MJPEG in AVI expects.
+ * Blocks of one flat colour (most of a squash court) skip the DCT. Not
+ * thread-safe; use one encoder per thread.
+ */
+class JpegEncoder {
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19,
+            26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49,
+            56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45,
+            38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+    // ITU T.81 Annex K quantization tables, in natural order
+    static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61, 12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56, 14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77, 24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101, 72, 92, 95, 98, 112, 100, 103,
+            99 };
+    static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99, 47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99 };
+
+    // Annex K Huffman tables: code counts by length, then symbols
+    static final int[] DC_LUMA_BITS = {
+            0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    static final int[] DC_CHROMA_BITS = {
+            0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    static final int[] DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    static final int[] AC_LUMA_BITS = {
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41,
+            0x06, 0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91,
+            0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24,
+            0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a,
+            0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53,
+            0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66,
+            0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93,
+            0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7,
+            0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9,
+            0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa };
+    static final int[] AC_CHROMA_BITS = {
+            0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12,
+            0x41, 0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14,
+            0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15,
+            0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17,
+            0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37,
+            0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a,
+            0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65,
+            0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a,
+            0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+            0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5,
+            0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7,
+            0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9,
+            0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa };
+
+    // Huffman code and length per symbol, built once from the tables above
+    static final int[][] DC_LUMA = buildCodes(DC_LUMA_BITS, DC_VALUES);
+    static final int[][] DC_CHROMA = buildCodes(DC_CHROMA_BITS, DC_VALUES);
+    static final int[][] AC_LUMA = buildCodes(AC_LUMA_BITS, AC_LUMA_VALUES);
+    static final int[][] AC_CHROMA = buildCodes(AC_CHROMA_BITS,
+            AC_CHROMA_VALUES);
+
+    // cos((2x + 1) u pi / 16) * c(u) / 2, indexed [u * 8 + x]
+    static final float[] DCT = new float[64];
+    static {
+        for (int u = 0; u < 8; u++) {
+            double c = u == 0 ? Math.sqrt(0.5) : 1;
+            for (int x = 0; x < 8; x++) {
+                DCT[u * 8 + x] = (float) (c / 2 * Math.cos((2 * x + 1) * u
+                        * Math.PI / 16));
+            }
+        }
+    }
+
+    final int mQuality;
+
+    // quantization tables (natural order), as written and as 1 / divisor
+    final int[] mLumaQuant = new int[64];
+    final int[] mChromaQuant = new int[64];
+    final float[] mLumaScale = new float[64];
+    final float[] mChromaScale = new float[64];
+
+    // per-image scratch
+    final float[] mBlock = new float[64];
+    final float[] mTemp = new float[64];
+    final int[] mCoeffs = new int[64];
+    int mBitBuffer;
+    int mBitCount;
+    ByteArrayOutputStream mOut;
+
+    /**
+     * @param quality
+     *            1 (smallest) to 100 (best), as in libjpeg.
+     */
+    JpegEncoder(int quality) {
+        mQuality = Math.max(1, Math.min(100, quality));
+        int scale = mQuality < 50 ? 5000 / mQuality : 200 - mQuality * 2;
+        for (int i = 0; i < 64; i++) {
+            mLumaQuant[i] = clampQuant((LUMA_QUANT[i] * scale + 50) / 100);
+            mChromaQuant[i] = clampQuant((CHROMA_QUANT[i] * scale + 50) / 100);
+            mLumaScale[i] = 1f / mLumaQuant[i];
+            mChromaScale[i] = 1f / mChromaQuant[i];
+        }
+    }
+
+    static int clampQuant(int q) {
+        return q < 1 ? 1 : q > 255 ? 255 : q;
+    }
+
+    /**
+     * Returns {code, length} for each symbol, from JPEG's canonical
+     * description of a Huffman table.
+     */
+    static int[][] buildCodes(int[] bits, int[] values) {
+        int[][] codes = new int[256][];
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k++]] = new int[] { code, length };
+                code++;
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+
+    /**
+     * Encodes width x height pixels of 0xRRGGBB (the alpha byte is ignored)
+     * into out as one JPEG image.
+     */
+    void encode(int[] rgb, int width, int height, ByteArrayOutputStream out) {
+        mOut = out;
+        mBitBuffer = 0;
+        mBitCount = 0;
+
+        writeHeaders(width, height);
+
+        int dcY = 0, dcCb = 0, dcCr = 0;
+        float[] block = mBlock;
+        for (int by = 0; by < height; by += 8) {
+            for (int bx = 0; bx < width; bx += 8) {
+                for (int c = 0; c < 3; c++) {
+                    boolean flat = loadBlock(rgb, width, height, bx, by, c,
+                            block);
+                    boolean luma = c == 0;
+                    quantize(block, flat, luma ? mLumaScale : mChromaScale);
+                    int[][] dc = luma ? DC_LUMA : DC_CHROMA;
+                    int[][] ac = luma ? AC_LUMA : AC_CHROMA;
+                    if (c == 0) {
+                        dcY = writeBlock(dcY, dc, ac);
+                    } else if (c == 1) {
+                        dcCb = writeBlock(dcCb, dc, ac);
+                    } else {
+                        dcCr = writeBlock(dcCr, dc, ac);
+                    }
+                }
+            }
+        }
+
+        // pad the last byte with ones
+        writeBits(0x7f, 7);
+        writeMarker(0xd9);
+        mOut = null;
+    }
+
+    /**
+     * Loads one 8x8 block of component c (0 = Y, 1 = Cb, 2 = Cr), level
+     * shifted, repeating the edge pixels past the image border.
+     *
+     * @return whether every sample in the block is the same
+     */
+    static boolean loadBlock(int[] rgb, int width, int height, int bx,
+            int by, int c, float[] block) {
+        boolean flat = true;
+        for (int y = 0; y < 8; y++) {
+            int row = Math.min(by + y, height - 1) * width;
+            for (int x = 0; x < 8; x++) {
+                int p = rgb[row + Math.min(bx + x, width - 1)];
+                int r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+                float v;
+                if (c == 0) {
+                    v = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+                } else if (c == 1) {
+                    v = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                } else {
+                    v = 0.5f * r - 0.418688f * g - 0.081312f * b;
+                }
+                block[y * 8 + x] = v;
+                flat &= v == block[0];
+            }
+        }
+        return flat;
+    }
+
+    /** Transforms the block and quantizes it into mCoeffs, in zigzag order. */
+    void quantize(float[] block, boolean flat, float[] scale) {
+        int[] coeffs = mCoeffs;
+        if (flat) {
+            // only the DC coefficient is non-zero
+            for (int i = 1; i < 64; i++) {
+                coeffs[i] = 0;
+            }
+            coeffs[0] = Math.round(block[0] * 8 * scale[0]);
+            return;
+        }
+
+        // separable 2-D DCT: rows, then columns
+        float[] temp = mTemp;
+        for (int y = 0; y < 8; y++) {
+            for (int u = 0; u < 8; u++) {
+                float s = 0;
+                for (int x = 0; x < 8; x++) {
+                    s += DCT[u * 8 + x] * block[y * 8 + x];
+                }
+                temp[y * 8 + u] = s;
+            }
+        }
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                float s = 0;
+                for (int y = 0; y < 8; y++) {
+                    s += DCT[v * 8 + y] * temp[y * 8 + u];
+                }
+                block[v * 8 + u] = s;
+            }
+        }
+        for (int i = 0; i < 64; i++) {
+            int n = ZIGZAG[i];
+            coeffs[i] = Math.round(block[n] * scale[n]);
+        }
+    }
+
+    /**
+     * Entropy codes mCoeffs given the previous DC value of the component.
+     *
+     * @return this block's DC value
+     */
+    int writeBlock(int lastDc, int[][] dc, int[][] ac) {
+        int[] coeffs = mCoeffs;
+        int diff = coeffs[0] - lastDc;
+        int size = magnitudeBits(diff);
+        writeCode(dc[size]);
+        writeValue(diff, size);
+
+        int zeros = 0;
+        for (int i = 1; i < 64; i++) {
+            int v = coeffs[i];
+            if (v == 0) {
+                zeros++;
+                continue;
+            }
+            while (zeros > 15) {
+                writeCode(ac[0xf0]);
+                zeros -= 16;
+            }
+            size = magnitudeBits(v);
+            writeCode(ac[(zeros << 4) | size]);
+            writeValue(v, size);
+            zeros = 0;
+        }
+        if (zeros > 0) {
+            writeCode(ac[0x00]);
+        }
+        return coeffs[0];
+    }
+
+    static int magnitudeBits(int v) {
+        v = v < 0 ? -v : v;
+        int bits = 0;
+        while (v != 0) {
+            bits++;
+            v >>= 1;
+        }
+        return bits;
+    }
+
+    void writeCode(int[] code) {
+        writeBits(code[0], code[1]);
+    }
+
+    /** Writes v in size bits, negative values as one's complement. */
+    void writeValue(int v, int size) {
+        if (size > 0) {
+            writeBits(v < 0 ? v - 1 : v, size);
+        }
+    }
+
+    void writeBits(int bits, int length) {
+        mBitBuffer = (mBitBuffer << length) | (bits & ((1 << length) - 1));
+        mBitCount += length;
+        while (mBitCount >= 8) {
+            int b = (mBitBuffer >> (mBitCount - 8)) & 0xff;
+            mOut.write(b);
+            if (b == 0xff) {
+                // byte stuffing
+                mOut.write(0);
+            }
+            mBitCount -= 8;
+        }
+        mBitBuffer &= (1 << mBitCount) - 1;
+    }
+
+    void writeMarker(int marker) {
+        mOut.write(0xff);
+        mOut.write(marker);
+    }
+
+    void writeShort(int v) {
+        mOut.write(v >> 8);
+        mOut.write(v);
+    }
+
+    void writeHeaders(int width, int height) {
+        writeMarker(0xd8);
+
+        // JFIF APP0
+        writeMarker(0xe0);
+        writeShort(16);
+        mOut.write('J');
+        mOut.write('F');
+        mOut.write('I');
+        mOut.write('F');
+        mOut.write(0);
+        writeShort(0x0101);
+        mOut.write(0);
+        writeShort(1);
+        writeShort(1);
+        mOut.write(0);
+        mOut.write(0);
+
+        writeMarker(0xdb);
+        writeShort(2 + 2 * 65);
+        mOut.write(0);
+        for (int i = 0; i < 64; i++) {
+            mOut.write(mLumaQuant[ZIGZAG[i]]);
+        }
+        mOut.write(1);
+        for (int i = 0; i < 64; i++) {
+            mOut.write(mChromaQuant[ZIGZAG[i]]);
+        }
+
+        // baseline, three components at full resolution
+        writeMarker(0xc0);
+        writeShort(17);
+        mOut.write(8);
+        writeShort(height);
+        writeShort(width);
+        mOut.write(3);
+        for (int c = 1; c <= 3; c++) {
+            mOut.write(c);
+            mOut.write(0x11);
+            mOut.write(c == 1 ? 0 : 1);
+        }
+
+        writeMarker(0xc4);
+        writeShort(2 + tableBytes(DC_LUMA_BITS) + tableBytes(AC_LUMA_BITS)
+                + tableBytes(DC_CHROMA_BITS) + tableBytes(AC_CHROMA_BITS));
+        writeTable(0x00, DC_LUMA_BITS, DC_VALUES);
+        writeTable(0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        writeTable(0x01, DC_CHROMA_BITS, DC_VALUES);
+        writeTable(0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+        writeMarker(0xda);
+        writeShort(12);
+        mOut.write(3);
+        for (int c = 1; c <= 3; c++) {
+            mOut.write(c);
+            mOut.write(c == 1 ? 0x00 : 0x11);
+        }
+        mOut.write(0);
+        mOut.write(63);
+        mOut.write(0);
+    }
+
+    static int tableBytes(int[] bits) {
+        int n = 0;
+        for (int b : bits) {
+            n += b;
+        }
+        return 1 + 16 + n;
+    }
+
+    void writeTable(int id, int[] bits, int[] values) {
+        mOut.write(id);
+        int n = 0;
+        for (int b : bits) {
+            mOut.write(b);
+            n += b;
+        }
+        for (int i = 0; i < n; i++) {
+            mOut.write(values[i]);
+        }
+    }
+}
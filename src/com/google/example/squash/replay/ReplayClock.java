@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+/**
+ * The position of a replay being played back, shared by the thread that
+ * draws it and the thread that plays its sounds, so picture and sound can't
+ * drift apart. Replay time advances at the playback speed against
+ * System.nanoTime(), which is monotonic and unaffected by frame rate.
+ * Thread-safe; changing the clock wakes anyone waiting on it.
+ */
+class ReplayClock {
+    // replay time at mBaseNanos
+    long mBaseTime;
+    long mBaseNanos;
+    float mSpeed = 1;
+    boolean mRunning = false;
+
+    synchronized void start(long time) {
+        mBaseTime = time;
+        mBaseNanos = System.nanoTime();
+        mRunning = true;
+        notifyAll();
+    }
+
+    synchronized void stop() {
+        mBaseTime = now();
+        mBaseNanos = System.nanoTime();
+        mRunning = false;
+        notifyAll();
+    }
+
+    synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /** The replay time now, in the replay's milliseconds. */
+    synchronized long now() {
+        if (!mRunning) {
+            return mBaseTime;
+        }
+        return mBaseTime
+                + (long) ((System.nanoTime() - mBaseNanos) / 1e6 * mSpeed);
+    }
+
+    /** @param speed Replay milliseconds per real millisecond (1 = normal). */
+    synchronized void setSpeed(float speed) {
+        mBaseTime = now();
+        mBaseNanos = System.nanoTime();
+        mSpeed = speed;
+        notifyAll();
+    }
+
+    synchronized float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Waits until the replay reaches time, or the clock is changed.
+     *
+     * @return the replay time when it returns
+     */
+    synchronized long awaitTime(long time) throws InterruptedException {
+        long now = now();
+        if (mRunning && now < time) {
+            wait(Math.max(1, (long) Math.ceil((time - now) / mSpeed)));
+            now = now();
+        }
+        return now;
+    }
+}
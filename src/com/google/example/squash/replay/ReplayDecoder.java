@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+/**
+ * Reconstructs the state of the game at any time from a ReplayLog: finds the
+ * keyframe at or before that time, applies the events since, and moves each
+ * ball along its straight line from its last event. Stepping forward through
+ * time only applies the new events, so playing back costs next to nothing
+ * per frame. Not thread-safe; use one decoder per thread.
+ */
+class ReplayDecoder {
+    final ReplayLog mLog;
+
+    // next event to apply, and the time decoded up to
+    int mNext = 0;
+    long mTime = Long.MIN_VALUE;
+
+    // living balls, as of their last event
+    int mBallCount = 0;
+    int[] mIds = new int[16];
+    long[] mT0 = new long[16];
+    double[] mX = new double[16];
+    double[] mY = new double[16];
+    double[] mVelX = new double[16];
+    double[] mVelY = new double[16];
+
+    int mScore = 0;
+
+    // balls don't move after this time (until the next keyframe)
+    long mPausedAt = Long.MAX_VALUE;
+
+    ReplayDecoder(ReplayLog log) {
+        mLog = log;
+    }
+
+    /**
+     * Decodes up to time, starting over from the nearest keyframe when going
+     * backwards or skipping ahead past one.
+     */
+    void advance(long time) {
+        int key = mLog.keyframeAtOrBefore(time);
+        boolean skip = key > mNext && mLog.mTimes[key] <= time;
+        if (time < mTime || mTime == Long.MIN_VALUE || skip) {
+            mNext = Math.max(0, key);
+            mBallCount = 0;
+            mScore = 0;
+            mPausedAt = Long.MAX_VALUE;
+        }
+        ReplayLog log = mLog;
+        while (mNext < log.mCount && log.mTimes[mNext] <= time) {
+            apply(mNext++);
+        }
+        mTime = time;
+    }
+
+    void apply(int i) {
+        ReplayLog log = mLog;
+        switch (log.mKinds[i]) {
+        case ReplayLog.KEYFRAME:
+            mBallCount = 0;
+            mScore = log.mIds[i];
+            mPausedAt = Long.MAX_VALUE;
+            break;
+        case ReplayLog.SCORE:
+            mScore = log.mIds[i];
+            break;
+        case ReplayLog.PAUSE:
+            mPausedAt = log.mTimes[i];
+            break;
+        case ReplayLog.SOUND:
+            // played by ReplaySoundScheduler
+            break;
+        case ReplayLog.LOSS: {
+            int b = find(log.mIds[i]);
+            if (b >= 0) {
+                // keep the order of the rest, it's the drawing order
+                int n = mBallCount - b - 1;
+                System.arraycopy(mIds, b + 1, mIds, b, n);
+                System.arraycopy(mT0, b + 1, mT0, b, n);
+                System.arraycopy(mX, b + 1, mX, b, n);
+                System.arraycopy(mY, b + 1, mY, b, n);
+                System.arraycopy(mVelX, b + 1, mVelX, b, n);
+                System.arraycopy(mVelY, b + 1, mVelY, b, n);
+                mBallCount--;
+            }
+            break;
+        }
+        default: {
+            // KEY_BALL, SPAWN or BOUNCE: the ball's new straight line
+            int b = find(log.mIds[i]);
+            if (b < 0) {
+                b = addBall(log.mIds[i]);
+            }
+            mT0[b] = log.mTimes[i];
+            mX[b] = log.mX[i];
+            mY[b] = log.mY[i];
+            mVelX[b] = log.mVelX[i];
+            mVelY[b] = log.mVelY[i];
+            break;
+        }
+        }
+    }
+
+    int find(int id) {
+        for (int b = 0; b < mBallCount; b++) {
+            if (mIds[b] == id) {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    int addBall(int id) {
+        if (mBallCount == mIds.length) {
+            int capacity = mBallCount * 2;
+            mIds = ReplayLog.copyOf(mIds, capacity);
+            mT0 = ReplayLog.copyOf(mT0, capacity);
+            mX = ReplayLog.copyOf(mX, capacity);
+            mY = ReplayLog.copyOf(mY, capacity);
+            mVelX = ReplayLog.copyOf(mVelX, capacity);
+            mVelY = ReplayLog.copyOf(mVelY, capacity);
+        }
+        mIds[mBallCount] = id;
+        return mBallCount++;
+    }
+
+    /** Decodes the game at time into frame, and returns it. */
+    FrameData decodeFrame(long time, FrameData frame) {
+        advance(time);
+        double t = Math.min(time, mPausedAt);
+
+        frame.timestamp = time;
+        frame.paddleY = mLog.paddleAt(time);
+        frame.score = mScore;
+        frame.setBallCount(mBallCount);
+        for (int b = 0; b < mBallCount; b++) {
+            double dt = Math.max(0, t - mT0[b]) / 1000.0;
+            frame.ballX[b] = (float) (mX[b] + mVelX[b] * dt);
+            frame.ballY[b] = (float) (mY[b] + mVelY[b] * dt);
+        }
+        return frame;
+    }
+}
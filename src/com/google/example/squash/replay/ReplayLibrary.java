@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.example.squash.IoUtils;
+
+/**
+ * Finished games' replays, kept on disk. Each replay is its own file (a
+ * ReplayLog as written by ReplayLog.writeTo()); what a listing needs (score,
+ * date, duration, ball count) is kept in an index of one column per field,
+ * held in memory as primitive arrays and rewritten whole, atomically, when a
+ * replay is added. Filtering a listing is a scan of a few int and long
+ * arrays, so it touches no replay files.
+ *
+ * Replays that have been opened are kept decoded in an LRU cache of at most
+ * CACHE_BYTES. Opening one never waits for the disk: it's loaded in the
+ * background and handed over on the main thread, and the replay after it
+ * in the last listing is loaded next, so stepping through a listing rarely
+ * waits at all; the game just added goes straight into the cache.
+ *
+ * The index is published as an immutable snapshot, so listing and the
+ * getters may be called from any thread without locking; add() may be
+ * called from any thread too, and is best kept off the UI thread.
+ *
+ * Index file: magic, version, count, next id (ints), then the columns, each
+ * count long: ids (int), dates (long, wall-clock millis), scores, durations
+ * in millis, max balls in play (ints).
+ */
+public class ReplayLibrary {
+    static final String TAG = "ReplayLibrary";
+
+    public static final int ORDER_NEWEST = 0;
+    public static final int ORDER_BEST = 1;
+
+    /** Hears that a replay was opened. */
+    public interface OpenListener {
+        /**
+         * Called on the main thread.
+         *
+         * @param log
+         *            The decoded replay, which must not be modified, or null
+         *            if it can't be read.
+         */
+        void onReplayOpened(int id, ReplayLog log);
+    }
+
+    // the oldest replays are deleted beyond this many
+    static final int MAX_REPLAYS = 200;
+    static final long CACHE_BYTES = 4 * 1024 * 1024;
+
+    static final int INDEX_MAGIC = 0x49515253; // "SRQI"
+    static final int INDEX_VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int ENTRY_BYTES = 4 + 8 + 4 + 4 + 4;
+
+    /** One state of the index, oldest replay first. Never modified. */
+    static class Index {
+        final int mCount;
+        final int mNextId;
+        final int[] mIds;
+        final long[] mDates;
+        final int[] mScores;
+        final int[] mDurations;
+        final int[] mBalls;
+
+        Index(int count, int nextId) {
+            mCount = count;
+            mNextId = nextId;
+            mIds = new int[count];
+            mDates = new long[count];
+            mScores = new int[count];
+            mDurations = new int[count];
+            mBalls = new int[count];
+        }
+
+        /** Position of the replay with id, or -1. Ids only ever increase. */
+        int find(int id) {
+            int i = Arrays.binarySearch(mIds, 0, mCount, id);
+            return i < 0 ? -1 : i;
+        }
+    }
+
+    final File mDir;
+    final File mIndexFile;
+    volatile Index mIndex = new Index(0, 1);
+
+    // decoded replays, least recently used first, and their total size
+    final LinkedHashMap<Integer, ReplayLog> mCache =
+            new LinkedHashMap<Integer, ReplayLog>(16, 0.75f, true);
+    long mCacheBytes = 0;
+
+    // loads in progress; guarded by mCache
+    final Map<Integer, Future<ReplayLog>> mPending =
+            new HashMap<Integer, Future<ReplayLog>>();
+
+    // what list() returned last, to guess what will be opened next
+    volatile int[] mLastListing = new int[0];
+
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    final ExecutorService mLoader = IoUtils.newDaemonExecutor(
+            "ReplayLibrary", Thread.NORM_PRIORITY - 1);
+
+    /** Opens the library in dir, creating it if need be. */
+    public ReplayLibrary(File dir) {
+        mDir = dir;
+        mIndexFile = new File(dir, "replays.idx");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+        }
+        loadIndex();
+    }
+
+    void loadIndex() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(readFile(mIndexFile));
+            if (in.getInt() != INDEX_MAGIC || in.getInt() != INDEX_VERSION) {
+                Log.w(TAG, "Ignoring unknown replay index.");
+                return;
+            }
+            int count = in.getInt();
+            int nextId = in.getInt();
+            if (count < 0 || in.remaining() < (long) count * ENTRY_BYTES) {
+                Log.w(TAG, "Ignoring truncated replay index.");
+                return;
+            }
+            Index index = new Index(count, nextId);
+            in.asIntBuffer().get(index.mIds);
+            in.position(in.position() + count * 4);
+            in.asLongBuffer().get(index.mDates);
+            in.position(in.position() + count * 8);
+            in.asIntBuffer().get(index.mScores);
+            in.position(in.position() + count * 4);
+            in.asIntBuffer().get(index.mDurations);
+            in.position(in.position() + count * 4);
+            in.asIntBuffer().get(index.mBalls);
+            mIndex = index;
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read replay index.", ex);
+        }
+    }
+
+    void saveIndex(Index index) throws IOException {
+        int n = index.mCount;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + n * ENTRY_BYTES);
+        out.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(n)
+                .putInt(index.mNextId);
+        out.asIntBuffer().put(index.mIds);
+        out.position(out.position() + n * 4);
+        out.asLongBuffer().put(index.mDates);
+        out.position(out.position() + n * 8);
+        out.asIntBuffer().put(index.mScores);
+        out.position(out.position() + n * 4);
+        out.asIntBuffer().put(index.mDurations);
+        out.position(out.position() + n * 4);
+        out.asIntBuffer().put(index.mBalls);
+        IoUtils.writeAtomically(mIndexFile, out.array());
+    }
+
+    File replayFile(int id) {
+        return new File(mDir, "replay-" + id + ".log");
+    }
+
+    /**
+     * Stores the session's replay, dropping the oldest one if the library is
+     * full. Call before releasing the session.
+     *
+     * @param date
+     *            When the game was played, wall-clock millis.
+     * @param maxBalls
+     *            The most balls that were in play at once.
+     * @return the replay's id, or -1 if it couldn't be saved
+     */
+    public int add(GameSession session, long date, int maxBalls) {
+        ReplayLog log = new ReplayLog();
+        log.copyFrom(session.mReplay, session.getStartTime());
+        if (log.isEmpty()) {
+            return -1;
+        }
+        synchronized (this) {
+            Index old = mIndex;
+            int id = old.mNextId;
+            try {
+                ByteBuffer out = ByteBuffer.allocate(log.encodedSize());
+                log.writeTo(out);
+                IoUtils.writeAtomically(replayFile(id), out.array());
+
+                // keep the newest MAX_REPLAYS - 1, then add this one
+                int drop = Math.max(0, old.mCount - (MAX_REPLAYS - 1));
+                int n = old.mCount - drop;
+                Index index = new Index(n + 1, id + 1);
+                System.arraycopy(old.mIds, drop, index.mIds, 0, n);
+                System.arraycopy(old.mDates, drop, index.mDates, 0, n);
+                System.arraycopy(old.mScores, drop, index.mScores, 0, n);
+                System.arraycopy(old.mDurations, drop, index.mDurations, 0, n);
+                System.arraycopy(old.mBalls, drop, index.mBalls, 0, n);
+                index.mIds[n] = id;
+                index.mDates[n] = date;
+                index.mScores[n] = session.getScore();
+                index.mDurations[n] = (int) Math.min(Integer.MAX_VALUE,
+                        log.endTime() - log.startTime());
+                index.mBalls[n] = maxBalls;
+                saveIndex(index);
+                mIndex = index;
+
+                for (int i = 0; i < drop; i++) {
+                    uncache(old.mIds[i]);
+                    replayFile(old.mIds[i]).delete();
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to save replay.", ex);
+                replayFile(id).delete();
+                return -1;
+            }
+            // the game just played is the one most likely to be watched
+            cache(id, log);
+            return id;
+        }
+    }
+
+    public int size() {
+        return mIndex.mCount;
+    }
+
+    /**
+     * Ids of the replays scoring at least minScore, played at or after since
+     * and with at least minBalls in play at once, in the given order
+     * (ORDER_NEWEST or ORDER_BEST, ties newest first).
+     */
+    public int[] list(int minScore, long since, int minBalls, int order) {
+        Index index = mIndex;
+        int[] scores = index.mScores;
+        long[] dates = index.mDates;
+        int[] balls = index.mBalls;
+        int[] hits = new int[index.mCount];
+        int n = 0;
+        for (int i = index.mCount - 1; i >= 0; i--) {
+            if (scores[i] >= minScore && dates[i] >= since
+                    && balls[i] >= minBalls) {
+                hits[n++] = i;
+            }
+        }
+        if (order == ORDER_BEST) {
+            // score in the high half, position in the low, sorted and read
+            // backwards
+            long[] keys = new long[n];
+            for (int j = 0; j < n; j++) {
+                keys[j] = (long) scores[hits[j]] << 32 | hits[j];
+            }
+            Arrays.sort(keys);
+            for (int j = 0; j < n; j++) {
+                hits[j] = (int) keys[n - 1 - j];
+            }
+        }
+        int[] ids = new int[n];
+        for (int j = 0; j < n; j++) {
+            ids[j] = index.mIds[hits[j]];
+        }
+        mLastListing = ids;
+        return ids;
+    }
+
+    /** The replay's score, or -1 if there's no such replay. */
+    public int getScore(int id) {
+        Index index = mIndex;
+        int i = index.find(id);
+        return i < 0 ? -1 : index.mScores[i];
+    }
+
+    /** When the replay's game was played, or -1 if there's no such replay. */
+    public long getDate(int id) {
+        Index index = mIndex;
+        int i = index.find(id);
+        return i < 0 ? -1 : index.mDates[i];
+    }
+
+    /** The replay's length in millis, or -1 if there's no such replay. */
+    public int getDuration(int id) {
+        Index index = mIndex;
+        int i = index.find(id);
+        return i < 0 ? -1 : index.mDurations[i];
+    }
+
+    /**
+     * The most balls in play at once in the replay, or -1 if there's no such
+     * replay.
+     */
+    public int getBallCount(int id) {
+        Index index = mIndex;
+        int i = index.find(id);
+        return i < 0 ? -1 : index.mBalls[i];
+    }
+
+    /**
+     * Opens a replay: hands it to listener right away if it's cached, or
+     * once it's loaded if not, and starts loading the replay after it in the
+     * last listing. Call from the main thread.
+     */
+    public void open(final int id, final OpenListener listener) {
+        ReplayLog log = cached(id);
+        if (log != null) {
+            listener.onReplayOpened(id, log);
+            prefetchAfter(id);
+            return;
+        }
+        final Future<ReplayLog> pending = load(id);
+        // queued behind the load, so get() doesn't wait
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                ReplayLog log = null;
+                try {
+                    log = pending.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    Log.w(TAG, "Failed to load replay " + id, ex.getCause());
+                }
+                final ReplayLog opened = log;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onReplayOpened(id, opened);
+                    }
+                });
+            }
+        });
+        prefetchAfter(id);
+    }
+
+    /** Starts loading the replay into the cache in the background. */
+    public void prefetch(int id) {
+        if (cached(id) == null && mIndex.find(id) >= 0) {
+            load(id);
+        }
+    }
+
+    void prefetchAfter(int id) {
+        int[] listing = mLastListing;
+        for (int i = 0; i < listing.length - 1; i++) {
+            if (listing[i] == id) {
+                prefetch(listing[i + 1]);
+                return;
+            }
+        }
+    }
+
+    /** The load of id in progress, or a new one; the result is cached. */
+    Future<ReplayLog> load(final int id) {
+        synchronized (mCache) {
+            Future<ReplayLog> pending = mPending.get(id);
+            if (pending == null) {
+                pending = mLoader.submit(new Callable<ReplayLog>() {
+                    @Override
+                    public ReplayLog call() throws IOException {
+                        try {
+                            ReplayLog log = cached(id);
+                            if (log == null) {
+                                log = read(id);
+                                cache(id, log);
+                            }
+                            return log;
+                        } finally {
+                            synchronized (mCache) {
+                                mPending.remove(id);
+                            }
+                        }
+                    }
+                });
+                mPending.put(id, pending);
+            }
+            return pending;
+        }
+    }
+
+    ReplayLog read(int id) throws IOException {
+        ReplayLog log = new ReplayLog();
+        if (!log.readFrom(ByteBuffer.wrap(readFile(replayFile(id))))) {
+            throw new IOException("Damaged replay " + id);
+        }
+        return log;
+    }
+
+    ReplayLog cached(int id) {
+        synchronized (mCache) {
+            return mCache.get(id);
+        }
+    }
+
+    void cache(int id, ReplayLog log) {
+        long bytes = log.heapSize();
+        if (bytes > CACHE_BYTES) {
+            return;
+        }
+        synchronized (mCache) {
+            ReplayLog old = mCache.put(id, log);
+            if (old != null) {
+                mCacheBytes -= old.heapSize();
+            }
+            mCacheBytes += bytes;
+            Iterator<ReplayLog> it = mCache.values().iterator();
+            while (mCacheBytes > CACHE_BYTES && it.hasNext()) {
+                mCacheBytes -= it.next().heapSize();
+                it.remove();
+            }
+        }
+    }
+
+    void uncache(int id) {
+        synchronized (mCache) {
+            ReplayLog old = mCache.remove(id);
+            if (old != null) {
+                mCacheBytes -= old.heapSize();
+            }
+        }
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
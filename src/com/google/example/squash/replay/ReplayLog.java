@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.example.squash.Ball;
+
+/**
+ * A replay stored as state changes rather than frames. Between collisions a
+ * ball moves in a straight line, so the log only records a ball's position
+ * and velocity when they change (spawn, bounce, paddle hit) and when it's
+ * lost; ReplayDecoder reconstructs every position in between analytically.
+ * Sounds are logged too, so ReplaySoundScheduler can play them back.
+ * The paddle, which follows the player's finger, is sampled at most every
+ * PADDLE_SAMPLE_MILLIS while it moves and interpolated.
+ *
+ * Every KEYFRAME_MILLIS or so the writer adds a keyframe: the complete state
+ * (score and every living ball), so decoding can start there without reading
+ * anything earlier, and anything before a keyframe can be trimmed off.
+ *
+ * Events are kept in growable primitive columns; a cleared log keeps its
+ * arrays, so a reused log doesn't allocate. writeTo() stores the columns one
+ * after another, so readFrom() can bulk-copy each one. Not thread-safe.
+ */
+class ReplayLog {
+    static final long KEYFRAME_MILLIS = 1000;
+    static final long PADDLE_SAMPLE_MILLIS = 20;
+
+    // event kinds
+    static final byte KEYFRAME = 0; // id = score; followed by KEY_BALLs
+    static final byte KEY_BALL = 1;
+    static final byte SPAWN = 2;
+    static final byte BOUNCE = 3;
+    static final byte LOSS = 4;
+    static final byte SCORE = 5; // id = score
+    static final byte PAUSE = 6; // the game froze until the next keyframe
+    static final byte SOUND = 7; // id = sound id; x, y, velX = volume, pan, rate
+
+    static final int MAGIC = 0x53515250; // "SQRP"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 20;
+
+    // ball, score and sound events, in time order
+    long[] mTimes = new long[64];
+    byte[] mKinds = new byte[64];
+    int[] mIds = new int[64];
+    double[] mX = new double[64];
+    double[] mY = new double[64];
+    double[] mVelX = new double[64];
+    double[] mVelY = new double[64];
+    int mCount = 0;
+
+    // indexes of KEYFRAME events, in order
+    int[] mKeyframes = new int[16];
+    int mKeyframeCount = 0;
+
+    // paddle samples, in time order
+    long[] mPaddleTimes = new long[256];
+    float[] mPaddleYs = new float[256];
+    int mPaddleCount = 0;
+
+    void clear() {
+        mCount = 0;
+        mKeyframeCount = 0;
+        mPaddleCount = 0;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    long startTime() {
+        return mCount == 0 ? 0 : mTimes[0];
+    }
+
+    long endTime() {
+        long end = mCount == 0 ? 0 : mTimes[mCount - 1];
+        if (mPaddleCount > 0) {
+            end = Math.max(end, mPaddleTimes[mPaddleCount - 1]);
+        }
+        return end;
+    }
+
+    long lastKeyframeTime() {
+        return mKeyframeCount == 0 ? Long.MIN_VALUE
+                : mTimes[mKeyframes[mKeyframeCount - 1]];
+    }
+
+    void add(long time, byte kind, int id, double x, double y, double velX,
+            double velY) {
+        if (mCount == mTimes.length) {
+            int capacity = mCount * 2;
+            mTimes = copyOf(mTimes, capacity);
+            mKinds = copyOf(mKinds, capacity);
+            mIds = copyOf(mIds, capacity);
+            mX = copyOf(mX, capacity);
+            mY = copyOf(mY, capacity);
+            mVelX = copyOf(mVelX, capacity);
+            mVelY = copyOf(mVelY, capacity);
+        }
+        mTimes[mCount] = time;
+        mKinds[mCount] = kind;
+        mIds[mCount] = id;
+        mX[mCount] = x;
+        mY[mCount] = y;
+        mVelX[mCount] = velX;
+        mVelY[mCount] = velY;
+        mCount++;
+    }
+
+    void addBall(long time, byte kind, Ball ball) {
+        add(time, kind, ball.id, ball.x, ball.y, ball.velX, ball.velY);
+    }
+
+    void addScore(long time, int score) {
+        add(time, SCORE, score, 0, 0, 0, 0);
+    }
+
+    void addSound(long time, int soundId, float volume, float pan, float rate) {
+        add(time, SOUND, soundId, volume, pan, rate, 0);
+    }
+
+    void addPause(long time) {
+        add(time, PAUSE, 0, 0, 0, 0, 0);
+    }
+
+    /** Records the complete state of the game. */
+    void addKeyframe(long time, int score, List<Ball> balls) {
+        if (mKeyframeCount == mKeyframes.length) {
+            mKeyframes = copyOf(mKeyframes, mKeyframeCount * 2);
+        }
+        mKeyframes[mKeyframeCount++] = mCount;
+        add(time, KEYFRAME, score, 0, 0, 0, 0);
+        for (int i = 0; i < balls.size(); i++) {
+            addBall(time, KEY_BALL, balls.get(i));
+        }
+    }
+
+    /**
+     * Samples the paddle if it has moved since the last sample and that was
+     * at least PADDLE_SAMPLE_MILLIS ago.
+     */
+    void samplePaddle(long time, double y) {
+        if (mPaddleCount > 0) {
+            if (mPaddleYs[mPaddleCount - 1] == (float) y
+                    || time - mPaddleTimes[mPaddleCount - 1] < PADDLE_SAMPLE_MILLIS) {
+                return;
+            }
+        }
+        addPaddle(time, (float) y);
+    }
+
+    void addPaddle(long time, float y) {
+        if (mPaddleCount == mPaddleTimes.length) {
+            mPaddleTimes = copyOf(mPaddleTimes, mPaddleCount * 2);
+            mPaddleYs = copyOf(mPaddleYs, mPaddleCount * 2);
+        }
+        mPaddleTimes[mPaddleCount] = time;
+        mPaddleYs[mPaddleCount] = y;
+        mPaddleCount++;
+    }
+
+    /** Paddle position at time, interpolated between samples. */
+    float paddleAt(long time) {
+        int i = paddleAtOrBefore(time);
+        if (i < 0) {
+            return mPaddleCount == 0 ? 0.5f : mPaddleYs[0];
+        }
+        if (i == mPaddleCount - 1) {
+            return mPaddleYs[i];
+        }
+        float f = (float) (time - mPaddleTimes[i])
+                / (mPaddleTimes[i + 1] - mPaddleTimes[i]);
+        return mPaddleYs[i] + (mPaddleYs[i + 1] - mPaddleYs[i]) * f;
+    }
+
+    /** Index of the last paddle sample at or before time, or -1. */
+    int paddleAtOrBefore(long time) {
+        int lo = 0, hi = mPaddleCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPaddleTimes[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Event index of the last keyframe at or before time; the first keyframe
+     * if they're all later, or -1 if there are none.
+     */
+    int keyframeAtOrBefore(long time) {
+        if (mKeyframeCount == 0) {
+            return -1;
+        }
+        int lo = 0, hi = mKeyframeCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimes[mKeyframes[mid]] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return mKeyframes[Math.max(0, lo - 1)];
+    }
+
+    /**
+     * Replaces the contents of this log with everything in other needed to
+     * replay it from time on: the events from the keyframe at or before time,
+     * and the paddle samples from the last one before that keyframe.
+     */
+    void copyFrom(ReplayLog other, long time) {
+        clear();
+        int first = other.keyframeAtOrBefore(time);
+        if (first < 0) {
+            return;
+        }
+        for (int i = first; i < other.mCount; i++) {
+            if (other.mKinds[i] == KEYFRAME) {
+                if (mKeyframeCount == mKeyframes.length) {
+                    mKeyframes = copyOf(mKeyframes, mKeyframeCount * 2);
+                }
+                mKeyframes[mKeyframeCount++] = mCount;
+            }
+            add(other.mTimes[i], other.mKinds[i], other.mIds[i], other.mX[i],
+                    other.mY[i], other.mVelX[i], other.mVelY[i]);
+        }
+        int paddle = Math.max(0, other.paddleAtOrBefore(other.mTimes[first]));
+        for (int i = paddle; i < other.mPaddleCount; i++) {
+            addPaddle(other.mPaddleTimes[i], other.mPaddleYs[i]);
+        }
+    }
+
+    /**
+     * Drops what isn't needed to replay from time on. Only compacts when
+     * that frees at least half the log, so the cost is amortized.
+     */
+    void trimBefore(long time) {
+        int first = keyframeAtOrBefore(time);
+        if (first <= 0 || first < mCount / 2) {
+            return;
+        }
+        int paddle = Math.max(0, paddleAtOrBefore(mTimes[first]));
+
+        int n = mCount - first;
+        System.arraycopy(mTimes, first, mTimes, 0, n);
+        System.arraycopy(mKinds, first, mKinds, 0, n);
+        System.arraycopy(mIds, first, mIds, 0, n);
+        System.arraycopy(mX, first, mX, 0, n);
+        System.arraycopy(mY, first, mY, 0, n);
+        System.arraycopy(mVelX, first, mVelX, 0, n);
+        System.arraycopy(mVelY, first, mVelY, 0, n);
+        mCount = n;
+
+        int k = 0;
+        for (int i = 0; i < mKeyframeCount; i++) {
+            if (mKeyframes[i] >= first) {
+                mKeyframes[k++] = mKeyframes[i] - first;
+            }
+        }
+        mKeyframeCount = k;
+
+        int p = mPaddleCount - paddle;
+        System.arraycopy(mPaddleTimes, paddle, mPaddleTimes, 0, p);
+        System.arraycopy(mPaddleYs, paddle, mPaddleYs, 0, p);
+        mPaddleCount = p;
+    }
+
+    /** Bytes writeTo() will write. */
+    int encodedSize() {
+        return HEADER_BYTES + mCount * (8 + 1 + 4 + 4 * 8) + mKeyframeCount
+                * 4 + mPaddleCount * (8 + 4);
+    }
+
+    /** Roughly how much heap the log's arrays take. */
+    long heapSize() {
+        return (long) mTimes.length * (8 + 1 + 4 + 4 * 8) + mKeyframes.length
+                * 4 + mPaddleTimes.length * (8 + 4);
+    }
+
+    /**
+     * Writes the log at out's position: a header (magic, version and the
+     * three counts), then each column in turn.
+     */
+    void writeTo(ByteBuffer out) {
+        out.putInt(MAGIC).putInt(VERSION).putInt(mCount)
+                .putInt(mKeyframeCount).putInt(mPaddleCount);
+        out.asLongBuffer().put(mTimes, 0, mCount);
+        out.position(out.position() + mCount * 8);
+        out.put(mKinds, 0, mCount);
+        out.asIntBuffer().put(mIds, 0, mCount);
+        out.position(out.position() + mCount * 4);
+        putDoubles(out, mX, mCount);
+        putDoubles(out, mY, mCount);
+        putDoubles(out, mVelX, mCount);
+        putDoubles(out, mVelY, mCount);
+        out.asIntBuffer().put(mKeyframes, 0, mKeyframeCount);
+        out.position(out.position() + mKeyframeCount * 4);
+        out.asLongBuffer().put(mPaddleTimes, 0, mPaddleCount);
+        out.position(out.position() + mPaddleCount * 8);
+        out.asFloatBuffer().put(mPaddleYs, 0, mPaddleCount);
+        out.position(out.position() + mPaddleCount * 4);
+    }
+
+    static void putDoubles(ByteBuffer out, double[] column, int n) {
+        out.asDoubleBuffer().put(column, 0, n);
+        out.position(out.position() + n * 8);
+    }
+
+    /**
+     * Replaces the contents of this log with one written by writeTo(),
+     * reallocating the columns at exactly the size needed.
+     *
+     * @return false if in doesn't hold a complete log
+     */
+    boolean readFrom(ByteBuffer in) {
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return false;
+            }
+            int count = in.getInt();
+            int keyframes = in.getInt();
+            int paddles = in.getInt();
+            if (count < 0 || keyframes < 0 || paddles < 0
+                    || in.remaining() < (long) count * (8 + 1 + 4 + 4 * 8)
+                            + keyframes * 4 + paddles * (8 + 4)) {
+                return false;
+            }
+            int capacity = Math.max(1, count);
+            mTimes = new long[capacity];
+            mKinds = new byte[capacity];
+            mIds = new int[capacity];
+            mX = new double[capacity];
+            mY = new double[capacity];
+            mVelX = new double[capacity];
+            mVelY = new double[capacity];
+            mKeyframes = new int[Math.max(1, keyframes)];
+            mPaddleTimes = new long[Math.max(1, paddles)];
+            mPaddleYs = new float[Math.max(1, paddles)];
+
+            in.asLongBuffer().get(mTimes, 0, count);
+            in.position(in.position() + count * 8);
+            in.get(mKinds, 0, count);
+            in.asIntBuffer().get(mIds, 0, count);
+            in.position(in.position() + count * 4);
+            getDoubles(in, mX, count);
+            getDoubles(in, mY, count);
+            getDoubles(in, mVelX, count);
+            getDoubles(in, mVelY, count);
+            in.asIntBuffer().get(mKeyframes, 0, keyframes);
+            in.position(in.position() + keyframes * 4);
+            in.asLongBuffer().get(mPaddleTimes, 0, paddles);
+            in.position(in.position() + paddles * 8);
+            in.asFloatBuffer().get(mPaddleYs, 0, paddles);
+            in.position(in.position() + paddles * 4);
+            mCount = count;
+            mKeyframeCount = keyframes;
+            mPaddleCount = paddles;
+            return true;
+        } catch (BufferUnderflowException ex) {
+            clear();
+            return false;
+        }
+    }
+
+    static void getDoubles(ByteBuffer in, double[] column, int n) {
+        in.asDoubleBuffer().get(column, 0, n);
+        in.position(in.position() + n * 8);
+    }
+
+    static long[] copyOf(long[] a, int length) {
+        long[] b = new long[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    static int[] copyOf(int[] a, int length) {
+        int[] b = new int[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    static byte[] copyOf(byte[] a, int length) {
+        byte[] b = new byte[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    static float[] copyOf(float[] a, int length) {
+        float[] b = new float[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    static double[] copyOf(double[] a, int length) {
+        double[] b = new double[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.example.recordablesoundpool.RecordableSoundPool;
+
+/**
+ * Plays the sounds of a replay on its own thread, in step with a
+ * ReplayClock. The thread sleeps until a sound is due, so sounds start
+ * within a millisecond or two of their time rather than on the next drawn
+ * frame, and each is started OUTPUT_LATENCY_MILLIS early to make up for the
+ * audio output's delay. A sound that comes up more than MAX_LATE_MILLIS late
+ * (after a stall, or when the clock jumps) is dropped instead of played out
+ * of sync, and when the clock goes backwards playback resumes from the new
+ * time. Speeding up the replay raises the pitch, like a tape.
+ */
+class ReplaySoundScheduler implements Runnable {
+    static final long OUTPUT_LATENCY_MILLIS = 40;
+    static final long MAX_LATE_MILLIS = 80;
+
+    final ReplayClock mClock;
+    final RecordableSoundPool mPool;
+
+    // the sounds between the replay's start and end, in time order
+    final long[] mTimes;
+    final int[] mSoundIds;
+    final float[] mVolumes;
+    final float[] mPans;
+    final float[] mRates;
+    final int mCount;
+
+    int mNext = 0;
+    int mDropped = 0;
+    Thread mThread;
+    volatile boolean mStopped = false;
+
+    /**
+     * Copies the sounds of log in [from, to], so the log may change once
+     * this returns.
+     */
+    ReplaySoundScheduler(ReplayLog log, long from, long to,
+            ReplayClock clock, RecordableSoundPool pool) {
+        mClock = clock;
+        mPool = pool;
+        int count = 0;
+        for (int i = 0; i < log.mCount; i++) {
+            if (log.mKinds[i] == ReplayLog.SOUND && log.mTimes[i] >= from
+                    && log.mTimes[i] <= to) {
+                count++;
+            }
+        }
+        mTimes = new long[count];
+        mSoundIds = new int[count];
+        mVolumes = new float[count];
+        mPans = new float[count];
+        mRates = new float[count];
+        mCount = count;
+        int k = 0;
+        for (int i = 0; i < log.mCount && k < count; i++) {
+            if (log.mKinds[i] == ReplayLog.SOUND && log.mTimes[i] >= from
+                    && log.mTimes[i] <= to) {
+                mTimes[k] = log.mTimes[i];
+                mSoundIds[k] = log.mIds[i];
+                mVolumes[k] = (float) log.mX[i];
+                mPans[k] = (float) log.mY[i];
+                mRates[k] = (float) log.mVelX[i];
+                k++;
+            }
+        }
+    }
+
+    void start() {
+        mThread = new Thread(this, "ReplaySound");
+        mThread.start();
+    }
+
+    void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        long last = Long.MIN_VALUE;
+        try {
+            while (!mStopped && mClock.isRunning()) {
+                long now = mClock.now();
+                if (now < last) {
+                    mNext = firstAtOrAfter(now);
+                }
+                last = now;
+                long due = playDue(now, mClock.getSpeed());
+                if (due == Long.MAX_VALUE) {
+                    break;
+                }
+                mClock.awaitTime(due);
+            }
+        } catch (InterruptedException ex) {
+            // stopped
+        }
+        if (mDropped > 0) {
+            Log.d("ReplaySoundScheduler", "Dropped " + mDropped
+                    + " late sounds.");
+        }
+    }
+
+    /**
+     * Plays (or drops, if they're too late) the sounds due at replay time
+     * now, at speed.
+     *
+     * @return when the next sound is due, or Long.MAX_VALUE if none is left
+     */
+    long playDue(long now, float speed) {
+        for (; mNext < mCount; mNext++) {
+            long due = mTimes[mNext] - (long) (OUTPUT_LATENCY_MILLIS * speed);
+            if (now < due) {
+                return due;
+            }
+            if (now - due <= MAX_LATE_MILLIS * speed) {
+                play(mNext, speed);
+            } else {
+                mDropped++;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Plays sound i, pitched up or down with the replay's speed. */
+    void play(int i, float speed) {
+        mPool.playUnrecorded(mSoundIds[i], mVolumes[i], mPans[i], mRates[i]
+                * speed);
+    }
+
+    int firstAtOrAfter(long time) {
+        int lo = 0, hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimes[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A stretch of replay to be exported as a video: MJPEG frames rendered
+ * offscreen, with the game's mixed audio, in an AVI file. Frames are decoded,
+ * rasterized and JPEG-encoded in chunks on one thread per core and written
+ * out in order, so export runs well ahead of real time and needs neither a
+ * View nor any Android API.
+ */
+public class ReplayVideo {
+    public static final int DEFAULT_WIDTH = 640;
+    public static final int DEFAULT_HEIGHT = 360;
+    public static final int DEFAULT_FPS = 30;
+    public static final int DEFAULT_QUALITY = 80;
+
+    // frames rendered per task
+    static final int CHUNK_FRAMES = 30;
+
+    private static ExecutorService sExecutor;
+
+    final ReplayLog mLog;
+    final long mFrom;
+    final long mTo;
+
+    int mWidth = DEFAULT_WIDTH;
+    int mHeight = DEFAULT_HEIGHT;
+    int mFps = DEFAULT_FPS;
+    int mQuality = DEFAULT_QUALITY;
+
+    /**
+     * The replay in log from time from to time to. log mustn't change until
+     * writeTo() has returned.
+     */
+    ReplayVideo(ReplayLog log, long from, long to) {
+        mLog = log;
+        mFrom = from;
+        mTo = to;
+    }
+
+    /** The shared pool that renders frames, one thread per core. */
+    static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            sExecutor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                        int mCount = 0;
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ReplayVideo-"
+                                    + (++mCount));
+                            t.setDaemon(true);
+                            t.setPriority(Thread.NORM_PRIORITY - 1);
+                            return t;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+
+    /** Sets the frame size; JPEG works in 8x8 blocks, so use multiples of 8. */
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public void setFrameRate(int fps) {
+        mFps = fps;
+    }
+
+    /** @param quality 1 (smallest) to 100 (best). */
+    public void setQuality(int quality) {
+        mQuality = quality;
+    }
+
+    public int getFrameCount() {
+        return (int) ((mTo - mFrom) * mFps / 1000) + 1;
+    }
+
+    long frameTime(int frame) {
+        return mFrom + frame * 1000L / mFps;
+    }
+
+    /**
+     * Writes the video to file.
+     *
+     * @param pcm
+     *            The audio as 16-bit little-endian stereo at sampleRate, or
+     *            null for a silent video. Missing audio is filled with
+     *            silence.
+     * @param audioStartTime
+     *            When the first sample of pcm was recorded, on the replay's
+     *            clock (System.currentTimeMillis()).
+     */
+    public void writeTo(File file, InputStream pcm, int sampleRate,
+            long audioStartTime) throws IOException {
+        ExecutorService executor = getExecutor();
+        int frames = getFrameCount();
+        int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+        LinkedList<Future<byte[][]>> inFlight = new LinkedList<Future<byte[][]>>();
+        AudioSource audio = new AudioSource(pcm, (mFrom - audioStartTime)
+                * sampleRate / 1000);
+        byte[] audioBuf = new byte[0];
+        AviWriter avi = new AviWriter(file, mWidth, mHeight, mFps, sampleRate);
+        int next = 0;
+        int written = 0;
+        try {
+            while (next < frames || !inFlight.isEmpty()) {
+                while (next < frames && inFlight.size() < maxInFlight) {
+                    final int first = next;
+                    final int end = Math.min(frames, first + CHUNK_FRAMES);
+                    inFlight.add(executor.submit(new Callable<byte[][]>() {
+                        @Override
+                        public byte[][] call() {
+                            return renderChunk(first, end);
+                        }
+                    }));
+                    next = end;
+                }
+                for (byte[] jpeg : inFlight.removeFirst().get()) {
+                    avi.writeVideoFrame(jpeg, jpeg.length);
+
+                    // this frame's share of the audio, rounded so the
+                    // streams never drift apart
+                    long from = (long) written * sampleRate / mFps;
+                    long to = (long) (written + 1) * sampleRate / mFps;
+                    int bytes = (int) (to - from) * AviWriter.AUDIO_BLOCK_ALIGN;
+                    if (audioBuf.length < bytes) {
+                        audioBuf = new byte[bytes];
+                    }
+                    audio.read(audioBuf, bytes);
+                    avi.writeAudio(audioBuf, 0, bytes);
+                    written++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Video export interrupted.");
+        } catch (ExecutionException ex) {
+            // IOException(String, Throwable) needs API level 9
+            IOException failure = new IOException("Video export failed.");
+            failure.initCause(ex.getCause());
+            throw failure;
+        } finally {
+            for (Future<byte[][]> f : inFlight) {
+                f.cancel(true);
+            }
+            avi.close();
+        }
+    }
+
+    /** Renders and encodes frames [first, end). */
+    byte[][] renderChunk(int first, int end) {
+        // decoders only read the log, so each task can have its own
+        ReplayDecoder decoder = new ReplayDecoder(mLog);
+        FrameData frame = new FrameData(ReplayView.INITIAL_DRAWN_BALLS);
+        FrameRasterizer raster = new FrameRasterizer(mWidth, mHeight);
+        JpegEncoder encoder = new JpegEncoder(mQuality);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+
+        byte[][] jpegs = new byte[end - first][];
+        for (int i = first; i < end; i++) {
+            raster.render(decoder.decodeFrame(frameTime(i), frame));
+            out.reset();
+            encoder.encode(raster.mPixels, mWidth, mHeight, out);
+            jpegs[i - first] = out.toByteArray();
+        }
+        return jpegs;
+    }
+
+    /**
+     * Reads the audio stream from a given sample frame on, as silence before
+     * it starts and after it ends.
+     */
+    static class AudioSource {
+        final InputStream mIn;
+
+        // bytes of silence still to come before the stream
+        long mLeadIn;
+
+        AudioSource(InputStream in, long firstFrame) throws IOException {
+            mIn = in;
+            long offset = firstFrame * AviWriter.AUDIO_BLOCK_ALIGN;
+            if (offset < 0) {
+                mLeadIn = -offset;
+            } else if (in != null) {
+                while (offset > 0) {
+                    long n = in.skip(offset);
+                    if (n <= 0) {
+                        break;
+                    }
+                    offset -= n;
+                }
+            }
+        }
+
+        void read(byte[] buf, int length) throws IOException {
+            int done = 0;
+            if (mLeadIn > 0) {
+                int n = (int) Math.min(mLeadIn, length);
+                fill(buf, 0, n);
+                mLeadIn -= n;
+                done = n;
+            }
+            while (done < length && mIn != null) {
+                int n = mIn.read(buf, done, length - done);
+                if (n < 0) {
+                    break;
+                }
+                done += n;
+            }
+            fill(buf, done, length);
+        }
+
+        static void fill(byte[] buf, int from, int to) {
+            for (int i = from; i < to; i++) {
+                buf[i] = 0;
+            }
+        }
+    }
+}
@@ -26,88 +26,281 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
+import com.google.example.recordablesoundpool.RecordableSoundPool;
+import com.google.example.recordablesoundpool.Recording;
+import com.google.example.squash.Ball;
 import com.google.example.squash.SquashView;
 
+/**
+ * Captures the game and plays it back. Capture is always on while a game
+ * runs, as a ReplayLog of state changes rather than frames, and is trimmed to
+ * what the current game and the last INSTANT_REPLAY_MILLIS need. A game is
+ * only kept for its last MAX_SESSION_MILLIS, so memory use is bounded no
+ * matter how long the run lasts; a longer game is replayed, and handed off,
+ * from that far back rather than from its start. Replay shows either the
+ * current (or last) game or, after saveInstantReplay(), the saved clip, or
+ * one opened with playFromLibrary(), decoding each frame from the log as
+ * it's drawn. Given a sound pool, replay plays the game's sounds too, timed
+ * by the same ReplayClock as the frames.
+ *
+ * At game over, handOffSession() copies the game into a GameSession that can
+ * be processed on another thread while the next game is captured.
+ */
 public class ReplayView extends View {
 
-    public static int MAX_FRAMES = 60 * 60;
+    // how far back saveInstantReplay() reaches
+    public static final long INSTANT_REPLAY_MILLIS = 30 * 1000;
+
+    // how much of the current game capture keeps at most
+    public static final long MAX_SESSION_MILLIS = 10 * 60 * 1000;
+
+    // balls a decoded frame has room for before it has to grow
+    static final int INITIAL_DRAWN_BALLS = 64;
+
+    // everything since the start of the current game, and at least the
+    // last INSTANT_REPLAY_MILLIS, across games
+    final ReplayLog mCapture = new ReplayLog();
+
+    // when the current game started
+    long mSessionStartTime = 0;
+
+    // the last instant replay saved, from mSavedClipStart, and whether
+    // replay shows it
+    final ReplayLog mSavedClip = new ReplayLog();
+    long mSavedClipStart;
+    boolean mShowSavedClip = false;
+
+    // a replay from a ReplayLibrary, which replay shows while it's non-null,
+    // and the latest playFromLibrary(); a replay that arrives after another
+    // request, a new game or a saved clip is dropped
+    ReplayLog mLibraryReplay;
+    int mLibraryRequest = 0;
 
-    ArrayList<FrameData> frameData = new ArrayList<FrameData>(600);
+    // buffers of released GameSessions, ready for the next hand-off; only
+    // a game or two is ever exported at once, so more than this are dropped
+    static final int MAX_FREE_SESSIONS = 2;
+    private final ArrayList<GameSession> mFreeSessions = new ArrayList<GameSession>();
+
+    // what's being replayed: mPlayDecoder's log, from mPlayFrom to mPlayTo
+    ReplayDecoder mPlayDecoder;
+    long mPlayFrom;
+    long mPlayTo;
+
+    // the frame being drawn
+    final FrameData mFrame = new FrameData(INITIAL_DRAWN_BALLS);
+
+    // playback position, and the sounds played against it
+    final ReplayClock mClock = new ReplayClock();
+    ReplaySoundScheduler mSounds;
+    RecordableSoundPool mSoundPool;
 
-    private int lastPointer = 0;
     public boolean mIsReplaying;
-    private long mReplayTime;
-    private long mLastTime;
 
     public Rect mRect = new Rect();
     Paint p = new Paint();
 
-    public int framePointer = 0;
-
     public ReplayView(Context context) {
         super(context);
     }
 
     public ReplayView(Context context, AttributeSet attrs) {
         super(context, attrs);
+    }
+
+    /**
+     * Starts capturing a new game at time (SquashView's simulation clock),
+     * with a keyframe of its initial state. Replay shows it from here on.
+     */
+    public void startSession(SquashView sv, long time) {
+        mSessionStartTime = time;
+        mShowSavedClip = false;
+        mLibraryReplay = null;
+        ++mLibraryRequest;
+        mCapture.samplePaddle(time, sv.paddleY);
+        mCapture.addKeyframe(time, sv.mScore, sv.balls);
+    }
 
-        for (int i = 0; i < MAX_FRAMES; i++) {
-            FrameData fd = new FrameData();
-            frameData.add(fd);
+    /**
+     * Called once per simulated frame at time, after the balls have moved:
+     * samples the paddle and adds a keyframe when one is due.
+     */
+    public void recordFrame(SquashView sv, long time) {
+        mCapture.samplePaddle(time, sv.paddleY);
+        if (time - mCapture.lastKeyframeTime() >= ReplayLog.KEYFRAME_MILLIS) {
+            mCapture.addKeyframe(time, sv.mScore, sv.balls);
+            long keep = Math.min(mSessionStartTime, time
+                    - INSTANT_REPLAY_MILLIS);
+            mCapture.trimBefore(Math.max(keep, time - MAX_SESSION_MILLIS));
         }
     }
 
-    public void recordFrame(SquashView sv) {
-        if (framePointer == MAX_FRAMES) {
-            // No room for more frames, and you should not
-            // allocate new ones on a UI thread.
-            return;
+    public void recordSpawn(Ball ball, long time) {
+        mCapture.addBall(time, ReplayLog.SPAWN, ball);
+    }
+
+    /** A ball's velocity changed: it hit a wall or the paddle. */
+    public void recordBounce(Ball ball, long time) {
+        mCapture.addBall(time, ReplayLog.BOUNCE, ball);
+    }
+
+    public void recordLoss(Ball ball, long time) {
+        mCapture.addBall(time, ReplayLog.LOSS, ball);
+    }
+
+    public void recordSound(int soundId, float volume, float pan,
+            float rate, long time) {
+        mCapture.addSound(time, soundId, volume, pan, rate);
+    }
+
+    public void recordScore(int score, long time) {
+        mCapture.addScore(time, score);
+    }
+
+    /**
+     * The game stopped simulating at time. Call resumeSession() when it
+     * continues, with the new simulation time.
+     */
+    public void pauseSession(long time) {
+        mCapture.addPause(time);
+    }
+
+    public void resumeSession(SquashView sv, long time) {
+        mCapture.samplePaddle(time, sv.paddleY);
+        mCapture.addKeyframe(time, sv.mScore, sv.balls);
+    }
+
+    /**
+     * Copies what was captured in the last INSTANT_REPLAY_MILLIS (up to now)
+     * into the saved clip, which replay shows until the next game starts.
+     *
+     * @return the clip, to export as a video on another thread
+     */
+    public ReplayVideo saveInstantReplay(long now) {
+        setReplaying(false);
+        mSavedClipStart = now - INSTANT_REPLAY_MILLIS;
+        mSavedClip.copyFrom(mCapture, mSavedClipStart);
+        mShowSavedClip = true;
+        mLibraryReplay = null;
+        ++mLibraryRequest;
+        Log.d("ReplayView", "Saved instant replay, " + mSavedClip.mCount
+                + " events.");
+
+        ReplayLog video = new ReplayLog();
+        video.copyFrom(mSavedClip, mSavedClipStart);
+        return new ReplayVideo(video, Math.max(mSavedClipStart,
+                video.startTime()), video.endTime());
+    }
+
+    /**
+     * Packages the game that just ended (its replay, plus the given stopped
+     * recording) into a session owned by the caller, reusing the buffers of
+     * a released session if there is one. Call before the next
+     * startSession().
+     */
+    public GameSession handOffSession(Recording recording,
+            RecordableSoundPool pool, int score) {
+        GameSession session = null;
+        synchronized (mFreeSessions) {
+            if (!mFreeSessions.isEmpty()) {
+                session = mFreeSessions.remove(mFreeSessions.size() - 1);
+            }
         }
+        if (session == null) {
+            session = new GameSession(this);
+        }
+        session.mReplay.copyFrom(mCapture, mSessionStartTime);
+        session.mRecording = recording;
+        session.mPool = pool;
+        session.mScore = score;
+        session.mReleased = false;
+        return session;
+    }
+
+    /**
+     * Plays the replay with id from library once it's opened, right away if
+     * the library has it cached; the UI thread never waits for it to load.
+     * Replay keeps showing it until the next game starts or an instant
+     * replay is saved. Nothing is played if the replay can't be read, or if
+     * either of those happens before it's loaded. Call from the UI thread.
+     */
+    public void playFromLibrary(ReplayLibrary library, int id) {
+        final int request = ++mLibraryRequest;
+        library.open(id, new ReplayLibrary.OpenListener() {
+            @Override
+            public void onReplayOpened(int id, ReplayLog log) {
+                if (log == null || request != mLibraryRequest) {
+                    return;
+                }
+                setReplaying(false);
+                mLibraryReplay = log;
+                setReplaying(true);
+            }
+        });
+    }
 
-        FrameData fd = frameData.get(framePointer);
-        fd.copyData(sv, System.currentTimeMillis());
-        frameData.add(fd);
+    void recycleSession(GameSession session) {
+        synchronized (mFreeSessions) {
+            if (mFreeSessions.size() < MAX_FREE_SESSIONS) {
+                mFreeSessions.add(session);
+            }
+        }
+    }
 
-        framePointer++;
+    /** Sets the pool replays play their sounds with (null: silent replays). */
+    public void setSoundPool(RecordableSoundPool pool) {
+        mSoundPool = pool;
     }
 
-    private long getStartTime() {
-        return frameData.get(0).timestamp;
+    /**
+     * Sets how fast replays play, 1 = real time. Sounds are played faster
+     * too, within the range RecordableSoundPool supports.
+     */
+    public void setPlaybackSpeed(float speed) {
+        mClock.setSpeed(speed);
     }
 
     public void setReplaying(boolean val) {
         mIsReplaying = val;
+        stopPlayback();
 
         if (val) {
-            if (framePointer == 0) {
+            ReplayLog log;
+            if (mLibraryReplay != null) {
+                log = mLibraryReplay;
+                mPlayFrom = log.startTime();
+            } else if (mShowSavedClip) {
+                log = mSavedClip;
+                mPlayFrom = Math.max(mSavedClipStart, log.startTime());
+            } else {
+                log = mCapture;
+                mPlayFrom = Math.max(mSessionStartTime, log.startTime());
+            }
+            mPlayTo = log.endTime();
+
+            if (log.isEmpty() || mPlayTo <= mPlayFrom) {
                 Log.e("ReplayView", "You are replaying a zero replay.");
                 setReplaying(false);
                 return;
             }
 
-            mReplayTime = getStartTime();
-            mLastTime = System.currentTimeMillis();
+            mPlayDecoder = new ReplayDecoder(log);
+            mClock.start(mPlayFrom);
+            if (mSoundPool != null) {
+                mSounds = new ReplaySoundScheduler(log, mPlayFrom, mPlayTo,
+                        mClock, mSoundPool);
+                mSounds.start();
+            }
 
             invalidate();
         }
     }
 
-    public void reset() {
-        framePointer = 0;
-    }
-
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        long newTime = System.currentTimeMillis();
-
-        mReplayTime += newTime - mLastTime;
-
-        mLastTime = newTime;
-
         if (mIsReplaying) {
-            renderAtTime(mReplayTime, canvas);
+            renderAtTime(mClock.now(), canvas);
 
             invalidate();
         }
@@ -120,41 +313,26 @@ public class ReplayView extends View {
         return (int) Math.round(screenSpaceCoordinate * heightInPixels);
     }
 
+    void stopPlayback() {
+        mClock.stop();
+        if (mSounds != null) {
+            mSounds.stop();
+            mSounds = null;
+        }
+        mPlayDecoder = null;
+    }
+
     void renderAtTime(long time, Canvas cv) {
-        if (framePointer == 0)
+        if (mPlayDecoder == null)
             return;
 
-        int endpoint = frameData.size() - 1;
-        for (int i = lastPointer; i < frameData.size() - 1; i++) {
+        mPlayDecoder.decodeFrame(Math.min(time, mPlayTo), mFrame);
+        mFrame.renderImage(this, cv);
 
-            if (frameData.get(i).timestamp >= time
-                    && time < frameData.get(i + 1).timestamp) {
-                frameData.get(i).renderImage(this, cv);
-                lastPointer = i;
-                return;
-            }
-        }
-
-        if (time > frameData.get(endpoint).timestamp) {
-            frameData.get(endpoint).renderImage(this, cv);
-            lastPointer = 0;
+        if (time > mPlayTo) {
             mIsReplaying = false;
+            stopPlayback();
             Log.e("ReviewView", "Replay over");
-            return;
-        }
-
-        // You must be asking for these out of order, so we'll try again.
-        if (lastPointer > 0) {
-            lastPointer = 0;
-            renderAtTime(time, cv);
-        }
-
-        if (endpoint > 0) {
-            Log.e("ReplayView",
-                    "No frame found: Latest: "
-                            + frameData.get(endpoint).timestamp + " to " + time
-                            + " " + (frameData.get(endpoint).timestamp - time)
-                            + " " + (frameData.get(0).timestamp - time));
         }
     }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.scores;
+
+import com.google.android.gms.games.GamesClient;
+import com.google.android.gms.games.leaderboard.OnScoreSubmittedListener;
+import com.google.android.gms.games.leaderboard.SubmitScoreResult;
+
+/** Submits scores through a connected GamesClient. */
+public class GamesScoreService implements ScoreService {
+    final GamesClient mGamesClient;
+
+    public GamesScoreService(GamesClient gamesClient) {
+        mGamesClient = gamesClient;
+    }
+
+    @Override
+    public void submitScore(String leaderboardId, long score,
+            final Callback callback) {
+        if (!mGamesClient.isConnected()) {
+            callback.onScoreSubmitted(false);
+            return;
+        }
+        try {
+            mGamesClient.submitScoreImmediate(new OnScoreSubmittedListener() {
+                @Override
+                public void onScoreSubmitted(int status, SubmitScoreResult r) {
+                    // deferred means the client has it and will retry itself
+                    callback.onScoreSubmitted(status == GamesClient.STATUS_OK
+                            || status == GamesClient.STATUS_NETWORK_ERROR_OPERATION_DEFERRED);
+                }
+            }, leaderboardId, score);
+        } catch (IllegalStateException ex) {
+            // disconnected since we checked
+            callback.onScoreSubmitted(false);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.scores;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import android.util.Log;
+
+import com.google.android.gms.games.GamesClient;
+import com.google.android.gms.games.leaderboard.LeaderboardBuffer;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+import com.google.android.gms.games.leaderboard.LeaderboardScoreBuffer;
+import com.google.android.gms.games.leaderboard.LeaderboardVariant;
+import com.google.android.gms.games.leaderboard.OnLeaderboardScoresLoadedListener;
+import com.google.example.squash.IoUtils;
+
+/**
+ * What we last saw of a leaderboard: the top TOP_SCORES entries and the
+ * AROUND_PLAYER entries around the player, as sorted primitive arrays, so
+ * the game can ask what rank a score would get without touching the network
+ * or the disk. Refreshes are loaded and merged in the background, and the
+ * result is saved to a file for the next launch.
+ *
+ * Readers see an immutable Snapshot, swapped whole when a refresh lands, so
+ * the queries are safe from any thread and never block. Ranks are exact
+ * inside the cached windows; between them (the players ranked between the
+ * top entries and the ones around the player) a score is given the best
+ * rank it could have.
+ */
+public class LeaderboardCache {
+    static final String TAG = "LeaderboardCache";
+
+    public static final int TOP_SCORES = 25;
+    public static final int AROUND_PLAYER = 25;
+
+    static final int FILE_VERSION = 1;
+
+    /** Entries by ascending rank, the player's among them. */
+    static class Snapshot {
+        final long[] mRanks;
+        final long[] mScores;
+
+        // index of the player's entry, -1 if they're not on the board
+        final int mPlayer;
+
+        Snapshot(long[] ranks, long[] scores, int player) {
+            mRanks = ranks;
+            mScores = scores;
+            mPlayer = player;
+        }
+    }
+
+    static final Snapshot EMPTY = new Snapshot(new long[0], new long[0], -1);
+
+    volatile Snapshot mSnapshot = EMPTY;
+
+    // where it's saved; null for nowhere
+    final File mFile;
+
+    // loads, merges and saves, one at a time
+    final ExecutorService mExecutor = IoUtils
+            .newDaemonExecutor("LeaderboardCache");
+
+    /** Starts loading what was saved in file, if it isn't null. */
+    public LeaderboardCache(File file) {
+        mFile = file;
+        if (file != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            });
+        }
+    }
+
+    /** The player's rank, or 0 if they aren't on the board (that we know). */
+    public long getPlayerRank() {
+        Snapshot s = mSnapshot;
+        return s.mPlayer < 0 ? 0 : s.mRanks[s.mPlayer];
+    }
+
+    public long getPlayerScore() {
+        Snapshot s = mSnapshot;
+        return s.mPlayer < 0 ? 0 : s.mScores[s.mPlayer];
+    }
+
+    /**
+     * The rank the player would have with score, counting only the other
+     * players (so it can be worse than getPlayerRank()), or 0 if nothing is
+     * cached. Ties go to whoever got there first.
+     */
+    public long rankFor(long score) {
+        return rankFor(mSnapshot, score);
+    }
+
+    static long rankFor(Snapshot s, long score) {
+        long[] scores = s.mScores;
+        if (scores.length == 0) {
+            return 0;
+        }
+        // first entry with a lower score (scores are descending)
+        int lo = 0, hi = scores.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (scores[mid] >= score) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int above = lo - 1;
+        if (above == s.mPlayer) {
+            --above;
+        }
+        if (above < 0) {
+            return 1;
+        }
+        // others at or above that entry, then us
+        long others = s.mRanks[above];
+        if (s.mPlayer >= 0 && s.mPlayer < above) {
+            --others;
+        }
+        return others + 1;
+    }
+
+    /**
+     * Copies up to n entries from the top of the board (stopping at the
+     * first gap) into ranks and scores.
+     *
+     * @return how many were copied
+     */
+    public int getTop(int n, long[] ranks, long[] scores) {
+        Snapshot s = mSnapshot;
+        int count = 0;
+        while (count < n && count < s.mRanks.length
+                && s.mRanks[count] == count + 1) {
+            ranks[count] = s.mRanks[count];
+            scores[count] = s.mScores[count];
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Copies up to n cached entries around the player's, best first, into
+     * ranks and scores.
+     *
+     * @return how many were copied; 0 if the player isn't on the board
+     */
+    public int getAroundPlayer(int n, long[] ranks, long[] scores) {
+        Snapshot s = mSnapshot;
+        if (s.mPlayer < 0) {
+            return 0;
+        }
+        int total = s.mRanks.length;
+        int count = Math.min(n, total);
+        int first = Math.max(0, Math.min(s.mPlayer - count / 2, total - count));
+        System.arraycopy(s.mRanks, first, ranks, 0, count);
+        System.arraycopy(s.mScores, first, scores, 0, count);
+        return count;
+    }
+
+    /**
+     * Puts a score the player just got on the board right away, without
+     * waiting for the next refresh, if it beats their best.
+     */
+    public void recordPlayerScore(final long score) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Snapshot s = mSnapshot;
+                if (s.mPlayer >= 0 && s.mScores[s.mPlayer] >= score) {
+                    return;
+                }
+                publish(withPlayerScore(s, score));
+                save();
+            }
+        });
+    }
+
+    /**
+     * Returns s with the player's entry moved to where score puts it. The
+     * entries it passes move down a rank.
+     */
+    static Snapshot withPlayerScore(Snapshot s, long score) {
+        long rank = rankFor(s, score);
+        if (rank == 0) {
+            rank = 1;
+        }
+        int n = s.mRanks.length - (s.mPlayer >= 0 ? 1 : 0);
+        long[] ranks = new long[n + 1];
+        long[] scores = new long[n + 1];
+        int player = -1;
+        int out = 0;
+        for (int i = 0; i < s.mRanks.length; i++) {
+            if (i == s.mPlayer) {
+                continue;
+            }
+            long r = s.mRanks[i];
+            if (player < 0 && s.mScores[i] < score) {
+                player = out;
+                ranks[out] = rank;
+                scores[out++] = score;
+            }
+            boolean passed = player >= 0
+                    && (s.mPlayer < 0 || r < s.mRanks[s.mPlayer]);
+            ranks[out] = passed ? r + 1 : r;
+            scores[out++] = s.mScores[i];
+        }
+        if (player < 0) {
+            player = out;
+            ranks[out] = rank;
+            scores[out] = score;
+        }
+        return new Snapshot(ranks, scores, player);
+    }
+
+    /**
+     * Loads the top scores and the scores around the player (all-time,
+     * public) and replaces the cache with them once both have arrived. The
+     * cache is kept if the scores around the player can't be loaded.
+     */
+    public void refresh(GamesClient games, String leaderboardId) {
+        final Refresh refresh = new Refresh(games.getCurrentPlayerId());
+        games.loadTopScores(refresh.listener(true), leaderboardId,
+                LeaderboardVariant.TIME_SPAN_ALL_TIME,
+                LeaderboardVariant.COLLECTION_PUBLIC, TOP_SCORES);
+        games.loadPlayerCenteredScores(refresh.listener(false),
+                leaderboardId, LeaderboardVariant.TIME_SPAN_ALL_TIME,
+                LeaderboardVariant.COLLECTION_PUBLIC, AROUND_PLAYER);
+    }
+
+    /** The two halves of a refresh, merged on mExecutor. */
+    class Refresh {
+        final String mPlayerId;
+
+        // ranks and scores of each half (null if it failed), and where the
+        // player is in it
+        long[][] mRanks = new long[2][];
+        long[][] mScores = new long[2][];
+        int[] mPlayer = new int[2];
+        int mArrived = 0;
+
+        Refresh(String playerId) {
+            mPlayerId = playerId;
+        }
+
+        OnLeaderboardScoresLoadedListener listener(final boolean top) {
+            return new OnLeaderboardScoresLoadedListener() {
+                @Override
+                public void onLeaderboardScoresLoaded(int status,
+                        LeaderboardBuffer leaderboards,
+                        LeaderboardScoreBuffer buffer) {
+                    final int half = top ? 0 : 1;
+                    boolean ok = status == GamesClient.STATUS_OK
+                            || status == GamesClient.STATUS_NETWORK_ERROR_STALE_DATA;
+                    final long[] ranks;
+                    final long[] scores;
+                    int player = -1;
+                    if (ok && buffer != null) {
+                        int n = buffer.getCount();
+                        ranks = new long[n];
+                        scores = new long[n];
+                        for (int i = 0; i < n; i++) {
+                            LeaderboardScore entry = buffer.get(i);
+                            ranks[i] = entry.getRank();
+                            scores[i] = entry.getRawScore();
+                            if (mPlayerId != null
+                                    && mPlayerId.equals(entry.getScoreHolder()
+                                            .getPlayerId())) {
+                                player = i;
+                            }
+                        }
+                    } else {
+                        ranks = null;
+                        scores = null;
+                    }
+                    if (buffer != null) {
+                        buffer.close();
+                    }
+                    if (leaderboards != null) {
+                        leaderboards.close();
+                    }
+                    final int playerIndex = player;
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            arrived(half, ranks, scores, playerIndex);
+                        }
+                    });
+                }
+            };
+        }
+
+        void arrived(int half, long[] ranks, long[] scores, int player) {
+            mRanks[half] = ranks;
+            mScores[half] = scores;
+            mPlayer[half] = player;
+            if (++mArrived < 2) {
+                return;
+            }
+            if (mRanks[1] == null) {
+                Log.w(TAG, "Couldn't load scores around the player.");
+                return;
+            }
+            publish(merge(mRanks[0], mScores[0], mRanks[1], mScores[1],
+                    mPlayer[1]));
+            save();
+        }
+    }
+
+    /**
+     * Merges the top entries (may be null) with the ones around the player,
+     * dropping any in both.
+     */
+    static Snapshot merge(long[] topRanks, long[] topScores, long[] ranks,
+            long[] scores, int player) {
+        if (topRanks == null) {
+            topRanks = new long[0];
+            topScores = new long[0];
+        }
+        long[] outRanks = new long[topRanks.length + ranks.length];
+        long[] outScores = new long[outRanks.length];
+        int outPlayer = -1;
+        int i = 0, j = 0, n = 0;
+        while (i < topRanks.length || j < ranks.length) {
+            if (j < ranks.length
+                    && (i == topRanks.length || ranks[j] <= topRanks[i])) {
+                if (i < topRanks.length && topRanks[i] == ranks[j]) {
+                    // the same entry in both
+                    ++i;
+                }
+                if (j == player) {
+                    outPlayer = n;
+                }
+                outRanks[n] = ranks[j];
+                outScores[n++] = scores[j++];
+            } else {
+                outRanks[n] = topRanks[i];
+                outScores[n++] = topScores[i++];
+            }
+        }
+        long[] r = new long[n];
+        long[] s = new long[n];
+        System.arraycopy(outRanks, 0, r, 0, n);
+        System.arraycopy(outScores, 0, s, 0, n);
+        return new Snapshot(r, s, outPlayer);
+    }
+
+    void publish(Snapshot s) {
+        mSnapshot = s;
+    }
+
+    void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(
+                    mFile));
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    return;
+                }
+                int player = in.readInt();
+                int n = in.readInt();
+                long[] ranks = new long[n];
+                long[] scores = new long[n];
+                for (int i = 0; i < n; i++) {
+                    ranks[i] = in.readLong();
+                    scores[i] = in.readLong();
+                }
+                // unless a refresh beat us to it
+                if (mSnapshot == EMPTY) {
+                    publish(new Snapshot(ranks, scores, player));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to load leaderboard cache.", ex);
+        }
+    }
+
+    /**
+     * Saves the snapshot: version, player index and entry count (ints), then
+     * rank and score (longs) per entry.
+     */
+    void save() {
+        if (mFile == null) {
+            return;
+        }
+        Snapshot s = mSnapshot;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(s.mPlayer);
+            out.writeInt(s.mRanks.length);
+            for (int i = 0; i < s.mRanks.length; i++) {
+                out.writeLong(s.mRanks[i]);
+                out.writeLong(s.mScores[i]);
+            }
+            IoUtils.writeAtomically(mFile, bytes.toByteArray());
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to save leaderboard cache.", ex);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.scores;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.example.squash.IoUtils;
+
+/**
+ * Leaderboard scores waiting to be submitted. submit() returns at once: the
+ * score is appended to a small journal file on the queue's own thread, so it
+ * survives the app being killed, and sent whenever a ScoreService is set
+ * (see setService(), called on sign-in), in batches of up to BATCH_SIZE
+ * submissions in flight at a time.
+ *
+ * The queue only keeps the best score per leaderboard. The games service
+ * dates a score by when it arrives, not when it was played, so whatever is
+ * waiting lands in the same daily/weekly window once it's flushed and only
+ * the best of it counts; the rest would be wasted requests.
+ *
+ * Journal records: a short payload length, the payload (the leaderboard id
+ * as modified UTF-8, then the score as a long) and its CRC32 as an int. A
+ * torn record at the end is ignored and cut off when loading. The journal is
+ * rewritten with just what's still pending after each batch.
+ *
+ * Thread-safe; the state is confined to the queue's thread.
+ */
+public class ScoreQueue {
+    static final String TAG = "ScoreQueue";
+    static final String JOURNAL_NAME = "scores.journal";
+
+    static final int BATCH_SIZE = 8;
+
+    private static ScoreQueue sInstance;
+
+    static class Pending {
+        final String leaderboardId;
+        long score;
+
+        Pending(String leaderboardId, long score) {
+            this.leaderboardId = leaderboardId;
+            this.score = score;
+        }
+    }
+
+    final File mJournal;
+
+    final ExecutorService mExecutor = IoUtils.newDaemonExecutor("ScoreQueue");
+
+    // the rest is only touched on mExecutor
+
+    // by leaderboard id, oldest first
+    final Map<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+
+    // where to send them; null while signed out
+    ScoreService mService;
+
+    int mInFlight = 0;
+    boolean mBatchFailed = false;
+
+    // records in the journal, pending or not
+    int mJournalRecords = 0;
+
+    // for getPendingCount() from other threads
+    volatile int mPendingCount = 0;
+
+    public ScoreQueue(File journal) {
+        mJournal = journal;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /** The queue of the application, journaled in its files directory. */
+    public static synchronized ScoreQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ScoreQueue(new File(context.getApplicationContext()
+                    .getFilesDir(), JOURNAL_NAME));
+        }
+        return sInstance;
+    }
+
+    /** Queues a score, and sends it right away if there's a service. */
+    public void submit(final String leaderboardId, final long score) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (add(leaderboardId, score)) {
+                    append(leaderboardId, score);
+                }
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Sets where to send scores, and starts sending what's pending. Set null
+     * when signing out; batches already in flight finish, but no more start.
+     */
+    public void setService(final ScoreService service) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mService = service;
+                mBatchFailed = false;
+                flush();
+            }
+        });
+    }
+
+    /** How many scores are waiting to be sent. */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * Keeps score if it's the best for its leaderboard.
+     *
+     * @return false if a better one was already pending
+     */
+    boolean add(String leaderboardId, long score) {
+        Pending p = mPending.get(leaderboardId);
+        if (p == null) {
+            mPending.put(leaderboardId, new Pending(leaderboardId, score));
+            mPendingCount = mPending.size();
+            return true;
+        }
+        if (score <= p.score) {
+            return false;
+        }
+        p.score = score;
+        return true;
+    }
+
+    /** Starts a batch, unless one is in flight or there's nowhere to send it. */
+    void flush() {
+        final ScoreService service = mService;
+        if (service == null || mInFlight > 0 || mPending.isEmpty()) {
+            return;
+        }
+        mBatchFailed = false;
+        List<Pending> batch = new ArrayList<Pending>();
+        for (Pending p : mPending.values()) {
+            if (batch.size() == BATCH_SIZE) {
+                break;
+            }
+            batch.add(p);
+        }
+        mInFlight = batch.size();
+        for (final Pending p : batch) {
+            final long score = p.score;
+            service.submitScore(p.leaderboardId, score,
+                    new ScoreService.Callback() {
+                        @Override
+                        public void onScoreSubmitted(final boolean accepted) {
+                            mExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onSubmitted(p, score, accepted, service);
+                                }
+                            });
+                        }
+                    });
+        }
+    }
+
+    void onSubmitted(Pending p, long score, boolean accepted,
+            ScoreService service) {
+        if (accepted) {
+            // unless a better score came in while this one was on its way
+            if (p.score <= score && mPending.get(p.leaderboardId) == p) {
+                mPending.remove(p.leaderboardId);
+                mPendingCount = mPending.size();
+            }
+        } else {
+            mBatchFailed = true;
+        }
+        if (--mInFlight > 0) {
+            return;
+        }
+        if (mJournalRecords > mPending.size()) {
+            compact();
+        }
+        // after a failure, wait for the next submit() or setService()
+        if (!mBatchFailed && service == mService) {
+            flush();
+        }
+    }
+
+    void load() {
+        if (!mJournal.exists()) {
+            return;
+        }
+        // where the last good record ends
+        long end = 0;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mJournal);
+            DataInputStream data = new DataInputStream(in);
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                int checksum;
+                try {
+                    payload = new byte[data.readUnsignedShort()];
+                    data.readFully(payload);
+                    checksum = data.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    Log.w(TAG, "Score journal is damaged after "
+                            + mJournalRecords + " records.");
+                    break;
+                }
+                DataInputStream record = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                add(record.readUTF(), record.readLong());
+                ++mJournalRecords;
+                end += 2 + payload.length + 4;
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read score journal.", ex);
+        } finally {
+            close(in);
+        }
+        // drop a torn or damaged tail too, or records appended after it
+        // would be lost with it next time
+        if (mJournalRecords > mPending.size() || end < mJournal.length()) {
+            compact();
+        }
+    }
+
+    static byte[] record(String leaderboardId, long score) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(leaderboardId);
+        out.writeLong(score);
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        out = new DataOutputStream(record);
+        out.writeShort(payload.size());
+        payload.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        return record.toByteArray();
+    }
+
+    void append(String leaderboardId, long score) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mJournal, true);
+            out.write(record(leaderboardId, score));
+            out.getFD().sync();
+            ++mJournalRecords;
+        } catch (IOException ex) {
+            // it's still queued while the app runs
+            Log.w(TAG, "Failed to journal score.", ex);
+        } finally {
+            close(out);
+        }
+    }
+
+    /** Rewrites the journal with just what's pending. */
+    void compact() {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (Pending p : mPending.values()) {
+                buf.write(record(p.leaderboardId, p.score));
+            }
+            IoUtils.writeAtomically(mJournal, buf.toByteArray());
+            mJournalRecords = mPending.size();
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to compact score journal.", ex);
+        }
+    }
+
+    static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // nothing left to lose
+            }
+        }
+    }
+}
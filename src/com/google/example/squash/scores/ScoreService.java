@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.scores;
+
+/**
+ * Somewhere to submit leaderboard scores to: the Play games service when
+ * signed in (GamesScoreService), or a local stand-in in tests
+ * (FakeScoreService).
+ */
+public interface ScoreService {
+    /** Hears how one submission went; may be called on any thread. */
+    interface Callback {
+        /**
+         * @param accepted
+         *            True if the score was taken (or queued by the service
+         *            itself), false if it should be submitted again later.
+         */
+        void onScoreSubmitted(boolean accepted);
+    }
+
+    /**
+     * Submits a score without blocking. The callback must be called exactly
+     * once.
+     */
+    void submitScore(String leaderboardId, long score, Callback callback);
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Bundle;
+
+import com.google.android.gms.common.ConnectionResult;
+
+/**
+ * Drives ConnectionCoordinator against FakeClients with different latencies
+ * on a virtual clock.
+ */
+public class ConnectionCoordinatorTest extends TestCase {
+    static final int GAMES = GameHelper.CLIENT_GAMES;
+    static final int PLUS = GameHelper.CLIENT_PLUS;
+    static final int APPSTATE = GameHelper.CLIENT_APPSTATE;
+    static final int ALL = GameHelper.CLIENT_ALL;
+
+    /** Writes down every callback, with the virtual time it came at. */
+    class RecordingListener implements ConnectionCoordinator.Listener {
+        final List<String> mEvents = new ArrayList<String>();
+        long mAllConnectedAt = -1;
+        int mAllConnectedCount = 0;
+
+        @Override
+        public void onClientConnected(int client, Bundle connectionHint) {
+            mEvents.add("connected " + client + " at " + mScheduler.now());
+        }
+
+        @Override
+        public void onClientFailed(int client, ConnectionResult result) {
+            mEvents.add("failed " + client + " at " + mScheduler.now());
+        }
+
+        @Override
+        public void onAllConnected() {
+            mAllConnectedAt = mScheduler.now();
+            mAllConnectedCount++;
+        }
+
+        @Override
+        public void onClientDisconnected(int client) {
+            mEvents.add("disconnected " + client);
+        }
+    }
+
+    FakeClient.Scheduler mScheduler;
+    RecordingListener mListener;
+    ConnectionCoordinator mCoordinator;
+    FakeClient mGames;
+    FakeClient mPlus;
+    FakeClient mAppState;
+
+    @Override
+    protected void setUp() throws Exception {
+        mScheduler = new FakeClient.Scheduler();
+        mListener = new RecordingListener();
+        mCoordinator = new ConnectionCoordinator(mListener,
+                new SignInTimeline());
+        mGames = addClient(GAMES, 300);
+        mPlus = addClient(PLUS, 500);
+        mAppState = addClient(APPSTATE, 200);
+    }
+
+    FakeClient addClient(int client, long latencyMillis) {
+        FakeClient c = new FakeClient(mScheduler, latencyMillis,
+                mCoordinator.callbacksFor(client));
+        mCoordinator.setClient(client, c);
+        return c;
+    }
+
+    public void testConnectsInParallel() {
+        mCoordinator.connect(ALL);
+        assertTrue(mGames.isConnecting());
+        assertTrue(mPlus.isConnecting());
+        assertTrue(mAppState.isConnecting());
+        assertEquals(ALL, mCoordinator.getConnectingClients());
+
+        mScheduler.runAll();
+        // as long as the slowest client, not the sum of them
+        assertEquals(500, mListener.mAllConnectedAt);
+        assertEquals(1, mListener.mAllConnectedCount);
+        assertEquals("[connected 4 at 200, connected 1 at 300, "
+                + "connected 2 at 500]", mListener.mEvents.toString());
+        assertEquals(ALL, mCoordinator.getConnectedClients());
+        assertEquals(GameHelper.CLIENT_NONE,
+                mCoordinator.getConnectingClients());
+        assertEquals(1, mGames.mConnectCalls);
+        assertEquals(1, mPlus.mConnectCalls);
+        assertEquals(1, mAppState.mConnectCalls);
+    }
+
+    public void testOnlyRequestedClientsConnect() {
+        mCoordinator.connect(GAMES | APPSTATE);
+        mScheduler.runAll();
+        assertEquals(300, mListener.mAllConnectedAt);
+        assertEquals(0, mPlus.mConnectCalls);
+        assertEquals(GAMES | APPSTATE, mCoordinator.getConnectedClients());
+    }
+
+    public void testAlreadyConnectedReportsRightAway() {
+        mCoordinator.connect(ALL);
+        mScheduler.runAll();
+        mCoordinator.connect(GAMES | PLUS);
+        assertEquals(2, mListener.mAllConnectedCount);
+        assertEquals(1, mGames.mConnectCalls);
+        assertEquals(1, mPlus.mConnectCalls);
+    }
+
+    public void testFailureOnlyAffectsItsClient() {
+        mPlus.setFailure(ConnectionResult.SIGN_IN_REQUIRED);
+        mCoordinator.connect(ALL);
+        mScheduler.runAll();
+        assertEquals(0, mListener.mAllConnectedCount);
+        assertEquals(GAMES | APPSTATE, mCoordinator.getConnectedClients());
+        assertEquals(PLUS, mCoordinator.getFailedClients());
+        assertEquals(ConnectionResult.SIGN_IN_REQUIRED, mCoordinator
+                .getFailure(PLUS).getErrorCode());
+        assertTrue(mListener.mEvents.contains("failed 2 at 500"));
+
+        // a retry only reconnects the client that failed
+        mPlus.setFailure(ConnectionResult.SUCCESS);
+        mCoordinator.connect(ALL);
+        assertEquals(GameHelper.CLIENT_NONE, mCoordinator.getFailedClients());
+        mScheduler.runAll();
+        assertEquals(1000, mListener.mAllConnectedAt);
+        assertEquals(1, mGames.mConnectCalls);
+        assertEquals(2, mPlus.mConnectCalls);
+        assertEquals(1, mAppState.mConnectCalls);
+    }
+
+    public void testDisconnectAllIgnoresLateCallbacks() {
+        mCoordinator.connect(ALL);
+        mCoordinator.disconnectAll();
+        assertEquals(1, mGames.mDisconnectCalls);
+        assertEquals(GameHelper.CLIENT_NONE,
+                mCoordinator.getConnectingClients());
+
+        // a callback already on its way when we gave up
+        mCoordinator.callbacksFor(GAMES).onConnected(new Bundle());
+        mCoordinator.callbacksFor(PLUS).onConnectionFailed(
+                new ConnectionResult(ConnectionResult.NETWORK_ERROR, null));
+        mScheduler.runAll();
+        assertTrue(mListener.mEvents.isEmpty());
+        assertEquals(0, mListener.mAllConnectedCount);
+        assertEquals(GameHelper.CLIENT_NONE,
+                mCoordinator.getConnectedClients());
+        assertEquals(GameHelper.CLIENT_NONE, mCoordinator.getFailedClients());
+        // and the late connection is let go
+        assertEquals(2, mGames.mDisconnectCalls);
+    }
+
+    public void testLostConnection() {
+        mCoordinator.connect(ALL);
+        mScheduler.runAll();
+        mGames.dropConnection();
+        assertEquals(PLUS | APPSTATE, mCoordinator.getConnectedClients());
+        assertTrue(mListener.mEvents.contains("disconnected 1"));
+
+        mCoordinator.connect(GAMES);
+        mScheduler.runAll();
+        assertEquals(ALL, mCoordinator.getConnectedClients());
+        assertEquals(800, mListener.mAllConnectedAt);
+    }
+
+    public void testReconnect() {
+        mCoordinator.connect(ALL);
+        mScheduler.runAll();
+        mCoordinator.reconnect(APPSTATE);
+        assertEquals(1, mAppState.mDisconnectCalls);
+        assertEquals(APPSTATE, mCoordinator.getConnectingClients());
+        mScheduler.runAll();
+        assertEquals(ALL, mCoordinator.getConnectedClients());
+        assertEquals(700, mListener.mAllConnectedAt);
+        assertEquals(2, mListener.mAllConnectedCount);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+import java.util.PriorityQueue;
+
+import android.os.Bundle;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesClient;
+
+/**
+ * A Play services client that connects (or fails to) after an injected
+ * latency on a virtual clock, so tests of parallel connection run instantly
+ * and can check exactly when things happened. Like a real client, it calls
+ * back only the listeners it was built with, and an explicit disconnect()
+ * cancels a connection in progress without calling back.
+ */
+class FakeClient implements GooglePlayServicesClient {
+    /** A virtual clock and the callbacks scheduled on it. */
+    static class Scheduler {
+        static class Task implements Comparable<Task> {
+            final long mTime;
+            final long mOrder;
+            final Runnable mRunnable;
+
+            Task(long time, long order, Runnable runnable) {
+                mTime = time;
+                mOrder = order;
+                mRunnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (mTime != other.mTime) {
+                    return mTime < other.mTime ? -1 : 1;
+                }
+                return mOrder < other.mOrder ? -1
+                        : mOrder > other.mOrder ? 1 : 0;
+            }
+        }
+
+        final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+        long mNow = 0;
+        long mPosted = 0;
+
+        long now() {
+            return mNow;
+        }
+
+        void post(long delayMillis, Runnable r) {
+            mTasks.add(new Task(mNow + delayMillis, mPosted++, r));
+        }
+
+        /** Runs everything scheduled, in time order, advancing the clock. */
+        void runAll() {
+            Task task;
+            while ((task = mTasks.poll()) != null) {
+                mNow = task.mTime;
+                task.mRunnable.run();
+            }
+        }
+    }
+
+    final Scheduler mScheduler;
+    final long mLatencyMillis;
+    final ConnectionCallbacks mCallbacks;
+    final OnConnectionFailedListener mFailedListener;
+
+    // error code the next connection attempt fails with, or SUCCESS
+    int mFailWith = ConnectionResult.SUCCESS;
+
+    boolean mConnected;
+    boolean mConnecting;
+
+    // bumped by disconnect(), so a pending connection knows it's stale
+    int mAttempt;
+
+    int mConnectCalls;
+    int mDisconnectCalls;
+
+    FakeClient(Scheduler scheduler, long latencyMillis,
+            ConnectionCoordinator.Callbacks callbacks) {
+        mScheduler = scheduler;
+        mLatencyMillis = latencyMillis;
+        mCallbacks = callbacks;
+        mFailedListener = callbacks;
+    }
+
+    void setFailure(int errorCode) {
+        mFailWith = errorCode;
+    }
+
+    /** The service drops the connection, as if it had crashed. */
+    void dropConnection() {
+        if (mConnected) {
+            mConnected = false;
+            mCallbacks.onDisconnected();
+        }
+    }
+
+    @Override
+    public void connect() {
+        mConnectCalls++;
+        if (mConnected || mConnecting) {
+            return;
+        }
+        mConnecting = true;
+        final int attempt = mAttempt;
+        mScheduler.post(mLatencyMillis, new Runnable() {
+            @Override
+            public void run() {
+                if (attempt != mAttempt) {
+                    return;
+                }
+                mConnecting = false;
+                if (mFailWith != ConnectionResult.SUCCESS) {
+                    mFailedListener.onConnectionFailed(new ConnectionResult(
+                            mFailWith, null));
+                } else {
+                    mConnected = true;
+                    mCallbacks.onConnected(new Bundle());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        mDisconnectCalls++;
+        mConnected = false;
+        mConnecting = false;
+        mAttempt++;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return mConnecting;
+    }
+
+    @Override
+    public void registerConnectionCallbacks(ConnectionCallbacks listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isConnectionCallbacksRegistered(
+            ConnectionCallbacks listener) {
+        return listener == mCallbacks;
+    }
+
+    @Override
+    public void unregisterConnectionCallbacks(ConnectionCallbacks listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void registerConnectionFailedListener(
+            OnConnectionFailedListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isConnectionFailedListenerRegistered(
+            OnConnectionFailedListener listener) {
+        return listener == mFailedListener;
+    }
+
+    @Override
+    public void unregisterConnectionFailedListener(
+            OnConnectionFailedListener listener) {
+        throw new UnsupportedOperationException();
+    }
+}
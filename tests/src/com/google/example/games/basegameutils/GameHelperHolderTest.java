@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.games.basegameutils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.example.games.basegameutils.GameHelper.GameHelperListener;
+
+/**
+ * Checks GameHelperHolder's ref counting and grace period on a Handler that
+ * runs its posts only when the test moves its virtual clock on.
+ */
+public class GameHelperHolderTest extends TestCase {
+    static final long GRACE = 1000;
+
+    /** Keeps delayed posts until advance() reaches them. */
+    static class FakeHandler extends Handler {
+        final List<Runnable> mRunnables = new ArrayList<Runnable>();
+        final List<Long> mTimes = new ArrayList<Long>();
+        long mNow = 0;
+
+        FakeHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean postDelayed(Runnable r, long delayMillis) {
+            mRunnables.add(r);
+            mTimes.add(mNow + delayMillis);
+            return true;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            for (int i = mRunnables.size() - 1; i >= 0; i--) {
+                if (mRunnables.get(i) == r) {
+                    mRunnables.remove(i);
+                    mTimes.remove(i);
+                }
+            }
+        }
+
+        void advance(long millis) {
+            mNow += millis;
+            for (int i = 0; i < mRunnables.size();) {
+                if (mTimes.get(i) <= mNow) {
+                    Runnable r = mRunnables.remove(i);
+                    mTimes.remove(i);
+                    r.run();
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /** Counts onStart()/onStop() instead of connecting anything. */
+    static class FakeHelper extends GameHelper {
+        int mStarts = 0;
+        int mStops = 0;
+        boolean mSignedIn = false;
+
+        FakeHelper() {
+            super(null);
+        }
+
+        @Override
+        public void onStart(Activity act) {
+            mActivity = act;
+            mStarts++;
+        }
+
+        @Override
+        public void onStop() {
+            mActivity = null;
+            mStops++;
+        }
+
+        @Override
+        public boolean isSignedIn() {
+            return mSignedIn;
+        }
+    }
+
+    static class CountingListener implements GameHelperListener {
+        int mSucceeded = 0;
+
+        @Override
+        public void onSignInFailed() {
+        }
+
+        @Override
+        public void onSignInSucceeded() {
+            mSucceeded++;
+        }
+    }
+
+    FakeHandler mHandler;
+    FakeHelper mHelper;
+    GameHelperHolder mHolder;
+    Activity mFirst;
+    Activity mSecond;
+
+    @Override
+    protected void setUp() {
+        mHandler = new FakeHandler();
+        mHelper = new FakeHelper();
+        mHolder = new GameHelperHolder(mHandler, GRACE);
+        mHolder.mHelper = mHelper;
+        mFirst = new Activity();
+        mSecond = new Activity();
+    }
+
+    public void testDisconnectsAfterGrace() {
+        CountingListener listener = new CountingListener();
+        mHolder.acquire(mFirst, listener);
+        mHolder.release(mFirst, listener);
+        assertNull(mHelper.mActivity);
+        assertNull(mHelper.mListener);
+
+        mHandler.advance(GRACE - 1);
+        assertEquals(0, mHelper.mStops);
+        mHandler.advance(1);
+        assertEquals(1, mHelper.mStops);
+    }
+
+    public void testHandoverKeepsConnections() {
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+        mHolder.acquire(mFirst, first);
+        // the next activity starts before the last one stops
+        mHolder.acquire(mSecond, second);
+        mHolder.release(mFirst, first);
+        assertEquals(1, mHolder.mRefCount);
+        assertSame(mSecond, mHelper.mActivity);
+        assertSame(second, mHelper.mListener);
+
+        mHandler.advance(10 * GRACE);
+        assertEquals(0, mHelper.mStops);
+        assertTrue(mHandler.mRunnables.isEmpty());
+    }
+
+    public void testReacquireWithinGraceReuses() {
+        CountingListener listener = new CountingListener();
+        mHolder.acquire(mFirst, listener);
+        mHelper.mSignedIn = true;
+        mHolder.release(mFirst, listener);
+        mHandler.advance(GRACE / 2);
+
+        mHolder.acquire(mSecond, listener);
+        assertFalse(mHolder.mDisconnectPending);
+        assertEquals(1, listener.mSucceeded);
+        mHandler.advance(10 * GRACE);
+        assertEquals(0, mHelper.mStops);
+
+        // and a later release starts a fresh grace period
+        mHolder.release(mSecond, listener);
+        mHandler.advance(GRACE - 1);
+        assertEquals(0, mHelper.mStops);
+        mHandler.advance(1);
+        assertEquals(1, mHelper.mStops);
+    }
+
+    public void testNoGraceTimerDuringResolution() {
+        CountingListener listener = new CountingListener();
+        mHolder.acquire(mFirst, listener);
+        mHelper.mExpectingResolution = true;
+        mHolder.release(mFirst, listener);
+        assertFalse(mHolder.mDisconnectPending);
+        assertTrue(mHandler.mRunnables.isEmpty());
+
+        // the activity comes back for its result
+        mHolder.acquire(mFirst, listener);
+        mHelper.mExpectingResolution = false;
+        mHolder.release(mFirst, listener);
+        mHandler.advance(GRACE);
+        assertEquals(1, mHelper.mStops);
+    }
+
+    public void testReleaseWithoutAcquireThrows() {
+        try {
+            mHolder.release(mFirst, null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testFailureWithoutActivityWaitsForOnStart() {
+        GameHelper helper = new GameHelper(null);
+        helper.mState = GameHelper.STATE_CONNECTING;
+        helper.mUserInitiatedSignIn = true;
+        helper.mConnectionResult = new ConnectionResult(
+                ConnectionResult.SIGN_IN_REQUIRED, null);
+        helper.resolveConnectionResult();
+        assertTrue(helper.mResolutionPending);
+        assertFalse(helper.mExpectingResolution);
+        assertEquals(GameHelper.STATE_CONNECTING, helper.mState);
+    }
+}
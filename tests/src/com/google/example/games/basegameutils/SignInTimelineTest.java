@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.basegameutils;
+
+import junit.framework.TestCase;
+
+/**
+ * Spans in the ring, and what happens to sequence numbers held across clear()
+ * and wrap-around.
+ */
+public class SignInTimelineTest extends TestCase {
+    SignInTimeline mTimeline = new SignInTimeline();
+
+    public void testBeginAndEnd() {
+        long span = mTimeline.begin(SignInTimeline.CONNECT_CLIENT,
+                GameHelper.CLIENT_GAMES);
+        assertEquals(SignInTimeline.OPEN, mTimeline.getOutcome(span));
+        assertEquals(-1, mTimeline.getDurationMillis(span));
+
+        mTimeline.end(span, SignInTimeline.SUCCEEDED);
+        assertEquals(SignInTimeline.SUCCEEDED, mTimeline.getOutcome(span));
+        assertEquals(GameHelper.CLIENT_GAMES, mTimeline.getClient(span));
+        assertTrue(mTimeline.getDurationMillis(span) >= 0);
+
+        // only the first end() counts
+        mTimeline.end(span, SignInTimeline.FAILED);
+        assertEquals(SignInTimeline.SUCCEEDED, mTimeline.getOutcome(span));
+    }
+
+    public void testStaleSpanAfterClear() {
+        long stale = mTimeline.begin(SignInTimeline.START_CONNECTIONS,
+                GameHelper.CLIENT_NONE);
+        mTimeline.clear();
+        assertEquals(mTimeline.end(), mTimeline.first());
+        assertEquals(-1, mTimeline.getLastSignInMillis());
+
+        long fresh = mTimeline.begin(SignInTimeline.START_CONNECTIONS,
+                GameHelper.CLIENT_NONE);
+        assertTrue(fresh != stale);
+        mTimeline.end(stale, SignInTimeline.CANCELED);
+        assertEquals(SignInTimeline.OPEN, mTimeline.getOutcome(fresh));
+        try {
+            mTimeline.getOutcome(stale);
+            fail("cleared span still readable");
+        } catch (IndexOutOfBoundsException ex) {
+            // expected
+        }
+    }
+
+    public void testRingKeepsLastCapacity() {
+        long first = mTimeline.begin(SignInTimeline.CONNECT_CLIENT,
+                GameHelper.CLIENT_PLUS);
+        for (int i = 0; i < SignInTimeline.CAPACITY; i++) {
+            mTimeline.begin(SignInTimeline.CONNECT_CLIENT,
+                    GameHelper.CLIENT_GAMES);
+        }
+        assertEquals(first + 1, mTimeline.first());
+        // ending a span that has dropped out must not touch its slot's
+        // new occupant
+        mTimeline.end(first, SignInTimeline.FAILED);
+        assertEquals(SignInTimeline.OPEN,
+                mTimeline.getOutcome(mTimeline.end() - 1));
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.recordablesoundpool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Encodes PCM with FlacSink and decodes the file with a small FLAC decoder
+ * (just what the sink writes: fixed predictors, constant and verbatim
+ * subframes, Rice-coded residuals), checking that every sample comes back
+ * exactly and that STREAMINFO and the CRCs agree with the frames.
+ */
+public class FlacSinkTest extends TestCase {
+    static final int RATE = 44100;
+
+    File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("sink", ".flac");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    /** What the decoder found. */
+    static class Decoded {
+        int sampleRate;
+        int channels;
+        int bitsPerSample;
+        long totalFrames;
+        int minFrameBytes;
+        int maxFrameBytes;
+        byte[] md5 = new byte[16];
+        int frameCount;
+        short[] samples;
+
+        // subframes seen of each kind, and frames of each channel assignment
+        int constant;
+        int verbatim;
+        int fixed;
+        final int[] assignments = new int[16];
+    }
+
+    /** Reads big-endian bit fields. */
+    static class BitReader {
+        final byte[] mData;
+        int mBit = 0;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        long read(int n) {
+            long v = 0;
+            for (int i = 0; i < n; i++) {
+                int b = mData[mBit >> 3] >> (7 - (mBit & 7)) & 1;
+                v = v << 1 | b;
+                ++mBit;
+            }
+            return v;
+        }
+
+        int readInt(int n) {
+            return (int) read(n);
+        }
+
+        int readSigned(int n) {
+            long v = read(n);
+            return (int) (v << (64 - n) >> (64 - n));
+        }
+
+        int readUnary() {
+            int q = 0;
+            while (read(1) == 0) {
+                ++q;
+            }
+            return q;
+        }
+
+        void alignToByte() {
+            mBit = (mBit + 7) & ~7;
+        }
+
+        int bytePosition() {
+            return mBit >> 3;
+        }
+
+        boolean atEnd() {
+            return mBit >= mData.length * 8;
+        }
+    }
+
+    static Decoded decode(byte[] flac) throws IOException {
+        Decoded d = new Decoded();
+        BitReader in = new BitReader(flac);
+        assertEquals(0x664c6143, in.readInt(32)); // "fLaC"
+        boolean last;
+        do {
+            last = in.read(1) == 1;
+            int type = in.readInt(7);
+            int length = in.readInt(24);
+            assertEquals("only STREAMINFO is written", 0, type);
+            assertEquals(34, length);
+            assertEquals(FlacSink.BLOCK_FRAMES, in.readInt(16));
+            assertEquals(FlacSink.BLOCK_FRAMES, in.readInt(16));
+            d.minFrameBytes = in.readInt(24);
+            d.maxFrameBytes = in.readInt(24);
+            d.sampleRate = in.readInt(20);
+            d.channels = in.readInt(3) + 1;
+            d.bitsPerSample = in.readInt(5) + 1;
+            d.totalFrames = in.read(36);
+            for (int i = 0; i < 16; i++) {
+                d.md5[i] = (byte) in.read(8);
+            }
+        } while (!last);
+        assertEquals(2, d.channels);
+        assertEquals(16, d.bitsPerSample);
+
+        short[] out = new short[(int) d.totalFrames * 2];
+        int outFrames = 0;
+        int[][] channels = new int[2][FlacSink.BLOCK_FRAMES];
+        while (!in.atEnd()) {
+            int frameStart = in.bytePosition();
+            assertEquals(0xfff8, in.readInt(16)); // sync, fixed block size
+            int blockSizeCode = in.readInt(4);
+            assertEquals(FlacSink.sampleRateCode(d.sampleRate), in.readInt(4));
+            int assignment = in.readInt(4);
+            assertEquals(4, in.readInt(3));
+            assertEquals(0, in.read(1));
+            assertEquals(d.frameCount, readUtf8(in));
+            int n;
+            if (blockSizeCode == 6) {
+                n = in.readInt(8) + 1;
+            } else if (blockSizeCode == 7) {
+                n = in.readInt(16) + 1;
+            } else {
+                assertEquals(12, blockSizeCode);
+                n = 256 << (blockSizeCode - 8);
+            }
+            int headerBytes = in.bytePosition() - frameStart;
+            assertEquals(FlacSink.crc8(slice(flac, frameStart, headerBytes),
+                    headerBytes), in.readInt(8));
+
+            for (int ch = 0; ch < 2; ch++) {
+                boolean side = (assignment == FlacSink.LEFT_SIDE && ch == 1)
+                        || (assignment == FlacSink.RIGHT_SIDE && ch == 0)
+                        || (assignment == FlacSink.MID_SIDE && ch == 1);
+                readSubframe(in, d, channels[ch], n, side ? 17 : 16);
+            }
+            in.alignToByte();
+            int frameBytes = in.bytePosition() - frameStart;
+            assertEquals(FlacSink.crc16(slice(flac, frameStart, frameBytes),
+                    frameBytes), in.readInt(16));
+            frameBytes += 2;
+            assertTrue(frameBytes >= d.minFrameBytes);
+            assertTrue(frameBytes <= d.maxFrameBytes);
+
+            for (int i = 0; i < n; i++) {
+                int a = channels[0][i], b = channels[1][i];
+                int l, r;
+                switch (assignment) {
+                case FlacSink.LEFT_SIDE:
+                    l = a;
+                    r = a - b;
+                    break;
+                case FlacSink.RIGHT_SIDE:
+                    l = a + b;
+                    r = b;
+                    break;
+                case FlacSink.MID_SIDE:
+                    int mid = a << 1 | (b & 1);
+                    l = (mid + b) >> 1;
+                    r = (mid - b) >> 1;
+                    break;
+                default:
+                    assertEquals(FlacSink.INDEPENDENT, assignment);
+                    l = a;
+                    r = b;
+                    break;
+                }
+                out[(outFrames + i) * 2] = (short) l;
+                out[(outFrames + i) * 2 + 1] = (short) r;
+            }
+            outFrames += n;
+            ++d.frameCount;
+            ++d.assignments[assignment];
+        }
+        assertEquals(d.totalFrames, outFrames);
+        d.samples = out;
+        return d;
+    }
+
+    static byte[] slice(byte[] data, int offset, int length) {
+        byte[] b = new byte[length];
+        System.arraycopy(data, offset, b, 0, length);
+        return b;
+    }
+
+    static int readUtf8(BitReader in) {
+        int lead = in.readInt(8);
+        if (lead < 0x80) {
+            return lead;
+        }
+        int extra = 0;
+        while ((lead << (extra + 1) & 0x80) != 0) {
+            ++extra;
+        }
+        int value = lead & (0x3f >> extra);
+        for (int i = 0; i < extra; i++) {
+            int b = in.readInt(8);
+            assertEquals(0x80, b & 0xc0);
+            value = value << 6 | (b & 0x3f);
+        }
+        return value;
+    }
+
+    static void readSubframe(BitReader in, Decoded d, int[] x, int n,
+            int bps) {
+        assertEquals(0, in.read(1));
+        int type = in.readInt(6);
+        assertEquals("no wasted bits", 0, in.read(1));
+        if (type == 0) {
+            ++d.constant;
+            Arrays.fill(x, 0, n, in.readSigned(bps));
+            return;
+        }
+        if (type == 1) {
+            ++d.verbatim;
+            for (int i = 0; i < n; i++) {
+                x[i] = in.readSigned(bps);
+            }
+            return;
+        }
+        assertTrue("fixed predictor, not " + type, type >= 8 && type <= 12);
+        ++d.fixed;
+        int order = type & 7;
+        for (int i = 0; i < order; i++) {
+            x[i] = in.readSigned(bps);
+        }
+        assertEquals("4-bit Rice parameters", 0, in.read(2));
+        int partitionOrder = in.readInt(4);
+        int i = order;
+        for (int p = 0; p < 1 << partitionOrder; p++) {
+            int count = (n >> partitionOrder) - (p == 0 ? order : 0);
+            int k = in.readInt(4);
+            assertTrue(k < 15);
+            for (int j = 0; j < count; j++) {
+                int u = in.readUnary() << k | in.readInt(k);
+                x[i++] = (u >>> 1) ^ -(u & 1);
+            }
+        }
+        for (i = order; i < n; i++) {
+            switch (order) {
+            case 0:
+                break;
+            case 1:
+                x[i] += x[i - 1];
+                break;
+            case 2:
+                x[i] += 2 * x[i - 1] - x[i - 2];
+                break;
+            case 3:
+                x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                break;
+            default:
+                x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3]
+                        - x[i - 4];
+                break;
+            }
+        }
+    }
+
+    static byte[] toBytes(short[] samples) {
+        byte[] b = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            b[i * 2] = (byte) samples[i];
+            b[i * 2 + 1] = (byte) (samples[i] >> 8);
+        }
+        return b;
+    }
+
+    /** Encodes samples, written in uneven pieces, and decodes them again. */
+    Decoded roundTrip(short[] samples) throws Exception {
+        byte[] pcm = toBytes(samples);
+        FlacSink sink = new FlacSink(new FileOutputStream(mFile), RATE);
+        Random random = new Random(1);
+        for (int o = 0; o < pcm.length;) {
+            int n = Math.min(pcm.length - o, 1 + random.nextInt(5000));
+            sink.write(pcm, o, n);
+            o += n;
+        }
+        sink.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        byte[] flac = new byte[(int) file.length()];
+        try {
+            file.readFully(flac);
+        } finally {
+            file.close();
+        }
+        Decoded d = decode(flac);
+        assertEquals(RATE, d.sampleRate);
+        assertEquals(samples.length / 2, d.totalFrames);
+        assertTrue(Arrays.equals(samples, d.samples));
+        assertTrue(Arrays.equals(MessageDigest.getInstance("MD5")
+                .digest(pcm), d.md5));
+        return d;
+    }
+
+    static short[] tone(int frames, double hz, int amplitude) {
+        short[] s = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double t = 2 * Math.PI * hz * i / RATE;
+            s[i * 2] = (short) (amplitude * Math.sin(t));
+            s[i * 2 + 1] = (short) (amplitude * 0.8 * Math.sin(t + 0.3));
+        }
+        return s;
+    }
+
+    public void testSilence() throws Exception {
+        Decoded d = roundTrip(new short[FlacSink.BLOCK_FRAMES * 2 * 3]);
+        assertEquals(3, d.frameCount);
+        // constant subframes: a few bytes a block
+        assertEquals(6, d.constant);
+        assertTrue(d.maxFrameBytes < 16);
+    }
+
+    public void testTonesAndPartialLastBlock() throws Exception {
+        Decoded d = roundTrip(tone(3 * FlacSink.BLOCK_FRAMES + 1000, 440,
+                12000));
+        assertEquals(4, d.frameCount);
+        assertEquals(8, d.fixed);
+    }
+
+    public void testShortLastBlock() throws Exception {
+        // 100 frames in the last block: 8-bit block size in its header
+        roundTrip(tone(FlacSink.BLOCK_FRAMES + 100, 1000, 3000));
+        roundTrip(tone(1, 1000, 3000));
+    }
+
+    public void testFullScaleNoise() throws Exception {
+        Random random = new Random(42);
+        short[] s = new short[2 * FlacSink.BLOCK_FRAMES * 2];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = (short) random.nextInt();
+        }
+        // extremes too, where side needs all 17 bits
+        s[0] = Short.MAX_VALUE;
+        s[1] = Short.MIN_VALUE;
+        s[2] = Short.MIN_VALUE;
+        s[3] = Short.MAX_VALUE;
+        Decoded d = roundTrip(s);
+        assertEquals(4, d.verbatim);
+    }
+
+    public void testIdenticalAndOppositeChannels() throws Exception {
+        short[] s = tone(FlacSink.BLOCK_FRAMES * 2, 220, 20000);
+        for (int i = 0; i < s.length / 2; i += 2) {
+            s[i + 1] = s[i];
+        }
+        for (int i = s.length / 2; i < s.length; i += 2) {
+            s[i + 1] = (short) -s[i];
+        }
+        Decoded d = roundTrip(s);
+        // identical channels have no side; opposite ones no mid
+        assertEquals(2, d.frameCount - d.assignments[FlacSink.INDEPENDENT]);
+    }
+
+    public void testEmpty() throws Exception {
+        Decoded d = roundTrip(new short[0]);
+        assertEquals(0, d.frameCount);
+    }
+
+    public void testManyFrames() throws Exception {
+        // more than 127 frames, so frame numbers take two UTF-8 bytes
+        Decoded d = roundTrip(tone(200 * FlacSink.BLOCK_FRAMES, 50, 100));
+        assertEquals(200, d.frameCount);
+    }
+}
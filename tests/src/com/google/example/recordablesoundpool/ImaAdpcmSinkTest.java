@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.recordablesoundpool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Encodes PCM with ImaAdpcmSink and decodes the WAV file as a player would
+ * (the standard IMA decoder, block by block), checking the header, that the
+ * first sample of each block is exact and that the rest stays close to the
+ * input.
+ */
+public class ImaAdpcmSinkTest extends TestCase {
+    static final int RATE = 22050;
+    static final int FRAMES = ImaAdpcmSink.FRAMES_PER_BLOCK;
+
+    File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("sink", ".wav");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    static byte[] toBytes(short[] samples) {
+        byte[] b = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            b[i * 2] = (byte) samples[i];
+            b[i * 2 + 1] = (byte) (samples[i] >> 8);
+        }
+        return b;
+    }
+
+    /** Encodes samples, checks the WAV header, and decodes the data. */
+    short[] roundTrip(short[] samples) throws Exception {
+        AudioSink sink = ImaAdpcmSink.FACTORY.create(new FileOutputStream(
+                mFile), RATE);
+        sink.write(toBytes(samples));
+        sink.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        byte[] wav = new byte[(int) file.length()];
+        try {
+            file.readFully(wav);
+        } finally {
+            file.close();
+        }
+        ByteBuffer b = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        int frames = samples.length / 2;
+        int blocks = (frames + FRAMES - 1) / FRAMES;
+        int dataBytes = blocks * ImaAdpcmSink.BLOCK_ALIGN;
+        assertEquals(ImaAdpcmSink.HEADER_BYTES + dataBytes, wav.length);
+        assertEquals(0x46464952, b.getInt(0)); // RIFF
+        assertEquals(wav.length - 8, b.getInt(4));
+        assertEquals(0x45564157, b.getInt(8)); // WAVE
+        assertEquals(0x20746d66, b.getInt(12)); // fmt
+        assertEquals(ImaAdpcmSink.FORMAT_IMA_ADPCM, b.getShort(20));
+        assertEquals(2, b.getShort(22));
+        assertEquals(RATE, b.getInt(24));
+        assertEquals(ImaAdpcmSink.BLOCK_ALIGN, b.getShort(32));
+        assertEquals(4, b.getShort(34));
+        assertEquals(FRAMES, b.getShort(38));
+        assertEquals(0x74636166, b.getInt(40)); // fact
+        assertEquals(frames, b.getInt(48));
+        assertEquals(0x61746164, b.getInt(52)); // data
+        assertEquals(dataBytes, b.getInt(56));
+
+        short[] out = new short[blocks * FRAMES * 2];
+        for (int block = 0; block < blocks; block++) {
+            decodeBlock(b, ImaAdpcmSink.HEADER_BYTES + block
+                    * ImaAdpcmSink.BLOCK_ALIGN, out, block * FRAMES * 2);
+        }
+        // the fact chunk says where the sound ends
+        short[] trimmed = new short[frames * 2];
+        System.arraycopy(out, 0, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+
+    static void decodeBlock(ByteBuffer b, int offset, short[] out, int o) {
+        int[] predictor = new int[2];
+        int[] index = new int[2];
+        for (int ch = 0; ch < 2; ch++) {
+            predictor[ch] = b.getShort(offset + ch * 4);
+            index[ch] = b.get(offset + ch * 4 + 2);
+            assertTrue(index[ch] >= 0 && index[ch] <= 88);
+            assertEquals(0, b.get(offset + ch * 4 + 3));
+            out[o + ch] = (short) predictor[ch];
+        }
+        int in = offset + 8;
+        for (int frame = 1; frame < FRAMES; frame += 8) {
+            for (int ch = 0; ch < 2; ch++) {
+                for (int k = 0; k < 8; k += 2) {
+                    int packed = b.get(in++) & 0xff;
+                    for (int half = 0; half < 2; half++) {
+                        int nibble = packed >> (4 * half) & 0xf;
+                        int step = ImaAdpcmSink.STEP_SIZES[index[ch]];
+                        int diff = step >> 3;
+                        if ((nibble & 4) != 0) {
+                            diff += step;
+                        }
+                        if ((nibble & 2) != 0) {
+                            diff += step >> 1;
+                        }
+                        if ((nibble & 1) != 0) {
+                            diff += step >> 2;
+                        }
+                        int p = predictor[ch]
+                                + ((nibble & 8) != 0 ? -diff : diff);
+                        predictor[ch] = Math.max(-32768, Math.min(32767, p));
+                        index[ch] = Math.max(0, Math.min(88, index[ch]
+                                + ImaAdpcmSink.INDEX_ADJUST[nibble & 7]));
+                        out[o + (frame + k + half) * 2 + ch] =
+                                (short) predictor[ch];
+                    }
+                }
+            }
+        }
+    }
+
+    /** Signal to noise ratio of decoded against the input, in dB. */
+    static double snr(short[] input, short[] decoded) {
+        double signal = 0, noise = 0;
+        for (int i = 0; i < input.length; i++) {
+            signal += (double) input[i] * input[i];
+            double e = input[i] - decoded[i];
+            noise += e * e;
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1));
+    }
+
+    static short[] tone(int frames, double hz, int amplitude) {
+        short[] s = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double t = 2 * Math.PI * hz * i / RATE;
+            s[i * 2] = (short) (amplitude * Math.sin(t));
+            s[i * 2 + 1] = (short) (amplitude * 0.5 * Math.sin(3 * t));
+        }
+        return s;
+    }
+
+    public void testFirstSampleOfEachBlockIsExact() throws Exception {
+        short[] input = tone(3 * FRAMES + 17, 440, 10000);
+        short[] decoded = roundTrip(input);
+        for (int f = 0; f < input.length / 2; f += FRAMES) {
+            assertEquals(input[f * 2], decoded[f * 2]);
+            assertEquals(input[f * 2 + 1], decoded[f * 2 + 1]);
+        }
+    }
+
+    public void testTonesStayClose() throws Exception {
+        short[] input = tone(10 * FRAMES, 440, 20000);
+        double snr = snr(input, roundTrip(input));
+        assertTrue("SNR " + snr, snr > 28);
+    }
+
+    public void testSilenceIsExact() throws Exception {
+        short[] input = new short[2 * FRAMES * 2];
+        short[] decoded = roundTrip(input);
+        for (short s : decoded) {
+            // at the smallest step, 7, a zero nibble adds 7 >> 3 = 0
+            assertEquals(0, s);
+        }
+    }
+
+    public void testNoiseAndPartialBlock() throws Exception {
+        Random random = new Random(3);
+        short[] input = new short[(FRAMES + 5) * 2];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (random.nextGaussian() * 3000);
+        }
+        double snr = snr(input, roundTrip(input));
+        assertTrue("SNR " + snr, snr > 12);
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals(0, roundTrip(new short[0]).length);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.recordablesoundpool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Mixes the same events in parallel segments and with one PcmMixer from
+ * start to end, and checks the two are bit-identical, voices at other rates
+ * (through the Resampler) and voices ringing across segments included.
+ */
+public class ParallelMixdownTest extends TestCase {
+    // low, so segments are short and plenty of voices cross them
+    static final int RATE = 8000;
+
+    static PcmSound sound(String name, int frames, double hz) {
+        short[] s = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double t = 2 * Math.PI * hz * i / RATE;
+            double fade = 1 - (double) i / frames;
+            s[i * 2] = (short) (12000 * fade * Math.sin(t));
+            s[i * 2 + 1] = (short) (9000 * fade * Math.sin(1.5 * t));
+        }
+        return new PcmSound(name, RATE, ShortBuffer.wrap(s));
+    }
+
+    static final float[] RATES = { 1f, 1f, 1.5f, 0.75f, 2f, 0.5f, 1.26f };
+
+    long[] mStarts;
+    PcmSound[] mSounds;
+    float[] mVolumes;
+    float[] mPans;
+    float[] mRates;
+
+    ParallelMixdown build(int events, long length) {
+        Random random = new Random(7);
+        PcmSound[] sounds = { sound("blip", 400, 880),
+                sound("long", 3 * RATE, 110),
+                // longer than a segment
+                sound("drone", 5 * RATE, 55) };
+        mStarts = new long[events];
+        mSounds = new PcmSound[events];
+        mVolumes = new float[events];
+        mPans = new float[events];
+        mRates = new float[events];
+        ParallelMixdown mixdown = new ParallelMixdown(RATE);
+        for (int i = 0; i < events; i++) {
+            mStarts[i] = (long) (length * (i / (double) events))
+                    + random.nextInt(100);
+            mSounds[i] = sounds[random.nextInt(sounds.length)];
+            mVolumes[i] = 0.2f + random.nextFloat() * 0.8f;
+            mPans[i] = random.nextFloat() * 2 - 1;
+            mRates[i] = RATES[random.nextInt(RATES.length)];
+            mixdown.add(mStarts[i], mSounds[i], mVolumes[i], mPans[i],
+                    mRates[i]);
+        }
+        return mixdown;
+    }
+
+    /** The whole timeline with one mixer, in chunks of chunkFrames. */
+    byte[] mixSequentially(long length, int chunkFrames) {
+        PcmMixer mixer = new PcmMixer(RATE);
+        byte[] out = new byte[(int) length * PcmMixer.BYTES_PER_FRAME];
+        int next = 0;
+        for (long start = 0; start < length; start += chunkFrames) {
+            int n = (int) Math.min(chunkFrames, length - start);
+            while (next < mStarts.length && mStarts[next] < start + n) {
+                mixer.play(mSounds[next], mVolumes[next], mPans[next],
+                        mRates[next], (int) (mStarts[next] - start));
+                ++next;
+            }
+            mixer.mix(out, (int) start * PcmMixer.BYTES_PER_FRAME, n);
+        }
+        return out;
+    }
+
+    public void testMatchesSequentialMix() throws Exception {
+        long length = 12 * RATE + 123;
+        ParallelMixdown mixdown = build(60, length - RATE);
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        mixdown.mixTo(parallel, 0, length);
+        byte[] expected = mixSequentially(length, 1000);
+        assertEquals(expected.length, parallel.size());
+        assertTrue(Arrays.equals(expected, parallel.toByteArray()));
+    }
+
+    public void testMixFromPartWay() throws Exception {
+        long length = 10 * RATE;
+        ParallelMixdown mixdown = build(40, length);
+        long from = 3 * RATE + 777;
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        mixdown.mixTo(parallel, from, length);
+
+        byte[] whole = mixSequentially(length, 4096);
+        byte[] expected = new byte[(int) (length - from)
+                * PcmMixer.BYTES_PER_FRAME];
+        System.arraycopy(whole, (int) from * PcmMixer.BYTES_PER_FRAME,
+                expected, 0, expected.length);
+        assertTrue(Arrays.equals(expected, parallel.toByteArray()));
+    }
+
+    public void testNotSilent() {
+        long length = 4 * RATE;
+        build(10, length);
+        byte[] mix = mixSequentially(length, 512);
+        int loud = 0;
+        for (int i = 0; i < mix.length; i += 2) {
+            if (Math.abs((short) (mix[i] & 0xff | mix[i + 1] << 8)) > 1000) {
+                ++loud;
+            }
+        }
+        assertTrue(loud > mix.length / 20);
+    }
+}
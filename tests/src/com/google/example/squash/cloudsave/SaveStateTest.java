@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.cloudsave;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Merges states from two devices the ways CloudSave might, and checks that
+ * every game played on either one counts, whichever order they meet in.
+ */
+public class SaveStateTest extends TestCase {
+    static final String PHONE = "phone";
+    static final String TABLET = "tablet";
+    static final int GAMES = 0;
+    static final int HITS = 1;
+
+    static SaveState state(String deviceId, long games, long hits,
+            long bestScore, String... unlocked) {
+        SaveState state = new SaveState();
+        state.setCount(deviceId, GAMES, games);
+        state.setCount(deviceId, HITS, hits);
+        state.setBestScore(bestScore);
+        state.addUnlocked(Arrays.asList(unlocked));
+        return state;
+    }
+
+    static void assertSameEncoding(SaveState expected, SaveState actual) {
+        for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+            assertTrue("slot " + slot, Arrays.equals(
+                    expected.encodeSlot(slot), actual.encodeSlot(slot)));
+        }
+    }
+
+    public void testCountsFromBothDevicesAdd() {
+        // both started from a synced state of 10 games on the phone
+        SaveState phone = state(PHONE, 15, 40, 300, "a");
+        SaveState tablet = state(PHONE, 10, 30, 200);
+        tablet.merge(state(TABLET, 3, 9, 500, "b"));
+
+        SaveState one = new SaveState(phone);
+        one.merge(tablet);
+        SaveState other = new SaveState(tablet);
+        other.merge(phone);
+
+        assertEquals(18, one.getCount(GAMES));
+        assertEquals(49, one.getCount(HITS));
+        assertEquals(15, one.getCount(PHONE, GAMES));
+        assertEquals(3, one.getCount(TABLET, GAMES));
+        assertEquals(500, one.getBestScore());
+        assertEquals(2, one.getUnlocked().size());
+        assertSameEncoding(one, other);
+    }
+
+    public void testMergeIsIdempotent() {
+        SaveState state = state(PHONE, 5, 7, 100, "a");
+        state.merge(state(TABLET, 2, 0, 50));
+        SaveState again = new SaveState(state);
+        again.merge(state);
+        again.merge(new SaveState(state));
+        assertSameEncoding(state, again);
+        assertEquals(7, again.getCount(GAMES));
+    }
+
+    public void testSlotRoundTrip() throws Exception {
+        SaveState state = state(PHONE, 5, 7, 100, "b", "a");
+        state.setCount(TABLET, 4, 2);
+        SaveState decoded = new SaveState();
+        for (int slot = 0; slot < SaveState.SLOT_COUNT; slot++) {
+            decoded.mergeSlot(slot, state.encodeSlot(slot));
+        }
+        assertSameEncoding(state, decoded);
+        assertEquals(5, decoded.getCountLength());
+        assertEquals(2, decoded.getCount(4));
+        assertEquals(0, decoded.getCount(TABLET, HITS));
+        assertEquals(7, decoded.getCount(HITS));
+    }
+
+    public void testZeroCountsDontChangeEncoding() {
+        SaveState state = state(PHONE, 5, 7, 100);
+        SaveState padded = new SaveState(state);
+        padded.setCount(PHONE, 9, 0);
+        padded.setCount(TABLET, 2, 0);
+        padded.addUnlocked(Collections.<String> emptySet());
+        assertSameEncoding(state, padded);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.history;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks GameHistoryStore: appends read back across a reopen, the index is
+ * rebuilt from a log cut short by a crash, and range aggregates match
+ * adding up the games one by one.
+ */
+public class GameHistoryStoreTest extends TestCase {
+    File mDir;
+    GameHistoryStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = File.createTempFile("history", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mStore != null) {
+            mStore.close();
+        }
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    /** Opens the store in mDir and waits for it to be open. */
+    GameHistoryStore open() throws Exception {
+        if (mStore != null) {
+            mStore.close();
+        }
+        mStore = new GameHistoryStore(mDir);
+        sync(mStore);
+        return mStore;
+    }
+
+    /** Waits for everything queued on the store's thread so far to run. */
+    static void sync(GameHistoryStore store) throws Exception {
+        store.mWriter.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+
+    static GameRecord game(int i) {
+        GameRecord game = new GameRecord();
+        game.startTime = 1000000L * i;
+        game.durationMillis = 1000 + 37 * i;
+        game.score = (i * 7919) % 1000;
+        game.maxBalls = 1 + i % 300;
+        game.splits = i % 13;
+        game.paddleHits = i % 57;
+        game.seed = i * 0x9e3779b97f4a7c15L;
+        return game;
+    }
+
+    static void appendGames(GameHistoryStore store, int from, int to)
+            throws Exception {
+        for (int i = from; i < to; i++) {
+            store.append(game(i));
+        }
+        sync(store);
+    }
+
+    static void assertGame(int i, GameRecord game) {
+        GameRecord expected = game(i);
+        assertEquals(expected.startTime, game.startTime);
+        assertEquals(expected.durationMillis, game.durationMillis);
+        assertEquals(expected.score, game.score);
+        assertEquals(Math.min(255, expected.maxBalls), game.maxBalls);
+        assertEquals(expected.splits, game.splits);
+        assertEquals(expected.paddleHits, game.paddleHits);
+        assertEquals(expected.seed, game.seed);
+    }
+
+    /** Adds up games [from, to) without the store. */
+    static HistoryStats expected(int from, int to) {
+        HistoryStats s = new HistoryStats();
+        for (int i = from; i < to; i++) {
+            GameRecord game = game(i);
+            game.maxBalls = Math.min(255, game.maxBalls);
+            s.add(game);
+        }
+        return s;
+    }
+
+    static void assertStats(HistoryStats expected, HistoryStats actual) {
+        assertEquals(expected.games, actual.games);
+        assertEquals(expected.totalScore, actual.totalScore);
+        assertEquals(expected.bestScore, actual.bestScore);
+        assertEquals(expected.totalDurationMillis, actual.totalDurationMillis);
+        assertEquals(expected.totalSplits, actual.totalSplits);
+        assertEquals(expected.totalPaddleHits, actual.totalPaddleHits);
+        assertEquals(expected.maxBalls, actual.maxBalls);
+    }
+
+    public void testEmpty() throws Exception {
+        GameHistoryStore store = open();
+        assertEquals(0, store.size());
+        assertStats(new HistoryStats(), store.aggregate());
+        try {
+            store.read(0, new GameRecord());
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    public void testAppendAndReopen() throws Exception {
+        // past INITIAL_GAMES, so the files are grown once
+        int n = GameHistoryStore.INITIAL_GAMES + 10;
+        appendGames(open(), 0, n);
+        assertEquals(n, mStore.size());
+
+        GameHistoryStore store = open();
+        assertEquals(n, store.size());
+        GameRecord game = new GameRecord();
+        for (int i = 0; i < n; i += 97) {
+            store.read(i, game);
+            assertGame(i, game);
+        }
+        store.read(n - 1, game);
+        assertGame(n - 1, game);
+
+        // and carries on from there
+        appendGames(store, n, n + 1);
+        store.read(n, game);
+        assertGame(n, game);
+    }
+
+    public void testRebuildsIndexAfterTornTail() throws Exception {
+        int n = GameHistoryStore.BLOCK_GAMES + 44;
+        appendGames(open(), 0, n);
+        mStore.close();
+        mStore = null;
+
+        // the last game was half written and the index never updated
+        RandomAccessFile log = new RandomAccessFile(new File(mDir,
+                "history.log"), "rw");
+        log.setLength((n - 1) * GameHistoryStore.RECORD_BYTES + 17);
+        log.close();
+        new File(mDir, "history.idx").delete();
+
+        GameHistoryStore store = open();
+        assertEquals(n - 1, store.size());
+        assertStats(expected(0, n - 1), store.aggregate());
+        // the rebuilt summary of the first block
+        assertStats(expected(0, GameHistoryStore.BLOCK_GAMES),
+                store.readSummary(0));
+    }
+
+    public void testRebuildsDamagedIndex() throws Exception {
+        int n = 2 * GameHistoryStore.BLOCK_GAMES + 3;
+        appendGames(open(), 0, n);
+        mStore.close();
+        mStore = null;
+
+        RandomAccessFile index = new RandomAccessFile(new File(mDir,
+                "history.idx"), "rw");
+        index.writeInt(0xdeadbeef);
+        index.close();
+
+        GameHistoryStore store = open();
+        assertEquals(n, store.size());
+        assertStats(expected(0, n), store.aggregate());
+    }
+
+    public void testRangeAggregates() throws Exception {
+        int block = GameHistoryStore.BLOCK_GAMES;
+        int n = 3 * block + 88;
+        GameHistoryStore store = open();
+        appendGames(store, 0, n);
+
+        int[][] ranges = { { 0, n }, { 10, n - 10 }, { block, 2 * block },
+                { block - 1, 2 * block + 1 }, { 300, 310 }, { 5, 5 },
+                { -5, n + 1000 }, { 3 * block, n } };
+        for (int[] r : ranges) {
+            int from = Math.max(0, r[0]);
+            int to = Math.min(n, r[1]);
+            assertStats(expected(from, to), store.aggregate(r[0], r[1]));
+        }
+        assertStats(expected(0, n), store.aggregate());
+    }
+}
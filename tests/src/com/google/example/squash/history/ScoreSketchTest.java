@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks ScoreSketch's rank error against the bound in its class comment,
+ * what a compaction moves up a level, and the saved form.
+ */
+public class ScoreSketchTest extends TestCase {
+    static final long SEED = 1;
+
+    File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("scores", ".sketch");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    /** 0 .. n - 1 in a seeded random order. */
+    static int[] shuffled(int n, long seed) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+        Random random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+        return values;
+    }
+
+    static ScoreSketch sketchOf(int[] scores, long seed) {
+        ScoreSketch sketch = new ScoreSketch(new Random(seed));
+        for (int score : scores) {
+            sketch.add(score);
+        }
+        return sketch;
+    }
+
+    /** The largest error in fractionBelow() over 1000 evenly spaced scores. */
+    static double maxRankError(ScoreSketch sketch, int n) {
+        double max = 0;
+        for (int p = 0; p <= 1000; p++) {
+            int score = (int) ((long) p * n / 1000);
+            double truth = (double) score / n;
+            max = Math.max(max, Math.abs(sketch.fractionBelow(score) - truth));
+        }
+        return max;
+    }
+
+    /** Games stood for by the items of every level. */
+    static long weight(ScoreSketch sketch) {
+        long total = 0;
+        for (int h = 0; h < sketch.mLevels.length; h++) {
+            total += (long) sketch.mSizes[h] << h;
+        }
+        return total;
+    }
+
+    public void testEmpty() {
+        ScoreSketch sketch = new ScoreSketch(new Random(SEED));
+        assertEquals(0, sketch.getCount());
+        assertEquals(0.0, sketch.fractionBelow(10));
+        assertEquals(0, sketch.median());
+    }
+
+    public void testExactWhileSmall() {
+        ScoreSketch sketch = sketchOf(shuffled(100, SEED), SEED);
+        assertEquals(0, weight(sketch) - 100);
+        assertEquals(0.0, maxRankError(sketch, 100));
+        assertEquals(49, sketch.median());
+        assertEquals(0, sketch.quantile(0));
+        assertEquals(99, sketch.quantile(1));
+    }
+
+    public void testRankErrorAtAMillionGames() {
+        int n = 1000000;
+        ScoreSketch sketch = sketchOf(shuffled(n, SEED), SEED);
+        assertEquals(n, sketch.getCount());
+        assertEquals(n, weight(sketch));
+        double error = maxRankError(sketch, n);
+        assertTrue("rank error " + error, error <= 1.7 / ScoreSketch.K);
+        int median = sketch.median();
+        assertTrue("median " + median,
+                Math.abs(median - n / 2) <= 1.7 * n / ScoreSketch.K);
+        // a few kilobytes, however many games
+        int bytes = sketch.toByteArray().length;
+        assertTrue(bytes + " bytes", bytes < 3 * 1024);
+        assertTrue(sketch.size() <= sketch.totalCapacity());
+    }
+
+    public void testMergeKeepsAccuracy() {
+        int n = 200000;
+        int[] scores = shuffled(n, SEED);
+        ScoreSketch a = new ScoreSketch(new Random(SEED));
+        ScoreSketch b = new ScoreSketch(new Random(SEED + 1));
+        for (int i = 0; i < n; i++) {
+            (i % 3 == 0 ? a : b).add(scores[i]);
+        }
+        a.merge(b);
+        assertEquals(n, a.getCount());
+        assertEquals(n, weight(a));
+        double error = maxRankError(a, n);
+        assertTrue("rank error " + error, error <= 1.7 / ScoreSketch.K);
+    }
+
+    public void testCompactEvenLevel() {
+        ScoreSketch sketch = new ScoreSketch(new Random(SEED));
+        int[] values = { 9, 3, 7, 1, 5, 8, 2, 6 };
+        for (int v : values) {
+            sketch.append(0, v);
+        }
+        sketch.compact(0);
+        assertEquals(2, sketch.mLevels.length);
+        assertEquals(0, sketch.mSizes[0]);
+        assertEquals(4, sketch.mSizes[1]);
+        assertEquals(values.length, weight(sketch));
+        int[] up = slice(sketch.mLevels[1], sketch.mSizes[1]);
+        // every other one of 1 2 3 5 6 7 8 9
+        assertTrue(Arrays.toString(up),
+                Arrays.equals(new int[] { 1, 3, 6, 8 }, up)
+                        || Arrays.equals(new int[] { 2, 5, 7, 9 }, up));
+    }
+
+    public void testCompactOddLevelKeepsLargest() {
+        ScoreSketch sketch = new ScoreSketch(new Random(SEED));
+        int[] values = { 4, 1, 5, 3, 2 };
+        for (int v : values) {
+            sketch.append(0, v);
+        }
+        sketch.compact(0);
+        assertEquals(1, sketch.mSizes[0]);
+        assertEquals(5, sketch.mLevels[0][0]);
+        assertEquals(2, sketch.mSizes[1]);
+        assertEquals(values.length, weight(sketch));
+        int[] up = slice(sketch.mLevels[1], sketch.mSizes[1]);
+        assertTrue(Arrays.toString(up),
+                Arrays.equals(new int[] { 1, 3 }, up)
+                        || Arrays.equals(new int[] { 2, 4 }, up));
+    }
+
+    public void testRoundTrip() throws Exception {
+        ScoreSketch sketch = sketchOf(shuffled(50000, SEED), SEED);
+        byte[] data = sketch.toByteArray();
+        ScoreSketch copy = ScoreSketch.fromByteArray(data);
+        assertEquals(sketch.getCount(), copy.getCount());
+        assertEquals(sketch.mLevels.length, copy.mLevels.length);
+        for (int h = 0; h < sketch.mLevels.length; h++) {
+            assertTrue(Arrays.equals(
+                    slice(sketch.mLevels[h], sketch.mSizes[h]),
+                    slice(copy.mLevels[h], copy.mSizes[h])));
+        }
+        for (int score = 0; score < 50000; score += 997) {
+            assertEquals(sketch.fractionBelow(score),
+                    copy.fractionBelow(score));
+        }
+        assertTrue(Arrays.equals(data, copy.toByteArray()));
+    }
+
+    public void testRejectsOtherVersions() {
+        byte[] data = sketchOf(shuffled(10, SEED), SEED).toByteArray();
+        data[3] = (byte) (ScoreSketch.VERSION + 1);
+        try {
+            ScoreSketch.fromByteArray(data);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        ScoreSketch sketch = sketchOf(shuffled(1000, SEED), SEED);
+        ScoreSketch.save(mFile, sketch.toByteArray());
+        ScoreSketch loaded = ScoreSketch.load(mFile);
+        assertEquals(1000, loaded.getCount());
+        assertEquals(sketch.median(), loaded.median());
+    }
+
+    public void testLoadDamagedIsEmpty() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 0, 0, 0, 9, 1, 2 });
+        out.close();
+        assertEquals(0, ScoreSketch.load(mFile).getCount());
+        mFile.delete();
+        assertEquals(0, ScoreSketch.load(mFile).getCount());
+    }
+
+    static int[] slice(int[] items, int n) {
+        int[] out = new int[n];
+        System.arraycopy(items, 0, out, 0, n);
+        return out;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes small AVI files and reads them back chunk by chunk, checking the
+ * headers close() fills in and the idx1 index against what was written.
+ */
+public class AviWriterTest extends TestCase {
+    static final int WIDTH = 32;
+    static final int HEIGHT = 16;
+    static final int FPS = 10;
+    static final int RATE = 8000;
+
+    File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("avi", ".avi");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    ByteBuffer readBack() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] payload(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    public void testRoundTrip() throws IOException {
+        // odd sizes, so some chunks need a pad byte
+        byte[][] frames = { payload(101, 1), payload(64, 2), payload(7, 3) };
+        byte[] audio = payload(RATE / FPS * AviWriter.AUDIO_BLOCK_ALIGN, 4);
+
+        AviWriter avi = new AviWriter(mFile, WIDTH, HEIGHT, FPS, RATE);
+        for (byte[] frame : frames) {
+            avi.writeVideoFrame(frame, frame.length);
+            avi.writeAudio(audio, 0, audio.length);
+        }
+        avi.close();
+
+        ByteBuffer b = readBack();
+        assertEquals(AviWriter.fourCc("RIFF"), b.getInt(0));
+        assertEquals(b.limit() - 8, b.getInt(AviWriter.RIFF_SIZE));
+        assertEquals(AviWriter.fourCc("AVI "), b.getInt(8));
+        assertEquals(frames.length, b.getInt(AviWriter.AVIH_TOTAL_FRAMES));
+        assertEquals(frames.length, b.getInt(AviWriter.VIDEO_LENGTH));
+        assertEquals(frames.length * RATE / FPS,
+                b.getInt(AviWriter.AUDIO_LENGTH));
+        assertEquals(AviWriter.fourCc("movi"), b.getInt(AviWriter.MOVI_START));
+
+        // walk the movi list
+        int moviEnd = AviWriter.MOVI_START + b.getInt(AviWriter.MOVI_SIZE);
+        int position = AviWriter.MOVI_START + 4;
+        int chunks = 0;
+        while (position < moviEnd) {
+            boolean video = chunks % 2 == 0;
+            byte[] expected = video ? frames[chunks / 2] : audio;
+            assertEquals(AviWriter.fourCc(video ? "00dc" : "01wb"),
+                    b.getInt(position));
+            int size = b.getInt(position + 4);
+            assertEquals(expected.length, size);
+            byte[] actual = new byte[size];
+            b.position(position + 8);
+            b.get(actual);
+            assertTrue(Arrays.equals(expected, actual));
+            position += 8 + size + (size & 1);
+            chunks++;
+        }
+        assertEquals(moviEnd, position);
+        assertEquals(frames.length * 2, chunks);
+
+        // the index points at every chunk
+        assertEquals(AviWriter.fourCc("idx1"), b.getInt(moviEnd));
+        assertEquals(chunks * 16, b.getInt(moviEnd + 4));
+        position = AviWriter.MOVI_START + 4;
+        for (int i = 0; i < chunks; i++) {
+            int entry = moviEnd + 8 + i * 16;
+            int offset = AviWriter.MOVI_START + b.getInt(entry + 8);
+            assertEquals(position, offset);
+            assertEquals(b.getInt(offset), b.getInt(entry));
+            assertEquals(AviWriter.AVIIF_KEYFRAME, b.getInt(entry + 4));
+            assertEquals(b.getInt(offset + 4), b.getInt(entry + 12));
+            int size = b.getInt(offset + 4);
+            position += 8 + size + (size & 1);
+        }
+        assertEquals(b.limit(), moviEnd + 8 + chunks * 16);
+    }
+
+    public void testEmpty() throws IOException {
+        new AviWriter(mFile, WIDTH, HEIGHT, FPS, RATE).close();
+
+        ByteBuffer b = readBack();
+        assertEquals(b.limit() - 8, b.getInt(AviWriter.RIFF_SIZE));
+        assertEquals(0, b.getInt(AviWriter.AVIH_TOTAL_FRAMES));
+        assertEquals(4, b.getInt(AviWriter.MOVI_SIZE));
+        assertEquals(AviWriter.fourCc("idx1"),
+                b.getInt(AviWriter.MOVI_START + 4));
+        assertEquals(0, b.getInt(AviWriter.MOVI_START + 8));
+    }
+}
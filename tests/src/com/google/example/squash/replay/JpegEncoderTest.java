@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.replay;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Encodes test images and decodes them with the platform decoder, which
+ * must accept the stream and give back close to the original pixels.
+ */
+public class JpegEncoderTest extends TestCase {
+    // per channel, at quality 90 away from colour edges
+    static final int TOLERANCE = 12;
+
+    static Bitmap roundTrip(int[] rgb, int width, int height, int quality) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegEncoder(quality).encode(rgb, width, height, out);
+        byte[] jpeg = out.toByteArray();
+        assertEquals(0xff, jpeg[0] & 0xff);
+        assertEquals(0xd8, jpeg[1] & 0xff);
+        assertEquals(0xff, jpeg[jpeg.length - 2] & 0xff);
+        assertEquals(0xd9, jpeg[jpeg.length - 1] & 0xff);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        assertNotNull("decoder rejected the image", bitmap);
+        assertEquals(width, bitmap.getWidth());
+        assertEquals(height, bitmap.getHeight());
+        return bitmap;
+    }
+
+    static void assertClose(int expected, int actual) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int e = (expected >> shift) & 0xff;
+            int a = (actual >> shift) & 0xff;
+            assertTrue("expected " + Integer.toHexString(expected) + " got "
+                    + Integer.toHexString(actual & 0xffffff),
+                    Math.abs(e - a) <= TOLERANCE);
+        }
+    }
+
+    public void testFlatBlocks() {
+        // a court-like picture: flat quadrants on block boundaries
+        int width = 64, height = 32;
+        int[] colors = { 0x000000, 0xffffff, 0xff0000, 0x2040c0 };
+        int[] rgb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                rgb[y * width + x] = colors[(y / 16) * 2 + x / 32];
+            }
+        }
+        Bitmap bitmap = roundTrip(rgb, width, height, 90);
+        for (int y = 4; y < height; y += 8) {
+            for (int x = 4; x < width; x += 8) {
+                assertClose(rgb[y * width + x], bitmap.getPixel(x, y));
+            }
+        }
+    }
+
+    public void testGradientAndOddSize() {
+        // not a multiple of 8, so edge blocks are padded
+        int width = 37, height = 21;
+        int[] rgb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                rgb[y * width + x] = (x * 6) << 16 | (y * 10) << 8 | 0x80;
+            }
+        }
+        Bitmap bitmap = roundTrip(rgb, width, height, 90);
+        for (int y = 0; y < height; y += 5) {
+            for (int x = 0; x < width; x += 6) {
+                assertClose(rgb[y * width + x], bitmap.getPixel(x, y));
+            }
+        }
+    }
+
+    public void testLowQualityStillDecodes() {
+        int[] rgb = new int[16 * 16];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = i * 0x010203;
+        }
+        roundTrip(rgb, 16, 16, 1);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.replay;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.google.example.squash.Ball;
+
+/**
+ * Checks ReplayLibrary's index file layout across a reopen, dropping the
+ * oldest replays when full, the LRU cache's size cap, and starting over
+ * from a damaged index.
+ */
+public class ReplayLibraryTest extends TestCase {
+    File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = File.createTempFile("replays", "");
+        mDir.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * A finished game scoring score: a keyframe at 1000 and then a score
+     * event a second for seconds seconds, or nothing if seconds is 0.
+     */
+    static GameSession session(int score, int seconds) {
+        GameSession session = new GameSession(null);
+        session.mScore = score;
+        if (seconds > 0) {
+            session.mReplay.addKeyframe(1000, 0, new ArrayList<Ball>());
+            for (int i = 1; i <= seconds; i++) {
+                session.mReplay.addScore(1000 + i * 1000L, i);
+            }
+        }
+        return session;
+    }
+
+    /** A log whose columns hold events events. */
+    static ReplayLog logOf(int events) {
+        ReplayLog log = new ReplayLog();
+        for (int i = 0; i < events; i++) {
+            log.addScore(i, i);
+        }
+        return log;
+    }
+
+    public void testIndexFormat() throws Exception {
+        ReplayLibrary library = new ReplayLibrary(mDir);
+        assertEquals(1, library.add(session(30, 5), 1111, 3));
+        assertEquals(2, library.add(session(70, 9), 2222, 5));
+        assertEquals(3, library.add(session(50, 2), 3333, 1));
+
+        ByteBuffer in = ByteBuffer.wrap(ReplayLibrary.readFile(new File(
+                mDir, "replays.idx")));
+        assertEquals(ReplayLibrary.HEADER_BYTES + 3
+                * ReplayLibrary.ENTRY_BYTES, in.remaining());
+        assertEquals(ReplayLibrary.INDEX_MAGIC, in.getInt());
+        assertEquals(ReplayLibrary.INDEX_VERSION, in.getInt());
+        assertEquals(3, in.getInt());
+        assertEquals(4, in.getInt());
+        // one column per field, oldest replay first
+        for (int id = 1; id <= 3; id++) {
+            assertEquals(id, in.getInt());
+        }
+        assertEquals(1111, in.getLong());
+        assertEquals(2222, in.getLong());
+        assertEquals(3333, in.getLong());
+        assertEquals(30, in.getInt());
+        assertEquals(70, in.getInt());
+        assertEquals(50, in.getInt());
+        assertEquals(5000, in.getInt());
+        assertEquals(9000, in.getInt());
+        assertEquals(2000, in.getInt());
+        assertEquals(3, in.getInt());
+        assertEquals(5, in.getInt());
+        assertEquals(1, in.getInt());
+        assertFalse(in.hasRemaining());
+
+        ReplayLibrary reopened = new ReplayLibrary(mDir);
+        assertEquals(3, reopened.size());
+        assertEquals("[2, 3, 1]", Arrays.toString(reopened.list(0, 0, 0,
+                ReplayLibrary.ORDER_BEST)));
+        assertEquals("[3, 2]", Arrays.toString(reopened.list(0, 2000, 0,
+                ReplayLibrary.ORDER_NEWEST)));
+        assertEquals("[2]", Arrays.toString(reopened.list(40, 0, 4,
+                ReplayLibrary.ORDER_NEWEST)));
+        assertEquals(70, reopened.getScore(2));
+        assertEquals(2222, reopened.getDate(2));
+        assertEquals(9000, reopened.getDuration(2));
+        assertEquals(5, reopened.getBallCount(2));
+        assertEquals(-1, reopened.getScore(4));
+        // and carries on numbering where it left off
+        assertEquals(4, reopened.add(session(10, 1), 4444, 1));
+
+        ReplayLog log = reopened.load(2).get();
+        assertEquals(1000, log.startTime());
+        assertEquals(10000, log.endTime());
+    }
+
+    public void testDropsOldestWhenFull() throws Exception {
+        ReplayLibrary library = new ReplayLibrary(mDir);
+        int n = ReplayLibrary.MAX_REPLAYS + 3;
+        for (int i = 1; i <= n; i++) {
+            assertEquals(i, library.add(session(i, 1), i, 1));
+        }
+        assertEquals(ReplayLibrary.MAX_REPLAYS, library.size());
+        for (int id = 1; id <= 3; id++) {
+            assertEquals(-1, library.getScore(id));
+            assertFalse(library.replayFile(id).exists());
+            assertNull(library.cached(id));
+        }
+        assertEquals(4, library.getScore(4));
+        assertTrue(library.replayFile(4).exists());
+        assertEquals(ReplayLibrary.MAX_REPLAYS, new ReplayLibrary(mDir)
+                .size());
+    }
+
+    public void testCacheEvictsLeastRecentlyUsed() {
+        ReplayLibrary library = new ReplayLibrary(mDir);
+        // as many as fit under the cap
+        int events = 20000;
+        int fit = (int) (ReplayLibrary.CACHE_BYTES / logOf(events).heapSize());
+        assertTrue(fit >= 2);
+        ReplayLog[] logs = new ReplayLog[fit + 1];
+        for (int id = 1; id <= fit; id++) {
+            logs[id] = logOf(events);
+            library.cache(id, logs[id]);
+        }
+        assertEquals(fit, library.mCache.size());
+        // 1 becomes the most recently used, so 2 goes first
+        assertSame(logs[1], library.cached(1));
+
+        library.cache(fit + 1, logOf(events));
+        assertEquals(fit, library.mCache.size());
+        assertNull(library.cached(2));
+        assertSame(logs[1], library.cached(1));
+        for (int id = 3; id <= fit; id++) {
+            assertSame(logs[id], library.cached(id));
+        }
+        assertNotNull(library.cached(fit + 1));
+        assertTrue(library.mCacheBytes <= ReplayLibrary.CACHE_BYTES);
+
+        long total = 0;
+        for (ReplayLog log : library.mCache.values()) {
+            total += log.heapSize();
+        }
+        assertEquals(total, library.mCacheBytes);
+
+        library.uncache(1);
+        assertEquals(total - logs[1].heapSize(), library.mCacheBytes);
+    }
+
+    public void testCacheSkipsOversizedReplay() {
+        ReplayLibrary library = new ReplayLibrary(mDir);
+        library.cache(1, logOf(10));
+        library.cache(2, logOf((int) (ReplayLibrary.CACHE_BYTES / 40)));
+        assertNull(library.cached(2));
+        assertNotNull(library.cached(1));
+    }
+
+    public void testDamagedIndexStartsOver() throws Exception {
+        ReplayLibrary library = new ReplayLibrary(mDir);
+        library.add(session(30, 2), 1111, 1);
+        library.add(session(40, 2), 2222, 1);
+        File indexFile = new File(mDir, "replays.idx");
+
+        // cut short: the header promises more entries than there are
+        byte[] whole = ReplayLibrary.readFile(indexFile);
+        write(indexFile, whole, ReplayLibrary.HEADER_BYTES
+                + ReplayLibrary.ENTRY_BYTES);
+        assertEquals(0, new ReplayLibrary(mDir).size());
+
+        // not an index at all
+        write(indexFile, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }, 9);
+        ReplayLibrary recovered = new ReplayLibrary(mDir);
+        assertEquals(0, recovered.size());
+        assertEquals(0, recovered.list(0, 0, 0,
+                ReplayLibrary.ORDER_NEWEST).length);
+
+        // still works, and writes a good index again
+        int id = recovered.add(session(50, 3), 3333, 2);
+        assertTrue(id > 0);
+        ReplayLibrary reopened = new ReplayLibrary(mDir);
+        assertEquals(1, reopened.size());
+        assertEquals(50, reopened.getScore(id));
+        assertEquals(3000, reopened.getDuration(id));
+        assertEquals(4000, reopened.load(id).get().endTime());
+    }
+
+    public void testEmptySessionIsNotSaved() {
+        ReplayLibrary library = new ReplayLibrary(mDir);
+        assertEquals(-1, library.add(session(10, 0), 1, 1));
+        assertEquals(0, library.size());
+        assertFalse(new File(mDir, "replays.idx").exists());
+    }
+
+    static void write(File file, byte[] data, int length) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.replay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Steps a ReplaySoundScheduler through replay time by hand and checks which
+ * sounds it plays, when, and at what rate: the output latency lead, the
+ * late-sound drop, and how both scale with the playback speed.
+ */
+public class ReplaySoundSchedulerTest extends TestCase {
+    static final long LEAD = ReplaySoundScheduler.OUTPUT_LATENCY_MILLIS;
+    static final long LATE = ReplaySoundScheduler.MAX_LATE_MILLIS;
+
+    // what the scheduler played: sound ids and rates
+    final List<Integer> mPlayed = new ArrayList<Integer>();
+    final List<Float> mPlayedRates = new ArrayList<Float>();
+
+    ReplaySoundScheduler scheduler(long... times) {
+        ReplayLog log = new ReplayLog();
+        for (int i = 0; i < times.length; i++) {
+            log.addSound(times[i], i + 1, 1, 0, 1.25f);
+        }
+        return new ReplaySoundScheduler(log, 0, Long.MAX_VALUE,
+                new ReplayClock(), null) {
+            @Override
+            void play(int i, float speed) {
+                mPlayed.add(mSoundIds[i]);
+                mPlayedRates.add(mRates[i] * speed);
+            }
+        };
+    }
+
+    public void testPlaysOutputLatencyEarly() {
+        ReplaySoundScheduler s = scheduler(1000, 1500);
+        assertEquals(1000 - LEAD, s.playDue(500, 1));
+        assertTrue(mPlayed.isEmpty());
+        assertEquals(1500 - LEAD, s.playDue(1000 - LEAD, 1));
+        assertEquals(1, mPlayed.size());
+        assertEquals(Long.MAX_VALUE, s.playDue(1500 - LEAD, 1));
+        assertEquals(2, mPlayed.size());
+        assertEquals(0, s.mDropped);
+    }
+
+    public void testDropsLateSounds() {
+        ReplaySoundScheduler s = scheduler(1000, 1100);
+        // after a stall: the first comes up just too late
+        assertEquals(1100 - LEAD, s.playDue(1000 - LEAD + LATE + 1, 1));
+        assertTrue(mPlayed.isEmpty());
+        assertEquals(1, s.mDropped);
+        // the next, still in time, plays
+        assertEquals(Long.MAX_VALUE, s.playDue(1100 - LEAD + LATE, 1));
+        assertEquals(1, mPlayed.size());
+        assertEquals(2, (int) mPlayed.get(0));
+    }
+
+    public void testSpeedScalesLeadLateWindowAndRate() {
+        ReplaySoundScheduler s = scheduler(1000, 1100);
+        float speed = 2;
+        // a replay moving twice as fast needs twice the replay-time lead
+        assertEquals(1000 - 2 * LEAD, s.playDue(1000 - 2 * LEAD - 1, speed));
+        assertEquals(1100 - 2 * LEAD, s.playDue(1000 - 2 * LEAD, speed));
+        assertEquals(1, mPlayed.size());
+        // and the same real-time lateness is twice as much replay time
+        long now = 1100 - 2 * LEAD + 2 * LATE;
+        assertEquals(Long.MAX_VALUE, s.playDue(now, speed));
+        assertEquals(2, mPlayed.size());
+        assertEquals(0, s.mDropped);
+        assertEquals(2.5f, mPlayedRates.get(0), 1e-6);
+
+        // at normal speed, that lateness drops it
+        mPlayed.clear();
+        s = scheduler(1100);
+        s.playDue(1100 - LEAD + 2 * LATE, 1);
+        assertTrue(mPlayed.isEmpty());
+        assertEquals(1, s.mDropped);
+    }
+
+    public void testSlowMotionLowersPitch() {
+        ReplaySoundScheduler s = scheduler(1000);
+        s.playDue(1000, 0.5f);
+        assertEquals(0.625f, mPlayedRates.get(0), 1e-6);
+    }
+
+    public void testSeekBack() {
+        ReplaySoundScheduler s = scheduler(100, 110, 120);
+        s.playDue(120 - LEAD, 1);
+        assertEquals(3, mPlayed.size());
+        // the clock went back: play from there again
+        s.mNext = s.firstAtOrAfter(105);
+        s.playDue(120 - LEAD, 1);
+        assertEquals(5, mPlayed.size());
+        assertEquals(2, (int) mPlayed.get(3));
+    }
+}
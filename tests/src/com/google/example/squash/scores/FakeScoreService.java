@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.squash.scores;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local stand-in for the leaderboard service, for testing ScoreQueue
+ * without signing in or a network. It answers after a delay, on its own
+ * thread, and can be told to refuse submissions. It keeps the best score on
+ * each leaderboard and counts the submissions it took and refused.
+ */
+public class FakeScoreService implements ScoreService {
+    final ScheduledExecutorService mTimer = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FakeScoreService");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    final long mLatencyMillis;
+    volatile boolean mRefusing = false;
+
+    final Map<String, Long> mBestScores = new HashMap<String, Long>();
+    int mSubmissions = 0;
+    int mRefusals = 0;
+
+    public FakeScoreService(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /** While refusing, every submission is answered with a failure. */
+    public void setRefusing(boolean refusing) {
+        mRefusing = refusing;
+    }
+
+    @Override
+    public void submitScore(final String leaderboardId, final long score,
+            final Callback callback) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mRefusing) {
+                    callback.onScoreSubmitted(false);
+                    // counted once answered, so a test seeing the count
+                    // knows the queue has heard about it
+                    synchronized (FakeScoreService.this) {
+                        ++mRefusals;
+                    }
+                    return;
+                }
+                synchronized (FakeScoreService.this) {
+                    Long best = mBestScores.get(leaderboardId);
+                    if (best == null || score > best) {
+                        mBestScores.put(leaderboardId, score);
+                    }
+                    ++mSubmissions;
+                }
+                callback.onScoreSubmitted(true);
+            }
+        }, mLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** The best score taken on a leaderboard, or -1 if none. */
+    public synchronized long getBestScore(String leaderboardId) {
+        Long best = mBestScores.get(leaderboardId);
+        return best == null ? -1 : best;
+    }
+
+    public synchronized int getSubmissionCount() {
+        return mSubmissions;
+    }
+
+    public synchronized int getRefusalCount() {
+        return mRefusals;
+    }
+}
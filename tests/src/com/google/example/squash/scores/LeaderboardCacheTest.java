@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.scores;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import com.google.example.squash.scores.LeaderboardCache.Snapshot;
+
+/**
+ * Checks LeaderboardCache's rank arithmetic on hand-built snapshots: where a
+ * score would rank, moving the player's entry, and merging the two halves of
+ * a refresh.
+ */
+public class LeaderboardCacheTest extends TestCase {
+    // the top three, then a gap, then the player (rank 51) and neighbours
+    static final long[] RANKS = { 1, 2, 3, 50, 51, 52 };
+    static final long[] SCORES = { 100, 90, 80, 40, 30, 20 };
+    static final int PLAYER = 4;
+
+    File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("leaderboard", ".cache");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    static Snapshot board() {
+        return new Snapshot(RANKS.clone(), SCORES.clone(), PLAYER);
+    }
+
+    static void assertSnapshot(long[] ranks, long[] scores, int player,
+            Snapshot s) {
+        assertEquals(Arrays.toString(ranks), Arrays.toString(s.mRanks));
+        assertEquals(Arrays.toString(scores), Arrays.toString(s.mScores));
+        assertEquals(player, s.mPlayer);
+    }
+
+    public void testRankForEmpty() {
+        assertEquals(0, LeaderboardCache.rankFor(LeaderboardCache.EMPTY, 10));
+    }
+
+    public void testRankForInsideWindows() {
+        Snapshot s = board();
+        assertEquals(1, LeaderboardCache.rankFor(s, 500));
+        assertEquals(2, LeaderboardCache.rankFor(s, 95));
+        // below the rank 50 entry, skipping the player's own
+        assertEquals(51, LeaderboardCache.rankFor(s, 35));
+        assertEquals(51, LeaderboardCache.rankFor(s, 25));
+        // below everyone: the 52 others less the player
+        assertEquals(52, LeaderboardCache.rankFor(s, 5));
+    }
+
+    public void testRankForInGapIsBestCase() {
+        // somewhere between rank 3 and rank 50: the best it could be
+        assertEquals(4, LeaderboardCache.rankFor(board(), 60));
+    }
+
+    public void testRankForTiesGoToEarlier() {
+        Snapshot s = board();
+        assertEquals(3, LeaderboardCache.rankFor(s, 90));
+        assertEquals(4, LeaderboardCache.rankFor(s, 80));
+        // a tie with the player's own best doesn't count
+        assertEquals(51, LeaderboardCache.rankFor(s, 30));
+    }
+
+    public void testWithPlayerScoreNotOnBoard() {
+        Snapshot s = new Snapshot(new long[] { 1, 2, 3 }, new long[] { 100,
+                90, 80 }, -1);
+        assertSnapshot(new long[] { 1, 2, 3, 4 }, new long[] { 100, 90, 85,
+                80 }, 2, LeaderboardCache.withPlayerScore(s, 85));
+        // tied with rank 2: goes after it
+        assertSnapshot(new long[] { 1, 2, 3, 4 }, new long[] { 100, 90, 90,
+                80 }, 2, LeaderboardCache.withPlayerScore(s, 90));
+        assertSnapshot(new long[] { 1 }, new long[] { 50 }, 0,
+                LeaderboardCache.withPlayerScore(LeaderboardCache.EMPTY, 50));
+    }
+
+    public void testWithPlayerScoreMovesUpPastEntries() {
+        // past rank 50 (now 51) and up to rank 2; rank 52 stays put
+        assertSnapshot(new long[] { 1, 2, 3, 4, 51, 52 }, new long[] { 100,
+                95, 90, 80, 40, 20 }, 1,
+                LeaderboardCache.withPlayerScore(board(), 95));
+    }
+
+    public void testWithPlayerScoreIntoGap() {
+        assertSnapshot(new long[] { 1, 2, 3, 4, 51, 52 }, new long[] { 100,
+                90, 80, 45, 40, 20 }, 3,
+                LeaderboardCache.withPlayerScore(board(), 45));
+    }
+
+    public void testWithPlayerScoreInPlace() {
+        // better, but not past anyone
+        assertSnapshot(RANKS, new long[] { 100, 90, 80, 40, 35, 20 }, PLAYER,
+                LeaderboardCache.withPlayerScore(board(), 35));
+    }
+
+    public void testMergeDropsOverlap() {
+        Snapshot s = LeaderboardCache.merge(new long[] { 1, 2, 3 },
+                new long[] { 100, 90, 80 }, new long[] { 2, 3, 4 },
+                new long[] { 90, 80, 70 }, 2);
+        assertSnapshot(new long[] { 1, 2, 3, 4 }, new long[] { 100, 90, 80,
+                70 }, 3, s);
+    }
+
+    public void testMergeWithGap() {
+        Snapshot s = LeaderboardCache.merge(new long[] { 1, 2, 3 },
+                new long[] { 100, 90, 80 }, new long[] { 50, 51, 52 },
+                new long[] { 40, 30, 20 }, 1);
+        assertSnapshot(RANKS, SCORES, PLAYER, s);
+    }
+
+    public void testMergeWithoutTop() {
+        Snapshot s = LeaderboardCache.merge(null, null, new long[] { 50, 51,
+                52 }, new long[] { 40, 30, 20 }, 1);
+        assertSnapshot(new long[] { 50, 51, 52 }, new long[] { 40, 30, 20 },
+                1, s);
+    }
+
+    public void testMergePlayerInTop() {
+        Snapshot s = LeaderboardCache.merge(new long[] { 1, 2, 3 },
+                new long[] { 100, 90, 80 }, new long[] { 1, 2, 3, 4 },
+                new long[] { 100, 90, 80, 70 }, 1);
+        assertSnapshot(new long[] { 1, 2, 3, 4 }, new long[] { 100, 90, 80,
+                70 }, 1, s);
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        LeaderboardCache cache = new LeaderboardCache(mFile);
+        sync(cache);
+        cache.publish(board());
+        cache.save();
+
+        LeaderboardCache loaded = new LeaderboardCache(mFile);
+        sync(loaded);
+        assertSnapshot(RANKS, SCORES, PLAYER, loaded.mSnapshot);
+        assertEquals(51, loaded.getPlayerRank());
+        assertEquals(30, loaded.getPlayerScore());
+    }
+
+    /** Waits for everything queued on the cache's thread so far to run. */
+    static void sync(LeaderboardCache cache) throws Exception {
+        cache.mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.example.squash.scores;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives ScoreQueue against FakeScoreService: what gets sent, what the
+ * journal keeps across a restart, and how the queue picks up after the
+ * service turns it down.
+ */
+public class ScoreQueueTest extends TestCase {
+    static final String EASY = "easy";
+    static final String HARD = "hard";
+
+    static final long TIMEOUT_MILLIS = 5000;
+
+    File mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        mJournal = File.createTempFile("scores", ".journal");
+        mJournal.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournal.delete();
+        new File(mJournal.getPath() + ".tmp").delete();
+    }
+
+    /** Waits for everything queued on the queue's thread so far to run. */
+    static void sync(ScoreQueue queue) throws Exception {
+        queue.mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+
+    static void waitForPending(ScoreQueue queue, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (queue.getPendingCount() != count) {
+            assertTrue("still " + queue.getPendingCount() + " pending",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        sync(queue);
+    }
+
+    static void waitForRefusals(ScoreQueue queue, FakeScoreService service,
+            int count) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (service.getRefusalCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        sync(queue);
+    }
+
+    public void testCoalescesToBestScore() throws Exception {
+        ScoreQueue queue = new ScoreQueue(mJournal);
+        queue.submit(EASY, 10);
+        queue.submit(EASY, 30);
+        queue.submit(EASY, 20);
+        queue.submit(HARD, 5);
+        sync(queue);
+        assertEquals(2, queue.getPendingCount());
+
+        // a restart keeps just the best of each
+        queue = new ScoreQueue(mJournal);
+        sync(queue);
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(30, queue.mPending.get(EASY).score);
+        assertEquals(2, queue.mJournalRecords);
+
+        FakeScoreService service = new FakeScoreService(1);
+        queue.setService(service);
+        waitForPending(queue, 0);
+        assertEquals(2, service.getSubmissionCount());
+        assertEquals(30, service.getBestScore(EASY));
+        assertEquals(5, service.getBestScore(HARD));
+
+        // and nothing is left to send after the next restart
+        assertEquals(0, queue.mJournalRecords);
+        queue = new ScoreQueue(mJournal);
+        sync(queue);
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    public void testTornRecord() throws Exception {
+        byte[] torn = ScoreQueue.record(HARD, 99);
+        FileOutputStream out = new FileOutputStream(mJournal);
+        try {
+            out.write(ScoreQueue.record(EASY, 10));
+            out.write(ScoreQueue.record(HARD, 20));
+            out.write(torn, 0, torn.length - 3);
+        } finally {
+            out.close();
+        }
+
+        ScoreQueue queue = new ScoreQueue(mJournal);
+        sync(queue);
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(20, queue.mPending.get(HARD).score);
+
+        queue.submit(HARD, 25);
+        sync(queue);
+        assertEquals(25, queue.mPending.get(HARD).score);
+
+        // the score journaled after the torn record survives a restart
+        queue = new ScoreQueue(mJournal);
+        sync(queue);
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(10, queue.mPending.get(EASY).score);
+        assertEquals(25, queue.mPending.get(HARD).score);
+    }
+
+    public void testFlushesAfterFailure() throws Exception {
+        ScoreQueue queue = new ScoreQueue(mJournal);
+        FakeScoreService service = new FakeScoreService(1);
+        service.setRefusing(true);
+        queue.setService(service);
+        queue.submit(EASY, 10);
+        waitForRefusals(queue, service, 1);
+
+        // kept, and not retried on its own
+        assertEquals(1, queue.getPendingCount());
+        assertEquals(0, queue.mInFlight);
+        Thread.sleep(20);
+        assertEquals(1, service.getRefusalCount());
+
+        // the next submit sends both
+        service.setRefusing(false);
+        queue.submit(HARD, 3);
+        waitForPending(queue, 0);
+        assertEquals(10, service.getBestScore(EASY));
+        assertEquals(3, service.getBestScore(HARD));
+
+        queue = new ScoreQueue(mJournal);
+        sync(queue);
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    public void testSetServiceRetries() throws Exception {
+        ScoreQueue queue = new ScoreQueue(mJournal);
+        FakeScoreService refusing = new FakeScoreService(1);
+        refusing.setRefusing(true);
+        queue.setService(refusing);
+        queue.submit(EASY, 10);
+        waitForRefusals(queue, refusing, 1);
+        assertEquals(1, queue.getPendingCount());
+
+        // signing in again sends what's pending
+        FakeScoreService service = new FakeScoreService(1);
+        queue.setService(service);
+        waitForPending(queue, 0);
+        assertEquals(1, service.getSubmissionCount());
+        assertEquals(10, service.getBestScore(EASY));
+    }
+}